@@ -0,0 +1,181 @@
+package org.birroph.continuousrec;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Keeps configured AAC encoders warm between segments.
+ * <p>
+ * Creating and configuring a MediaCodec is one of the slowest things the app does, so
+ * an encoder that reached end of stream is reset with {@link MediaCodec#flush()} and
+ * kept for the next segment instead of being released. Encoders are recreated only
+ * when the format (sample rate, channels, bit rate) changes.
+ * <p>
+ * Stream writers and the PCM finalizer can hold an encoder each at the same time, so
+ * up to {@code maxIdle} encoders are kept.
+ */
+public class AacEncoderManager {
+    private static final String TAG = "AacEncoderManager";
+
+    /** An encoder on loan; give it back with {@link #recycle} or {@link #discard}. */
+    public static final class Lease {
+        public final MediaCodec codec;
+        private final long key;
+        /**
+         * Output format seen in a previous use. A flushed encoder does not signal
+         * INFO_OUTPUT_FORMAT_CHANGED again, so the muxer track is added from this.
+         */
+        MediaFormat outputFormat;
+
+        Lease(MediaCodec codec, long key) {
+            this.codec = codec;
+            this.key = key;
+        }
+
+        public MediaFormat getOutputFormat() {
+            return outputFormat;
+        }
+
+        public void setOutputFormat(MediaFormat format) {
+            outputFormat = format;
+        }
+    }
+
+    private final int maxIdle;
+    private final ArrayDeque<Lease> idle = new ArrayDeque<>();
+    private boolean closed = false;
+
+    private long coldStarts = 0;
+    private long coldNanos = 0;
+    private long lastColdNanos = 0;
+    private long warmStarts = 0;
+    private long resets = 0;
+    private long warmNanos = 0;
+    private long lastWarmNanos = 0;
+
+    public AacEncoderManager(int maxIdle) {
+        this.maxIdle = Math.max(1, maxIdle);
+    }
+
+    /** A started encoder for the given format: a warm one if available, otherwise a new one. */
+    public Lease acquire(int sampleRate, int channels, int bitRate) throws IOException {
+        long key = key(sampleRate, channels, bitRate);
+        synchronized (this) {
+            if (closed) throw new IOException("encoder manager closed");
+            Lease warm = idle.pollFirst();
+            if (warm != null && warm.key == key) {
+                warmStarts++;
+                return warm;
+            }
+            // formato cambiato: gli encoder tenuti caldi non servono più
+            if (warm != null) release(warm);
+            while ((warm = idle.pollFirst()) != null) release(warm);
+        }
+
+        long t0 = System.nanoTime();
+        MediaCodec codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+        try {
+            codec.configure(format(sampleRate, channels, bitRate), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+        } catch (RuntimeException e) {
+            codec.release();
+            throw e;
+        }
+        long elapsed = System.nanoTime() - t0;
+        synchronized (this) {
+            coldStarts++;
+            coldNanos += elapsed;
+            lastColdNanos = elapsed;
+        }
+        return new Lease(codec, key);
+    }
+
+    /**
+     * Takes back an encoder, after its end of stream or mid-stream for an aborted
+     * segment, and resets it for the next one. The reset time is the warm setup cost.
+     */
+    public void recycle(Lease lease) {
+        long t0 = System.nanoTime();
+        try {
+            lease.codec.flush();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "flush failed, dropping encoder", e);
+            release(lease);
+            return;
+        }
+        long elapsed = System.nanoTime() - t0;
+        synchronized (this) {
+            resets++;
+            warmNanos += elapsed;
+            lastWarmNanos = elapsed;
+            if (!closed && idle.size() < maxIdle) {
+                idle.addLast(lease);
+                return;
+            }
+        }
+        release(lease);
+    }
+
+    /** Releases an encoder left in an unknown state after a codec error. */
+    public void discard(Lease lease) {
+        release(lease);
+    }
+
+    /** Releases the idle encoders; leases still out are released when returned. */
+    public synchronized void close() {
+        closed = true;
+        Lease lease;
+        while ((lease = idle.pollFirst()) != null) release(lease);
+    }
+
+    public synchronized long getColdStarts() {
+        return coldStarts;
+    }
+
+    public synchronized long getWarmStarts() {
+        return warmStarts;
+    }
+
+    /** Average create + configure + start time, in µs. */
+    public synchronized long getAverageColdSetupMicros() {
+        return coldStarts == 0 ? 0 : coldNanos / coldStarts / 1000;
+    }
+
+    /** Average flush time of a recycled encoder, in µs. */
+    public synchronized long getAverageWarmSetupMicros() {
+        return resets == 0 ? 0 : warmNanos / resets / 1000;
+    }
+
+    public synchronized long getLastColdSetupMicros() {
+        return lastColdNanos / 1000;
+    }
+
+    public synchronized long getLastWarmSetupMicros() {
+        return lastWarmNanos / 1000;
+    }
+
+    static MediaFormat format(int sampleRate, int channels, int bitRate) {
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channels);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16384);
+        return format;
+    }
+
+    private static long key(int sampleRate, int channels, int bitRate) {
+        return ((long) sampleRate << 40) | ((long) channels << 32) | (bitRate & 0xffffffffL);
+    }
+
+    private static void release(Lease lease) {
+        try {
+            lease.codec.stop();
+        } catch (Exception ignored) {
+        }
+        lease.codec.release();
+    }
+}
@@ -0,0 +1,127 @@
+package org.birroph.continuousrec;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link RangeExtractor.Stitcher} for AAC segments: the encoded frames are copied from
+ * each segment into one M4A with new timestamps, without decoding. Extracting an hour
+ * costs reading and writing the bytes, not codec time.
+ * <p>
+ * Trimming is to whole AAC frames (1024 samples): a piece starts with the frame that
+ * contains its first sample and ends before the frame that starts past its last.
+ * Every AAC frame is a sync frame, so no pre-roll is needed after a seek.
+ */
+public class AacRangeRemuxer implements RangeExtractor.Stitcher {
+    private static final String TAG = "AacRangeRemuxer";
+    private static final int AAC_FRAME = 1024;
+
+    private final File outFile;
+    private final File partFile;
+    private MediaMuxer muxer;
+    private ByteBuffer buffer;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private int track = -1;
+    private int sampleRate;
+    private long lastPtsUs = -1;
+
+    public AacRangeRemuxer(File outFile) {
+        this.outFile = outFile;
+        this.partFile = new File(outFile.getPath() + ".part");
+    }
+
+    @Override
+    public void begin(RangeExtractor.Plan plan) throws IOException {
+        sampleRate = plan.sampleRate;
+        muxer = new MediaMuxer(partFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public void piece(RangeExtractor.Piece piece) throws IOException {
+        MediaExtractor in = new MediaExtractor();
+        try {
+            in.setDataSource(piece.entry.path);
+            MediaFormat format = audioTrack(in, piece.entry.path);
+            if (track < 0) {
+                // primo pezzo: il suo formato (con la csd) vale per tutti, il piano è omogeneo
+                int maxInput = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                        ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : 0;
+                buffer = ByteBuffer.allocateDirect(Math.max(maxInput, 64 * 1024));
+                track = muxer.addTrack(format);
+                muxer.start();
+            }
+            long fromUs = SampleClock.toMicros(piece.fromFrame, sampleRate);
+            long toUs = SampleClock.toMicros(piece.toFrame, sampleRate);
+            long outUs = SampleClock.toMicros(piece.outputFrame, sampleRate);
+            long frameUs = SampleClock.toMicros(AAC_FRAME, sampleRate);
+            in.seekTo(fromUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+            int size;
+            while ((size = in.readSampleData(buffer, 0)) >= 0) {
+                long t = in.getSampleTime();
+                if (t >= toUs) break;
+                if (t + frameUs > fromUs) {
+                    long pts = Math.max(lastPtsUs + 1, outUs + Math.max(0, t - fromUs));
+                    info.set(0, size, pts, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+                    muxer.writeSampleData(track, buffer, info);
+                    lastPtsUs = pts;
+                }
+                in.advance();
+            }
+        } finally {
+            in.release();
+        }
+    }
+
+    private static MediaFormat audioTrack(MediaExtractor in, String path) throws IOException {
+        for (int i = 0; i < in.getTrackCount(); i++) {
+            MediaFormat f = in.getTrackFormat(i);
+            String mime = f.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                in.selectTrack(i);
+                return f;
+            }
+        }
+        throw new IOException("no audio track in " + path);
+    }
+
+    @Override
+    public File finish() throws IOException {
+        boolean empty = lastPtsUs < 0;
+        release();
+        if (empty) {
+            partFile.delete();
+            throw new IOException("no AAC frames in range for " + outFile.getName());
+        }
+        if (!partFile.renameTo(outFile)) {
+            partFile.delete();
+            throw new IOException("rename failed " + partFile);
+        }
+        return outFile;
+    }
+
+    @Override
+    public void abort() {
+        release();
+        partFile.delete();
+    }
+
+    private void release() {
+        if (muxer != null) {
+            try {
+                if (track >= 0) muxer.stop();
+            } catch (Exception e) {
+                Log.e(TAG, "muxer stop", e);
+            }
+            muxer.release();
+            muxer = null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.birroph.continuousrec;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Encodes a segment to AAC/M4A while it is being recorded: PCM blocks go straight
+ * into a live MediaCodec and the output into a MediaMuxer, no temporary PCM file.
+ * <p>
+ * The muxer writes to a ".part" file that is renamed on {@link #finish()}, so a
+ * half-written segment is never mistaken for a saved one. The encoder is borrowed from
+ * an {@link AacEncoderManager} and handed back when the segment ends.
+ */
+public class AacStreamWriter implements SegmentWriter {
+    private static final String TAG = "AacStreamWriter";
+    private static final long TIMEOUT_US = 10000;
+
+    private final File outFile;
+    private final File partFile;
+    private final int sampleRate;
+    private final int channels;
+
+    private final AacEncoderManager encoders;
+    private AacEncoderManager.Lease lease;
+    private MediaCodec encoder;
+    private MediaMuxer muxer;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private int trackIndex = -1;
+    private boolean muxerStarted = false;
+    private long samplesWritten = 0;
+
+    public AacStreamWriter(File outFile, int sampleRate, int channels, int bitRate,
+                           AacEncoderManager encoders) throws IOException {
+        this.outFile = outFile;
+        this.partFile = new File(outFile.getPath() + ".part");
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.encoders = encoders;
+
+        try {
+            lease = encoders.acquire(sampleRate, channels, bitRate);
+        } catch (IOException | RuntimeException e) {
+            partFile.delete(); // il nome riservato da SegmentCatalog.uniqueFile
+            throw e;
+        }
+        encoder = lease.codec;
+        try {
+            muxer = new MediaMuxer(partFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            // encoder già usato: il formato di uscita non verrà più annunciato
+            if (lease.getOutputFormat() != null) startMuxer(lease.getOutputFormat());
+        } catch (IOException | RuntimeException e) {
+            release(false);
+            partFile.delete();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(short[] samples, int offset, int length) throws IOException {
+        int done = 0;
+        while (done < length) {
+            int inIndex = encoder.dequeueInputBuffer(TIMEOUT_US);
+            if (inIndex >= 0) {
+                ByteBuffer in = encoder.getInputBuffer(inIndex);
+                in.clear();
+                ShortBuffer shorts = in.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+                // solo frame interi nel buffer del codec
+                int n = Math.min(length - done, shorts.remaining() / channels * channels);
+                shorts.put(samples, offset + done, n);
+                encoder.queueInputBuffer(inIndex, 0, n * 2, presentationTimeUs(), 0);
+                samplesWritten += n;
+                done += n;
+            }
+            drain(false);
+        }
+    }
+
+    @Override
+    public File finish() throws IOException {
+        try {
+            int inIndex;
+            while ((inIndex = encoder.dequeueInputBuffer(TIMEOUT_US)) < 0) {
+                drain(false);
+            }
+            encoder.queueInputBuffer(inIndex, 0, 0, presentationTimeUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drain(true);
+            release(true);
+        } finally {
+            release(false);
+        }
+        if (!muxerStarted) {
+            partFile.delete();
+            throw new IOException("no AAC output for " + outFile.getName());
+        }
+        if (!partFile.renameTo(outFile)) {
+            throw new IOException("rename failed " + partFile);
+        }
+        return outFile;
+    }
+
+    @Override
+    public void abort() {
+        // il flush rimette l'encoder a posto anche a metà stream
+        release(true);
+        partFile.delete();
+    }
+
+    @Override
+    public long getSamplesWritten() {
+        return samplesWritten;
+    }
+
+    @Override
+    public File getFile() {
+        return outFile;
+    }
+
+    private long presentationTimeUs() {
+        return SampleClock.toMicros(samplesWritten / channels, sampleRate);
+    }
+
+    private void drain(boolean untilEos) {
+        while (true) {
+            int outIndex = encoder.dequeueOutputBuffer(bufferInfo, untilEos ? TIMEOUT_US : 0);
+            if (outIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!untilEos) return;
+            } else if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                lease.setOutputFormat(encoder.getOutputFormat());
+                startMuxer(lease.getOutputFormat());
+            } else if (outIndex >= 0) {
+                ByteBuffer encoded = encoder.getOutputBuffer(outIndex);
+                boolean config = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                if (bufferInfo.size != 0 && muxerStarted && !config) {
+                    encoded.position(bufferInfo.offset);
+                    encoded.limit(bufferInfo.offset + bufferInfo.size);
+                    muxer.writeSampleData(trackIndex, encoded, bufferInfo);
+                }
+                encoder.releaseOutputBuffer(outIndex, false);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) return;
+            }
+        }
+    }
+
+    private void startMuxer(MediaFormat format) {
+        trackIndex = muxer.addTrack(format);
+        muxer.start();
+        muxerStarted = true;
+    }
+
+    /** Returns the encoder to the manager, warm if {@code reuse}, and closes the muxer. */
+    private void release(boolean reuse) {
+        if (lease != null) {
+            if (reuse) encoders.recycle(lease);
+            else encoders.discard(lease);
+            lease = null;
+            encoder = null;
+        }
+        if (muxer != null) {
+            try {
+                if (muxerStarted) muxer.stop();
+            } catch (Exception e) {
+                Log.e(TAG, "muxer stop", e);
+            }
+            muxer.release();
+            muxer = null;
+        }
+    }
+}
@@ -10,13 +10,15 @@ import androidx.annotation.Nullable;
 
 public class AudioLevelMeter extends View {
     private Paint paint = new Paint();
-    private int thresholdDb = 50;
-    private float currentLevel = 0f; // 0..1
+    private float thresholdDb = -30f;         // dBFS
+    private float noiseFloorDb = Float.NaN;   // dBFS, NaN se non disponibile
+    private float currentLevel = 0f; // RMS lineare 0..1
 
     public AudioLevelMeter(Context context) { super(context); }
     public AudioLevelMeter(Context context, @Nullable AttributeSet attrs) { super(context, attrs); }
 
-    public void setThresholdDb(int db) { this.thresholdDb = db; invalidate(); }
+    public void setThresholdDb(float db) { this.thresholdDb = db; invalidate(); }
+    public void setNoiseFloorDb(float db) { this.noiseFloorDb = db; invalidate(); }
     public void setLevel(float level) { this.currentLevel = level; invalidate(); }
 
     @Override
@@ -31,9 +33,15 @@ public class AudioLevelMeter extends View {
         canvas.drawRect(0, h/4f, w, h*3/4f, paint);
         // draw level
         paint.setColor(0xff33aa33);
-        canvas.drawRect(0, h/4f, w * currentLevel, h*3/4f, paint);
-        // draw threshold line (red)
-        float t = (thresholdDb / 120f); // naive mapping
+        canvas.drawRect(0, h/4f, w * LevelScale.toFraction(LevelScale.toDb(currentLevel)), h*3/4f, paint);
+        // draw noise floor (grey)
+        if (!Float.isNaN(noiseFloorDb)) {
+            float f = LevelScale.toFraction(noiseFloorDb);
+            paint.setColor(0xff888888);
+            canvas.drawRect(w * f - 1, h/4f, w * f + 1, h*3/4f, paint);
+        }
+        // draw threshold line (red), same dBFS scale as the level
+        float t = LevelScale.toFraction(thresholdDb);
         paint.setColor(0xffcc0000);
         canvas.drawRect(w * t - 2, h/8f, w * t + 2, h*7/8f, paint);
     }
@@ -0,0 +1,43 @@
+package org.birroph.continuousrec;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where the recording engine gets its samples from: the microphone, a file, a generator.
+ * Samples are 16-bit, interleaved when {@link #getChannels()} &gt; 1.
+ */
+public interface AudioSource extends Closeable {
+
+    int getSampleRate();
+
+    int getChannels();
+
+    void start() throws IOException;
+
+    /**
+     * Reads up to {@code length} samples. Returns the number read, 0 if nothing is
+     * available yet, or -1 once the source is exhausted.
+     */
+    int read(short[] buffer, int offset, int length) throws IOException;
+
+    /** True if the source captures in float and {@link #read(float[], int, int, short[])} is the native path. */
+    default boolean isFloat() {
+        return false;
+    }
+
+    /**
+     * Like {@link #read(short[], int, int)}, samples in -1..1. Float sources override it
+     * and ignore {@code scratch}; the others read into {@code scratch}, at least
+     * {@code length} long and owned by the caller, and convert.
+     */
+    default int read(float[] buffer, int offset, int length, short[] scratch) throws IOException {
+        int n = read(scratch, 0, length);
+        final float scale = 1f / 32768f;
+        for (int i = 0; i < n; i++) buffer[offset + i] = scratch[i] * scale;
+        return n;
+    }
+
+    @Override
+    void close();
+}
@@ -8,25 +8,61 @@ import android.view.View;
 
 import androidx.annotation.Nullable;
 
-import java.util.ArrayList;
-import java.util.List;
-
+/**
+ * Level history as one vertical bar per column, from the quietest block RMS to the
+ * loudest peak that fell into it, on the same dBFS scale as the threshold line.
+ */
 public class AudioWaveformView extends View {
+    public static final int DEFAULT_HISTORY_SEC = 120;
+    private static final float COLUMN_PX = 3f;
+
     private Paint linePaint;
     private Paint thresholdPaint;
-    private List<Float> levels = new ArrayList<>();
-    private int maxSamples = 200; // numero di punti visibili
-    private float thresholdDb = 50;
+    private Paint floorPaint;
+    private WaveformHistory history;
+    private float[] points;
+    private int historySec = DEFAULT_HISTORY_SEC;
+    private int sampleRate = CaptureFormat.DEFAULT_RATE;
+    private float thresholdDb = -30f;        // dBFS
+    private float noiseFloorDb = Float.NaN;  // dBFS
 
     public AudioWaveformView(Context context, @Nullable AttributeSet attrs) {
         super(context, attrs);
         linePaint = new Paint();
         linePaint.setColor(0xff33aa33); // verde
-        linePaint.setStrokeWidth(3f);
+        linePaint.setStrokeWidth(COLUMN_PX - 1f);
 
         thresholdPaint = new Paint();
         thresholdPaint.setColor(0xffcc0000); // rosso
         thresholdPaint.setStrokeWidth(2f);
+
+        floorPaint = new Paint();
+        floorPaint.setColor(0xff888888); // grigio
+        floorPaint.setStrokeWidth(1f);
+
+        // finché non si conosce la larghezza
+        allocate(200);
+    }
+
+    private void allocate(int columns) {
+        history = new WaveformHistory(columns, WaveformHistory.framesPerColumn(columns, historySec, sampleRate));
+        points = new float[4 * columns];
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        int columns = Math.max(1, (int) (w / COLUMN_PX));
+        if (columns != history.columns()) allocate(columns);
+    }
+
+    /** How much time the view spans, at the sample rate of the levels it is fed. */
+    public void setHistory(int seconds, int rate) {
+        if (seconds == historySec && rate == sampleRate) return;
+        historySec = seconds;
+        sampleRate = rate;
+        history.setFramesPerColumn(WaveformHistory.framesPerColumn(history.columns(), seconds, rate));
+        invalidate();
     }
 
     public void setThresholdDb(float db) {
@@ -34,18 +70,19 @@ public class AudioWaveformView extends View {
         invalidate();
     }
 
-    public void addLevel(float normalizedLevel) {
-        // normalizedLevel è già compreso tra 0 e 1
-        float norm = Math.min(1f, Math.max(0f, normalizedLevel));
-        levels.add(norm);
-        if (levels.size() > maxSamples) {
-            levels.remove(0); // rimuovi vecchi
-        }
+    public void setNoiseFloorDb(float db) {
+        noiseFloorDb = db;
+        invalidate();
+    }
+
+    /** One block (or a coalesced run of blocks) of {@code frames} frames, levels linear 0..1. */
+    public void addLevels(float peak, float rms, int frames) {
+        history.add(LevelScale.toFraction(LevelScale.toDb(rms)), LevelScale.toFraction(LevelScale.toDb(peak)), frames);
         invalidate();
     }
 
     public void clearLevels() {
-        levels.clear();
+        history.clear();
         invalidate();
     }
 
@@ -55,25 +92,18 @@ public class AudioWaveformView extends View {
         int w = getWidth();
         int h = getHeight();
 
-        if (levels.size() < 2) return;
-
-        float dx = (float) w / (maxSamples - 1);
+        // tutte le colonne in una sola chiamata
+        int n = history.toLines(points, w, h, COLUMN_PX);
+        if (n > 0) canvas.drawLines(points, 0, n, linePaint);
 
-        // Disegna prima la linea onda
-        for (int i = 1; i < levels.size(); i++) {
-            float x1 = (i - 1) * dx;
-            float y1 = h - (levels.get(i - 1) * h);
-            float x2 = i * dx;
-            float y2 = h - (levels.get(i) * h);
-            canvas.drawLine(x1, y1, x2, y2, linePaint);
+        // rumore di fondo, se la soglia è automatica
+        if (!Float.isNaN(noiseFloorDb)) {
+            float fy = h - LevelScale.toFraction(noiseFloorDb) * h;
+            canvas.drawLine(0, fy, w, fy, floorPaint);
         }
 
-        // Calcola posizione verticale soglia (valore normalizzato fra 0 e 1)
-        float thresholdNormalized = thresholdDb / 120f;
-        float ty = h - (thresholdNormalized * h);
-
-        // Disegna linea rossa della soglia sopra la linea onda, ma nel punto esatto medio
+        // soglia sopra la waveform, sulla stessa scala dBFS dei livelli
+        float ty = h - (LevelScale.toFraction(thresholdDb) * h);
         canvas.drawLine(0, ty, w, ty, thresholdPaint);
     }
 }
-
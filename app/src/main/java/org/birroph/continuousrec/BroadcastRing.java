@@ -0,0 +1,274 @@
+package org.birroph.continuousrec;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Single-producer ring of preallocated {@code short[]} blocks read by any number of
+ * {@link Cursor}s, each at its own position.
+ * <p>
+ * The producer never waits for readers: it overwrites the oldest block. A cursor that
+ * has been lapped skips ahead to the oldest block still in the ring and counts what it
+ * lost, so a slow reader (a UI preview, an analyzer) cannot stall capture or the other
+ * readers. Each slot carries a {@link StampedLock}: the producer write-locks the slot it
+ * is filling, readers copy optimistically and retry if the slot changed under them.
+ * No allocation after construction, apart from adding and removing cursors.
+ */
+public class BroadcastRing {
+    private static final Cursor[] NO_CURSORS = new Cursor[0];
+
+    private final short[][] blocks;
+    private final int[] lengths;
+    private final long[] sequences;
+    private final long[] startSamples;
+    private final StampedLock[] locks;
+    private final int mask;
+    private final int blockSize;
+    private final int sampleRate;
+    private final int channels;
+
+    private final AtomicLong published = new AtomicLong(); // blocchi pubblicati
+    private volatile long producedSamples = 0; // scritto solo dal producer
+    private long writeStamp = 0;
+    private volatile boolean ended = false;
+    private volatile Exception error;
+    private volatile Cursor[] cursors = NO_CURSORS;
+    private Runnable onLastCursorClosed;
+
+    public BroadcastRing(int capacity, int blockSize, int sampleRate, int channels) {
+        if (capacity < 2 || blockSize < 1) throw new IllegalArgumentException("capacity >= 2, blockSize >= 1");
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.blocks = new short[size][blockSize];
+        this.lengths = new int[size];
+        this.sequences = new long[size];
+        Arrays.fill(sequences, -1);
+        this.startSamples = new long[size];
+        this.locks = new StampedLock[size];
+        for (int i = 0; i < size; i++) locks[i] = new StampedLock();
+        this.mask = size - 1;
+        this.blockSize = blockSize;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    public int capacity() {
+        return blocks.length;
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /** Run when the last cursor is closed, on the closing thread. */
+    void setOnLastCursorClosed(Runnable r) {
+        onLastCursorClosed = r;
+    }
+
+    // ---- producer side ----
+
+    /**
+     * Returns the block to fill next, locking it against readers until {@link #publish}
+     * or {@link #cancel}. Its previous content (the oldest block) is lost to anyone who
+     * has not read it yet.
+     */
+    public short[] claim() {
+        int i = (int) (published.get() & mask);
+        writeStamp = locks[i].writeLock();
+        return blocks[i];
+    }
+
+    /** Makes the claimed block visible to every cursor. */
+    public void publish(int length) {
+        long p = published.get();
+        int i = (int) (p & mask);
+        lengths[i] = length;
+        sequences[i] = p;
+        startSamples[i] = producedSamples;
+        producedSamples += length;
+        locks[i].unlockWrite(writeStamp);
+        published.set(p + 1);
+        wakeReaders();
+    }
+
+    /** Releases the claimed block without publishing it. */
+    public void cancel() {
+        int i = (int) (published.get() & mask);
+        sequences[i] = -1; // il contenuto precedente è stato sporcato
+        locks[i].unlockWrite(writeStamp);
+    }
+
+    /** No more blocks: cursors return -1 once they have read what is left. */
+    public void end(Exception cause) {
+        error = cause;
+        ended = true;
+        wakeReaders();
+    }
+
+    public boolean isEnded() {
+        return ended;
+    }
+
+    /** Why the producer stopped, or null if the source simply ended. */
+    public Exception getError() {
+        return error;
+    }
+
+    public long getPublishedBlocks() {
+        return published.get();
+    }
+
+    private void wakeReaders() {
+        Cursor[] cs = cursors;
+        for (Cursor c : cs) {
+            Thread t = c.waiter;
+            if (t != null) LockSupport.unpark(t);
+        }
+    }
+
+    // ---- consumer side ----
+
+    /** A new reader, starting at the next block to be published. */
+    public synchronized Cursor openCursor() {
+        // prima i blocchi poi i campioni: publish() li aggiorna nell'ordine inverso
+        long next = published.get();
+        Cursor c = new Cursor(next, producedSamples);
+        Cursor[] cs = Arrays.copyOf(cursors, cursors.length + 1);
+        cs[cs.length - 1] = c;
+        cursors = cs;
+        return c;
+    }
+
+    public int cursorCount() {
+        return cursors.length;
+    }
+
+    private void remove(Cursor c) {
+        Runnable last = null;
+        synchronized (this) {
+            Cursor[] cs = cursors;
+            int at = Arrays.asList(cs).indexOf(c);
+            if (at < 0) return;
+            Cursor[] next = new Cursor[cs.length - 1];
+            System.arraycopy(cs, 0, next, 0, at);
+            System.arraycopy(cs, at + 1, next, at, cs.length - at - 1);
+            cursors = next;
+            if (next.length == 0) last = onLastCursorClosed;
+        }
+        if (last != null) last.run();
+    }
+
+    /** One reader's position in the ring. Used by a single thread. */
+    public final class Cursor implements AutoCloseable {
+        private long next;
+        private long nextSample;
+        private final AtomicLong overruns = new AtomicLong();
+        private final AtomicLong droppedSamples = new AtomicLong();
+        volatile Thread waiter;
+
+        private Cursor(long next, long nextSample) {
+            this.next = next;
+            this.nextSample = nextSample;
+        }
+
+        public int blockSize() {
+            return blockSize;
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        public int getChannels() {
+            return channels;
+        }
+
+        /**
+         * Copies the next block into {@code dst} (which must hold {@link #blockSize()}
+         * samples from {@code offset}). Returns the samples copied, 0 if there is nothing
+         * new yet, -1 once the producer has ended and everything has been read.
+         */
+        public int poll(short[] dst, int offset) {
+            while (true) {
+                boolean end = ended;
+                long p = published.get();
+                if (next >= p) return end ? -1 : 0;
+                // lo slot p è quello in scrittura: restano capacity - 1 blocchi leggibili
+                long oldest = p - (blocks.length - 1);
+                if (next < oldest) next = oldest;
+
+                int i = (int) (next & mask);
+                long stamp = locks[i].tryOptimisticRead();
+                if (stamp == 0) {
+                    next++; // in riscrittura proprio ora: è già perso
+                    continue;
+                }
+                long seq = sequences[i];
+                long start = startSamples[i];
+                int len = lengths[i];
+                System.arraycopy(blocks[i], 0, dst, offset, len);
+                if (!locks[i].validate(stamp) || seq != next) {
+                    continue; // sorpassati durante la copia: si ricalcola il più vecchio
+                }
+                if (start > nextSample) {
+                    overruns.incrementAndGet();
+                    droppedSamples.addAndGet(start - nextSample);
+                }
+                nextSample = start + len;
+                next++;
+                return len;
+            }
+        }
+
+        /** Like {@link #poll}, but waits up to {@code timeoutNanos} for a block. */
+        public int take(short[] dst, int offset, long timeoutNanos) {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (true) {
+                int n = poll(dst, offset);
+                if (n != 0) return n;
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return 0;
+                waiter = Thread.currentThread();
+                if (published.get() > next || ended) {
+                    waiter = null;
+                    continue;
+                }
+                LockSupport.parkNanos(this, left);
+                waiter = null;
+                if (Thread.currentThread().isInterrupted()) return 0;
+            }
+        }
+
+        /** Blocks published but not read yet (an upper bound if lapped). */
+        public long backlog() {
+            return published.get() - next;
+        }
+
+        /** Times this cursor was lapped and had to skip blocks. */
+        public long getOverrunCount() {
+            return overruns.get();
+        }
+
+        public long getDroppedSamples() {
+            return droppedSamples.get();
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        @Override
+        public void close() {
+            remove(this);
+        }
+    }
+}
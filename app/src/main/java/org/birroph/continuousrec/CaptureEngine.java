@@ -0,0 +1,137 @@
+package org.birroph.continuousrec;
+
+import java.io.IOException;
+
+/**
+ * One capture thread feeding a {@link BroadcastRing} that every consumer subscribes to:
+ * the recording engine, the settings preview, meters and analyzers all read the same
+ * blocks instead of opening their own microphone.
+ * <p>
+ * The source is opened and started by the first {@link #subscribe()} and closed when
+ * the last cursor is closed (or the source ends), so nothing holds the microphone while
+ * nobody listens. The next subscribe opens a fresh source from the factory, in whatever
+ * format it now returns; a cursor keeps the format of the run it joined.
+ */
+public class CaptureEngine {
+    public static final int DEFAULT_BLOCK_SAMPLES = 2048;
+    public static final int DEFAULT_RING_BLOCKS = 128;
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    public interface SourceFactory {
+        /** A new, not yet started source. */
+        AudioSource open() throws IOException;
+    }
+
+    private final SourceFactory factory;
+    private final int blockSamples;
+    private final int ringBlocks;
+
+    private Session session; // sessione di cattura corrente, sotto lock
+
+    /** One open source with its thread and ring. */
+    private static final class Session {
+        final BroadcastRing ring;
+        volatile boolean running = true;
+        Thread thread;
+
+        Session(BroadcastRing ring) {
+            this.ring = ring;
+        }
+    }
+
+    public CaptureEngine(SourceFactory factory) {
+        this(factory, DEFAULT_BLOCK_SAMPLES, DEFAULT_RING_BLOCKS);
+    }
+
+    public CaptureEngine(SourceFactory factory, int blockSamples, int ringBlocks) {
+        this.factory = factory;
+        this.blockSamples = blockSamples;
+        this.ringBlocks = ringBlocks;
+    }
+
+    /**
+     * A cursor on the live capture, starting with the next block. Opens and starts the
+     * source if nobody was listening.
+     */
+    public synchronized BroadcastRing.Cursor subscribe() throws IOException {
+        if (session != null && session.running) return session.ring.openCursor();
+        Session s = openSession();
+        // il primo cursore c'è prima del primo blocco: non perde nulla della sessione
+        BroadcastRing.Cursor cursor = s.ring.openCursor();
+        s.thread.start();
+        return cursor;
+    }
+
+    /** True until the capture thread has released the source. */
+    public synchronized boolean isCapturing() {
+        return session != null && session.thread.isAlive();
+    }
+
+    private Session openSession() throws IOException {
+        // la sessione precedente deve aver rilasciato il microfono
+        if (session != null) awaitThread(session);
+        final AudioSource source = factory.open();
+        try {
+            source.start();
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
+        int channels = source.getChannels();
+        BroadcastRing ring = new BroadcastRing(ringBlocks, Math.max(1, blockSamples / channels) * channels,
+                source.getSampleRate(), channels);
+        final Session s = new Session(ring);
+        ring.setOnLastCursorClosed(() -> lastCursorClosed(s));
+        s.thread = new Thread(() -> capture(source, s), "CaptureThread");
+        s.thread.setPriority(Thread.MAX_PRIORITY);
+        session = s;
+        return s;
+    }
+
+    /**
+     * Stops {@code s} unless a {@link #subscribe()} got in between the close and this
+     * call: under the same lock, a subscriber either sees the session stopped or keeps it.
+     */
+    private synchronized void lastCursorClosed(Session s) {
+        if (s.ring.cursorCount() == 0) s.running = false;
+    }
+
+    private void capture(AudioSource source, Session s) {
+        BroadcastRing r = s.ring;
+        Exception error = null;
+        try {
+            while (s.running) {
+                short[] block = r.claim();
+                int read;
+                try {
+                    read = source.read(block, 0, block.length);
+                } catch (IOException | RuntimeException e) {
+                    r.cancel();
+                    throw e;
+                }
+                if (read < 0) {
+                    r.cancel();
+                    break;
+                }
+                if (read > 0) r.publish(read);
+                else r.cancel();
+            }
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            s.running = false;
+            source.close();
+            r.end(error);
+        }
+    }
+
+    private static void awaitThread(Session s) {
+        s.running = false;
+        if (s.thread == null || s.thread == Thread.currentThread()) return;
+        try {
+            s.thread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.birroph.continuousrec;
+
+/**
+ * What the microphone is opened with and what the segments are written in.
+ * <p>
+ * The two can differ: a device may only capture natively at 48 kHz stereo while
+ * 16 kHz mono is plenty for voice, in which case a {@link ConvertingAudioSource}
+ * downmixes and resamples in between.
+ */
+public final class CaptureFormat {
+    public static final int DEFAULT_RATE = 44100;
+    /** Rate most devices capture at natively, used when the requested one is refused. */
+    public static final int NATIVE_RATE = 48000;
+
+    public final int captureRate;
+    public final int captureChannels;
+    public final boolean floatCapture;
+    public final int outputRate;
+    public final int outputChannels;
+
+    public CaptureFormat(int captureRate, int captureChannels, boolean floatCapture, int outputRate, int outputChannels) {
+        if (captureRate <= 0 || outputRate <= 0) throw new IllegalArgumentException("rate <= 0");
+        if (captureChannels < 1 || captureChannels > 2 || outputChannels < 1 || outputChannels > 2) {
+            throw new IllegalArgumentException("only mono or stereo");
+        }
+        this.captureRate = captureRate;
+        this.captureChannels = captureChannels;
+        this.floatCapture = floatCapture;
+        this.outputRate = outputRate;
+        this.outputChannels = outputChannels;
+    }
+
+    /** Same format on both sides, 16-bit capture. */
+    public static CaptureFormat direct(int rate, int channels) {
+        return new CaptureFormat(rate, channels, false, rate, channels);
+    }
+
+    /** The same output, captured at another rate. */
+    public CaptureFormat withCaptureRate(int rate) {
+        return new CaptureFormat(rate, captureChannels, floatCapture, outputRate, outputChannels);
+    }
+
+    /** True if samples have to go through a conversion stage before the writer. */
+    public boolean needsConversion() {
+        return floatCapture || captureRate != outputRate || captureChannels != outputChannels;
+    }
+
+    @Override
+    public String toString() {
+        return captureRate + " Hz/" + captureChannels + "ch" + (floatCapture ? " float" : "")
+                + " -> " + outputRate + " Hz/" + outputChannels + "ch";
+    }
+}
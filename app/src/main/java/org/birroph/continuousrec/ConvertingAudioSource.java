@@ -0,0 +1,149 @@
+package org.birroph.continuousrec;
+
+import java.io.IOException;
+
+/**
+ * Sits between the capture and the engine: converts float or 16-bit capture to 16-bit,
+ * downmixes (or duplicates mono) to the output channel count and resamples to the
+ * output rate with a {@link PolyphaseResampler}.
+ * <p>
+ * All buffers are sized at construction from the largest block pulled from the inner
+ * source, so {@link #read} does not allocate. Downmixing happens before resampling and
+ * mono-to-stereo after it, so the filter always runs on the fewest channels.
+ */
+public class ConvertingAudioSource implements AudioSource {
+    public static final int DEFAULT_BLOCK_FRAMES = 1024;
+
+    private final AudioSource inner;
+    private final int inChannels;
+    private final int outRate;
+    private final int outChannels;
+    private final int midChannels;
+    private final int blockFrames;
+    private final PolyphaseResampler resampler; // null se la frequenza non cambia
+
+    private final short[] inShorts;
+    private final float[] inFloats;
+    private final float[] mixed;
+    private final float[] resampled;
+    private final short[] out;
+    private int outPos = 0;
+    private int outLen = 0;
+    private boolean drained = false;
+
+    public ConvertingAudioSource(AudioSource inner, int outRate, int outChannels) {
+        this(inner, outRate, outChannels, DEFAULT_BLOCK_FRAMES);
+    }
+
+    public ConvertingAudioSource(AudioSource inner, int outRate, int outChannels, int blockFrames) {
+        this.inner = inner;
+        this.inChannels = inner.getChannels();
+        this.outRate = outRate;
+        this.outChannels = outChannels;
+        this.midChannels = Math.min(inChannels, outChannels);
+        this.blockFrames = blockFrames;
+        this.resampler = inner.getSampleRate() == outRate ? null
+                : new PolyphaseResampler(inner.getSampleRate(), outRate, midChannels, blockFrames);
+
+        this.inShorts = inner.isFloat() ? null : new short[blockFrames * inChannels];
+        this.inFloats = inner.isFloat() ? new float[blockFrames * inChannels] : null;
+        this.mixed = new float[blockFrames * midChannels];
+        int maxOut = resampler != null ? resampler.maxOutFrames(blockFrames) : blockFrames;
+        this.resampled = resampler != null ? new float[maxOut * midChannels] : null;
+        this.out = new short[maxOut * outChannels];
+    }
+
+    @Override
+    public int getSampleRate() {
+        return outRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return outChannels;
+    }
+
+    @Override
+    public void start() throws IOException {
+        outPos = outLen = 0;
+        drained = false;
+        if (resampler != null) resampler.reset();
+        inner.start();
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length) throws IOException {
+        if (outPos == outLen) {
+            int r = fill();
+            if (r <= 0) return r;
+        }
+        int n = Math.min(length / outChannels * outChannels, outLen - outPos);
+        System.arraycopy(out, outPos, buffer, offset, n);
+        outPos += n;
+        return n;
+    }
+
+    /** Pulls one block from the inner source through the chain; returns the samples ready, 0 or -1. */
+    private int fill() throws IOException {
+        outPos = outLen = 0;
+        if (drained) return -1;
+        int frames;
+        int read = inner.isFloat()
+                ? inner.read(inFloats, 0, inFloats.length, null)
+                : inner.read(inShorts, 0, inShorts.length);
+        if (read < 0) {
+            // fine sorgente: silenzio per far uscire la coda ancora nel filtro
+            drained = true;
+            if (resampler == null) return -1;
+            frames = Math.min(blockFrames, PolyphaseResampler.TAPS / 2);
+            for (int i = 0; i < frames * midChannels; i++) mixed[i] = 0f;
+        } else {
+            frames = read / inChannels;
+            if (frames == 0) return 0;
+            mix(frames);
+        }
+
+        float[] src = mixed;
+        if (resampler != null) {
+            frames = resampler.process(mixed, 0, frames, resampled, 0);
+            src = resampled;
+        }
+        toShorts(src, frames);
+        outLen = frames * outChannels;
+        return outLen == 0 && drained ? -1 : outLen;
+    }
+
+    private void mix(int frames) {
+        final float scale = 1f / 32768f;
+        if (inChannels == midChannels) {
+            int n = frames * inChannels;
+            if (inFloats != null) System.arraycopy(inFloats, 0, mixed, 0, n);
+            else for (int i = 0; i < n; i++) mixed[i] = inShorts[i] * scale;
+        } else {
+            // stereo -> mono
+            for (int f = 0, k = 0; f < frames; f++, k += 2) {
+                mixed[f] = inFloats != null
+                        ? (inFloats[k] + inFloats[k + 1]) * 0.5f
+                        : (inShorts[k] + inShorts[k + 1]) * (0.5f * scale);
+            }
+        }
+    }
+
+    private void toShorts(float[] src, int frames) {
+        for (int f = 0, o = 0; f < frames; f++) {
+            for (int c = 0; c < outChannels; c++) {
+                // mono -> stereo: lo stesso campione su entrambi i canali
+                float v = src[f * midChannels + (midChannels == 1 ? 0 : c)] * 32768f;
+                int s = Math.round(v);
+                if (s > Short.MAX_VALUE) s = Short.MAX_VALUE;
+                else if (s < Short.MIN_VALUE) s = Short.MIN_VALUE;
+                out[o++] = (short) s;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        inner.close();
+    }
+}
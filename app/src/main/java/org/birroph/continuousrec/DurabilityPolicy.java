@@ -0,0 +1,124 @@
+package org.birroph.continuousrec;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How the segment writers trade durability against battery and flash wear: how big the
+ * writes are, and how often the file is forced to storage with {@code FileChannel.force}.
+ * <ul>
+ *   <li>{@link Mode#COALESCED}: a large buffer, written only when full; every
+ *       {@code syncSec} of audio what has been written so far is forced. Fewest
+ *       syscalls, but a kill loses the buffer.</li>
+ *   <li>{@link Mode#INTERVAL}: every {@code syncSec} of audio the buffer is written out
+ *       and forced, so at most that much is lost, kill or power cut.</li>
+ *   <li>{@link Mode#SEGMENT_END}: forced once, when the segment is finished.</li>
+ * </ul>
+ * Every mode forces at finish. {@link Stats} measures what the choice costs.
+ */
+public final class DurabilityPolicy {
+    public enum Mode { COALESCED, INTERVAL, SEGMENT_END }
+
+    public static final int COALESCED_BUFFER_BYTES = 1 << 20;
+    public static final int DEFAULT_SYNC_SEC = 5;
+    public static final DurabilityPolicy DEFAULT = interval(DEFAULT_SYNC_SEC);
+
+    public final Mode mode;
+    public final int bufferBytes;
+    /** Seconds of audio between two forces; 0 in {@link Mode#SEGMENT_END}. */
+    public final int syncSec;
+
+    private DurabilityPolicy(Mode mode, int bufferBytes, int syncSec) {
+        if (mode != Mode.SEGMENT_END && syncSec < 1) throw new IllegalArgumentException("syncSec " + syncSec);
+        this.mode = mode;
+        this.bufferBytes = bufferBytes;
+        this.syncSec = syncSec;
+    }
+
+    public static DurabilityPolicy coalesced(int syncSec) {
+        return new DurabilityPolicy(Mode.COALESCED, COALESCED_BUFFER_BYTES, syncSec);
+    }
+
+    public static DurabilityPolicy interval(int syncSec) {
+        return new DurabilityPolicy(Mode.INTERVAL, PcmChannelWriter.DEFAULT_BUFFER_BYTES, syncSec);
+    }
+
+    public static DurabilityPolicy segmentEnd() {
+        return new DurabilityPolicy(Mode.SEGMENT_END, PcmChannelWriter.DEFAULT_BUFFER_BYTES, 0);
+    }
+
+    /** From the preference values: "coalesced", "interval", "segment_end". */
+    public static DurabilityPolicy of(String mode, int syncSec) {
+        syncSec = Math.max(1, syncSec);
+        if ("coalesced".equals(mode)) return coalesced(syncSec);
+        if ("segment_end".equals(mode)) return segmentEnd();
+        return interval(syncSec);
+    }
+
+    /** Samples (all channels) between two forces, 0 if only at finish. */
+    public long syncSamples(int sampleRate, int channels) {
+        return (long) syncSec * sampleRate * channels;
+    }
+
+    /** True if a force first writes out what is still buffered. */
+    public boolean flushBeforeSync() {
+        return mode == Mode.INTERVAL;
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.SEGMENT_END ? mode.toString() : mode + " " + syncSec + " s";
+    }
+
+    /** Write and force costs, summed over every writer that shares the instance. Thread-safe. */
+    public static final class Stats {
+        private final AtomicLong writes = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong forces = new AtomicLong();
+        private final AtomicLong forceNanos = new AtomicLong();
+        private final AtomicLong maxForceNanos = new AtomicLong();
+
+        void onWrite(int n) {
+            writes.incrementAndGet();
+            bytes.addAndGet(n);
+        }
+
+        void onForce(long nanos) {
+            forces.incrementAndGet();
+            forceNanos.addAndGet(nanos);
+            maxForceNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        /** write() syscalls on the channels. */
+        public long getWrites() {
+            return writes.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getAverageBytesPerWrite() {
+            long w = writes.get();
+            return w == 0 ? 0 : bytes.get() / w;
+        }
+
+        public long getForces() {
+            return forces.get();
+        }
+
+        public long getAverageForceMicros() {
+            long f = forces.get();
+            return f == 0 ? 0 : forceNanos.get() / f / 1000;
+        }
+
+        public long getMaxForceMicros() {
+            return maxForceNanos.get() / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return getWrites() + " writes of " + getAverageBytesPerWrite() + " B, " + getForces() + " forces of "
+                    + getAverageForceMicros() + " us (max " + getMaxForceMicros() + " us)";
+        }
+    }
+}
@@ -0,0 +1,621 @@
+package org.birroph.continuousrec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Lossless 16-bit FLAC encoder in plain Java, no MediaCodec.
+ * <p>
+ * Each block of {@link #BLOCK_SIZE} frames is an independent FLAC frame, so blocks are
+ * encoded in parallel on a {@link ForkJoinPool} and written back in order. Every channel
+ * is tried as constant, verbatim, fixed (order 0..4) and LPC prediction with Rice coded
+ * residuals, and the smallest wins; stereo also tries left/side, right/side, mid/side.
+ * STREAMINFO (frame sizes, sample count, MD5) is patched in place at the end.
+ */
+public class FlacEncoder {
+    public static final int BLOCK_SIZE = 4096;
+
+    private static final int BITS = 16;
+    private static final int MAX_LPC_ORDER = 8;
+    private static final int QLP_PRECISION = 12;
+    private static final int MAX_PARTITION_ORDER = 6;
+    private static final int MAX_RICE_PARAM = 14; // 15 = escape, non usato
+    private static final int STREAMINFO_OFFSET = 8;
+
+    /** Outcome of one encode, for the per-segment report. */
+    public static final class Result {
+        public final long frames;
+        public final long pcmBytes;
+        public final long flacBytes;
+        public final long encodeNanos;
+        private final int sampleRate;
+
+        Result(long frames, long pcmBytes, long flacBytes, long encodeNanos, int sampleRate) {
+            this.frames = frames;
+            this.pcmBytes = pcmBytes;
+            this.flacBytes = flacBytes;
+            this.encodeNanos = encodeNanos;
+            this.sampleRate = sampleRate;
+        }
+
+        /** FLAC size over PCM size: lower is better. */
+        public double getCompressionRatio() {
+            return pcmBytes == 0 ? 0 : flacBytes / (double) pcmBytes;
+        }
+
+        /** Encode time over audio duration: below 1 is faster than real time. */
+        public double getRealTimeFactor() {
+            return frames == 0 ? 0 : encodeNanos / 1e9 / ((double) frames / sampleRate);
+        }
+    }
+
+    private final int sampleRate;
+    private final int channels;
+    private final ForkJoinPool pool;
+
+    public FlacEncoder(int sampleRate, int channels, ForkJoinPool pool) {
+        if (channels < 1 || channels > 8) throw new IllegalArgumentException("channels " + channels);
+        if (sampleRate <= 0 || sampleRate >= 1 << 20) throw new IllegalArgumentException("sampleRate " + sampleRate);
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.pool = pool;
+    }
+
+    /** Encodes a raw little-endian 16-bit PCM file into {@code flacFile}. */
+    public Result encode(File pcmFile, File flacFile) throws IOException {
+        long t0 = System.nanoTime();
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        int blockBytes = BLOCK_SIZE * channels * 2;
+        ByteBuffer bytes = ByteBuffer.allocateDirect(blockBytes).order(ByteOrder.LITTLE_ENDIAN);
+        ShortBuffer shorts = bytes.asShortBuffer();
+        // blocchi in volo: abbastanza per tenere occupato il pool mentre si legge
+        int maxInFlight = Math.max(2, pool.getParallelism() * 4);
+        ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+
+        long frames = 0;
+        long frameNumber = 0;
+        int minFrame = Integer.MAX_VALUE;
+        int maxFrame = 0;
+        long flacBytes;
+
+        try (FileChannel in = FileChannel.open(pcmFile.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(flacFile.toPath(),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(out, streamInfo(0, 0, 0, 0, 0, new byte[16]));
+
+            while (true) {
+                bytes.clear();
+                while (bytes.hasRemaining() && in.read(bytes) >= 0) {
+                }
+                int n = bytes.position() / (2 * channels);
+                if (n == 0) break;
+                bytes.flip().limit(n * 2 * channels);
+                md5.update(bytes.duplicate());
+
+                short[] block = new short[n * channels];
+                shorts.clear();
+                shorts.get(block);
+                final long number = frameNumber++;
+                pending.add(pool.submit(() -> encodeFrame(block, n, number)));
+                frames += n;
+
+                while (pending.size() >= maxInFlight) {
+                    int size = writeFully(out, pending.poll().join());
+                    minFrame = Math.min(minFrame, size);
+                    maxFrame = Math.max(maxFrame, size);
+                }
+                if (n < BLOCK_SIZE) break;
+            }
+            while (!pending.isEmpty()) {
+                int size = writeFully(out, pending.poll().join());
+                minFrame = Math.min(minFrame, size);
+                maxFrame = Math.max(maxFrame, size);
+            }
+
+            // STREAMINFO definitivo al posto del segnaposto
+            int minBlock = frames > BLOCK_SIZE ? BLOCK_SIZE : (int) frames;
+            int maxBlock = frames > BLOCK_SIZE ? BLOCK_SIZE : (int) frames;
+            ByteBuffer info = streamInfo(minBlock, maxBlock, frames == 0 ? 0 : minFrame, maxFrame, frames, md5.digest());
+            long pos = 0;
+            while (info.hasRemaining()) pos += out.write(info, pos);
+            flacBytes = out.size();
+        } catch (RuntimeException e) {
+            for (ForkJoinTask<byte[]> task : pending) task.cancel(true);
+            throw e;
+        }
+        return new Result(frames, frames * 2 * channels, flacBytes, System.nanoTime() - t0, sampleRate);
+    }
+
+    private static int writeFully(FileChannel out, byte[] data) throws IOException {
+        return writeFully(out, ByteBuffer.wrap(data));
+    }
+
+    private static int writeFully(FileChannel out, ByteBuffer data) throws IOException {
+        int size = data.remaining();
+        while (data.hasRemaining()) out.write(data);
+        return size;
+    }
+
+    /** "fLaC" marker plus the STREAMINFO block, the only metadata written. */
+    private ByteBuffer streamInfo(int minBlock, int maxBlock, int minFrame, int maxFrame, long totalFrames, byte[] md5) {
+        BitWriter w = new BitWriter(STREAMINFO_OFFSET + 34);
+        w.writeBits(32, 0x664C6143); // fLaC
+        w.writeBits(1, 1); // ultimo blocco di metadati
+        w.writeBits(7, 0); // STREAMINFO
+        w.writeBits(24, 34);
+        w.writeBits(16, minBlock);
+        w.writeBits(16, maxBlock);
+        w.writeBits(24, minFrame);
+        w.writeBits(24, maxFrame);
+        w.writeBits(20, sampleRate);
+        w.writeBits(3, channels - 1);
+        w.writeBits(5, BITS - 1);
+        w.writeBits(36, totalFrames);
+        for (byte b : md5) w.writeBits(8, b & 0xff);
+        return ByteBuffer.wrap(w.toByteArray());
+    }
+
+    // ---------------------------------------------------------------- frame
+
+    byte[] encodeFrame(short[] interleaved, int n, long frameNumber) {
+        int[][] ch = new int[channels][n];
+        for (int i = 0, k = 0; i < n; i++) {
+            for (int c = 0; c < channels; c++) ch[c][i] = interleaved[k++];
+        }
+
+        BitWriter[] subframes;
+        int assignment;
+        if (channels == 2) {
+            int[] mid = new int[n];
+            int[] side = new int[n];
+            for (int i = 0; i < n; i++) {
+                mid[i] = (ch[0][i] + ch[1][i]) >> 1;
+                side[i] = ch[0][i] - ch[1][i];
+            }
+            BitWriter left = encodeSubframe(ch[0], n, BITS);
+            BitWriter right = encodeSubframe(ch[1], n, BITS);
+            BitWriter m = encodeSubframe(mid, n, BITS);
+            BitWriter s = encodeSubframe(side, n, BITS + 1);
+            long lr = left.bitLength() + right.bitLength();
+            long ls = left.bitLength() + s.bitLength();
+            long rs = s.bitLength() + right.bitLength();
+            long ms = m.bitLength() + s.bitLength();
+            long best = Math.min(Math.min(lr, ls), Math.min(rs, ms));
+            if (best == lr) {
+                assignment = 1;
+                subframes = new BitWriter[]{left, right};
+            } else if (best == ms) {
+                assignment = 10;
+                subframes = new BitWriter[]{m, s};
+            } else if (best == ls) {
+                assignment = 8;
+                subframes = new BitWriter[]{left, s};
+            } else {
+                assignment = 9;
+                subframes = new BitWriter[]{s, right};
+            }
+        } else {
+            assignment = channels - 1;
+            subframes = new BitWriter[channels];
+            for (int c = 0; c < channels; c++) subframes[c] = encodeSubframe(ch[c], n, BITS);
+        }
+
+        long bits = 0;
+        for (BitWriter s : subframes) bits += s.bitLength();
+        BitWriter w = new BitWriter((int) (bits / 8) + 32);
+
+        w.writeBits(16, 0xFFF8); // sync, blocksize fisso
+        int blockCode = n == BLOCK_SIZE ? 12 : n <= 256 ? 6 : 7;
+        int rateCode = sampleRateCode(sampleRate);
+        w.writeBits(4, blockCode);
+        w.writeBits(4, rateCode);
+        w.writeBits(4, assignment);
+        w.writeBits(3, 4); // 16 bit
+        w.writeBits(1, 0);
+        writeUtf8(w, frameNumber);
+        if (blockCode == 6) w.writeBits(8, n - 1);
+        else if (blockCode == 7) w.writeBits(16, n - 1);
+        if (rateCode == 12) w.writeBits(8, sampleRate / 1000);
+        else if (rateCode == 13) w.writeBits(16, sampleRate);
+        w.writeBits(8, Crc.crc8(w.buffer(), 0, w.byteLength()));
+
+        for (BitWriter s : subframes) w.append(s);
+        w.alignToByte();
+        w.writeBits(16, Crc.crc16(w.buffer(), 0, w.byteLength()));
+        return w.toByteArray();
+    }
+
+    static int sampleRateCode(int rate) {
+        switch (rate) {
+            case 88200: return 1;
+            case 176400: return 2;
+            case 192000: return 3;
+            case 8000: return 4;
+            case 16000: return 5;
+            case 22050: return 6;
+            case 24000: return 7;
+            case 32000: return 8;
+            case 44100: return 9;
+            case 48000: return 10;
+            case 96000: return 11;
+            default:
+                if (rate % 1000 == 0 && rate / 1000 <= 255) return 12;
+                if (rate <= 0xffff) return 13;
+                return 0; // dallo STREAMINFO
+        }
+    }
+
+    private static void writeUtf8(BitWriter w, long v) {
+        if (v < 0x80) {
+            w.writeBits(8, v);
+            return;
+        }
+        int extra = v < 0x800 ? 1 : v < 0x10000 ? 2 : v < 0x200000 ? 3 : v < 0x4000000 ? 4 : 5;
+        int lead = (0xff00 >> (extra + 1)) & 0xff;
+        w.writeBits(8, lead | (v >>> (6 * extra)));
+        for (int i = extra - 1; i >= 0; i--) w.writeBits(8, 0x80 | ((v >>> (6 * i)) & 0x3f));
+    }
+
+    // ------------------------------------------------------------- subframe
+
+    private static BitWriter encodeSubframe(int[] x, int n, int bps) {
+        boolean constant = true;
+        for (int i = 1; i < n && constant; i++) constant = x[i] == x[0];
+        if (constant) {
+            BitWriter w = new BitWriter(8);
+            w.writeBits(8, 0); // tipo constant
+            w.writeSigned(bps, x[0]);
+            return w;
+        }
+
+        int[] residual = new int[n];
+        long bestBits = (long) n * bps; // verbatim
+        int bestType = -1;
+        Rice bestRice = null;
+        int[] bestQlp = null;
+        int bestShift = 0;
+
+        int fixedOrder = bestFixedOrder(x, n);
+        fixedResidual(x, n, fixedOrder, residual);
+        Rice rice = Rice.choose(residual, n, fixedOrder);
+        long bits = (long) fixedOrder * bps + rice.bits;
+        if (bits < bestBits) {
+            bestBits = bits;
+            bestType = fixedOrder;
+            bestRice = rice;
+        }
+
+        if (n > 2 * MAX_LPC_ORDER) {
+            double[][] lpc = lpcCoefficients(x, n, MAX_LPC_ORDER);
+            for (int order = 2; order <= MAX_LPC_ORDER; order += 2) {
+                if (lpc[order] == null) break;
+                int[] qlp = new int[order];
+                int shift = quantize(lpc[order], order, qlp);
+                if (shift < 0) continue;
+                lpcResidual(x, n, qlp, order, shift, residual);
+                rice = Rice.choose(residual, n, order);
+                bits = (long) order * bps + 4 + 5 + (long) order * QLP_PRECISION + rice.bits;
+                if (bits < bestBits) {
+                    bestBits = bits;
+                    bestType = 32 + order - 1;
+                    bestRice = rice;
+                    bestQlp = qlp;
+                    bestShift = shift;
+                }
+            }
+        }
+
+        BitWriter w = new BitWriter((int) (bestBits / 8) + 64);
+        if (bestType < 0) {
+            w.writeBits(8, 1 << 1); // verbatim
+            for (int i = 0; i < n; i++) w.writeSigned(bps, x[i]);
+        } else if (bestType < 32) {
+            w.writeBits(8, (8 + bestType) << 1);
+            for (int i = 0; i < bestType; i++) w.writeSigned(bps, x[i]);
+            fixedResidual(x, n, bestType, residual);
+            bestRice.write(w, residual, n, bestType);
+        } else {
+            int order = bestType - 31;
+            w.writeBits(8, bestType << 1);
+            for (int i = 0; i < order; i++) w.writeSigned(bps, x[i]);
+            w.writeBits(4, QLP_PRECISION - 1);
+            w.writeSigned(5, bestShift);
+            for (int i = 0; i < order; i++) w.writeSigned(QLP_PRECISION, bestQlp[i]);
+            lpcResidual(x, n, bestQlp, order, bestShift, residual);
+            bestRice.write(w, residual, n, order);
+        }
+        return w;
+    }
+
+    /** Fixed predictor order with the smallest sum of absolute residuals. */
+    private static int bestFixedOrder(int[] x, int n) {
+        if (n < 5) return 0;
+        long e0 = 0, e1 = 0, e2 = 0, e3 = 0, e4 = 0;
+        for (int i = 4; i < n; i++) {
+            long d0 = x[i];
+            long d1 = d0 - x[i - 1];
+            long d2 = d1 - (x[i - 1] - x[i - 2]);
+            long d3 = d2 - (x[i - 1] - 2L * x[i - 2] + x[i - 3]);
+            long d4 = d3 - (x[i - 1] - 3L * x[i - 2] + 3L * x[i - 3] - x[i - 4]);
+            e0 += Math.abs(d0);
+            e1 += Math.abs(d1);
+            e2 += Math.abs(d2);
+            e3 += Math.abs(d3);
+            e4 += Math.abs(d4);
+        }
+        int order = 0;
+        long best = e0;
+        if (e1 < best) { best = e1; order = 1; }
+        if (e2 < best) { best = e2; order = 2; }
+        if (e3 < best) { best = e3; order = 3; }
+        if (e4 < best) order = 4;
+        return order;
+    }
+
+    private static void fixedResidual(int[] x, int n, int order, int[] r) {
+        for (int i = order; i < n; i++) {
+            switch (order) {
+                case 0: r[i] = x[i]; break;
+                case 1: r[i] = x[i] - x[i - 1]; break;
+                case 2: r[i] = x[i] - 2 * x[i - 1] + x[i - 2]; break;
+                case 3: r[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3]; break;
+                default: r[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4]; break;
+            }
+        }
+    }
+
+    /** Levinson-Durbin on the Welch-windowed autocorrelation; row {@code p} holds order p. */
+    private static double[][] lpcCoefficients(int[] x, int n, int maxOrder) {
+        double[] w = new double[n];
+        double half = (n - 1) / 2.0;
+        for (int i = 0; i < n; i++) {
+            double t = (i - half) / half;
+            w[i] = x[i] * (1 - t * t);
+        }
+        double[] r = new double[maxOrder + 1];
+        for (int lag = 0; lag <= maxOrder; lag++) {
+            double sum = 0;
+            for (int i = lag; i < n; i++) sum += w[i] * w[i - lag];
+            r[lag] = sum;
+        }
+        double[][] out = new double[maxOrder + 1][];
+        if (r[0] <= 0) return out;
+
+        double[] a = new double[maxOrder];
+        double[] tmp = new double[maxOrder];
+        double err = r[0];
+        for (int i = 0; i < maxOrder; i++) {
+            double acc = r[i + 1];
+            for (int j = 0; j < i; j++) acc -= a[j] * r[i - j];
+            double k = acc / err;
+            System.arraycopy(a, 0, tmp, 0, i);
+            a[i] = k;
+            for (int j = 0; j < i; j++) a[j] = tmp[j] - k * tmp[i - 1 - j];
+            err *= 1 - k * k;
+            out[i + 1] = Arrays.copyOf(a, i + 1);
+            if (err <= 0) break;
+        }
+        return out;
+    }
+
+    /** Quantizes to {@link #QLP_PRECISION}-bit coefficients; returns the shift, or -1 if they do not fit. */
+    private static int quantize(double[] lp, int order, int[] qlp) {
+        double cmax = 0;
+        for (int i = 0; i < order; i++) cmax = Math.max(cmax, Math.abs(lp[i]));
+        if (cmax <= 0) return -1;
+        int log2cmax = Math.getExponent(cmax) + 1;
+        int shift = QLP_PRECISION - 1 - log2cmax;
+        if (shift > 15) shift = 15;
+        if (shift < 0) return -1;
+        int qmax = (1 << (QLP_PRECISION - 1)) - 1;
+        int qmin = -(1 << (QLP_PRECISION - 1));
+        double error = 0;
+        for (int i = 0; i < order; i++) {
+            // l'errore di arrotondamento passa al coefficiente successivo
+            error += lp[i] * (1 << shift);
+            long q = Math.round(error);
+            if (q > qmax) q = qmax;
+            else if (q < qmin) q = qmin;
+            error -= q;
+            qlp[i] = (int) q;
+        }
+        return shift;
+    }
+
+    private static void lpcResidual(int[] x, int n, int[] qlp, int order, int shift, int[] r) {
+        for (int i = order; i < n; i++) {
+            long sum = 0;
+            for (int j = 0; j < order; j++) sum += (long) qlp[j] * x[i - j - 1];
+            r[i] = (int) (x[i] - (sum >> shift));
+        }
+    }
+
+    // --------------------------------------------------------------- rice
+
+    /** Partition order and Rice parameters for a residual, with its size in bits. */
+    private static final class Rice {
+        final int partitionOrder;
+        final int[] params;
+        final long bits;
+
+        private Rice(int partitionOrder, int[] params, long bits) {
+            this.partitionOrder = partitionOrder;
+            this.params = params;
+            this.bits = bits;
+        }
+
+        static Rice choose(int[] r, int n, int order) {
+            Rice best = null;
+            for (int p = 0; p <= MAX_PARTITION_ORDER; p++) {
+                if (p > 0 && ((n & ((1 << p) - 1)) != 0 || (n >> p) <= order)) break;
+                int parts = 1 << p;
+                int partSize = n >> p;
+                int[] params = new int[parts];
+                long bits = 2 + 4; // metodo + ordine di partizione
+                int start = order;
+                for (int k = 0; k < parts; k++) {
+                    int end = (k + 1) * partSize;
+                    long sum = 0;
+                    for (int i = start; i < end; i++) sum += zigzag(r[i]);
+                    int count = end - start;
+                    int bestParam = 0;
+                    long bestCost = Long.MAX_VALUE;
+                    for (int param = 0; param <= MAX_RICE_PARAM; param++) {
+                        long cost = (long) count * (param + 1) + (sum >> param);
+                        if (cost < bestCost) {
+                            bestCost = cost;
+                            bestParam = param;
+                        }
+                    }
+                    params[k] = bestParam;
+                    bits += 4 + bestCost;
+                    start = end;
+                }
+                if (best == null || bits < best.bits) best = new Rice(p, params, bits);
+            }
+            return best;
+        }
+
+        void write(BitWriter w, int[] r, int n, int order) {
+            w.writeBits(2, 0); // Rice a 4 bit
+            w.writeBits(4, partitionOrder);
+            int partSize = n >> partitionOrder;
+            int start = order;
+            for (int k = 0; k < params.length; k++) {
+                int param = params[k];
+                w.writeBits(4, param);
+                int end = (k + 1) * partSize;
+                for (int i = start; i < end; i++) {
+                    long u = zigzag(r[i]);
+                    w.writeUnary(u >>> param);
+                    if (param > 0) w.writeBits(param, u & ((1L << param) - 1));
+                }
+                start = end;
+            }
+        }
+
+        private static long zigzag(int v) {
+            long l = v;
+            return (l << 1) ^ (l >> 63);
+        }
+    }
+
+    // ------------------------------------------------------------- bits
+
+    /** MSB-first bit writer over a growing byte array. */
+    static final class BitWriter {
+        private byte[] buf;
+        private int bytes;
+        private long acc;
+        private int accBits;
+
+        BitWriter(int initialBytes) {
+            buf = new byte[Math.max(16, initialBytes)];
+        }
+
+        void writeBits(int n, long value) {
+            while (n > 0) {
+                int take = Math.min(n, 56 - accBits);
+                n -= take;
+                acc = (acc << take) | ((value >>> n) & ((1L << take) - 1));
+                accBits += take;
+                while (accBits >= 8) {
+                    accBits -= 8;
+                    put((byte) (acc >>> accBits));
+                }
+            }
+        }
+
+        void writeSigned(int n, int value) {
+            writeBits(n, value & ((1L << n) - 1));
+        }
+
+        void writeUnary(long zeros) {
+            while (zeros >= 32) {
+                writeBits(32, 0);
+                zeros -= 32;
+            }
+            writeBits((int) zeros + 1, 1);
+        }
+
+        void append(BitWriter other) {
+            for (int i = 0; i < other.bytes; i++) writeBits(8, other.buf[i] & 0xff);
+            if (other.accBits > 0) writeBits(other.accBits, other.acc & ((1L << other.accBits) - 1));
+        }
+
+        void alignToByte() {
+            if (accBits > 0) writeBits(8 - accBits, 0);
+        }
+
+        long bitLength() {
+            return (long) bytes * 8 + accBits;
+        }
+
+        /** Completed bytes; only meaningful at a byte boundary. */
+        int byteLength() {
+            return bytes;
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        byte[] toByteArray() {
+            alignToByte();
+            return Arrays.copyOf(buf, bytes);
+        }
+
+        private void put(byte b) {
+            if (bytes == buf.length) buf = Arrays.copyOf(buf, bytes * 2);
+            buf[bytes++] = b;
+        }
+    }
+
+    /** CRC-8 (poly 0x07) of frame headers and CRC-16 (poly 0x8005) of whole frames. */
+    static final class Crc {
+        private static final int[] CRC8 = new int[256];
+        private static final int[] CRC16 = new int[256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int c8 = i;
+                int c16 = i << 8;
+                for (int b = 0; b < 8; b++) {
+                    c8 = (c8 & 0x80) != 0 ? (c8 << 1) ^ 0x07 : c8 << 1;
+                    c16 = (c16 & 0x8000) != 0 ? (c16 << 1) ^ 0x8005 : c16 << 1;
+                }
+                CRC8[i] = c8 & 0xff;
+                CRC16[i] = c16 & 0xffff;
+            }
+        }
+
+        static int crc8(byte[] data, int off, int len) {
+            int crc = 0;
+            for (int i = off; i < off + len; i++) crc = CRC8[(crc ^ data[i]) & 0xff];
+            return crc;
+        }
+
+        static int crc16(byte[] data, int off, int len) {
+            int crc = 0;
+            for (int i = off; i < off + len; i++) crc = ((crc << 8) ^ CRC16[((crc >>> 8) ^ data[i]) & 0xff]) & 0xffff;
+            return crc;
+        }
+    }
+}
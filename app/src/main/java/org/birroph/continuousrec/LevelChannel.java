@@ -0,0 +1,135 @@
+package org.birroph.continuousrec;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-block level snapshots (peak, RMS, clipped samples) from the recording thread to
+ * the UI, without locks and without the recording thread ever touching a view.
+ * <p>
+ * One writer, one reader. The writer {@link #publish}es every block into a ring of
+ * primitive slots; the reader {@link #drain}s whatever piled up since its last display
+ * frame. If the reader falls behind and the ring is full, new blocks are coalesced into
+ * one pending snapshot (max peak, energy-weighted RMS, clip counts summed) until a slot
+ * frees up: the display may get a coarser point, but never misses a peak. A reader that
+ * stops for a while {@link #discard}s the backlog when it resumes.
+ */
+public class LevelChannel {
+    public static final int DEFAULT_CAPACITY = 256;
+    private static final float FULL_SCALE = 32768f;
+
+    /** Receives drained snapshots, oldest first. Levels are linear, 0..1 of full scale. */
+    public interface Sink {
+        void onLevels(float peak, float rms, int clippedSamples, int frames);
+    }
+
+    private final float[] peaks;
+    private final float[] rms;
+    private final int[] clipped;
+    private final int[] frames;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong(); // scritto dal writer
+    private final AtomicLong tail = new AtomicLong(); // scritto dal reader
+
+    // snapshot in attesa di uno slot libero, solo writer; long: senza reader cresce per ore
+    private float pendingPeak;
+    private double pendingEnergy;
+    private long pendingClipped;
+    private long pendingFrames;
+    private final AtomicLong coalesced = new AtomicLong();
+    // chiesto dal reader, eseguito dal writer che possiede lo snapshot in attesa
+    private volatile boolean discardPending = false;
+
+    public LevelChannel(int capacity) {
+        if (capacity < 2) throw new IllegalArgumentException("capacity >= 2");
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        peaks = new float[size];
+        rms = new float[size];
+        clipped = new int[size];
+        frames = new int[size];
+        mask = size - 1;
+    }
+
+    /** Measures one block of interleaved samples and publishes it. Writer thread only. */
+    public void publish(short[] samples, int length, int channels) {
+        if (length <= 0) return;
+        int peak = 0;
+        int clips = 0;
+        double energy = 0;
+        for (int i = 0; i < length; i++) {
+            int s = samples[i];
+            int a = s < 0 ? -s : s;
+            if (a > peak) peak = a;
+            if (a >= Short.MAX_VALUE) clips++;
+            energy += s * s;
+        }
+        float level = (float) Math.min(1.0, Math.sqrt(energy / length) / FULL_SCALE);
+        offer(Math.min(1f, peak / FULL_SCALE), level, clips, length / channels);
+    }
+
+    /** Publishes an already measured block. Writer thread only. */
+    public void offer(float peak, float level, int clippedSamples, int blockFrames) {
+        if (blockFrames <= 0) return;
+        long h = head.get();
+        boolean full = h - tail.get() > mask;
+        // letto dopo tail: se il discard ha liberato il ring, qui si vede
+        if (discardPending) {
+            discardPending = false;
+            pendingPeak = 0;
+            pendingEnergy = 0;
+            pendingClipped = 0;
+            pendingFrames = 0;
+        }
+        if (peak > pendingPeak) pendingPeak = peak;
+        pendingEnergy += (double) level * level * blockFrames;
+        pendingClipped += clippedSamples;
+        pendingFrames += blockFrames;
+
+        if (full) {
+            coalesced.incrementAndGet(); // il reader è indietro: resta nello snapshot in attesa
+            return;
+        }
+        int i = (int) (h & mask);
+        peaks[i] = pendingPeak;
+        rms[i] = (float) Math.sqrt(pendingEnergy / pendingFrames);
+        clipped[i] = (int) Math.min(Integer.MAX_VALUE, pendingClipped);
+        frames[i] = (int) Math.min(Integer.MAX_VALUE, pendingFrames);
+        head.lazySet(h + 1);
+        pendingPeak = 0;
+        pendingEnergy = 0;
+        pendingClipped = 0;
+        pendingFrames = 0;
+    }
+
+    /** Hands every snapshot published since the last drain to {@code sink}. Reader thread only. */
+    public int drain(Sink sink) {
+        long t = tail.get();
+        long h = head.get();
+        for (long s = t; s < h; s++) {
+            int i = (int) (s & mask);
+            sink.onLevels(peaks[i], rms[i], clipped[i], frames[i]);
+        }
+        tail.lazySet(h);
+        return (int) (h - t);
+    }
+
+    /**
+     * Drops what the reader has not seen yet, the snapshot still being coalesced included,
+     * so drawing resumed after a pause does not start with one point covering all of it.
+     * Reader thread only.
+     */
+    public void discard() {
+        discardPending = true;
+        tail.lazySet(head.get());
+    }
+
+    /** Snapshots waiting for the reader. */
+    public int pending() {
+        return (int) (head.get() - tail.get());
+    }
+
+    /** Blocks merged into a neighbour because the reader was behind. */
+    public long getCoalescedBlocks() {
+        return coalesced.get();
+    }
+}
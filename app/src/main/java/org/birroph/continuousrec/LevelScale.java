@@ -0,0 +1,28 @@
+package org.birroph.continuousrec;
+
+/**
+ * Conversions between the linear RMS level (0..1 of full scale), dBFS and the 0..1
+ * position used to draw levels and thresholds, so meter, waveform and gate agree.
+ */
+public final class LevelScale {
+    /** Bottom of the scale: quieter than any real microphone floor. */
+    public static final float MIN_DB = -90f;
+
+    private LevelScale() {
+    }
+
+    /** Linear RMS level to dBFS, clamped to {@link #MIN_DB}. */
+    public static float toDb(float linear) {
+        if (linear <= 0f) return MIN_DB;
+        return Math.max(MIN_DB, (float) (20 * Math.log10(linear)));
+    }
+
+    public static float toLinear(float db) {
+        return (float) Math.pow(10, db / 20.0);
+    }
+
+    /** Position of {@code db} on a meter spanning {@link #MIN_DB}..0 dBFS. */
+    public static float toFraction(float db) {
+        return Math.min(1f, Math.max(0f, (db - MIN_DB) / -MIN_DB));
+    }
+}
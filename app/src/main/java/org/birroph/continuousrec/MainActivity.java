@@ -9,8 +9,8 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.ImageButton;
@@ -23,6 +23,8 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
 
+import java.io.IOException;
+
 public class MainActivity extends AppCompatActivity {
     private ImageButton btnToggle;
     private TextView tvTimer;
@@ -32,8 +34,31 @@ public class MainActivity extends AppCompatActivity {
     private boolean isRecording = false;
     private RecordingService recordingService;
     private boolean bound = false;
-    private Handler handler = new Handler();
-    private Runnable timerRunnable;
+    private long shownSeconds = -1;
+    private int waveformSec = AudioWaveformView.DEFAULT_HISTORY_SEC;
+    private static final int EXTRACT_MINUTES = 5;
+
+    // ogni blocco registrato arriva alla waveform, a gruppi, una volta per frame
+    private final LevelChannel.Sink levelSink = (peak, rms, clipped, frames) -> waveformView.addLevels(peak, rms, frames);
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!isRecording || !bound || recordingService == null) return;
+            waveformView.setHistory(waveformSec, recordingService.getSampleRate());
+            recordingService.getLevelChannel().drain(levelSink);
+            float threshold = recordingService.getThresholdDb();
+            if (!Float.isNaN(threshold)) waveformView.setThresholdDb(threshold);
+            waveformView.setNoiseFloorDb(recordingService.getNoiseFloorDb());
+
+            long seconds = recordingService.getRecordingSeconds();
+            if (seconds != shownSeconds) {
+                shownSeconds = seconds;
+                tvTimer.setText(formatSeconds(seconds));
+                tvHeaderCount.setText("Registrazioni: " + recordingService.getSavedCount());
+            }
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
 
     private SharedPreferences prefs;
 
@@ -50,8 +75,7 @@ public class MainActivity extends AppCompatActivity {
         waveformView = findViewById(R.id.waveformView);
 
         prefs = getSharedPreferences(SettingsActivity.PREFS, MODE_PRIVATE);
-        float savedThreshold = prefs.getInt("threshold_db", 50);
-        waveformView.setThresholdDb(savedThreshold);
+        waveformView.setThresholdDb(prefs.getInt("threshold_dbfs", SettingsActivity.DEFAULT_THRESHOLD_DBFS));
 
         btnToggle.setOnClickListener(v -> toggleRecording());
 
@@ -66,29 +90,12 @@ public class MainActivity extends AppCompatActivity {
         );
 
         ensurePermissions();
-
-        // Timer + aggiornamento onda
-        timerRunnable = new Runnable() {
-            @Override
-            public void run() {
-                if (isRecording && bound && recordingService != null) {
-                    long seconds = recordingService.getRecordingSeconds();
-                    tvTimer.setText(formatSeconds(seconds));
-                    tvHeaderCount.setText("Registrazioni: " + recordingService.getSavedCount());
-
-                    // aggiorna waveform con livello audio
-                    double normalizedLevel = recordingService.getNormalizedLevel();
-                    waveformView.addLevel((float) normalizedLevel);
-                }
-                handler.postDelayed(this, 200);
-            }
-        };
-        handler.post(timerRunnable);
     }
 
     @Override
     protected void onStart() {
         super.onStart();
+        waveformSec = 60 * prefs.getInt("waveform_min", SettingsActivity.DEFAULT_WAVEFORM_MIN);
         Intent intent = new Intent(this, RecordingService.class);
         bindService(intent, connection, Context.BIND_AUTO_CREATE);
     }
@@ -96,6 +103,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onStop() {
         super.onStop();
+        stopFrames();
         if (bound) {
             unbindService(connection);
             bound = false;
@@ -109,14 +117,27 @@ public class MainActivity extends AppCompatActivity {
             recordingService = binder.getService();
             bound = true;
             tvHeaderCount.setText("Registrazioni: " + recordingService.getSavedCount());
+            if (isRecording) startFrames();
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
             bound = false;
+            stopFrames();
         }
     };
 
+    private void startFrames() {
+        // quello che si è accumulato mentre non si disegnava non serve più
+        if (bound && recordingService != null) recordingService.getLevelChannel().discard();
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    private void stopFrames() {
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+    }
+
     private void toggleRecording() {
         if (!isRecording) {
             if (!hasRequiredPermissions()) {
@@ -128,10 +149,13 @@ public class MainActivity extends AppCompatActivity {
             isRecording = true;
             btnToggle.setImageResource(android.R.drawable.ic_media_pause);
             waveformView.clearLevels();
+            shownSeconds = -1;
+            startFrames();
         } else {
             Intent intent = new Intent(this, RecordingService.class);
             stopService(intent);
             isRecording = false;
+            stopFrames();
             btnToggle.setImageResource(android.R.drawable.ic_media_play);
         }
     }
@@ -178,6 +202,30 @@ public class MainActivity extends AppCompatActivity {
             startActivity(i);
             return true;
         }
+        if (item.getItemId() == R.id.action_extract) {
+            extractLast(EXTRACT_MINUTES);
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
+
+    /** Joins the last {@code minutes} of saved segments into one file, off the main thread. */
+    private void extractLast(int minutes) {
+        if (!bound) return;
+        final RecordingService service = recordingService;
+        long to = System.currentTimeMillis();
+        long from = to - minutes * 60_000L;
+        Toast.makeText(this, "Esportazione in corso…", Toast.LENGTH_SHORT).show();
+        new Thread(() -> {
+            String msg;
+            try {
+                msg = "Salvato " + service.extractRange(from, to).getName();
+            } catch (IOException | RuntimeException e) {
+                // anche MediaExtractor/MediaMuxer e un intervallo vuoto: un toast, non un crash
+                msg = "Esportazione fallita: " + e.getMessage();
+            }
+            final String text = msg;
+            runOnUiThread(() -> Toast.makeText(this, text, Toast.LENGTH_LONG).show());
+        }, "extract").start();
+    }
 }
@@ -0,0 +1,99 @@
+package org.birroph.continuousrec;
+
+import android.Manifest;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import androidx.annotation.RequiresPermission;
+
+import java.io.IOException;
+
+/** The device microphone through AudioRecord. */
+public class MicAudioSource implements AudioSource {
+    private final int sampleRate;
+    private final int channelConfig;
+    private final int audioFormat;
+    private AudioRecord recorder;
+
+    public MicAudioSource(int sampleRate, int channelConfig, int audioFormat) {
+        this.sampleRate = sampleRate;
+        this.channelConfig = channelConfig;
+        this.audioFormat = audioFormat;
+    }
+
+    /**
+     * The microphone set up for {@code format}, behind a {@link ConvertingAudioSource}
+     * when capture and output differ. If the device refuses the requested capture rate
+     * it captures at {@link CaptureFormat#NATIVE_RATE} and resamples.
+     */
+    public static AudioSource open(CaptureFormat format) {
+        int channelConfig = format.captureChannels == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        int encoding = format.floatCapture ? AudioFormat.ENCODING_PCM_FLOAT : AudioFormat.ENCODING_PCM_16BIT;
+        if (!isSupported(format.captureRate, channelConfig, encoding)) {
+            format = format.withCaptureRate(CaptureFormat.NATIVE_RATE);
+        }
+        MicAudioSource mic = new MicAudioSource(format.captureRate, channelConfig, encoding);
+        if (!format.needsConversion()) return mic;
+        return new ConvertingAudioSource(mic, format.outputRate, format.outputChannels);
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return channelConfig == AudioFormat.CHANNEL_IN_STEREO ? 2 : 1;
+    }
+
+    @RequiresPermission(Manifest.permission.RECORD_AUDIO)
+    @Override
+    public void start() throws IOException {
+        int minBuf = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat);
+        recorder = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelConfig, audioFormat, Math.max(minBuf, sampleRate * 2 * getChannels() * (isFloat() ? 2 : 1)));
+        if (recorder.getState() != AudioRecord.STATE_INITIALIZED) {
+            recorder.release();
+            recorder = null;
+            throw new IOException("AudioRecord init failed");
+        }
+        recorder.startRecording();
+    }
+
+    @Override
+    public boolean isFloat() {
+        return audioFormat == AudioFormat.ENCODING_PCM_FLOAT;
+    }
+
+    /** False if the device refuses this capture configuration. */
+    public static boolean isSupported(int sampleRate, int channelConfig, int audioFormat) {
+        return AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat) > 0;
+    }
+
+    @Override
+    public int read(float[] buffer, int offset, int length, short[] scratch) throws IOException {
+        int read = recorder.read(buffer, offset, length, AudioRecord.READ_BLOCKING);
+        if (read == AudioRecord.ERROR_DEAD_OBJECT) throw new IOException("AudioRecord dead");
+        return Math.max(read, 0);
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length) throws IOException {
+        int read = recorder.read(buffer, offset, length);
+        if (read == AudioRecord.ERROR_DEAD_OBJECT) throw new IOException("AudioRecord dead");
+        return Math.max(read, 0);
+    }
+
+    @Override
+    public void close() {
+        if (recorder != null) {
+            try {
+                recorder.stop();
+            } catch (IllegalStateException ignored) {
+            }
+            recorder.release();
+            recorder = null;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.birroph.continuousrec;
+
+import java.util.Arrays;
+
+/**
+ * Follows the background noise level from the per-block level stream and puts the gate
+ * threshold a margin above it.
+ * <p>
+ * Minimum statistics: the level is smoothed over {@link #SMOOTHING_SEC} and the floor is
+ * the minimum of that over the last {@code windowSec}, kept as minima of
+ * {@link #SUBWINDOWS} sub-windows so each update costs the same. Events and speech
+ * have gaps shorter than the window, so they do not pull the floor up; a noisier room
+ * does, once the quieter past has left the window, by at most
+ * {@link #FLOOR_RISE_DB_PER_SEC} dB a second, so a sound lasting longer than the window
+ * (an alarm, music) is not gated off seconds into it. A quieter room is followed at once.
+ */
+public final class NoiseFloorTracker {
+    public static final float DEFAULT_WINDOW_SEC = 5f;
+    public static final float DEFAULT_MARGIN_DB = 10f;
+    static final int SUBWINDOWS = 8;
+    static final float SMOOTHING_SEC = 0.02f;
+    /** How fast the floor may rise, as in {@link VoiceActivityDetector}. */
+    static final float FLOOR_RISE_DB_PER_SEC = 3f;
+
+    /** Added back to the minimum, which sits below the mean of a fluctuating level. */
+    public float biasDb = 1.5f;
+    public float marginDb = DEFAULT_MARGIN_DB;
+    /** The threshold never goes below this, so a digitally silent input does not open on clicks. */
+    public float minThresholdDb = -60f;
+
+    private final int sampleRate;
+    private final long subWindowFrames;
+    private final float[] minima = new float[SUBWINDOWS];
+    private int next = 0;
+    private float currentMin;
+    private long currentFrames;
+    private float smoothed = Float.NaN;
+    private volatile float floorDb = LevelScale.MIN_DB;
+
+    public NoiseFloorTracker(int sampleRate) {
+        this(sampleRate, DEFAULT_WINDOW_SEC);
+    }
+
+    public NoiseFloorTracker(int sampleRate, float windowSec) {
+        this.sampleRate = sampleRate;
+        this.subWindowFrames = Math.max(1, Math.round(windowSec * sampleRate / SUBWINDOWS));
+        reset();
+    }
+
+    public void reset() {
+        Arrays.fill(minima, Float.POSITIVE_INFINITY);
+        next = 0;
+        currentMin = Float.POSITIVE_INFINITY;
+        currentFrames = 0;
+        smoothed = Float.NaN;
+        floorDb = LevelScale.MIN_DB;
+    }
+
+    /** Feeds the level of a block of {@code frames} frames; returns the new threshold. */
+    public float update(float levelDb, int frames) {
+        boolean first = Float.isNaN(smoothed);
+        if (first) {
+            smoothed = levelDb;
+        } else {
+            float alpha = (float) Math.exp(-frames / (SMOOTHING_SEC * sampleRate));
+            smoothed = alpha * smoothed + (1 - alpha) * levelDb;
+        }
+        if (smoothed < currentMin) currentMin = smoothed;
+        currentFrames += frames;
+
+        float min = currentMin;
+        for (float m : minima) if (m < min) min = m;
+        if (currentFrames >= subWindowFrames) {
+            minima[next] = currentMin;
+            next = (next + 1) % SUBWINDOWS;
+            currentMin = Float.POSITIVE_INFINITY;
+            currentFrames = 0;
+        }
+        float floor = Math.min(0f, Math.max(LevelScale.MIN_DB, min + biasDb));
+        if (!first) floor = Math.min(floor, floorDb + FLOOR_RISE_DB_PER_SEC * frames / sampleRate);
+        floorDb = floor;
+        return getThresholdDb();
+    }
+
+    public float getNoiseFloorDb() {
+        return floorDb;
+    }
+
+    public float getThresholdDb() {
+        return Math.max(minThresholdDb, floorDb + marginDb);
+    }
+}
@@ -0,0 +1,95 @@
+package org.birroph.continuousrec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Serializes 16-bit samples as little-endian PCM into a FileChannel.
+ * <p>
+ * Samples are put into a {@link ShortBuffer} view of one reused direct little-endian
+ * buffer, and written to the channel when it fills up. Once constructed nothing is
+ * allocated on the write path. With a {@link DurabilityPolicy.Stats} every write
+ * syscall and every {@link #force} is counted.
+ */
+public class PcmChannelWriter implements Closeable {
+    public static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer bytes;
+    private final ShortBuffer shorts;
+    private final DurabilityPolicy.Stats stats;
+    private long bytesWritten = 0;
+
+    public PcmChannelWriter(FileChannel channel) {
+        this(channel, DEFAULT_BUFFER_BYTES);
+    }
+
+    public PcmChannelWriter(FileChannel channel, int bufferBytes) {
+        this(channel, bufferBytes, null);
+    }
+
+    public PcmChannelWriter(FileChannel channel, int bufferBytes, DurabilityPolicy.Stats stats) {
+        if (bufferBytes < 2) throw new IllegalArgumentException("bufferBytes < 2");
+        this.channel = channel;
+        this.stats = stats;
+        this.bytes = ByteBuffer.allocateDirect(bufferBytes & ~1).order(ByteOrder.LITTLE_ENDIAN);
+        this.shorts = bytes.asShortBuffer();
+    }
+
+    public void write(short[] samples, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, shorts.remaining());
+            shorts.put(samples, offset, n);
+            offset += n;
+            length -= n;
+            if (!shorts.hasRemaining()) flush();
+        }
+    }
+
+    /** Pushes the buffered samples to the channel (no fsync). */
+    public void flush() throws IOException {
+        int n = shorts.position();
+        if (n == 0) return;
+        bytes.clear();
+        bytes.limit(n * 2);
+        while (bytes.hasRemaining()) {
+            int w = channel.write(bytes);
+            if (stats != null) stats.onWrite(w);
+        }
+        shorts.clear();
+        bytesWritten += n * 2L;
+    }
+
+    /**
+     * Forces what the channel has to storage, after writing out the buffer if
+     * {@code flushFirst}. File size included: what was forced is readable after a power cut.
+     */
+    public void force(boolean flushFirst) throws IOException {
+        if (flushFirst) flush();
+        long t0 = System.nanoTime();
+        channel.force(false);
+        if (stats != null) stats.onForce(System.nanoTime() - t0);
+    }
+
+    /** Bytes handed to the channel so far, excluding what is still buffered. */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
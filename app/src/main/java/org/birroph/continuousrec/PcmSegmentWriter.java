@@ -0,0 +1,83 @@
+package org.birroph.continuousrec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes raw 16-bit little-endian PCM to a temporary file, to be converted later.
+ * Forced to storage as the {@link DurabilityPolicy} says, always at finish.
+ */
+public class PcmSegmentWriter implements SegmentWriter {
+    private final File file;
+    private final PcmChannelWriter out;
+    private final DurabilityPolicy policy;
+    private final long syncSamples;
+    private long samplesWritten = 0;
+    private long lastSync = 0;
+
+    /** Forced only at finish: the sync interval needs the format. */
+    public PcmSegmentWriter(File file) throws IOException {
+        this(file, 1, 1, DurabilityPolicy.segmentEnd(), null);
+    }
+
+    public PcmSegmentWriter(File file, int sampleRate, int channels, DurabilityPolicy policy,
+                            DurabilityPolicy.Stats stats) throws IOException {
+        this.file = file;
+        this.policy = policy;
+        this.syncSamples = policy.syncSamples(sampleRate, channels);
+        this.out = new PcmChannelWriter(FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING),
+                policy.bufferBytes, stats);
+    }
+
+    @Override
+    public void write(short[] samples, int offset, int length) throws IOException {
+        out.write(samples, offset, length);
+        samplesWritten += length;
+        if (syncSamples > 0 && samplesWritten - lastSync >= syncSamples) {
+            out.force(policy.flushBeforeSync());
+            lastSync = samplesWritten;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public File finish() throws IOException {
+        try {
+            out.force(true);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Override
+    public void abort() {
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+        file.delete();
+    }
+
+    @Override
+    public long getSamplesWritten() {
+        return samplesWritten;
+    }
+
+    @Override
+    public long getSamplesFlushed() {
+        return out.getBytesWritten() / 2;
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,323 @@
+package org.birroph.continuousrec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Waveform overview of a segment: min, max and RMS per bin at a few zoom levels, built
+ * while the segment is recorded and saved as a small sidecar next to the audio.
+ * <p>
+ * Only the finest level looks at samples; every coarser level is folded from the one
+ * below, so the cost per sample is one min/max/square. The file is little-endian with
+ * fixed-size records, meant to be {@link #map memory-mapped} and read in place:
+ * <pre>
+ *   header  magic "CRPK", version, sample rate, channels (int32), frames (int64),
+ *           level count, reserved (int32)
+ *   levels  frames per bin, bin count (int32), data offset (int64), one per level
+ *   data    per level, per bin: min, max, rms (int16)
+ * </pre>
+ * Channels are folded together: a bin's min and max are over every channel.
+ */
+public class PeakPyramid {
+    public static final int[] DEFAULT_LEVELS = {256, 4096, 65536};
+    public static final String EXTENSION = ".peaks";
+
+    static final int MAGIC = 0x4b504352; // "CRPK"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    static final int LEVEL_BYTES = 16;
+    static final int BIN_BYTES = 6;
+
+    private final int sampleRate;
+    private final int channels;
+    private final int[] framesPerBin;
+    private final int[] fanIn;          // bin del livello sotto per un bin di questo
+    private final short[][] data;       // min, max, rms per bin
+    private final int[] bins;
+    private long frames = 0;
+    private long samples = 0;
+    private int peak = 0;
+    private double energy = 0;
+
+    // bin in costruzione, uno per livello
+    private final int[] curMin;
+    private final int[] curMax;
+    private final double[] curEnergy;
+    private final long[] curSamples;
+    private final int[] curChildren;
+    private final long samplesPerFinestBin;
+
+    public PeakPyramid(int sampleRate, int channels) {
+        this(sampleRate, channels, DEFAULT_LEVELS);
+    }
+
+    /** {@code levels}: frames per bin, finest first, each a multiple of the previous. */
+    public PeakPyramid(int sampleRate, int channels, int... levels) {
+        if (levels.length == 0) throw new IllegalArgumentException("no levels");
+        for (int l = 1; l < levels.length; l++) {
+            if (levels[l] <= levels[l - 1] || levels[l] % levels[l - 1] != 0) {
+                throw new IllegalArgumentException("levels must be increasing multiples: " + Arrays.toString(levels));
+            }
+        }
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.framesPerBin = levels.clone();
+        int n = levels.length;
+        fanIn = new int[n];
+        for (int l = 1; l < n; l++) fanIn[l] = levels[l] / levels[l - 1];
+        data = new short[n][];
+        bins = new int[n];
+        for (int l = 0; l < n; l++) data[l] = new short[3 * 64];
+        curMin = new int[n];
+        curMax = new int[n];
+        curEnergy = new double[n];
+        curSamples = new long[n];
+        curChildren = new int[n];
+        for (int l = 0; l < n; l++) resetBin(l);
+        samplesPerFinestBin = (long) levels[0] * channels;
+    }
+
+    /** Feeds interleaved samples, as written to the segment. */
+    public void add(short[] buffer, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int n = (int) Math.min(end - i, samplesPerFinestBin - curSamples[0]);
+            int min = curMin[0];
+            int max = curMax[0];
+            long energy = 0;
+            for (int k = i; k < i + n; k++) {
+                int s = buffer[k];
+                if (s < min) min = s;
+                if (s > max) max = s;
+                energy += s * s;
+            }
+            curMin[0] = min;
+            curMax[0] = max;
+            curEnergy[0] += energy;
+            this.energy += energy;
+            peak = Math.max(peak, Math.max(max, -min));
+            curSamples[0] += n;
+            i += n;
+            if (curSamples[0] == samplesPerFinestBin) closeBin(0);
+        }
+        samples += length;
+        frames = samples / channels;
+    }
+
+    /** Closes the bins still open, short ones included. Call once, before {@link #writeTo}. */
+    public void finish() {
+        for (int l = 0; l < framesPerBin.length; l++) {
+            if (curSamples[l] > 0) closeBin(l);
+        }
+    }
+
+    private void closeBin(int l) {
+        short[] d = data[l];
+        int at = 3 * bins[l];
+        if (at + 3 > d.length) data[l] = d = Arrays.copyOf(d, d.length * 2);
+        d[at] = (short) curMin[l];
+        d[at + 1] = (short) curMax[l];
+        d[at + 2] = (short) Math.min(Short.MAX_VALUE, Math.round(Math.sqrt(curEnergy[l] / curSamples[l])));
+        bins[l]++;
+
+        int up = l + 1;
+        boolean upFull = false;
+        if (up < framesPerBin.length) {
+            if (curMin[l] < curMin[up]) curMin[up] = curMin[l];
+            if (curMax[l] > curMax[up]) curMax[up] = curMax[l];
+            curEnergy[up] += curEnergy[l];
+            curSamples[up] += curSamples[l];
+            upFull = ++curChildren[up] == fanIn[up];
+        }
+        resetBin(l);
+        if (upFull) closeBin(up);
+    }
+
+    private void resetBin(int l) {
+        curMin[l] = Short.MAX_VALUE;
+        curMax[l] = Short.MIN_VALUE;
+        curEnergy[l] = 0;
+        curSamples[l] = 0;
+        curChildren[l] = 0;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    /** Largest absolute sample so far, 0..1 of full scale. */
+    public float getPeak() {
+        return Math.min(1f, peak / 32768f);
+    }
+
+    /** RMS of everything so far, 0..1 of full scale. */
+    public float getRms() {
+        return samples == 0 ? 0f : (float) Math.min(1.0, Math.sqrt(energy / samples) / 32768.0);
+    }
+
+    public int levelCount() {
+        return framesPerBin.length;
+    }
+
+    public int getBins(int level) {
+        return bins[level];
+    }
+
+    /** Bytes the sidecar takes on disk. */
+    public int fileSize() {
+        int size = HEADER_BYTES + LEVEL_BYTES * framesPerBin.length;
+        for (int b : bins) size += BIN_BYTES * b;
+        return size;
+    }
+
+    /** Writes the sidecar through a ".part" file renamed when complete. */
+    public void writeTo(File file) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(fileSize()).order(ByteOrder.LITTLE_ENDIAN);
+        int levels = framesPerBin.length;
+        buf.putInt(MAGIC).putInt(VERSION).putInt(sampleRate).putInt(channels).putLong(frames)
+                .putInt(levels).putInt(0);
+        long offset = HEADER_BYTES + (long) LEVEL_BYTES * levels;
+        for (int l = 0; l < levels; l++) {
+            buf.putInt(framesPerBin[l]).putInt(bins[l]).putLong(offset);
+            offset += (long) BIN_BYTES * bins[l];
+        }
+        for (int l = 0; l < levels; l++) {
+            buf.asShortBuffer().put(data[l], 0, 3 * bins[l]);
+            buf.position(buf.position() + BIN_BYTES * bins[l]);
+        }
+        buf.flip();
+
+        File part = new File(file.getPath() + ".part");
+        try (FileChannel out = FileChannel.open(part.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) out.write(buf);
+        } catch (IOException e) {
+            part.delete();
+            throw e;
+        }
+        if (!part.renameTo(file)) {
+            part.delete();
+            throw new IOException("rename " + part + " -> " + file);
+        }
+    }
+
+    /** Reads {@code in} to the end and returns its finished pyramid; {@code in} is closed. */
+    public static PeakPyramid scan(AudioSource in) throws IOException {
+        PeakPyramid p = new PeakPyramid(in.getSampleRate(), in.getChannels());
+        short[] buffer = new short[16 * 1024];
+        try {
+            in.start();
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) >= 0) p.add(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+        p.finish();
+        return p;
+    }
+
+    /** The sidecar of an audio file: same name, {@link #EXTENSION} instead of its extension. */
+    public static File sidecarFor(File audio) {
+        String name = audio.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(audio.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + EXTENSION);
+    }
+
+    /** Maps a sidecar read-only; the file can be closed or deleted while the mapping lives. */
+    public static Mapped map(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < HEADER_BYTES) throw new IOException(file + ": not a peak file");
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            return new Mapped(file, buf);
+        }
+    }
+
+    /** A sidecar read in place. Bin accessors do not copy and do not allocate. */
+    public static final class Mapped {
+        private final ByteBuffer buf;
+        private final int sampleRate;
+        private final int channels;
+        private final long frames;
+        private final int[] framesPerBin;
+        private final int[] bins;
+        private final int[] offsets;
+
+        private Mapped(File file, ByteBuffer buf) throws IOException {
+            this.buf = buf;
+            if (buf.getInt(0) != MAGIC) throw new IOException(file + ": not a peak file");
+            if (buf.getInt(4) != VERSION) throw new IOException(file + ": peak file version " + buf.getInt(4));
+            sampleRate = buf.getInt(8);
+            channels = buf.getInt(12);
+            frames = buf.getLong(16);
+            int levels = buf.getInt(24);
+            if (levels < 1 || HEADER_BYTES + (long) LEVEL_BYTES * levels > buf.capacity()) {
+                throw new IOException(file + ": bad level count " + levels);
+            }
+            framesPerBin = new int[levels];
+            bins = new int[levels];
+            offsets = new int[levels];
+            for (int l = 0; l < levels; l++) {
+                int at = HEADER_BYTES + LEVEL_BYTES * l;
+                framesPerBin[l] = buf.getInt(at);
+                bins[l] = buf.getInt(at + 4);
+                long offset = buf.getLong(at + 8);
+                if (offset + (long) BIN_BYTES * bins[l] > buf.capacity()) throw new IOException(file + ": truncated");
+                offsets[l] = (int) offset;
+            }
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        public int getChannels() {
+            return channels;
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+
+        public int levelCount() {
+            return framesPerBin.length;
+        }
+
+        public int getFramesPerBin(int level) {
+            return framesPerBin[level];
+        }
+
+        public int getBins(int level) {
+            return bins[level];
+        }
+
+        /** The coarsest level still at least as fine as {@code framesPerPixel}. */
+        public int levelFor(long framesPerPixel) {
+            int best = 0;
+            for (int l = 1; l < framesPerBin.length; l++) {
+                if (framesPerBin[l] <= framesPerPixel) best = l;
+            }
+            return best;
+        }
+
+        public short getMin(int level, int bin) {
+            return buf.getShort(offsets[level] + BIN_BYTES * bin);
+        }
+
+        public short getMax(int level, int bin) {
+            return buf.getShort(offsets[level] + BIN_BYTES * bin + 2);
+        }
+
+        public short getRms(int level, int bin) {
+            return buf.getShort(offsets[level] + BIN_BYTES * bin + 4);
+        }
+    }
+}
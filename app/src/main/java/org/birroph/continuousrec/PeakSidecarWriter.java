@@ -0,0 +1,83 @@
+package org.birroph.continuousrec;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Wraps a segment writer and builds the segment's {@link PeakPyramid} from the same
+ * samples. On {@link #finish()} the sidecar is written next to the finished file.
+ * <p>
+ * The sidecar is an index, not the recording: if it cannot be written the segment
+ * still finishes, and the failure is left in {@link #getSidecarError()}. The writer also
+ * remembers where the segment starts on the engine clock, for the {@link SegmentCatalog}.
+ */
+public class PeakSidecarWriter implements SegmentWriter {
+    private final SegmentWriter out;
+    private final PeakPyramid peaks;
+    private final long startFrame;
+    private volatile IOException sidecarError;
+
+    public PeakSidecarWriter(SegmentWriter out, long startFrame, int sampleRate, int channels) {
+        this.out = out;
+        this.startFrame = startFrame;
+        this.peaks = new PeakPyramid(sampleRate, channels);
+    }
+
+    @Override
+    public void write(short[] samples, int offset, int length) throws IOException {
+        out.write(samples, offset, length);
+        peaks.add(samples, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public File finish() throws IOException {
+        File file = out.finish();
+        if (file != null) {
+            peaks.finish();
+            try {
+                peaks.writeTo(PeakPyramid.sidecarFor(file));
+            } catch (IOException e) {
+                sidecarError = e;
+            }
+        }
+        return file;
+    }
+
+    @Override
+    public void abort() {
+        out.abort();
+    }
+
+    @Override
+    public long getSamplesWritten() {
+        return out.getSamplesWritten();
+    }
+
+    @Override
+    public long getSamplesFlushed() {
+        return out.getSamplesFlushed();
+    }
+
+    @Override
+    public File getFile() {
+        return out.getFile();
+    }
+
+    public long getStartFrame() {
+        return startFrame;
+    }
+
+    /** The segment's peaks; complete once {@link #finish()} has returned. */
+    public PeakPyramid getPeaks() {
+        return peaks;
+    }
+
+    public IOException getSidecarError() {
+        return sidecarError;
+    }
+}
@@ -0,0 +1,158 @@
+package org.birroph.continuousrec;
+
+import java.util.Arrays;
+
+/**
+ * Rational-ratio sample rate converter with a windowed-sinc polyphase filter bank.
+ * <p>
+ * The ratio out/in is reduced to L/M; the prototype low-pass runs at L times the input
+ * rate and is split into L phases of {@link #TAPS} taps, so each output sample costs
+ * {@code TAPS} multiply-adds per channel whatever the ratio. The filter cuts at the
+ * lower Nyquist of the two rates. Streaming and allocation-free after construction:
+ * history between blocks is kept in a per-channel buffer sized for {@code maxInFrames}.
+ */
+public final class PolyphaseResampler {
+    public static final int TAPS = 32;
+    private static final double KAISER_BETA = 8.0;
+    private static final double ROLLOFF = 0.92;
+
+    private final int inRate;
+    private final int outRate;
+    private final int channels;
+    private final int up;   // L
+    private final int down; // M
+    private final int maxInFrames;
+    private final float[][] phases;
+    private final float[][] history;
+    private int filled; // campioni validi nella history (stessi per tutti i canali)
+    private int base;   // indice del campione più recente usato dal prossimo output
+    private int phase;
+
+    public PolyphaseResampler(int inRate, int outRate, int channels, int maxInFrames) {
+        if (inRate <= 0 || outRate <= 0 || channels <= 0 || maxInFrames <= 0) {
+            throw new IllegalArgumentException("bad resampler config " + inRate + "->" + outRate);
+        }
+        this.inRate = inRate;
+        this.outRate = outRate;
+        this.channels = channels;
+        int g = gcd(inRate, outRate);
+        this.up = outRate / g;
+        this.down = inRate / g;
+        this.maxInFrames = maxInFrames;
+        this.phases = design(up, down);
+        this.history = new float[channels][TAPS - 1 + maxInFrames];
+        reset();
+    }
+
+    /** Clears the history, as if the stream started again from silence. */
+    public void reset() {
+        for (float[] h : history) Arrays.fill(h, 0f);
+        filled = TAPS - 1;
+        base = TAPS - 1;
+        phase = 0;
+    }
+
+    public int getInRate() {
+        return inRate;
+    }
+
+    public int getOutRate() {
+        return outRate;
+    }
+
+    /** Upper bound of the frames one call to {@link #process} can produce. */
+    public int maxOutFrames(int inFrames) {
+        return (int) (((long) inFrames + 1) * up / down) + 2;
+    }
+
+    /**
+     * Resamples {@code inFrames} interleaved frames (at most {@code maxInFrames}) from
+     * {@code in} into {@code out}, which must hold {@link #maxOutFrames} frames.
+     * Returns the frames written.
+     */
+    public int process(float[] in, int inOffset, int inFrames, float[] out, int outOffset) {
+        if (inFrames > maxInFrames) throw new IllegalArgumentException("block too large: " + inFrames);
+        for (int c = 0; c < channels; c++) {
+            float[] h = history[c];
+            for (int i = 0, k = inOffset + c; i < inFrames; i++, k += channels) h[filled + i] = in[k];
+        }
+        filled += inFrames;
+
+        int produced = 0;
+        int b = base;
+        int p = phase;
+        int o = outOffset;
+        while (b < filled) {
+            float[] coef = phases[p];
+            for (int c = 0; c < channels; c++) {
+                float[] h = history[c];
+                float acc = 0f;
+                // coef[j] pesa x[b - j]
+                for (int j = 0, x = b; j < TAPS; j++, x--) acc += coef[j] * h[x];
+                out[o + c] = acc;
+            }
+            o += channels;
+            produced++;
+            p += down;
+            b += p / up;
+            p %= up;
+        }
+
+        // teniamo solo le TAPS-1 precedenti al prossimo campione da usare
+        int drop = Math.min(b - (TAPS - 1), filled);
+        if (drop > 0) {
+            for (float[] h : history) System.arraycopy(h, drop, h, 0, filled - drop);
+            filled -= drop;
+            b -= drop;
+        }
+        base = b;
+        phase = p;
+        return produced;
+    }
+
+    /** Phase {@code p} holds taps {@code p, p + L, p + 2L, ...} of the prototype, each normalized to unit DC gain. */
+    private static float[][] design(int up, int down) {
+        int length = up * TAPS;
+        double center = (length - 1) / 2.0;
+        // taglio in cicli per campione del dominio sovracampionato
+        double cutoff = 0.5 * Math.min(1.0, (double) up / down) * ROLLOFF / up;
+        double i0Beta = besselI0(KAISER_BETA);
+
+        float[][] phases = new float[up][TAPS];
+        for (int p = 0; p < up; p++) {
+            double sum = 0;
+            double[] taps = new double[TAPS];
+            for (int j = 0; j < TAPS; j++) {
+                double t = p + (double) j * up - center;
+                double sinc = t == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+                double r = (p + (double) j * up) / (length - 1) * 2 - 1;
+                double w = besselI0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - r * r))) / i0Beta;
+                taps[j] = sinc * w;
+                sum += taps[j];
+            }
+            for (int j = 0; j < TAPS; j++) phases[p][j] = (float) (sum != 0 ? taps[j] / sum : 0);
+        }
+        return phases;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        double q = x * x / 4;
+        for (int k = 1; k < 50; k++) {
+            term *= q / (k * k);
+            sum += term;
+            if (term < 1e-12 * sum) break;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,75 @@
+package org.birroph.continuousrec;
+
+import java.io.IOException;
+
+/**
+ * Circular buffer holding the last N seconds of samples while the level gate is closed.
+ * <p>
+ * Nothing reaches the disk during silence: blocks are pushed here, overwriting the oldest
+ * ones, and when the gate opens the content is flushed into the new segment so the start
+ * of the sound is not clipped. The size is fixed at construction and capped by
+ * {@link #MAX_BYTES}.
+ */
+public class PreRollBuffer {
+    /** Hard memory cap for the pre-roll, whatever the configured length. */
+    public static final long MAX_BYTES = 4L * 1024 * 1024;
+
+    private final short[] samples;
+    private int writePos = 0;
+    private int size = 0;
+
+    public PreRollBuffer(int capacitySamples) {
+        if (capacitySamples < 0 || capacitySamples * 2L > MAX_BYTES) {
+            throw new IllegalArgumentException("pre-roll capacity out of range: " + capacitySamples);
+        }
+        this.samples = new short[capacitySamples];
+    }
+
+    /** Capacity in samples for {@code seconds} of audio, clamped to {@link #MAX_BYTES}. */
+    public static int capacityFor(int seconds, int sampleRate, int channels) {
+        long wanted = (long) Math.max(0, seconds) * sampleRate * channels;
+        long max = MAX_BYTES / 2 / channels * channels;
+        return (int) Math.min(wanted, max);
+    }
+
+    public void push(short[] src, int offset, int length) {
+        int cap = samples.length;
+        if (cap == 0) return;
+        if (length >= cap) {
+            // tengo solo la coda del blocco
+            System.arraycopy(src, offset + length - cap, samples, 0, cap);
+            writePos = 0;
+            size = cap;
+            return;
+        }
+        int first = Math.min(length, cap - writePos);
+        System.arraycopy(src, offset, samples, writePos, first);
+        System.arraycopy(src, offset + first, samples, 0, length - first);
+        writePos = (writePos + length) % cap;
+        size = Math.min(cap, size + length);
+    }
+
+    /** Writes the buffered samples, oldest first, and empties the buffer. */
+    public void drainTo(SegmentWriter writer) throws IOException {
+        if (size == 0) return;
+        int cap = samples.length;
+        int start = (writePos - size + cap) % cap;
+        int first = Math.min(size, cap - start);
+        writer.write(samples, start, first);
+        if (size > first) writer.write(samples, 0, size - first);
+        clear();
+    }
+
+    public void clear() {
+        size = 0;
+        writePos = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return samples.length;
+    }
+}
@@ -0,0 +1,187 @@
+package org.birroph.continuousrec;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pulls a wall-clock range out of the saved segments as one continuous file.
+ * <p>
+ * {@link #plan} turns the catalog entries overlapping the range into pieces: which
+ * frames of which segment, and where they land in the output. Segments that follow
+ * each other on the engine clock are butted together frame-exact; across a pause (or a
+ * restart of the service) the gap is kept, so times in the output still line up with
+ * the wall clock. A {@link Stitcher} then copies the pieces in the segments' own
+ * format: WAV by reading samples, AAC by remuxing the encoded frames (see
+ * {@link AacRangeRemuxer}), never by decoding and encoding again.
+ */
+public class RangeExtractor {
+
+    /** Frames {@code [fromFrame, toFrame)} of a segment, written at {@code outputFrame}. */
+    public static final class Piece {
+        public final SegmentCatalog.Entry entry;
+        public final long fromFrame;
+        public final long toFrame;
+        public final long outputFrame;
+
+        Piece(SegmentCatalog.Entry entry, long fromFrame, long toFrame, long outputFrame) {
+            this.entry = entry;
+            this.fromFrame = fromFrame;
+            this.toFrame = toFrame;
+            this.outputFrame = outputFrame;
+        }
+
+        public long frames() {
+            return toFrame - fromFrame;
+        }
+    }
+
+    /** What to copy, in output order. All pieces share rate, channels and codec. */
+    public static final class Plan {
+        public final List<Piece> pieces;
+        public final long startWallMs;
+        public final long frames;
+        public final int sampleRate;
+        public final int channels;
+        public final String codec;
+
+        Plan(List<Piece> pieces, long startWallMs, long frames, int sampleRate, int channels, String codec) {
+            this.pieces = Collections.unmodifiableList(pieces);
+            this.startWallMs = startWallMs;
+            this.frames = frames;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.codec = codec;
+        }
+    }
+
+    /** Writes the pieces of a plan into one output file. */
+    public interface Stitcher {
+        void begin(Plan plan) throws IOException;
+
+        void piece(Piece piece) throws IOException;
+
+        /** Completes the output and returns it. */
+        File finish() throws IOException;
+
+        /** Drops the output; whatever was written is deleted. */
+        void abort();
+    }
+
+    private RangeExtractor() {
+    }
+
+    /**
+     * The pieces covering {@code [fromWallMs, toWallMs)} of {@code entries} (as returned
+     * by {@link SegmentCatalog#between}). The output starts at the first recorded
+     * instant in the range, not before.
+     */
+    public static Plan plan(List<SegmentCatalog.Entry> entries, long fromWallMs, long toWallMs) throws IOException {
+        if (toWallMs <= fromWallMs) throw new IllegalArgumentException("empty range");
+        List<Piece> pieces = new ArrayList<>();
+        SegmentCatalog.Entry first = null;
+        SegmentCatalog.Entry prev = null;
+        long outStartMs = 0;
+        long outEnd = 0;
+        for (SegmentCatalog.Entry e : entries) {
+            int rate = e.sampleRate;
+            long frames = e.endFrame - e.startFrame;
+            long from = Math.max(0, (fromWallMs - e.startWallMs) * rate / 1000);
+            long to = Math.min(frames, (toWallMs - e.startWallMs) * rate / 1000);
+            if (to <= from) continue;
+            if (first == null) {
+                first = e;
+                outStartMs = e.startWallMs + from * 1000 / rate;
+            } else if (rate != first.sampleRate || e.channels != first.channels || !e.codec.equals(first.codec)) {
+                throw new IOException("range mixes formats: " + first + " and " + e);
+            }
+            long at;
+            if (prev != null && e.startFrame == prev.endFrame && Math.abs(e.startWallMs - prev.endWallMs) <= 1) {
+                // stesso clock, segmento successivo: attaccato al campione
+                at = outEnd;
+            } else {
+                at = Math.max(outEnd, (e.startWallMs - outStartMs) * rate / 1000 + from);
+            }
+            pieces.add(new Piece(e, from, to, at));
+            outEnd = at + to - from;
+            prev = e;
+        }
+        if (first == null) throw new IOException("nothing recorded in range");
+        return new Plan(pieces, outStartMs, outEnd, first.sampleRate, first.channels, first.codec);
+    }
+
+    /** Runs {@code plan} through {@code out}; on failure the partial output is dropped. */
+    public static File extract(Plan plan, Stitcher out) throws IOException {
+        try {
+            out.begin(plan);
+            for (Piece p : plan.pieces) out.piece(p);
+            return out.finish();
+        } catch (IOException | RuntimeException e) {
+            out.abort();
+            throw e;
+        }
+    }
+
+    /** Stitches WAV segments into one WAV; gaps between segments become silence. */
+    public static class WavStitcher implements Stitcher {
+        private static final int BLOCK = 16 * 1024;
+
+        private final File outFile;
+        private final short[] buffer = new short[BLOCK];
+        private WavSegmentWriter out;
+        private int channels;
+
+        public WavStitcher(File outFile) {
+            this.outFile = outFile;
+        }
+
+        @Override
+        public void begin(Plan plan) throws IOException {
+            channels = plan.channels;
+            out = new WavSegmentWriter(outFile, plan.sampleRate, plan.channels);
+        }
+
+        @Override
+        public void piece(Piece piece) throws IOException {
+            padTo(piece.outputFrame);
+            WavFileAudioSource in = new WavFileAudioSource(piece.entry.getFile());
+            try {
+                in.start();
+                in.skip(piece.fromFrame * channels);
+                long left = piece.frames() * channels;
+                while (left > 0) {
+                    int n = in.read(buffer, 0, (int) Math.min(left, BLOCK));
+                    if (n < 0) break; // file più corto del catalogo: il resto diventa silenzio
+                    out.write(buffer, 0, n);
+                    left -= n;
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        private void padTo(long frame) throws IOException {
+            long left = frame * channels - out.getSamplesWritten();
+            if (left <= 0) return;
+            short[] silence = new short[(int) Math.min(left, BLOCK)];
+            while (left > 0) {
+                int n = (int) Math.min(left, silence.length);
+                out.write(silence, 0, n);
+                left -= n;
+            }
+        }
+
+        @Override
+        public File finish() throws IOException {
+            return out.finish();
+        }
+
+        @Override
+        public void abort() {
+            if (out != null) out.abort();
+            else new File(outFile.getPath() + ".part").delete(); // il nome riservato
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.birroph.continuousrec;
+
+/**
+ * In-place FFT of real input, for a fixed power-of-two size.
+ * <p>
+ * The {@code n} real samples are transformed as {@code n/2} complex ones with an
+ * iterative radix-2 FFT and then split into the spectrum of the real signal. Bit-reversal,
+ * twiddle and window tables are computed once in the constructor; {@link #forward} and
+ * {@link #inverse} work on the caller's array and allocate nothing.
+ * <p>
+ * Spectra are packed in the same {@code n} floats: {@code a[0]} is the DC bin,
+ * {@code a[1]} the Nyquist bin (both real), then {@code a[2k], a[2k+1]} are real and
+ * imaginary part of bin {@code k}, for {@code 0 < k < n/2}.
+ */
+public final class RealFft {
+    private final int n;
+    private final int half;
+    private final int[] bitReverse;
+    private final float[] cos;      // e^{-2πij/half}, j < half/2
+    private final float[] sin;
+    private final float[] splitCos; // e^{-2πik/n}, k <= half/2
+    private final float[] splitSin;
+    private final float[] hann;
+
+    public RealFft(int n) {
+        if (n < 4 || Integer.bitCount(n) != 1) throw new IllegalArgumentException("size must be a power of two >= 4: " + n);
+        this.n = n;
+        this.half = n / 2;
+        int bits = Integer.numberOfTrailingZeros(half);
+        bitReverse = new int[half];
+        for (int i = 0; i < half; i++) bitReverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        cos = new float[Math.max(1, half / 2)];
+        sin = new float[cos.length];
+        for (int j = 0; j < cos.length; j++) {
+            double a = 2 * Math.PI * j / half;
+            cos[j] = (float) Math.cos(a);
+            sin[j] = (float) Math.sin(a);
+        }
+        splitCos = new float[half / 2 + 1];
+        splitSin = new float[half / 2 + 1];
+        for (int k = 0; k <= half / 2; k++) {
+            double a = 2 * Math.PI * k / n;
+            splitCos[k] = (float) Math.cos(a);
+            splitSin[k] = (float) Math.sin(a);
+        }
+        hann = new float[n];
+        for (int i = 0; i < n; i++) hann[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / n));
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /** Number of distinct bins, DC and Nyquist included. */
+    public int bins() {
+        return half + 1;
+    }
+
+    /** Periodic Hann window of the transform size; shared, do not modify. */
+    public float[] hannWindow() {
+        return hann;
+    }
+
+    /** Multiplies {@code a} by the Hann window in place. */
+    public void applyHann(float[] a) {
+        for (int i = 0; i < n; i++) a[i] *= hann[i];
+    }
+
+    /** Replaces the {@code n} real samples in {@code a} with their packed spectrum. */
+    public void forward(float[] a) {
+        complexFft(a, false);
+
+        float r0 = a[0];
+        float i0 = a[1];
+        a[0] = r0 + i0;
+        a[1] = r0 - i0;
+        for (int k = 1; k <= half / 2; k++) {
+            int j = half - k;
+            float zr = a[2 * k], zi = a[2 * k + 1];
+            float yr = a[2 * j], yi = a[2 * j + 1];
+            // pari: (Z[k] + conj Z[j]) / 2, dispari: -i (Z[k] - conj Z[j]) / 2
+            float er = 0.5f * (zr + yr), ei = 0.5f * (zi - yi);
+            float or = 0.5f * (zi + yi), oi = -0.5f * (zr - yr);
+            float wr = splitCos[k], wi = -splitSin[k];
+            float tr = wr * or - wi * oi;
+            float ti = wr * oi + wi * or;
+            a[2 * k] = er + tr;
+            a[2 * k + 1] = ei + ti;
+            // X[n/2 - k] = conj(E - W^k O)
+            a[2 * j] = er - tr;
+            a[2 * j + 1] = ti - ei;
+        }
+    }
+
+    /** Inverse of {@link #forward}: packed spectrum in, the original real samples out. */
+    public void inverse(float[] a) {
+        float x0 = a[0];
+        float xm = a[1];
+        a[0] = 0.5f * (x0 + xm);
+        a[1] = 0.5f * (x0 - xm);
+        for (int k = 1; k <= half / 2; k++) {
+            int j = half - k;
+            float xr = a[2 * k], xi = a[2 * k + 1];
+            float yr = a[2 * j], yi = a[2 * j + 1];
+            float er = 0.5f * (xr + yr), ei = 0.5f * (xi - yi);
+            float dr = 0.5f * (xr - yr), di = 0.5f * (xi + yi);
+            // O = (X[k] - conj X[j]) / 2 * conj(W^k)
+            float wr = splitCos[k], wi = splitSin[k];
+            float or = dr * wr - di * wi;
+            float oi = dr * wi + di * wr;
+            // Z[k] = E + iO, Z[j] = conj(E) + i conj(O)
+            a[2 * k] = er - oi;
+            a[2 * k + 1] = ei + or;
+            a[2 * j] = er + oi;
+            a[2 * j + 1] = or - ei;
+        }
+
+        complexFft(a, true);
+        float scale = 1f / half;
+        for (int i = 0; i < n; i++) a[i] *= scale;
+    }
+
+    /**
+     * Power of each bin of a packed spectrum into {@code power[0..bins())}, normalized so
+     * that a full-scale sine under the Hann window reads about 1 at its peak.
+     */
+    public void powerSpectrum(float[] a, float[] power) {
+        // guadagno coerente della Hann: n/2, ampiezza del seno: 1/2
+        float norm = 16f / ((float) n * n);
+        power[0] = a[0] * a[0] * norm;
+        power[half] = a[1] * a[1] * norm;
+        for (int k = 1; k < half; k++) {
+            float re = a[2 * k], im = a[2 * k + 1];
+            power[k] = (re * re + im * im) * norm;
+        }
+    }
+
+    /** Radix-2 decimation in time over the {@code half} complex values interleaved in {@code a}. */
+    private void complexFft(float[] a, boolean inverse) {
+        for (int i = 0; i < half; i++) {
+            int r = bitReverse[i];
+            if (i < r) {
+                float t = a[2 * i];
+                a[2 * i] = a[2 * r];
+                a[2 * r] = t;
+                t = a[2 * i + 1];
+                a[2 * i + 1] = a[2 * r + 1];
+                a[2 * r + 1] = t;
+            }
+        }
+        for (int size = 2; size <= half; size <<= 1) {
+            int span = size >> 1;
+            int step = half / size;
+            for (int start = 0; start < half; start += size) {
+                for (int j = 0, t = 0; j < span; j++, t += step) {
+                    float wr = cos[t];
+                    float wi = inverse ? sin[t] : -sin[t];
+                    int p = 2 * (start + j);
+                    int q = p + 2 * span;
+                    float qr = a[q], qi = a[q + 1];
+                    float tr = wr * qr - wi * qi;
+                    float ti = wr * qi + wi * qr;
+                    a[q] = a[p] - tr;
+                    a[q + 1] = a[p + 1] - ti;
+                    a[p] += tr;
+                    a[p + 1] += ti;
+                }
+            }
+        }
+    }
+}
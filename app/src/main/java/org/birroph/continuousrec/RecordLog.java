@@ -0,0 +1,155 @@
+package org.birroph.continuousrec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of records, shared by {@link SegmentCatalog} and {@link SegmentJournal}:
+ * a header (magic, version), then each record as length, payload, CRC32.
+ * <p>
+ * A record torn by a crash fails its length or CRC check; it and everything after it
+ * are cut off at open, so the next append starts on a clean boundary. Not thread-safe:
+ * the owner synchronizes.
+ */
+final class RecordLog implements AutoCloseable {
+    static final int HEADER_BYTES = 8;
+    static final int MAX_RECORD_BYTES = 64 * 1024;
+
+    /** Called once per intact record, in file order, while the log is opened. */
+    interface Reader {
+        void record(byte[] payload) throws IOException;
+    }
+
+    private final File file;
+    private final int magic;
+    private final int version;
+    private FileChannel channel;
+    private int droppedRecords = 0;
+
+    RecordLog(File file, int magic, int version, Reader reader) throws IOException {
+        this.file = file;
+        this.magic = magic;
+        this.version = version;
+        channel = open(file);
+        try {
+            load(reader);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private void load(Reader reader) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_BYTES) {
+            // nuovo, o morto prima di finire l'header
+            channel.truncate(0);
+            writeFully(channel, header(), 0);
+            channel.position(HEADER_BYTES);
+            return;
+        }
+        ByteBuffer all = ByteBuffer.allocate((int) size);
+        while (all.hasRemaining() && channel.read(all, all.position()) >= 0) {
+            // letto tutto
+        }
+        all.flip();
+        if (all.getInt() != magic) throw new IOException(file + ": wrong file type");
+        int v = all.getInt();
+        if (v != version) throw new IOException(file + ": version " + v);
+
+        CRC32 crc = new CRC32();
+        long good = HEADER_BYTES;
+        while (all.remaining() >= 4) {
+            int length = all.getInt();
+            if (length <= 0 || length > MAX_RECORD_BYTES || all.remaining() < length + 4) break;
+            byte[] payload = new byte[length];
+            all.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != all.getInt()) break;
+            reader.record(payload);
+            good = all.position();
+        }
+        if (good < size) {
+            // coda strappata da un crash: via, così il prossimo record parte pulito
+            droppedRecords++;
+            channel.truncate(good);
+        }
+        channel.position(good);
+    }
+
+    private ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(magic).putInt(version);
+        header.flip();
+        return header;
+    }
+
+    private static ByteBuffer frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(payload.length + 8);
+        record.putInt(payload.length).put(payload).putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) position += ch.write(buf, position);
+    }
+
+    void append(byte[] payload) throws IOException {
+        ByteBuffer record = frame(payload);
+        while (record.hasRemaining()) channel.write(record);
+    }
+
+    /**
+     * Replaces the whole log with {@code payloads}: written to a ".tmp" file, then
+     * renamed over the log, so a crash leaves either the old log or the new one.
+     */
+    void rewrite(List<byte[]> payloads) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.write(header());
+            for (byte[] p : payloads) {
+                ByteBuffer record = frame(p);
+                while (record.hasRemaining()) out.write(record);
+            }
+            out.force(false);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        channel.close();
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            channel = open(file);
+            channel.position(channel.size());
+            throw new IOException("rename " + tmp + " -> " + file);
+        }
+        channel = open(file);
+        channel.position(channel.size());
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    int getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,434 @@
+package org.birroph.continuousrec;
+
+import java.io.IOException;
+
+/**
+ * The recording pipeline without any Android dependency: level metering, pre-roll gate
+ * and segmentation over the blocks of an {@link AudioSource}.
+ * <p>
+ * {@link #start()} runs it live: a writer thread drains a cursor on a {@link CaptureEngine},
+ * either one shared with other consumers or a private one around the given source;
+ * {@link #runBlocking()} pulls the source on the calling thread as fast as possible,
+ * which is how file and synthetic sources are driven in tests.
+ * Time is measured on the audio itself with a {@link SampleClock}, not on the wall clock.
+ */
+public class RecordingEngine {
+
+    public static class Config {
+        public int blockSamples = 2048;
+        public int ringBlocks = 128;
+        public int frameSec = 30;
+        public int silenceCutSec = 20;
+        /** Fixed gate threshold on the block RMS, in dBFS. */
+        public float thresholdDb = -30f;
+        /** Follow the room instead: the gate sits {@link #marginDb} above the tracked noise floor. */
+        public boolean autoThreshold = false;
+        public float marginDb = NoiseFloorTracker.DEFAULT_MARGIN_DB;
+        public int preRollSec = 5;
+        /** Gate on a {@link VoiceActivityDetector} instead of the level threshold. */
+        public boolean voiceGate = false;
+    }
+
+    /** Provides the writers for new segments and takes over the ones worth keeping. */
+    public interface SegmentSink {
+        /** Opens the writer for a segment whose first frame is {@code startFrame} on the engine clock. */
+        SegmentWriter open(long startFrame) throws IOException;
+
+        /** The segment had audio above threshold; the sink now owns the writer. */
+        void closed(SegmentWriter writer) throws Exception;
+    }
+
+    public interface Listener {
+        /** Called on the writer thread for every block. */
+        void onLevel(float normalizedLevel);
+
+        /**
+         * Called on the writer thread with every block before it is segmented, e.g. to
+         * feed an {@link Stft}. The buffer is reused as soon as this returns.
+         */
+        default void onBlock(short[] samples, int length) {
+        }
+
+        void onError(String what, Exception e);
+
+        /** The writer thread is done; the last segment has been closed. */
+        void onStopped();
+    }
+
+    private static final long WRITER_IDLE_NANOS = 5_000_000L;
+
+    private final AudioSource source; // null se si legge da una cattura condivisa
+    private final Config config;
+    private final SegmentSink sink;
+    private final Listener listener;
+
+    private volatile BroadcastRing.Cursor input;
+    private final PreRollBuffer preRoll;
+    private final int channels;
+    private final int sampleRate;
+    private final float thresholdDb;
+    private final NoiseFloorTracker noiseFloor; // null con soglia fissa
+    private final VoiceActivityDetector vad; // null se il gate è sul livello
+    private final long frameFrames;
+    private final long silenceCutFrames;
+    private final long prepareFrames;
+    private volatile SampleClock clock;
+
+    private volatile boolean running = false;
+    private Thread writerThread;
+
+    // stato della segmentazione, solo thread di scrittura
+    private SegmentWriter current;
+    private SegmentWriter standby; // prossimo segmento, aperto prima del confine
+    private boolean hadAboveThreshold = false;
+    private long segmentStartFrame = 0;
+    private long segmentEndFrame = 0;
+    private long lastAboveFrame = 0;
+    private volatile long processedFrames = 0;
+    // campioni persi negli overrun già contati nel clock (solo writer thread)
+    private long droppedSamples = 0;
+    private volatile float level = 0;
+    private volatile float currentThresholdDb;
+    private volatile int keptSegments = 0;
+    private volatile int discardedSegments = 0;
+
+    public RecordingEngine(AudioSource source, Config config, SegmentSink sink, Listener listener) {
+        this(source, null, source.getSampleRate(), source.getChannels(), config, sink, listener);
+    }
+
+    /**
+     * Records from a capture shared with other consumers. Subscribes right away, which
+     * opens the microphone if nobody else is listening.
+     */
+    public RecordingEngine(CaptureEngine capture, Config config, SegmentSink sink, Listener listener) throws IOException {
+        this(capture.subscribe(), config, sink, listener);
+    }
+
+    private RecordingEngine(BroadcastRing.Cursor input, Config config, SegmentSink sink, Listener listener) {
+        this(null, input, input.getSampleRate(), input.getChannels(), config, sink, listener);
+    }
+
+    private RecordingEngine(AudioSource source, BroadcastRing.Cursor input, int sampleRate, int channels,
+                            Config config, SegmentSink sink, Listener listener) {
+        this.source = source;
+        this.input = input;
+        this.config = config;
+        this.sink = sink;
+        this.listener = listener;
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        // il pre-roll non può essere più lungo di un segmento
+        int preRollSec = Math.min(config.preRollSec, config.frameSec);
+        this.preRoll = new PreRollBuffer(PreRollBuffer.capacityFor(preRollSec, sampleRate, channels));
+        this.thresholdDb = config.thresholdDb;
+        this.currentThresholdDb = config.thresholdDb;
+        if (config.autoThreshold) {
+            noiseFloor = new NoiseFloorTracker(sampleRate);
+            noiseFloor.marginDb = config.marginDb;
+        } else {
+            noiseFloor = null;
+        }
+        this.vad = config.voiceGate ? new VoiceActivityDetector(sampleRate, channels) : null;
+        this.clock = new SampleClock(sampleRate, System.currentTimeMillis());
+        this.frameFrames = Math.max(1, clock.framesForSeconds(config.frameSec));
+        this.silenceCutFrames = Math.max(1, clock.framesForSeconds(config.silenceCutSec));
+        this.prepareFrames = Math.min(sampleRate, frameFrames / 2);
+    }
+
+    /** Starts the writer thread, and the capture if this engine owns its source. */
+    public void start() {
+        running = true;
+        clock = new SampleClock(sampleRate, System.currentTimeMillis());
+        if (input == null) {
+            try {
+                input = new CaptureEngine(() -> source, config.blockSamples, config.ringBlocks).subscribe();
+            } catch (IOException e) {
+                running = false;
+                listener.onError("capture", e);
+                listener.onStopped();
+                return;
+            }
+        }
+        final BroadcastRing.Cursor in = input;
+
+        writerThread = new Thread(() -> {
+            short[] block = new short[in.blockSize()];
+            try {
+                while (running) {
+                    int read = in.take(block, 0, WRITER_IDLE_NANOS);
+                    if (read < 0) break;
+                    if (read > 0) {
+                        catchUp(in);
+                        process(block, read);
+                    }
+                }
+                // stop: quello che era già stato catturato finisce comunque nel segmento
+                for (long left = in.backlog(); left > 0; left--) {
+                    int read = in.poll(block, 0);
+                    if (read <= 0) break;
+                    catchUp(in);
+                    process(block, read);
+                }
+                if (in.getError() != null) listener.onError("capture", in.getError());
+            } finally {
+                running = false;
+                in.close();
+                // stop: l'ultimo segmento viene chiuso come gli altri
+                closeSegment(hadAboveThreshold);
+                discardStandby();
+                listener.onStopped();
+            }
+        }, "RecordingThread");
+        writerThread.start();
+    }
+
+    /** Asks the writer thread to stop and waits up to {@code timeoutMs} for it. */
+    public void stop(long timeoutMs) throws InterruptedException {
+        running = false;
+        if (writerThread != null) writerThread.join(timeoutMs);
+    }
+
+    /** Drains the whole source on the calling thread; returns the frames processed. */
+    public long runBlocking() throws IOException {
+        if (source == null) throw new IllegalStateException("no source of its own: use start()");
+        short[] block = new short[Math.max(1, config.blockSamples / channels) * channels];
+        clock = new SampleClock(sampleRate, System.currentTimeMillis());
+        source.start();
+        try {
+            int read;
+            while ((read = source.read(block, 0, block.length)) >= 0) {
+                process(block, read);
+            }
+        } finally {
+            source.close();
+            closeSegment(hadAboveThreshold);
+            discardStandby();
+            listener.onStopped();
+        }
+        return processedFrames;
+    }
+
+    /** Moves the clock past what the cursor lost to overruns since the last block. */
+    private void catchUp(BroadcastRing.Cursor in) {
+        long dropped = in.getDroppedSamples();
+        if (dropped == droppedSamples) return;
+        skip((dropped - droppedSamples) / channels);
+        droppedSamples = dropped;
+    }
+
+    /**
+     * {@code frames} frames were captured but never reached the engine: the frame count
+     * moves past them, so what comes after the gap keeps its wall-clock time. The pre-roll
+     * is no longer contiguous with the next block and is dropped; a segment opened ahead
+     * of a boundary the gap jumped over is reopened at the right frame.
+     */
+    void skip(long frames) {
+        if (frames <= 0) return;
+        processedFrames += frames;
+        preRoll.clear();
+        if (processedFrames > segmentEndFrame) discardStandby();
+    }
+
+    /**
+     * One block through level meter, gate and segment rules.
+     * Segment length and silence cuts fall on exact frames: a block crossing a boundary is
+     * split, the head goes to the closing segment and the tail to the next one (or back to
+     * the pre-roll). The next segment is opened ahead of the boundary, so the hand-off is
+     * a swap and no sample is dropped or duplicated.
+     */
+    void process(short[] buffer, int read) {
+        int frames = read / channels;
+        if (frames <= 0) return;
+
+        float normalizedLevel = rmsLevel(buffer, read);
+        level = normalizedLevel;
+        listener.onLevel(normalizedLevel);
+        listener.onBlock(buffer, read);
+
+        long blockStart = processedFrames;
+        processedFrames = blockStart + frames;
+
+        float levelDb = LevelScale.toDb(normalizedLevel);
+        float threshold = noiseFloor != null ? noiseFloor.update(levelDb, frames) : thresholdDb;
+        currentThresholdDb = threshold;
+        boolean above = vad != null ? vad.process(buffer, read) : levelDb >= threshold;
+        if (above) {
+            lastAboveFrame = blockStart + frames;
+            hadAboveThreshold = true;
+        }
+
+        int done = 0;
+        while (done < frames) {
+            long pos = blockStart + done;
+
+            if (current == null) {
+                if (!above) {
+                    preRoll.push(buffer, done * channels, (frames - done) * channels);
+                    return;
+                }
+                // Gate aperto: nuovo file, prima il pre-roll poi il blocco corrente
+                long preRollFrames = preRoll.size() / channels;
+                if (!openSegment(pos - preRollFrames)) return;
+                hadAboveThreshold = true;
+                try {
+                    preRoll.drainTo(current);
+                } catch (IOException e) {
+                    listener.onError("write", e);
+                }
+            }
+
+            long cutAt = lastAboveFrame + silenceCutFrames;
+            int n = (int) Math.min(frames - done, Math.max(0, Math.min(segmentEndFrame, cutAt) - pos));
+            if (n > 0) {
+                try {
+                    current.write(buffer, done * channels, n * channels);
+                } catch (IOException e) {
+                    listener.onError("write", e);
+                }
+                done += n;
+                pos += n;
+            }
+
+            if (pos >= cutAt) {
+                // Silenzio prolungato -> chiudi file e torna al pre-roll
+                closeSegment(hadAboveThreshold);
+                discardStandby();
+            } else if (pos >= segmentEndFrame) {
+                // Il file ha raggiunto frameSec -> passa al segmento già aperto
+                rollover(pos, above);
+            } else if (standby == null && segmentEndFrame - pos <= prepareFrames) {
+                // ci avviciniamo al confine: apriamo il prossimo segmento in anticipo
+                standby = openWriter(segmentEndFrame);
+            }
+        }
+    }
+
+    /**
+     * Hands off at {@code pos} to the pre-opened segment, then closes the old one.
+     * If no writer can be opened the current segment is extended and the swap retried.
+     */
+    private void rollover(long pos, boolean above) {
+        SegmentWriter next = standby;
+        standby = null;
+        if (next == null) next = openWriter(pos);
+        if (next == null) {
+            segmentEndFrame = pos + Math.max(1, Math.min(sampleRate, frameFrames));
+            return;
+        }
+        boolean keep = hadAboveThreshold;
+        SegmentWriter old = current;
+        current = next;
+        segmentStartFrame = pos;
+        segmentEndFrame = pos + frameFrames;
+        finishWriter(old, keep);
+        hadAboveThreshold = above;
+    }
+
+    /** RMS of the block normalized to full scale, 0..1. */
+    static float rmsLevel(short[] buffer, int length) {
+        double rms = 0;
+        for (int i = 0; i < length; i++) {
+            rms += buffer[i] * buffer[i];
+        }
+        rms = Math.sqrt(rms / length);
+        return (float) Math.min(1.0, rms / 32768.0);
+    }
+
+    private boolean openSegment(long startFrame) {
+        current = openWriter(startFrame);
+        if (current == null) return false;
+        segmentStartFrame = startFrame;
+        segmentEndFrame = startFrame + frameFrames;
+        return true;
+    }
+
+    private SegmentWriter openWriter(long startFrame) {
+        try {
+            return sink.open(startFrame);
+        } catch (IOException e) {
+            listener.onError("open", e);
+            return null;
+        }
+    }
+
+    private void closeSegment(boolean keep) {
+        SegmentWriter writer = current;
+        current = null;
+        hadAboveThreshold = false;
+        finishWriter(writer, keep);
+    }
+
+    private void finishWriter(SegmentWriter writer, boolean keep) {
+        if (writer == null) return;
+
+        // Segmento senza audio sopra soglia: si butta via
+        if (!keep) {
+            writer.abort();
+            discardedSegments++;
+            return;
+        }
+        try {
+            sink.closed(writer);
+            keptSegments++;
+        } catch (Exception e) {
+            listener.onError("close", e);
+            writer.abort();
+        }
+    }
+
+    private void discardStandby() {
+        if (standby != null) {
+            standby.abort();
+            standby = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public float getLevel() {
+        return level;
+    }
+
+    /** Gate threshold in dBFS: the fixed one, or the current automatic one. */
+    public float getThresholdDb() {
+        return currentThresholdDb;
+    }
+
+    /** Tracked background level in dBFS, or {@link LevelScale#MIN_DB} with a fixed threshold. */
+    public float getNoiseFloorDb() {
+        return noiseFloor != null ? noiseFloor.getNoiseFloorDb() : LevelScale.MIN_DB;
+    }
+
+    /** Frames processed since start: the engine's clock. */
+    public long getProcessedFrames() {
+        return processedFrames;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /** Maps engine frames to time; frame 0 is the first frame of the source. */
+    public SampleClock getClock() {
+        return clock;
+    }
+
+    public long getOverrunCount() {
+        BroadcastRing.Cursor in = input;
+        return in != null ? in.getOverrunCount() : 0;
+    }
+
+    public int getKeptSegments() {
+        return keptSegments;
+    }
+
+    public int getDiscardedSegments() {
+        return discardedSegments;
+    }
+}
@@ -11,9 +11,6 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Environment;
@@ -24,50 +21,59 @@ import androidx.annotation.Nullable;
 import androidx.core.app.ActivityCompat;
 import androidx.core.app.NotificationCompat;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RecordingService extends Service {
     private final IBinder binder = new LocalBinder();
     private static final String TAG = "RecordingService";
-    private boolean running = false;
+    private static final String FILE_PREFIX = "ContinuousRec-";
+    private static final String EXTRACT_PREFIX = "ContinuousRec-extract-";
+    private static final String CATALOG_FILE = "segments.catalog";
+    private static final String JOURNAL_FILE = "segments.journal";
+    private static final String TEMP_PREFIX = "cr_tmp_";
+    private static SegmentCatalog catalog;
+    private static SegmentJournal journal;
+    private static StorageQuotaManager storage;
+    private static boolean recoveryStarted = false;
+    // costi di write e fsync di tutti i writer, per tarare la DurabilityPolicy
+    private static final DurabilityPolicy.Stats writeStats = new DurabilityPolicy.Stats();
+    private volatile boolean running = false;
 
     private SharedPreferences prefs;
 
-    // audio config
-    private int sampleRate = 44100;
-    private int channelConfig = AudioFormat.CHANNEL_IN_MONO;
-    private int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
+    // audio config, dalle preferenze a ogni avvio
+    private int sampleRate = CaptureFormat.DEFAULT_RATE;
+    private int channels = 1;
 
-    private Thread recordingThread;
-    private long recordingStartTime = 0;
-    private int savedCount = 0;
+    private static final int FINALIZER_QUEUE = 4;
+    private static final int AAC_BIT_RATE = 128000;
 
-    private volatile boolean currentlyRecordingToFile = false;
-    private File currentTempFile;
-    private BufferedOutputStream currentOut;
-    private long currentRecordedFrames = 0;
-    private long silenceCounterMs = 0;
-    private boolean hadAboveThreshold = false;
+    private RecordingEngine engine;
+    private SegmentFinalizer finalizer;
+    // encoder AAC tenuti caldi tra un segmento e l'altro, per tutta la vita del service
+    private final AacEncoderManager encoders = new AacEncoderManager(2);
+    // i frame FLAC di un segmento si codificano in parallelo, lasciando un core alla cattura
+    private final ForkJoinPool flacPool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    private volatile FlacEncoder.Result lastFlacResult;
+    private long recordingStartTime = 0;
+    private final AtomicInteger savedCount = new AtomicInteger();
 
-    private volatile double normalizedLevelForWave = 0;
+    // "m4a_stream" (encode durante la registrazione), "m4a" (encode a fine segmento), "wav", "flac"
+    private String outputFormat = "m4a_stream";
+    private DurabilityPolicy durability = DurabilityPolicy.DEFAULT;
+    private boolean autoThreshold = false;
 
-    // ⭐️ Callback per aggiornare l’UI
-    public interface LevelCallback {
-        void onLevel(float level);
-    }
-
-    private LevelCallback levelCallback;
-
-    public void setLevelCallback(LevelCallback cb) {
-        this.levelCallback = cb;
-    }
+    // livelli per la UI: scritti dal thread di registrazione, letti a ogni frame
+    private final LevelChannel levels = new LevelChannel(LevelChannel.DEFAULT_CAPACITY);
 
     public class LocalBinder extends Binder {
         RecordingService getService() {
@@ -85,160 +91,479 @@ public class RecordingService extends Service {
     public void onCreate() {
         super.onCreate();
         prefs = getSharedPreferences(SettingsActivity.PREFS, MODE_PRIVATE);
+        // quello che un kill ha lasciato a metà, prima che parta una nuova registrazione
+        startRecovery();
     }
 
     @Override
     public void onDestroy() {
         stopRecordingLoop();
+        encoders.close();
+        flacPool.shutdown();
         super.onDestroy();
     }
 
     private void startRecordingLoop() {
-        recordingThread = new Thread(() -> {
-            int minBuf = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat);
-            if (ActivityCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
-                return;
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            running = false;
+            return;
+        }
+
+        int workers = Math.max(1, prefs.getInt("finalizer_workers", 1));
+        finalizer = new SegmentFinalizer(workers, FINALIZER_QUEUE, new SegmentFinalizer.Listener() {
+            @Override
+            public void onFinalized(String name, long encodeNanos) {
+                Log.d(TAG, name + " encoded in " + encodeNanos / 1_000_000 + " ms, encoder setup cold "
+                        + encoders.getAverageColdSetupMicros() + " us / warm " + encoders.getAverageWarmSetupMicros() + " us");
             }
-            AudioRecord recorder = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelConfig, audioFormat, Math.max(minBuf, sampleRate * 2));
-            short[] buffer = new short[2048];
-            recorder.startRecording();
 
-            recordingStartTime = System.currentTimeMillis();
+            @Override
+            public void onFailed(String name, Exception e) {
+                Log.e(TAG, "convert " + name, e);
+            }
+        });
+
+        RecordingEngine.Config config = new RecordingEngine.Config();
+        config.frameSec = prefs.getInt("frame_sec", 30);
+        config.silenceCutSec = prefs.getInt("silence_cut", 20);
+        config.thresholdDb = SettingsActivity.thresholdDbfs(prefs);
+        config.autoThreshold = prefs.getBoolean("auto_threshold", false);
+        config.marginDb = prefs.getInt("threshold_margin_db", (int) NoiseFloorTracker.DEFAULT_MARGIN_DB);
+        autoThreshold = config.autoThreshold;
+        config.preRollSec = prefs.getInt("preroll_sec", 5);
+        config.voiceGate = prefs.getBoolean("voice_gate", false);
+        outputFormat = prefs.getString("output_format",
+                prefs.getBoolean("stream_encode", true) ? "m4a_stream" : "m4a");
+        durability = SettingsActivity.durabilityPolicy(prefs);
+
+        final SegmentFinalizer segmentFinalizer = finalizer;
+        try {
+            // se la preview delle impostazioni è aperta si aggancia alla stessa cattura
+            engine = new RecordingEngine(SharedCapture.get(this), config,
+                    new RecordingEngine.SegmentSink() {
+                        @Override
+                        public SegmentWriter open(long startFrame) throws IOException {
+                            return startNewSegment(startFrame);
+                        }
 
-            int frameSec = prefs.getInt("frame_sec", 30);
-            int silenceCut = prefs.getInt("silence_cut", 20);
-            int thresholdPercent = prefs.getInt("threshold_db", 50);
+                        @Override
+                        public void closed(SegmentWriter writer) throws Exception {
+                            finalizeSegment(segmentFinalizer, writer);
+                        }
+                    },
+                    new RecordingEngine.Listener() {
+                        @Override
+                        public void onLevel(float level) {
+                        }
 
-            long frameMs = frameSec * 1000L;
-            long silenceCutMs = silenceCut * 1000L;
+                        @Override
+                        public void onBlock(short[] samples, int length) {
+                            levels.publish(samples, length, channels);
+                        }
 
-            long fileStartMs = 0;
-            long lastAboveTs = System.currentTimeMillis();
+                        @Override
+                        public void onError(String what, Exception e) {
+                            Log.e(TAG, "Recording " + what + " error", e);
+                        }
 
+                        @Override
+                        public void onStopped() {
+                            running = false;
+                            Log.d(TAG, durability + ": " + writeStats);
+                            // i segmenti in coda vengono completati dai worker
+                            try {
+                                segmentFinalizer.shutdown(0);
+                            } catch (InterruptedException ignored) {}
+                        }
+                    });
+        } catch (IOException e) {
+            Log.e(TAG, "capture", e);
             try {
-                // ⭐️ Apriamo subito un nuovo file
-                startNewTempFile();
-                fileStartMs = System.currentTimeMillis();
-                currentlyRecordingToFile = true;
-
-                while (running) {
-                    int read = recorder.read(buffer, 0, buffer.length);
-                    if (read <= 0) continue;
-
-                    double rms = 0;
-                    for (int i = 0; i < read; i++) {
-                        rms += buffer[i] * buffer[i];
-                    }
-                    rms = Math.sqrt(rms / read);
+                segmentFinalizer.shutdown(0);
+            } catch (InterruptedException ignored) {}
+            running = false;
+            return;
+        }
+        sampleRate = engine.getSampleRate();
+        channels = engine.getChannels();
+        Log.d(TAG, "capture " + sampleRate + " Hz, " + channels + " ch");
 
-                    float normalizedLevel = (float) Math.min(1.0, rms / 32768.0);
-                    normalizedLevelForWave = normalizedLevel;
+        recordingStartTime = System.currentTimeMillis();
+        engine.start();
+    }
 
-                    long now = System.currentTimeMillis();
 
-                    if (levelCallback != null) {
-                        levelCallback.onLevel(normalizedLevel);
-                    }
+    private void stopRecordingLoop() {
+        running = false;
+        try {
+            if (engine != null) engine.stop(500);
+        } catch (InterruptedException ignored) {}
+    }
 
-                    float thresholdNormalized = thresholdPercent / 100f;
-                    boolean above = normalizedLevel >= thresholdNormalized;
+    private SegmentWriter startNewSegment(long startFrame) throws IOException {
+        // nome dall'istante del primo campione, sul clock dei campioni
+        long startWallMs = engine.getClock().toWallMillis(startFrame);
+        SegmentWriter writer;
+        int kind;
+        String codec;
+        if ("wav".equals(outputFormat)) {
+            // WAV scritto direttamente, header sistemato alla chiusura
+            writer = new WavSegmentWriter(SegmentCatalog.uniqueFile(outputDir(), FILE_PREFIX, startWallMs, ".wav"),
+                    sampleRate, channels, durability, writeStats);
+            kind = SegmentJournal.KIND_WAV;
+            codec = "wav";
+        } else if ("m4a_stream".equals(outputFormat)) {
+            // encode-as-you-go: nessun file PCM intermedio, nome dal primo campione del segmento
+            writer = new AacStreamWriter(SegmentCatalog.uniqueFile(outputDir(), FILE_PREFIX, startWallMs, ".m4a"),
+                    sampleRate, channels, AAC_BIT_RATE, encoders);
+            kind = SegmentJournal.KIND_STREAM;
+            codec = "aac";
+        } else {
+            // quando apri il file temporaneo (PCM)
+            writer = new PcmSegmentWriter(File.createTempFile(TEMP_PREFIX, ".pcm", tempDir()), sampleRate, channels,
+                    durability, writeStats);
+            kind = SegmentJournal.KIND_PCM;
+            codec = "flac".equals(outputFormat) ? "flac" : "aac";
+        }
+        SegmentJournal j = getJournal(this);
+        if (j != null) {
+            // checkpoint al ritmo dei sync, senza svuotare il buffer grande di COALESCED
+            writer = new SegmentJournal.Writer(j, writer, new SegmentJournal.Segment(writer.getFile(), kind, codec,
+                    startFrame, startWallMs, sampleRate, channels), durability);
+        }
+        // i picchi per la timeline, scritti accanto al file alla chiusura
+        return new PeakSidecarWriter(writer, startFrame, sampleRate, channels);
+    }
 
-                    if (above) {
-                        lastAboveTs = now;
-                        hadAboveThreshold = true;
-                    }
+    private static void checkSidecar(SegmentWriter writer) {
+        IOException e = ((PeakSidecarWriter) writer).getSidecarError();
+        if (e != null) Log.e(TAG, "peaks " + writer.getFile().getName(), e);
+    }
 
-                    // Scriviamo sempre
-                    if (currentlyRecordingToFile) {
-                        try {
-                            byte[] bytes = shortToLittleEndianBytes(buffer, read);
-                            currentOut.write(bytes);
-                            currentRecordedFrames += read;
-                        } catch (IOException e) {
-                            Log.e(TAG, "Write error", e);
-                        }
-                    }
+    /** Index of every saved segment, shared by the service and the UI; null if it cannot be opened. */
+    public static synchronized SegmentCatalog getCatalog(Context context) {
+        if (catalog == null) {
+            try {
+                catalog = new SegmentCatalog(new File(context.getApplicationContext().getFilesDir(), CATALOG_FILE));
+                if (catalog.getDroppedRecords() > 0) Log.e(TAG, "catalog: dropped a torn record");
+            } catch (IOException e) {
+                Log.e(TAG, "catalog", e);
+            }
+        }
+        return catalog;
+    }
 
-                    // ⭐️ Se file ha raggiunto frameSec -> chiudi e apri subito un nuovo file
-                    if (now - fileStartMs >= frameMs) {
-                        finalizeCurrentFile(hadAboveThreshold);
-                        startNewTempFile();
-                        fileStartMs = now;
-                        currentlyRecordingToFile = true;
-                        hadAboveThreshold = false;
-                        lastAboveTs = now;
-                    }
+    /**
+     * Eviction of old segments by the retention preferences, started on first use and
+     * shared with the settings screen; null without a catalog.
+     */
+    public static synchronized StorageQuotaManager getStorage(Context context) {
+        if (storage == null) {
+            SegmentCatalog c = getCatalog(context);
+            if (c == null) return null;
+            SharedPreferences p = context.getSharedPreferences(SettingsActivity.PREFS, MODE_PRIVATE);
+            storage = new StorageQuotaManager(c, SettingsActivity.storagePolicy(p), System::currentTimeMillis);
+            storage.start();
+        }
+        return storage;
+    }
 
-                    // ⭐️ Se silenzio prolungato -> chiudi file e apri subito un nuovo file
-                    if (now - lastAboveTs >= silenceCutMs) {
-                        finalizeCurrentFile(hadAboveThreshold);
-                        startNewTempFile();
-                        fileStartMs = now;
-                        currentlyRecordingToFile = true;
-                        hadAboveThreshold = false;
-                        lastAboveTs = now;
-                    }
+    /** Journal of the segments being written; null if it cannot be opened. */
+    private static synchronized SegmentJournal getJournal(Context context) {
+        if (journal == null) {
+            try {
+                journal = new SegmentJournal(new File(context.getApplicationContext().getFilesDir(), JOURNAL_FILE));
+                if (journal.getDroppedRecords() > 0) Log.e(TAG, "journal: dropped a torn record");
+            } catch (IOException e) {
+                Log.e(TAG, "journal", e);
+            }
+        }
+        return journal;
+    }
 
-                    Thread.sleep(20);
-                }
+    /** The temp PCM {@code pcm} is about to be encoded to {@code out}. */
+    private void journalOutput(File pcm, File out) {
+        SegmentJournal j = getJournal(this);
+        if (j == null) return;
+        try {
+            j.output(pcm.getPath(), out);
+        } catch (IOException e) {
+            Log.e(TAG, "journal " + out.getName(), e);
+        }
+    }
+
+    /** The segment written to {@code file} is saved or gone for good. */
+    private void journalDone(File file) {
+        SegmentJournal j = getJournal(this);
+        if (j == null) return;
+        try {
+            j.done(file.getPath());
+        } catch (IOException e) {
+            Log.e(TAG, "journal " + file.getName(), e);
+        }
+    }
+
+    /**
+     * Salvages on a background thread the segments the journal says were never saved,
+     * and deletes temp files nobody is tracking. Only the journal and the temp directory
+     * are read: the archive is never scanned.
+     * <p>
+     * Once per process: the journal is shared, and the finalizer of a service that was
+     * stopped keeps working on its segments after a new one is created. Only what a
+     * previous process left is orphaned.
+     */
+    private void startRecovery() {
+        if (!claimRecovery()) return;
+        SegmentJournal j = getJournal(this);
+        if (j == null) return;
+        // fotografati adesso: i temp della prossima registrazione non ci finiscono dentro
+        List<SegmentJournal.Segment> orphans = j.pending();
+        File[] temps = tempDir().listFiles((dir, name) -> name.startsWith(TEMP_PREFIX));
+        if (orphans.isEmpty() && (temps == null || temps.length == 0)) return;
+        new Thread(() -> recover(j, orphans, temps), "recovery").start();
+    }
+
+    private static synchronized boolean claimRecovery() {
+        if (recoveryStarted) return false;
+        recoveryStarted = true;
+        return true;
+    }
+
+    private void recover(SegmentJournal j, List<SegmentJournal.Segment> orphans, File[] temps) {
+        long t0 = System.nanoTime();
+        Set<File> keep = new HashSet<>();
+        int salvaged = 0;
+        for (SegmentJournal.Segment s : orphans) {
+            try {
+                if (recoverSegment(s)) salvaged++;
+                j.done(s.path);
             } catch (Exception e) {
-                Log.e(TAG, "Recording loop error", e);
-            } finally {
-                recorder.stop();
-                recorder.release();
+                // resta nel journal: si riprova al prossimo avvio
+                Log.e(TAG, "recover " + s, e);
+                keep.add(s.getFile());
+                keep.add(PeakPyramid.sidecarFor(s.getFile()));
             }
-        }, "RecordingThread");
-        recordingThread.start();
+        }
+        if (temps != null) {
+            for (File f : temps) {
+                if (!keep.contains(f)) f.delete();
+            }
+        }
+        Log.d(TAG, "recovery: " + orphans.size() + " orphaned segments, " + salvaged + " salvaged in "
+                + (System.nanoTime() - t0) / 1_000_000 + " ms");
     }
 
+    /** True if audio of {@code s} was saved. */
+    private boolean recoverSegment(SegmentJournal.Segment s) throws Exception {
+        SegmentCatalog c = getCatalog(this);
+        SegmentCatalog.Entry entry = null;
+        if (s.kind == SegmentJournal.KIND_WAV) {
+            entry = SegmentJournal.salvageWav(s);
+            // finito e rinominato, ma forse morto prima del catalogo
+            if (entry == null && c != null && !isCataloged(c, s, s.getFile())) entry = SegmentJournal.finishedEntry(s);
+        } else if (s.kind == SegmentJournal.KIND_PCM) {
+            File pcm = s.getFile();
+            File out = s.getOutput();
+            // encodato e catalogato, morto prima di cancellare il PCM: niente doppioni
+            boolean saved = out != null && c != null && isCataloged(c, s, out);
+            if (!saved && pcm.length() >= 2L * s.channels) {
+                entry = encodeOrphan(s, pcm, out);
+            } else if (!saved && out != null) {
+                new File(out.getPath() + ".part").delete();
+            }
+            pcm.delete();
+            PeakPyramid.sidecarFor(pcm).delete();
+        } else {
+            // l'indice MP4 si scrive solo allo stop del muxer: senza, il .part non si legge
+            new File(s.path + ".part").delete();
+            Log.e(TAG, "recover " + s + ": lost about " + s.getCheckpointSamples() / s.channels / s.sampleRate + " s");
+        }
+        if (entry == null) return false;
+        if (c != null) c.add(entry);
+        pokeStorage();
+        return true;
+    }
 
-    private void stopRecordingLoop() {
-        running = false;
+    /**
+     * Encodes the temp PCM of an orphaned segment under the name journaled for it, over
+     * whatever a killed encode left there, or under a new one if it never got that far.
+     */
+    private SegmentCatalog.Entry encodeOrphan(SegmentJournal.Segment s, File pcm, File out) throws Exception {
+        boolean flac = "flac".equals(s.codec);
+        if (out == null || !(out.exists() || new File(out.getPath() + ".part").exists())) {
+            out = SegmentCatalog.uniqueFile(outputDir(), FILE_PREFIX, s.startWallMs, flac ? ".flac" : ".m4a");
+            journalOutput(pcm, out);
+        }
+        File part = new File(out.getPath() + ".part");
         try {
-            if (recordingThread != null) recordingThread.join(500);
-        } catch (InterruptedException ignored) {}
+            if (flac) new FlacEncoder(s.sampleRate, s.channels, flacPool).encode(pcm, part);
+            else AudioConverter.convertToM4a(pcm, part, s.sampleRate, s.channels, 16, encoders);
+            if (!part.renameTo(out)) throw new IOException("rename failed " + part);
+            return SegmentJournal.scanned(s, out, new WavFileAudioSource(pcm, s.sampleRate, s.channels));
+        } catch (Exception e) {
+            part.delete();
+            out.delete();
+            throw e;
+        }
     }
 
-    private void startNewTempFile() throws IOException {
-        // quando apri il file temporaneo (PCM)
-        File dir = new File(getExternalFilesDir(Environment.DIRECTORY_MUSIC), "continuousrec");
-        if (!dir.exists()) dir.mkdirs();
-        currentTempFile = File.createTempFile("cr_tmp_", ".pcm", dir);
-        currentOut = new BufferedOutputStream(new FileOutputStream(currentTempFile));
-        currentRecordedFrames = 0;
-        silenceCounterMs = 0;
-        hadAboveThreshold = false;
+    /** A segment was saved: eviction catches up on its own thread. */
+    private void pokeStorage() {
+        StorageQuotaManager s = getStorage(this);
+        if (s == null) return;
+        if (s.getLastError() != null) Log.e(TAG, "eviction", s.getLastError());
+        s.poke();
+    }
+
+    private static boolean isCataloged(SegmentCatalog c, SegmentJournal.Segment s, File file) {
+        // l'entry prende l'inizio dal clock alla chiusura: un secondo di margine
+        for (SegmentCatalog.Entry e : c.between(s.startWallMs - 1000, s.startWallMs + 1000)) {
+            if (e.path.equals(file.getPath())) return true;
+        }
+        return false;
     }
 
-    private void finalizeCurrentFile(boolean hadAudioAboveThreshold) {
+    private void addToCatalog(SegmentWriter writer, File file, String codec, SampleClock clock, int ch) {
+        SegmentCatalog c = getCatalog(this);
+        if (c == null) return;
+        PeakSidecarWriter w = (PeakSidecarWriter) writer;
         try {
-            if (currentOut != null) {
-                currentOut.flush();
-                currentOut.close();
-            }
-        } catch (IOException e) { Log.e(TAG, "close", e); }
+            c.add(SegmentCatalog.Entry.of(file, codec, clock, w.getStartFrame(), w.getSamplesWritten() / ch, ch,
+                    w.getPeaks().getPeak(), w.getPeaks().getRms()));
+        } catch (IOException e) {
+            Log.e(TAG, "catalog " + file.getName(), e);
+        }
+        pokeStorage();
+    }
 
-        if (!hadAudioAboveThreshold) {
-            if (currentTempFile != null && currentTempFile.exists()) currentTempFile.delete();
-            currentTempFile = null;
+    /** Moves the sidecar of the temporary PCM next to the encoded file. */
+    private static void moveSidecar(File pcmFile, File outFile) {
+        File from = PeakPyramid.sidecarFor(pcmFile);
+        if (!from.exists()) return;
+        try {
+            Files.move(from.toPath(), PeakPyramid.sidecarFor(outFile).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Log.e(TAG, "peaks " + outFile.getName(), e);
+        }
+    }
+
+    /**
+     * Writes {@code [fromWallMs, toWallMs)} of the saved segments to one file, in their
+     * own format (AAC remuxed, WAV copied). Slow: call it off the main thread.
+     */
+    public File extractRange(long fromWallMs, long toWallMs) throws IOException {
+        SegmentCatalog c = getCatalog(this);
+        if (c == null) throw new IOException("no segment catalog");
+        RangeExtractor.Plan plan = RangeExtractor.plan(c.between(fromWallMs, toWallMs), fromWallMs, toWallMs);
+        RangeExtractor.Stitcher out;
+        if ("aac".equals(plan.codec)) {
+            out = new AacRangeRemuxer(SegmentCatalog.uniqueFile(outputDir(), EXTRACT_PREFIX, plan.startWallMs, ".m4a"));
+        } else if ("wav".equals(plan.codec)) {
+            out = new RangeExtractor.WavStitcher(SegmentCatalog.uniqueFile(outputDir(), EXTRACT_PREFIX, plan.startWallMs, ".wav"));
+        } else {
+            throw new IOException("cannot extract " + plan.codec + " segments");
+        }
+        return RangeExtractor.extract(plan, out);
+    }
+
+    private void finalizeSegment(SegmentFinalizer finalizer, SegmentWriter writer) throws Exception {
+        final SampleClock clock = engine.getClock();
+        final int ch = channels;
+        if ("wav".equals(outputFormat)) {
+            // solo patch dell'header e rename: niente da delegare al finalizer
+            File wav = writer.finish();
+            checkSidecar(writer);
+            addToCatalog(writer, wav, "wav", clock, ch);
+            journalDone(wav);
+            savedCount.incrementAndGet();
+            return;
+        }
+        if ("m4a_stream".equals(outputFormat)) {
+            // drain dell'encoder e chiusura del muxer sul finalizer
+            finalizer.submit(writer.getFile().getName(), () -> {
+                try {
+                    File m4a = writer.finish();
+                    checkSidecar(writer);
+                    addToCatalog(writer, m4a, "aac", clock, ch);
+                    journalDone(m4a);
+                    savedCount.incrementAndGet();
+                } catch (Exception e) {
+                    writer.abort();
+                    throw e;
+                }
+            });
             return;
         }
 
-        String name = "ContinuousRec-" + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.getDefault()).format(new Date());
-        File dir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC), "continuousrec");
-        if (!dir.exists()) dir.mkdirs();
-        File m4aFile = new File(dir, name + ".m4a");
+        File pcmFile = writer.finish();
+        checkSidecar(writer);
+        boolean flac = "flac".equals(outputFormat);
+        final int rate = sampleRate;
+        long startWallMs = clock.toWallMillis(((PeakSidecarWriter) writer).getStartFrame());
+        // nome riservato subito dal suo .part: l'encoder scrive lì e il rename lo pubblica
+        File outFile = SegmentCatalog.uniqueFile(outputDir(), FILE_PREFIX, startWallMs, flac ? ".flac" : ".m4a");
+        File partFile = new File(outFile.getPath() + ".part");
+        // un kill durante l'encode: il recupero riusa questo nome invece di lasciarlo a metà
+        journalOutput(pcmFile, outFile);
+        String name = outFile.getName();
+
+        // L'encoding gira sul finalizer: la registrazione prosegue
         try {
-            AudioConverter.convertToM4a(currentTempFile, m4aFile, sampleRate, 1, 16, this);
-            savedCount++;
-        } catch (IOException e) {
-            Log.e(TAG, "convert", e);
+            finalizer.submit(name, () -> {
+                try {
+                    if (flac) {
+                        FlacEncoder.Result r = new FlacEncoder(rate, ch, flacPool).encode(pcmFile, partFile);
+                        lastFlacResult = r;
+                        Log.d(TAG, String.format(Locale.US, "%s: FLAC ratio %.3f, RTF %.4f",
+                                outFile.getName(), r.getCompressionRatio(), r.getRealTimeFactor()));
+                    } else {
+                        AudioConverter.convertToM4a(pcmFile, partFile, rate, ch, 16, encoders);
+                    }
+                    if (!partFile.renameTo(outFile)) throw new IOException("rename failed " + partFile);
+                    moveSidecar(pcmFile, outFile);
+                    addToCatalog(writer, outFile, flac ? "flac" : "aac", clock, ch);
+                    savedCount.incrementAndGet();
+                } catch (Exception e) {
+                    partFile.delete();
+                    throw e;
+                } finally {
+                    pcmFile.delete();
+                    PeakPyramid.sidecarFor(pcmFile).delete();
+                    journalDone(pcmFile);
+                }
+            });
+        } catch (InterruptedException e) {
+            partFile.delete();
+            pcmFile.delete();
+            PeakPyramid.sidecarFor(pcmFile).delete();
+            journalDone(pcmFile);
+            throw e;
         }
+    }
 
-        if (currentTempFile != null) currentTempFile.delete();
-        currentTempFile = null;
+    /** Temporary PCM of the segments waiting to be encoded. */
+    private File tempDir() {
+        File dir = new File(getExternalFilesDir(Environment.DIRECTORY_MUSIC), "continuousrec");
+        if (!dir.exists()) dir.mkdirs();
+        return dir;
     }
 
+    private File outputDir() {
+        File dir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC), "continuousrec");
+        if (!dir.exists()) dir.mkdirs();
+        return dir;
+    }
+
+
+    /** Bytes per write syscall and fsync latency of the segment writers, since the app started. */
+    public static DurabilityPolicy.Stats getWriteStats() {
+        return writeStats;
+    }
+
+    /** Rate of the samples behind {@link #getLevelChannel()}. */
+    public int getSampleRate() {
+        return sampleRate;
+    }
 
     public long getRecordingSeconds() {
         if (!running) return 0;
@@ -246,17 +571,56 @@ public class RecordingService extends Service {
     }
 
     public int getSavedCount() {
-        return savedCount;
+        return savedCount.get();
     }
 
-    private static byte[] shortToLittleEndianBytes(short[] samples, int length) {
-        byte[] out = new byte[length * 2];
-        for (int i = 0; i < length; i++) {
-            short s = samples[i];
-            out[i * 2] = (byte) (s & 0xff);
-            out[i * 2 + 1] = (byte) ((s >> 8) & 0xff);
-        }
-        return out;
+    /** Closed segments waiting for the finalizer. */
+    public int getFinalizerQueueDepth() {
+        return finalizer != null ? finalizer.getQueueDepth() : 0;
+    }
+
+    /** Encode time of the last finalized segment, in ms. */
+    public long getLastEncodeMillis() {
+        return finalizer != null ? finalizer.getLastEncodeMillis() : 0;
+    }
+
+    public long getAverageEncodeMillis() {
+        return finalizer != null ? finalizer.getAverageEncodeMillis() : 0;
+    }
+
+    /** AAC encoders created from scratch vs. taken warm from the manager. */
+    public long getEncoderColdStarts() {
+        return encoders.getColdStarts();
+    }
+
+    public long getEncoderWarmStarts() {
+        return encoders.getWarmStarts();
+    }
+
+    /** Average encoder setup time, in µs: create + configure + start vs. flush of a warm one. */
+    public long getColdSetupMicros() {
+        return encoders.getAverageColdSetupMicros();
+    }
+
+    public long getWarmSetupMicros() {
+        return encoders.getAverageWarmSetupMicros();
+    }
+
+    /** FLAC size over PCM size of the last FLAC segment, 0 if none yet. */
+    public double getLastFlacCompressionRatio() {
+        FlacEncoder.Result r = lastFlacResult;
+        return r != null ? r.getCompressionRatio() : 0;
+    }
+
+    /** FLAC encode time over audio duration of the last FLAC segment. */
+    public double getLastFlacRealTimeFactor() {
+        FlacEncoder.Result r = lastFlacResult;
+        return r != null ? r.getRealTimeFactor() : 0;
+    }
+
+    /** Times the capture thread found the ring full and had to drop a block. */
+    public long getOverrunCount() {
+        return engine != null ? engine.getOverrunCount() : 0;
     }
 
     @Override
@@ -265,6 +629,8 @@ public class RecordingService extends Service {
 
         if (!running) {
             running = true;
+            StorageQuotaManager s = getStorage(this);
+            if (s != null) s.setPolicy(SettingsActivity.storagePolicy(prefs));
             startRecordingLoop();
         }
 
@@ -307,7 +673,18 @@ public class RecordingService extends Service {
         }
     }
 
-    public double getNormalizedLevel() {
-        return normalizedLevelForWave;
+    /** Level snapshots of every recorded block; one reader, on the UI thread. */
+    public LevelChannel getLevelChannel() {
+        return levels;
+    }
+
+    /** Current gate threshold in dBFS (NaN when not recording). */
+    public float getThresholdDb() {
+        return engine != null ? engine.getThresholdDb() : Float.NaN;
+    }
+
+    /** Tracked background level in dBFS (NaN when not recording or with a fixed threshold). */
+    public float getNoiseFloorDb() {
+        return engine != null && autoThreshold ? engine.getNoiseFloorDb() : Float.NaN;
     }
 }
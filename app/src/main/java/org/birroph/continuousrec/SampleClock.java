@@ -0,0 +1,54 @@
+package org.birroph.continuousrec;
+
+/**
+ * Time derived from the sample counter instead of the system clock.
+ * <p>
+ * Frame 0 is the first captured frame, anchored to the wall-clock time the capture
+ * started. Durations, segment boundaries and encoder timestamps are all computed
+ * from frame counts, so they do not drift with scheduling jitter.
+ */
+public final class SampleClock {
+    private final int sampleRate;
+    private final long originWallMs;
+
+    public SampleClock(int sampleRate, long originWallMs) {
+        if (sampleRate <= 0) throw new IllegalArgumentException("sampleRate <= 0");
+        this.sampleRate = sampleRate;
+        this.originWallMs = originWallMs;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getOriginWallMs() {
+        return originWallMs;
+    }
+
+    public long framesForSeconds(long seconds) {
+        return seconds * sampleRate;
+    }
+
+    public long framesForMillis(long ms) {
+        return ms * sampleRate / 1000;
+    }
+
+    /** Presentation time of a frame, in microseconds from frame 0. */
+    public long toMicros(long frames) {
+        return toMicros(frames, sampleRate);
+    }
+
+    public long toMillis(long frames) {
+        return frames * 1000 / sampleRate;
+    }
+
+    /** Wall-clock time at which the given frame was captured. */
+    public long toWallMillis(long frame) {
+        return originWallMs + toMillis(frame);
+    }
+
+    public static long toMicros(long frames, int sampleRate) {
+        // diviso in secondi + resto per non andare in overflow su registrazioni lunghe
+        return frames / sampleRate * 1_000_000L + frames % sampleRate * 1_000_000L / sampleRate;
+    }
+}
@@ -0,0 +1,307 @@
+package org.birroph.continuousrec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Every saved segment with its exact timing, so "what was recorded between 14:02 and
+ * 14:05" is answered from memory instead of listing and probing the output directory.
+ * <p>
+ * On disk it is an append-only {@link RecordLog}, one record per segment; a record torn
+ * by a crash is cut off at load. A deleted segment gets a tombstone record, and once
+ * tombstones outnumber the live segments the log is rewritten without them. In memory
+ * the entries are kept sorted by start time next to primitive arrays of their start
+ * times and peaks, and a range query is a binary search plus the entries it returns.
+ * Thread-safe.
+ */
+public class SegmentCatalog implements AutoCloseable {
+    static final int MAGIC = 0x43525343; // "CRSC"
+    static final int VERSION = 1;
+    private static final byte TYPE_SEGMENT = 1;
+    private static final byte TYPE_REMOVED = 2;
+    /** Tombstones tolerated before a rewrite, as long as they are not the majority. */
+    static final int MIN_DEAD_FOR_COMPACT = 1024;
+
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+
+    /** One saved segment. Times come from the sample clock, not from the file system. */
+    public static final class Entry {
+        public final long startWallMs;
+        public final long endWallMs;
+        public final long startFrame;
+        public final long endFrame;
+        public final int sampleRate;
+        public final int channels;
+        /** Largest sample and overall RMS, 0..1 of full scale. */
+        public final float peak;
+        public final float rms;
+        public final String codec;
+        public final long bytes;
+        public final String path;
+
+        public Entry(long startWallMs, long endWallMs, long startFrame, long endFrame, int sampleRate,
+                     int channels, float peak, float rms, String codec, long bytes, String path) {
+            this.startWallMs = startWallMs;
+            this.endWallMs = endWallMs;
+            this.startFrame = startFrame;
+            this.endFrame = endFrame;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.peak = peak;
+            this.rms = rms;
+            this.codec = codec;
+            this.bytes = bytes;
+            this.path = path;
+        }
+
+        /** The entry for a finished segment of {@code frames} frames starting at {@code startFrame}. */
+        public static Entry of(File file, String codec, SampleClock clock, long startFrame, long frames,
+                               int channels, float peak, float rms) {
+            long endFrame = startFrame + frames;
+            return new Entry(clock.toWallMillis(startFrame), clock.toWallMillis(endFrame), startFrame, endFrame,
+                    clock.getSampleRate(), channels, peak, rms, codec, file.length(), file.getPath());
+        }
+
+        /** Exact duration, from the frame count. */
+        public long durationMs() {
+            return (endFrame - startFrame) * 1000 / sampleRate;
+        }
+
+        public File getFile() {
+            return new File(path);
+        }
+
+        @Override
+        public String toString() {
+            return path + " [" + startWallMs + ", " + endWallMs + ")";
+        }
+    }
+
+    private final RecordLog log;
+    private final List<Entry> entries = new ArrayList<>();
+    private long[] starts = new long[1024];
+    private float[] peaks = new float[1024];
+    private long maxDurationMs = 0;
+    private long totalBytes = 0;
+    private int deadRecords = 0;
+
+    /** Opens the catalog at {@code file}, creating it if needed, and loads it. */
+    public SegmentCatalog(File file) throws IOException {
+        log = new RecordLog(file, MAGIC, VERSION, this::replay);
+    }
+
+    /** Record types this version does not know are skipped, not an error. */
+    private void replay(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        if (type == TYPE_SEGMENT) {
+            insert(decode(in));
+        } else if (type == TYPE_REMOVED) {
+            int i = indexOf(in.readLong(), in.readUTF());
+            if (i >= 0) delete(i);
+            deadRecords += i >= 0 ? 2 : 1;
+        }
+    }
+
+    /** Appends a segment to the log and to the index. */
+    public synchronized void add(Entry e) throws IOException {
+        log.append(encode(e));
+        insert(e);
+    }
+
+    /**
+     * Drops a segment whose files are gone: a tombstone goes to the log, the entry leaves
+     * the index. Returns false if the catalog did not have it.
+     */
+    public synchronized boolean remove(Entry e) throws IOException {
+        int i = indexOf(e.startWallMs, e.path);
+        if (i < 0) return false;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_REMOVED);
+        out.writeLong(e.startWallMs);
+        out.writeUTF(e.path);
+        out.flush();
+        log.append(bytes.toByteArray());
+        delete(i);
+        // il segmento e la sua lapide
+        deadRecords += 2;
+        if (deadRecords > MIN_DEAD_FOR_COMPACT && deadRecords > entries.size()) compact();
+        return true;
+    }
+
+    /** Rewrites the log with only the live segments. */
+    public synchronized void compact() throws IOException {
+        List<byte[]> records = new ArrayList<>(entries.size());
+        for (Entry e : entries) records.add(encode(e));
+        log.rewrite(records);
+        deadRecords = 0;
+    }
+
+    private int indexOf(long startWallMs, String path) {
+        for (int i = lowerBound(startWallMs); i < entries.size() && starts[i] == startWallMs; i++) {
+            if (entries.get(i).path.equals(path)) return i;
+        }
+        return -1;
+    }
+
+    private void delete(int i) {
+        int n = entries.size();
+        System.arraycopy(starts, i + 1, starts, i, n - i - 1);
+        System.arraycopy(peaks, i + 1, peaks, i, n - i - 1);
+        totalBytes -= entries.remove(i).bytes;
+    }
+
+    private void insert(Entry e) {
+        int n = entries.size();
+        // di solito in coda: i segmenti finiscono quasi sempre in ordine
+        int at = n > 0 && starts[n - 1] > e.startWallMs ? upperBound(e.startWallMs) : n;
+        if (n == starts.length) {
+            starts = Arrays.copyOf(starts, n * 2);
+            peaks = Arrays.copyOf(peaks, n * 2);
+        }
+        System.arraycopy(starts, at, starts, at + 1, n - at);
+        System.arraycopy(peaks, at, peaks, at + 1, n - at);
+        starts[at] = e.startWallMs;
+        peaks[at] = e.peak;
+        entries.add(at, e);
+        maxDurationMs = Math.max(maxDurationMs, e.endWallMs - e.startWallMs);
+        totalBytes += e.bytes;
+    }
+
+    /** First index whose start is {@code >= t}. */
+    private int lowerBound(long t) {
+        int lo = 0;
+        int hi = entries.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] < t) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** First index whose start is {@code > t}. */
+    private int upperBound(long t) {
+        int lo = 0;
+        int hi = entries.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] <= t) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** Segments overlapping {@code [fromWallMs, toWallMs)}, in start order. */
+    public synchronized List<Entry> between(long fromWallMs, long toWallMs) {
+        List<Entry> out = new ArrayList<>();
+        // un segmento iniziato prima di from lo copre al più per maxDuration
+        for (int i = lowerBound(fromWallMs - maxDurationMs); i < entries.size() && starts[i] < toWallMs; i++) {
+            Entry e = entries.get(i);
+            if (e.endWallMs > fromWallMs) out.add(e);
+        }
+        return out;
+    }
+
+    /** The segment playing at {@code wallMs}, or null. */
+    public synchronized Entry at(long wallMs) {
+        List<Entry> hit = between(wallMs, wallMs + 1);
+        return hit.isEmpty() ? null : hit.get(hit.size() - 1);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized Entry get(int index) {
+        return entries.get(index);
+    }
+
+    public synchronized Entry latest() {
+        return entries.isEmpty() ? null : entries.get(entries.size() - 1);
+    }
+
+    /**
+     * The first segment in start order that is loud ({@code peak >= loudPeak}) or quiet,
+     * as asked; null if there is none. Loud segments can pile up at the head of the
+     * catalog, so this scans the primitive array of peaks, not the entries.
+     */
+    public synchronized Entry oldest(boolean loud, float loudPeak) {
+        for (int i = 0, n = entries.size(); i < n; i++) {
+            if (peaks[i] >= loudPeak == loud) return entries.get(i);
+        }
+        return null;
+    }
+
+    /** Bytes of every segment in the catalog, as recorded when each was added. */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /** Torn records cut off at load. */
+    public int getDroppedRecords() {
+        return log.getDroppedRecords();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    private static byte[] encode(Entry e) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_SEGMENT);
+        out.writeLong(e.startWallMs);
+        out.writeLong(e.endWallMs);
+        out.writeLong(e.startFrame);
+        out.writeLong(e.endFrame);
+        out.writeInt(e.sampleRate);
+        out.writeByte(e.channels);
+        out.writeFloat(e.peak);
+        out.writeFloat(e.rms);
+        out.writeUTF(e.codec);
+        out.writeLong(e.bytes);
+        out.writeUTF(e.path);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Entry decode(DataInputStream in) throws IOException {
+        return new Entry(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readInt(),
+                in.readByte(), in.readFloat(), in.readFloat(), in.readUTF(), in.readLong(), in.readUTF());
+    }
+
+    // ---- nomi dei file ----
+
+    /** "yyyy-MM-dd_HH-mm-ss" of the segment start, in local time. */
+    public static String timestamp(long wallMs) {
+        return NAME_FORMAT.format(Instant.ofEpochMilli(wallMs).atZone(ZoneId.systemDefault()));
+    }
+
+    /**
+     * {@code dir/prefix + timestamp + extension}, with "_2", "_3"... appended if that
+     * name is already taken. The name is reserved by creating its empty ".part", which the
+     * caller writes and renames, or deletes: two threads asking for the same second never
+     * get the same file.
+     */
+    public static File uniqueFile(File dir, String prefix, long startWallMs, String extension) throws IOException {
+        String base = prefix + timestamp(startWallMs);
+        File f = new File(dir, base + extension);
+        for (int n = 2; f.exists() || !new File(f.getPath() + ".part").createNewFile(); n++) {
+            f = new File(dir, base + "_" + n + extension);
+        }
+        return f;
+    }
+}
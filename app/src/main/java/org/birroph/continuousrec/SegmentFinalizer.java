@@ -0,0 +1,144 @@
+package org.birroph.continuousrec;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background pool that finalizes (encodes, renames, cleans up) closed segments
+ * so the recording thread never waits for a codec.
+ * <p>
+ * The queue is bounded: when every worker is busy and the queue is full,
+ * {@link #submit(String, Job)} blocks the caller. That backpressure lands on the
+ * writer thread, while the capture ring keeps absorbing the mic in the meantime.
+ */
+public class SegmentFinalizer {
+
+    public interface Job {
+        void run() throws Exception;
+    }
+
+    public interface Listener {
+        void onFinalized(String name, long encodeNanos);
+
+        void onFailed(String name, Exception e);
+    }
+
+    private static final class Task {
+        final String name;
+        final Job job;
+
+        Task(String name, Job job) {
+            this.name = name;
+            this.job = job;
+        }
+    }
+
+    private static final long POLL_MS = 200;
+
+    private final BlockingQueue<Task> queue;
+    private final Thread[] workers;
+    private final Listener listener;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalEncodeNanos = new AtomicLong();
+    private volatile long lastEncodeNanos = 0;
+    private volatile boolean shutdown = false;
+
+    public SegmentFinalizer(int workerCount, int queueCapacity, Listener listener) {
+        if (workerCount < 1 || queueCapacity < 1) throw new IllegalArgumentException("workerCount and queueCapacity must be >= 1");
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.listener = listener;
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::workLoop, "SegmentFinalizer-" + i);
+            // l'encoding non deve rubare CPU alla cattura
+            workers[i].setPriority(Thread.NORM_PRIORITY - 1);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues a job, blocking while the queue is full. A job that lands in the queue while
+     * a {@link #shutdown} lets the workers go is run here instead, so it is never lost.
+     */
+    public void submit(String name, Job job) throws InterruptedException {
+        if (shutdown) throw new IllegalStateException("finalizer is shut down");
+        Task task = new Task(name, job);
+        queue.put(task);
+        // i worker escono solo a coda vuota: se è ancora qui, nessuno lo prenderà
+        if (shutdown && queue.remove(task)) run(task);
+    }
+
+    private void workLoop() {
+        while (!shutdown || !queue.isEmpty()) {
+            Task task;
+            try {
+                task = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task != null) run(task);
+        }
+    }
+
+    private void run(Task task) {
+        long start = System.nanoTime();
+        try {
+            task.job.run();
+            long elapsed = System.nanoTime() - start;
+            lastEncodeNanos = elapsed;
+            totalEncodeNanos.addAndGet(elapsed);
+            completed.incrementAndGet();
+            if (listener != null) listener.onFinalized(task.name, elapsed);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            if (listener != null) listener.onFailed(task.name, e);
+        }
+    }
+
+    /**
+     * Stops accepting work; queued jobs are still completed by the workers.
+     * Waits up to {@code timeoutMs} for them (0 = do not wait).
+     */
+    public boolean shutdown(long timeoutMs) throws InterruptedException {
+        shutdown = true;
+        if (timeoutMs <= 0) return false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (Thread w : workers) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) return false;
+            w.join(left);
+            if (w.isAlive()) return false;
+        }
+        return true;
+    }
+
+    /** Segments waiting for a worker (not counting the ones being encoded). */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getLastEncodeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastEncodeNanos);
+    }
+
+    public long getAverageEncodeMillis() {
+        long n = completed.get();
+        return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalEncodeNanos.get() / n);
+    }
+}
@@ -0,0 +1,362 @@
+package org.birroph.continuousrec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-ahead journal of the segments being written, so a killed process can be
+ * cleaned up after: a segment is journaled when it opens, checkpointed while it grows
+ * and marked done once it is saved (or thrown away) for good. A segment encoded after
+ * it closes also journals its output name before the encode starts.
+ * <p>
+ * At the next start {@link #pending()} lists the segments that never got to done, and
+ * only those are looked at; the saved archive is never scanned, so recovery costs what
+ * was orphaned, not what was recorded. Done segments are dropped from the file when it
+ * grows past {@link #COMPACT_BYTES}. On disk it is a {@link RecordLog}. Thread-safe.
+ */
+public class SegmentJournal implements AutoCloseable {
+    static final int MAGIC = 0x4c4a5243; // "CRJL"
+    static final int VERSION = 1;
+    /** Checkpoint period of a {@link Writer} whose policy never syncs. */
+    public static final int CHECKPOINT_SEC = 5;
+    /** Past this size, done segments are dropped from the file. */
+    static final long COMPACT_BYTES = 64 * 1024;
+
+    private static final byte TYPE_OPEN = 1;
+    private static final byte TYPE_CHECKPOINT = 2;
+    private static final byte TYPE_DONE = 3;
+    private static final byte TYPE_OUTPUT = 4;
+
+    /** A {@link WavSegmentWriter}: the ".part" gets its header patched. */
+    public static final int KIND_WAV = 1;
+    /** A {@link PcmSegmentWriter} temp file, to be encoded to the segment's codec. */
+    public static final int KIND_PCM = 2;
+    /** An {@link AacStreamWriter}: the MP4 index is only written at finish, so the ".part" is lost. */
+    public static final int KIND_STREAM = 3;
+
+    /** A segment that was opened; {@code path} is the writer's {@link SegmentWriter#getFile()}. */
+    public static final class Segment {
+        public final String path;
+        public final int kind;
+        /** What the segment is saved as: "wav", "aac", "flac". */
+        public final String codec;
+        public final long startFrame;
+        public final long startWallMs;
+        public final int sampleRate;
+        public final int channels;
+        long checkpointSamples = 0;
+        String output = null;
+
+        public Segment(File file, int kind, String codec, long startFrame, long startWallMs, int sampleRate, int channels) {
+            this(file.getPath(), kind, codec, startFrame, startWallMs, sampleRate, channels);
+        }
+
+        private Segment(String path, int kind, String codec, long startFrame, long startWallMs, int sampleRate,
+                        int channels) {
+            this.path = path;
+            this.kind = kind;
+            this.codec = codec;
+            this.startFrame = startFrame;
+            this.startWallMs = startWallMs;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+        }
+
+        public File getFile() {
+            return new File(path);
+        }
+
+        /** Samples known to have reached the file at the last checkpoint. */
+        public long getCheckpointSamples() {
+            return checkpointSamples;
+        }
+
+        /** The file a {@link #KIND_PCM} segment is being encoded to, null until one is chosen. */
+        public File getOutput() {
+            return output != null ? new File(output) : null;
+        }
+
+        /** The catalog entry for {@code file}, saved from {@code frames} frames of this segment. */
+        public SegmentCatalog.Entry toEntry(File file, long frames, PeakPyramid peaks) {
+            return new SegmentCatalog.Entry(startWallMs, startWallMs + frames * 1000 / sampleRate, startFrame,
+                    startFrame + frames, sampleRate, channels, peaks.getPeak(), peaks.getRms(), codec,
+                    file.length(), file.getPath());
+        }
+
+        @Override
+        public String toString() {
+            return path + " (" + codec + ")";
+        }
+    }
+
+    private final RecordLog log;
+    private final Map<String, Segment> open = new LinkedHashMap<>();
+
+    /** Opens the journal at {@code file}, creating it if needed, and replays it. */
+    public SegmentJournal(File file) throws IOException {
+        log = new RecordLog(file, MAGIC, VERSION, this::replay);
+    }
+
+    private void replay(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        String path = in.readUTF();
+        if (type == TYPE_OPEN) {
+            open.put(path, new Segment(path, in.readByte(), in.readUTF(), in.readLong(), in.readLong(),
+                    in.readInt(), in.readByte()));
+        } else if (type == TYPE_CHECKPOINT) {
+            Segment s = open.get(path);
+            if (s != null) s.checkpointSamples = in.readLong();
+        } else if (type == TYPE_OUTPUT) {
+            Segment s = open.get(path);
+            if (s != null) s.output = in.readUTF();
+        } else if (type == TYPE_DONE) {
+            open.remove(path);
+        }
+    }
+
+    /** Journals a segment before its first sample is written. */
+    public synchronized void open(Segment s) throws IOException {
+        log.append(encodeOpen(s));
+        open.put(s.path, s);
+    }
+
+    /** Notes that {@code samples} samples of the segment have reached its file. */
+    public synchronized void checkpoint(String path, long samples) throws IOException {
+        Segment s = open.get(path);
+        if (s == null) return;
+        log.append(encodeCheckpoint(path, samples));
+        s.checkpointSamples = samples;
+    }
+
+    /**
+     * Notes the file a segment is about to be encoded to, so that recovery reuses that
+     * name instead of leaving a half-encoded file behind under it.
+     */
+    public synchronized void output(String path, File out) throws IOException {
+        Segment s = open.get(path);
+        if (s == null) return;
+        log.append(encodeOutput(path, out.getPath()));
+        s.output = out.getPath();
+    }
+
+    /** The segment is saved, salvaged or gone: nothing left to recover. */
+    public synchronized void done(String path) throws IOException {
+        if (open.remove(path) == null) return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_DONE);
+        out.writeUTF(path);
+        out.flush();
+        log.append(bytes.toByteArray());
+        if (log.size() > COMPACT_BYTES) compact();
+    }
+
+    /** Rewrites the file with only the segments still open. */
+    public synchronized void compact() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        for (Segment s : open.values()) {
+            records.add(encodeOpen(s));
+            if (s.checkpointSamples > 0) records.add(encodeCheckpoint(s.path, s.checkpointSamples));
+            if (s.output != null) records.add(encodeOutput(s.path, s.output));
+        }
+        log.rewrite(records);
+    }
+
+    /** Segments opened and never done, in the order they were opened. */
+    public synchronized List<Segment> pending() {
+        return new ArrayList<>(open.values());
+    }
+
+    /** Bytes on disk. */
+    public synchronized long size() throws IOException {
+        return log.size();
+    }
+
+    /** Torn records cut off at load. */
+    public int getDroppedRecords() {
+        return log.getDroppedRecords();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    private static byte[] encodeOpen(Segment s) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_OPEN);
+        out.writeUTF(s.path);
+        out.writeByte(s.kind);
+        out.writeUTF(s.codec);
+        out.writeLong(s.startFrame);
+        out.writeLong(s.startWallMs);
+        out.writeInt(s.sampleRate);
+        out.writeByte(s.channels);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeOutput(String path, String output) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_OUTPUT);
+        out.writeUTF(path);
+        out.writeUTF(output);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeCheckpoint(String path, long samples) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_CHECKPOINT);
+        out.writeUTF(path);
+        out.writeLong(samples);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // ---- recupero ----
+
+    /**
+     * Salvages a {@link #KIND_WAV} segment left behind by a kill: patches and renames its
+     * ".part", writes the peaks sidecar and returns the catalog entry. Null if there was
+     * no audio to keep, or if the segment had already been finished (then the file is
+     * complete and only its catalog entry may be missing, see {@link #finishedEntry}).
+     */
+    public static SegmentCatalog.Entry salvageWav(Segment s) throws IOException {
+        File file = s.getFile();
+        long samples = WavSegmentWriter.recover(file, s.sampleRate, s.channels);
+        if (samples <= 0) return null;
+        return scanned(s, file, new WavFileAudioSource(file));
+    }
+
+    /** The entry of a WAV segment that finished but may not have reached the catalog. */
+    public static SegmentCatalog.Entry finishedEntry(Segment s) throws IOException {
+        File file = s.getFile();
+        if (!file.exists()) return null;
+        return scanned(s, file, new WavFileAudioSource(file));
+    }
+
+    /** The peaks of {@code in}, also written as the sidecar of {@code file}, and its entry. */
+    static SegmentCatalog.Entry scanned(Segment s, File file, AudioSource in) throws IOException {
+        PeakPyramid peaks = PeakPyramid.scan(in);
+        peaks.writeTo(PeakPyramid.sidecarFor(file));
+        return s.toEntry(file, peaks.getFrames(), peaks);
+    }
+
+    /**
+     * Writes a segment while journaling it: opened at construction, checkpointed every
+     * {@code checkpointSamples} samples with what has reached the file, done if aborted.
+     * Done after a finish is up to the owner, once the segment is really saved.
+     * The journal is a safety net, not the recording: its failures only end up in
+     * {@link #getJournalError()}.
+     */
+    public static class Writer implements SegmentWriter {
+        private final SegmentJournal journal;
+        private final SegmentWriter out;
+        private final String path;
+        private final long checkpointSamples;
+        private final boolean flush;
+        private long lastCheckpoint = 0;
+        private long checkpointed = 0;
+        private volatile IOException journalError;
+
+        /** Flushes {@code out} at every checkpoint. */
+        public Writer(SegmentJournal journal, SegmentWriter out, Segment segment, long checkpointSamples) {
+            this(journal, out, segment, checkpointSamples, true);
+        }
+
+        /**
+         * Checkpointed at the sync interval of {@code policy} ({@link #CHECKPOINT_SEC} if it has
+         * none), flushing {@code out} first only if the policy flushes before a sync: a
+         * coalesced writer keeps its large writes.
+         */
+        public Writer(SegmentJournal journal, SegmentWriter out, Segment segment, DurabilityPolicy policy) {
+            this(journal, out, segment, (long) (policy.syncSec > 0 ? policy.syncSec : CHECKPOINT_SEC)
+                    * segment.sampleRate * segment.channels, policy.flushBeforeSync());
+        }
+
+        private Writer(SegmentJournal journal, SegmentWriter out, Segment segment, long checkpointSamples,
+                       boolean flush) {
+            this.journal = journal;
+            this.out = out;
+            this.path = segment.path;
+            this.checkpointSamples = checkpointSamples;
+            this.flush = flush;
+            try {
+                journal.open(segment);
+            } catch (IOException e) {
+                journalError = e;
+            }
+        }
+
+        @Override
+        public void write(short[] samples, int offset, int length) throws IOException {
+            out.write(samples, offset, length);
+            long written = out.getSamplesWritten();
+            if (written - lastCheckpoint >= checkpointSamples) {
+                if (flush) out.flush();
+                lastCheckpoint = written;
+                long flushed = out.getSamplesFlushed();
+                if (flushed > checkpointed) {
+                    checkpointed = flushed;
+                    try {
+                        journal.checkpoint(path, flushed);
+                    } catch (IOException e) {
+                        journalError = e;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public File finish() throws IOException {
+            return out.finish();
+        }
+
+        @Override
+        public void abort() {
+            out.abort();
+            try {
+                journal.done(path);
+            } catch (IOException e) {
+                journalError = e;
+            }
+        }
+
+        @Override
+        public long getSamplesWritten() {
+            return out.getSamplesWritten();
+        }
+
+        @Override
+        public long getSamplesFlushed() {
+            return out.getSamplesFlushed();
+        }
+
+        @Override
+        public File getFile() {
+            return out.getFile();
+        }
+
+        public IOException getJournalError() {
+            return journalError;
+        }
+    }
+}
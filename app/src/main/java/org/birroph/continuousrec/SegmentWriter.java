@@ -0,0 +1,38 @@
+package org.birroph.continuousrec;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Sink for the PCM of a single segment.
+ * Opened and fed by the writer thread; it is then either finished or aborted, exactly once
+ * (possibly from a finalizer worker).
+ */
+public interface SegmentWriter {
+
+    void write(short[] samples, int offset, int length) throws IOException;
+
+    /**
+     * Hands buffered samples to the file, so a killed process loses at most what was
+     * written after. Writers with no buffer of their own (or no salvageable file) keep
+     * the default.
+     */
+    default void flush() throws IOException {
+    }
+
+    /** Completes the segment and returns the file that was written. */
+    File finish() throws IOException;
+
+    /** Drops the segment and deletes whatever was written so far. */
+    void abort();
+
+    long getSamplesWritten();
+
+    /** Samples handed to the file so far; what {@link #flush()} would still push is not counted. */
+    default long getSamplesFlushed() {
+        return getSamplesWritten();
+    }
+
+    /** The file this segment ends up in (null for writers that do not write files). */
+    File getFile();
+}
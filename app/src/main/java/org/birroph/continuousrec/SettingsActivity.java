@@ -2,11 +2,11 @@ package org.birroph.continuousrec;
 
 import android.Manifest;
 import android.content.SharedPreferences;
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.MenuItem;
+import android.widget.CheckBox;
+import android.widget.RadioGroup;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
@@ -14,18 +14,100 @@ import androidx.annotation.NonNull;
 import androidx.annotation.RequiresPermission;
 import androidx.appcompat.app.AppCompatActivity;
 
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class SettingsActivity extends AppCompatActivity {
     public static final String PREFS = "continuousrec_prefs";
+    public static final int DEFAULT_THRESHOLD_DBFS = -30;
+    public static final int DEFAULT_WAVEFORM_MIN = AudioWaveformView.DEFAULT_HISTORY_SEC / 60;
+
+    /** Capture and output format from the preferences, shared by service and preview. */
+    public static CaptureFormat captureFormat(SharedPreferences prefs) {
+        int rate = prefs.getInt("output_rate", CaptureFormat.DEFAULT_RATE);
+        int channels = prefs.getInt("output_channels", 1);
+        // cattura nativa: 48 kHz stereo, ridotti al formato di uscita da ConvertingAudioSource
+        boolean nativeCapture = prefs.getBoolean("native_capture", false);
+        return new CaptureFormat(nativeCapture ? CaptureFormat.NATIVE_RATE : rate, nativeCapture ? 2 : channels,
+                prefs.getBoolean("capture_float", false), rate, channels);
+    }
+
+    /**
+     * Fixed gate threshold in dBFS. Until the settings are saved again, an old
+     * "threshold_db" (percent of full scale) still counts.
+     */
+    public static int thresholdDbfs(SharedPreferences prefs) {
+        if (!prefs.contains("threshold_dbfs") && prefs.contains("threshold_db")) {
+            return Math.round(LevelScale.toDb(prefs.getInt("threshold_db", 50) / 100f));
+        }
+        return prefs.getInt("threshold_dbfs", DEFAULT_THRESHOLD_DBFS);
+    }
+
+    /** How the segment writers sync to storage. */
+    public static DurabilityPolicy durabilityPolicy(SharedPreferences prefs) {
+        return DurabilityPolicy.of(prefs.getString("durability", "interval"),
+                prefs.getInt("sync_sec", DurabilityPolicy.DEFAULT_SYNC_SEC));
+    }
+
+    /** Retention from the preferences: quota in GB and age in days, 0 for no limit. */
+    public static StorageQuotaManager.Policy storagePolicy(SharedPreferences prefs) {
+        long quota = prefs.getInt("quota_gb", 0) * (1L << 30);
+        long maxAge = TimeUnit.DAYS.toMillis(prefs.getInt("max_age_days", 0));
+        return new StorageQuotaManager.Policy(quota, maxAge, StorageQuotaManager.DEFAULT_LOUD_PEAK,
+                prefs.getBoolean("keep_loud", true) ? StorageQuotaManager.DEFAULT_LOUD_FACTOR : 1);
+    }
+
     private SeekBar sbThreshold;
     private TextView tvThresholdValue;
     private AudioLevelMeter meterPreview;
+    private CheckBox cbAutoThreshold;
+    private SeekBar sbMargin;
+    private TextView tvMarginValue;
     private SeekBar sbFrame;
     private TextView tvFrameValue;
 
     private SeekBar sbSilenceCut;
     private TextView tvSilenceValue;
 
-    private AudioRecord previewRecorder;
+    private SeekBar sbPreRoll;
+    private TextView tvPreRollValue;
+
+    private SeekBar sbWaveform;
+    private TextView tvWaveformValue;
+
+    private CheckBox cbVoiceGate;
+
+    private SeekBar sbQuota;
+    private TextView tvQuotaValue;
+    private SeekBar sbMaxAge;
+    private TextView tvMaxAgeValue;
+    private CheckBox cbKeepLoud;
+    private TextView tvStorage;
+
+    private RadioGroup rgOutputFormat;
+
+    private RadioGroup rgDurability;
+    private SeekBar sbSyncSec;
+    private TextView tvSyncValue;
+    private TextView tvWriteStats;
+
+    private RadioGroup rgSampleRate;
+    private CheckBox cbStereo;
+    private CheckBox cbFloatCapture;
+    private CheckBox cbNativeCapture;
+
+    private static final long PREVIEW_WAIT_NANOS = 100_000_000L;
+    private BroadcastRing.Cursor previewInput;
+    private volatile float previewLevel;
+    private final AtomicBoolean previewPosted = new AtomicBoolean();
+    private final Runnable showPreview = () -> {
+        previewPosted.set(false);
+        meterPreview.setLevel(previewLevel);
+        if (cbAutoThreshold.isChecked()) showAutoThreshold();
+    };
+    private NoiseFloorTracker previewFloor = new NoiseFloorTracker(CaptureFormat.DEFAULT_RATE);
     private Thread previewThread;
     private boolean previewRunning = false;
 
@@ -43,6 +125,10 @@ public class SettingsActivity extends AppCompatActivity {
         sbThreshold = findViewById(R.id.sbThreshold);
         tvThresholdValue = findViewById(R.id.tvThresholdValue);
         meterPreview = findViewById(R.id.meterPreview);
+        cbAutoThreshold = findViewById(R.id.cbAutoThreshold);
+        sbMargin = findViewById(R.id.sbMargin);
+        tvMarginValue = findViewById(R.id.tvMarginValue);
+        cbVoiceGate = findViewById(R.id.cbVoiceGate);
 
         sbFrame = findViewById(R.id.sbFrame);
         tvFrameValue = findViewById(R.id.tvFrameValue);
@@ -50,11 +136,46 @@ public class SettingsActivity extends AppCompatActivity {
         sbSilenceCut = findViewById(R.id.sbSilenceCut);
         tvSilenceValue = findViewById(R.id.tvSilenceValue);
 
-        int threshold = prefs.getInt("threshold_db", 50);
-        sbThreshold.setProgress(threshold);
-        tvThresholdValue.setText(threshold + " dB");
+        sbPreRoll = findViewById(R.id.sbPreRoll);
+        tvPreRollValue = findViewById(R.id.tvPreRollValue);
+        sbWaveform = findViewById(R.id.sbWaveform);
+        tvWaveformValue = findViewById(R.id.tvWaveformValue);
+
+        sbQuota = findViewById(R.id.sbQuota);
+        tvQuotaValue = findViewById(R.id.tvQuotaValue);
+        sbMaxAge = findViewById(R.id.sbMaxAge);
+        tvMaxAgeValue = findViewById(R.id.tvMaxAgeValue);
+        cbKeepLoud = findViewById(R.id.cbKeepLoud);
+        tvStorage = findViewById(R.id.tvStorage);
+
+        rgOutputFormat = findViewById(R.id.rgOutputFormat);
+
+        rgDurability = findViewById(R.id.rgDurability);
+        sbSyncSec = findViewById(R.id.sbSyncSec);
+        tvSyncValue = findViewById(R.id.tvSyncValue);
+        tvWriteStats = findViewById(R.id.tvWriteStats);
+
+        rgSampleRate = findViewById(R.id.rgSampleRate);
+        cbStereo = findViewById(R.id.cbStereo);
+        cbFloatCapture = findViewById(R.id.cbFloatCapture);
+        cbNativeCapture = findViewById(R.id.cbNativeCapture);
+
+        // la barra va da LevelScale.MIN_DB a 0 dBFS
+        int threshold = thresholdDbfs(prefs);
+        sbThreshold.setProgress(threshold - (int) LevelScale.MIN_DB);
+        tvThresholdValue.setText(threshold + " dBFS");
         meterPreview.setThresholdDb(threshold);
 
+        cbAutoThreshold.setChecked(prefs.getBoolean("auto_threshold", false));
+        int margin = prefs.getInt("threshold_margin_db", (int) NoiseFloorTracker.DEFAULT_MARGIN_DB);
+        sbMargin.setProgress(margin);
+        tvMarginValue.setText(margin + " dB");
+
+        cbVoiceGate.setChecked(prefs.getBoolean("voice_gate", false));
+        updateThresholdControls();
+        cbVoiceGate.setOnCheckedChangeListener((b, checked) -> updateThresholdControls());
+        cbAutoThreshold.setOnCheckedChangeListener((b, checked) -> updateThresholdControls());
+
         int frame = prefs.getInt("frame_sec", 30);
         sbFrame.setProgress(frame);
         tvFrameValue.setText(frame + " s");
@@ -63,11 +184,72 @@ public class SettingsActivity extends AppCompatActivity {
         sbSilenceCut.setProgress(silence);
         tvSilenceValue.setText(silence + " s");
 
+        int preRoll = prefs.getInt("preroll_sec", 5);
+        sbPreRoll.setProgress(preRoll);
+        tvPreRollValue.setText(preRoll + " s");
+
+        int waveform = prefs.getInt("waveform_min", DEFAULT_WAVEFORM_MIN);
+        sbWaveform.setProgress(waveform);
+        tvWaveformValue.setText(waveform + " min");
+
+        int quota = prefs.getInt("quota_gb", 0);
+        sbQuota.setProgress(quota);
+        tvQuotaValue.setText(quotaText(quota));
+        int maxAge = prefs.getInt("max_age_days", 0);
+        sbMaxAge.setProgress(maxAge);
+        tvMaxAgeValue.setText(maxAgeText(maxAge));
+        cbKeepLoud.setChecked(prefs.getBoolean("keep_loud", true));
+        showStorage();
+
+        String outputFormat = prefs.getString("output_format",
+                prefs.getBoolean("stream_encode", true) ? "m4a_stream" : "m4a");
+        if ("wav".equals(outputFormat)) rgOutputFormat.check(R.id.rbWav);
+        else if ("flac".equals(outputFormat)) rgOutputFormat.check(R.id.rbFlac);
+        else if ("m4a".equals(outputFormat)) rgOutputFormat.check(R.id.rbM4a);
+        else rgOutputFormat.check(R.id.rbM4aStream);
+
+        DurabilityPolicy durability = durabilityPolicy(prefs);
+        if (durability.mode == DurabilityPolicy.Mode.COALESCED) rgDurability.check(R.id.rbDurCoalesced);
+        else if (durability.mode == DurabilityPolicy.Mode.SEGMENT_END) rgDurability.check(R.id.rbDurSegmentEnd);
+        else rgDurability.check(R.id.rbDurInterval);
+        int syncSec = prefs.getInt("sync_sec", DurabilityPolicy.DEFAULT_SYNC_SEC);
+        sbSyncSec.setProgress(syncSec);
+        tvSyncValue.setText(syncSec + " s");
+        DurabilityPolicy.Stats writes = RecordingService.getWriteStats();
+        if (writes.getWrites() > 0) {
+            tvWriteStats.setText(String.format(Locale.US, "Scritture medie %.1f kB, sync medio %.1f ms (max %.1f ms)",
+                    writes.getAverageBytesPerWrite() / 1024.0, writes.getAverageForceMicros() / 1000.0,
+                    writes.getMaxForceMicros() / 1000.0));
+        }
+
+        CaptureFormat format = captureFormat(prefs);
+        switch (format.outputRate) {
+            case 16000: rgSampleRate.check(R.id.rbRate16k); break;
+            case 22050: rgSampleRate.check(R.id.rbRate22k); break;
+            case 48000: rgSampleRate.check(R.id.rbRate48k); break;
+            default: rgSampleRate.check(R.id.rbRate44k); break;
+        }
+        cbStereo.setChecked(format.outputChannels == 2);
+        cbFloatCapture.setChecked(format.floatCapture);
+        cbNativeCapture.setChecked(prefs.getBoolean("native_capture", false));
+
         sbThreshold.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                tvThresholdValue.setText(progress + " dB");
-                meterPreview.setThresholdDb(progress);
+                int db = progress + (int) LevelScale.MIN_DB;
+                tvThresholdValue.setText(db + " dBFS");
+                meterPreview.setThresholdDb(db);
+            }
+
+            @Override public void onStartTrackingTouch(SeekBar seekBar) {}
+            @Override public void onStopTrackingTouch(SeekBar seekBar) {}
+        });
+
+        sbMargin.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                tvMarginValue.setText(progress + " dB");
+                previewFloor.marginDb = progress;
             }
 
             @Override public void onStartTrackingTouch(SeekBar seekBar) {}
@@ -105,10 +287,83 @@ public class SettingsActivity extends AppCompatActivity {
             @Override public void onStopTrackingTouch(SeekBar seekBar) {}
         });
 
+        sbPreRoll.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                tvPreRollValue.setText(progress + " s");
+            }
+            @Override public void onStartTrackingTouch(SeekBar seekBar) {}
+            @Override public void onStopTrackingTouch(SeekBar seekBar) {}
+        });
+
+        sbWaveform.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                int val = Math.max(1, progress);
+                tvWaveformValue.setText(val + " min");
+            }
+            @Override public void onStartTrackingTouch(SeekBar seekBar) {}
+            @Override public void onStopTrackingTouch(SeekBar seekBar) {}
+        });
+
+        sbSyncSec.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                tvSyncValue.setText(Math.max(1, progress) + " s");
+            }
+            @Override public void onStartTrackingTouch(SeekBar seekBar) {}
+            @Override public void onStopTrackingTouch(SeekBar seekBar) {}
+        });
+
+        sbQuota.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                tvQuotaValue.setText(quotaText(progress));
+            }
+            @Override public void onStartTrackingTouch(SeekBar seekBar) {}
+            @Override public void onStopTrackingTouch(SeekBar seekBar) {}
+        });
+
+        sbMaxAge.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                tvMaxAgeValue.setText(maxAgeText(progress));
+            }
+            @Override public void onStartTrackingTouch(SeekBar seekBar) {}
+            @Override public void onStopTrackingTouch(SeekBar seekBar) {}
+        });
+
 
         startPreviewMic();
     }
 
+    private static String quotaText(int gb) {
+        return gb == 0 ? "nessun limite" : gb + " GB";
+    }
+
+    private static String maxAgeText(int days) {
+        return days == 0 ? "nessun limite" : days + " giorni";
+    }
+
+    private static String formatBytes(long bytes) {
+        return String.format(Locale.US, "%.2f GB", bytes / (double) (1L << 30));
+    }
+
+    /** Usage from the catalog, read off the main thread the first time it is opened. */
+    private void showStorage() {
+        new Thread(() -> {
+            StorageQuotaManager storage = RecordingService.getStorage(this);
+            if (storage == null) return;
+            long used = storage.getUsedBytes();
+            long headroom = storage.getHeadroomBytes();
+            String text = "Occupati " + formatBytes(used)
+                    + (headroom == Long.MAX_VALUE ? "" : headroom >= 0
+                    ? ", " + formatBytes(headroom) + " al limite" : ", " + formatBytes(-headroom) + " oltre il limite")
+                    + " - segmenti eliminati: " + storage.getEvictedCount();
+            runOnUiThread(() -> tvStorage.setText(text));
+        }, "storage").start();
+    }
+
     @Override
     public boolean onOptionsItemSelected(@NonNull MenuItem item) {
         if (item.getItemId() == android.R.id.home) {
@@ -120,10 +375,34 @@ public class SettingsActivity extends AppCompatActivity {
 
     private void saveAndExit() {
         SharedPreferences.Editor e = prefs.edit();
-        e.putInt("threshold_db", sbThreshold.getProgress());
+        e.remove("threshold_db"); // vecchia soglia in percentuale
+        e.putInt("threshold_dbfs", sbThreshold.getProgress() + (int) LevelScale.MIN_DB);
+        e.putBoolean("auto_threshold", cbAutoThreshold.isChecked());
+        e.putInt("threshold_margin_db", sbMargin.getProgress());
+        e.putBoolean("voice_gate", cbVoiceGate.isChecked());
         e.putInt("frame_sec", sbFrame.getProgress());
         e.putInt("silence_cut", sbSilenceCut.getProgress());
+        e.putInt("preroll_sec", sbPreRoll.getProgress());
+        e.putInt("waveform_min", Math.max(1, sbWaveform.getProgress()));
+        e.putInt("quota_gb", sbQuota.getProgress());
+        e.putInt("max_age_days", sbMaxAge.getProgress());
+        e.putBoolean("keep_loud", cbKeepLoud.isChecked());
+        int checked = rgOutputFormat.getCheckedRadioButtonId();
+        int rateId = rgSampleRate.getCheckedRadioButtonId();
+        e.putInt("output_rate", rateId == R.id.rbRate16k ? 16000 : rateId == R.id.rbRate22k ? 22050
+                : rateId == R.id.rbRate48k ? 48000 : 44100);
+        e.putInt("output_channels", cbStereo.isChecked() ? 2 : 1);
+        e.putBoolean("capture_float", cbFloatCapture.isChecked());
+        e.putBoolean("native_capture", cbNativeCapture.isChecked());
+        e.putString("output_format", checked == R.id.rbWav ? "wav" : checked == R.id.rbFlac ? "flac" : checked == R.id.rbM4a ? "m4a" : "m4a_stream");
+        int durability = rgDurability.getCheckedRadioButtonId();
+        e.putString("durability", durability == R.id.rbDurCoalesced ? "coalesced"
+                : durability == R.id.rbDurSegmentEnd ? "segment_end" : "interval");
+        e.putInt("sync_sec", Math.max(1, sbSyncSec.getProgress()));
         e.apply();
+        // la nuova politica vale subito, anche a registrazione ferma
+        StorageQuotaManager storage = RecordingService.getStorage(this);
+        if (storage != null) storage.setPolicy(storagePolicy(prefs));
         finish();
     }
 
@@ -135,45 +414,60 @@ public class SettingsActivity extends AppCompatActivity {
 
     @RequiresPermission(Manifest.permission.RECORD_AUDIO)
     private void startPreviewMic() {
-        int sampleRate = 44100;
-        int channelConfig = AudioFormat.CHANNEL_IN_MONO;
-        int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
-        int bufSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat);
-
-        previewRecorder = new AudioRecord(MediaRecorder.AudioSource.MIC,
-                sampleRate, channelConfig, audioFormat, bufSize);
+        // la stessa cattura del service: se sta registrando non si apre un secondo microfono
+        try {
+            previewInput = SharedCapture.get(this).subscribe();
+        } catch (IOException e) {
+            Log.e("SettingsActivity", "preview mic", e);
+            return;
+        }
+        final BroadcastRing.Cursor input = previewInput;
+        previewFloor = new NoiseFloorTracker(input.getSampleRate());
+        previewFloor.marginDb = sbMargin.getProgress();
 
         previewRunning = true;
-        previewRecorder.startRecording();
-
         previewThread = new Thread(() -> {
-            short[] buffer = new short[1024];
+            short[] buffer = new short[input.blockSize()];
             while (previewRunning) {
-                int read = previewRecorder.read(buffer, 0, buffer.length);
+                int read = input.take(buffer, 0, PREVIEW_WAIT_NANOS);
+                if (read < 0) break;
                 if (read > 0) {
-                    double rms = 0;
-                    for (int i = 0; i < read; i++) {
-                        rms += buffer[i] * buffer[i];
-                    }
-                    rms = Math.sqrt(rms / read);
-
-                    // normalizza su 0..1 rispetto al massimo possibile (32768)
-                                        float level = (float) (rms / 32768.0);
-
-                    // opzionale: calcolo in dB solo per testo/debug
-                    double db = 20 * Math.log10(rms / 32768.0 + 1e-6);
-
-                    runOnUiThread(() -> {
-                        meterPreview.setLevel(level);
-                        tvThresholdValue.setText(String.format("%.1f dB", db)); // debug
-                    });
-
+                    float level = RecordingEngine.rmsLevel(buffer, read);
+                    previewLevel = level;
+                    previewFloor.update(LevelScale.toDb(level), read / input.getChannels());
+                    // al più un aggiornamento per frame, non uno per blocco
+                    if (previewPosted.compareAndSet(false, true)) meterPreview.postOnAnimation(showPreview);
                 }
             }
         });
         previewThread.start();
     }
 
+    private void updateThresholdControls() {
+        boolean level = !cbVoiceGate.isChecked();
+        boolean auto = cbAutoThreshold.isChecked();
+        cbAutoThreshold.setEnabled(level);
+        sbThreshold.setEnabled(level && !auto);
+        sbMargin.setEnabled(level && auto);
+        if (auto) {
+            showAutoThreshold();
+        } else {
+            int db = sbThreshold.getProgress() + (int) LevelScale.MIN_DB;
+            tvThresholdValue.setText(db + " dBFS");
+            meterPreview.setThresholdDb(db);
+            meterPreview.setNoiseFloorDb(Float.NaN);
+        }
+    }
+
+    /** Threshold and floor the service would use right now, from the preview level. */
+    private void showAutoThreshold() {
+        float threshold = previewFloor.getThresholdDb();
+        float floor = previewFloor.getNoiseFloorDb();
+        tvThresholdValue.setText(String.format(Locale.US, "auto: %.0f dBFS (rumore %.0f dBFS)", threshold, floor));
+        meterPreview.setThresholdDb(threshold);
+        meterPreview.setNoiseFloorDb(floor);
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -186,10 +480,9 @@ public class SettingsActivity extends AppCompatActivity {
             try { previewThread.join(300); } catch (InterruptedException ignored) {}
             previewThread = null;
         }
-        if (previewRecorder != null) {
-            previewRecorder.stop();
-            previewRecorder.release();
-            previewRecorder = null;
+        if (previewInput != null) {
+            previewInput.close();
+            previewInput = null;
         }
     }
 
@@ -0,0 +1,25 @@
+package org.birroph.continuousrec;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * The process-wide {@link CaptureEngine} on the microphone: the recording service and the
+ * settings preview subscribe to it instead of each opening an AudioRecord.
+ */
+final class SharedCapture {
+    private static CaptureEngine capture;
+
+    private SharedCapture() {
+    }
+
+    static synchronized CaptureEngine get(Context context) {
+        if (capture == null) {
+            final SharedPreferences prefs = context.getApplicationContext()
+                    .getSharedPreferences(SettingsActivity.PREFS, Context.MODE_PRIVATE);
+            // il formato si rilegge a ogni apertura: vale l'ultimo salvato nelle impostazioni
+            capture = new CaptureEngine(() -> MicAudioSource.open(SettingsActivity.captureFormat(prefs)));
+        }
+        return capture;
+    }
+}
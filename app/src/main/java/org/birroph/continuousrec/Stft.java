@@ -0,0 +1,138 @@
+package org.birroph.continuousrec;
+
+import java.util.Arrays;
+
+/**
+ * Short-time Fourier transform over the engine's block stream.
+ * <p>
+ * Blocks of interleaved 16-bit samples of any length go in through {@link #process};
+ * they are downmixed to mono and, every {@code hop} samples, the last {@code fftSize}
+ * are windowed and transformed with a {@link RealFft}. The listener gets the packed
+ * spectrum (see {@link RealFft}) and may modify it in place.
+ * <p>
+ * With resynthesis enabled the (possibly modified) frames are transformed back and
+ * overlap-added with a square-root Hann on both sides, so an untouched spectrum gives
+ * back the input delayed by {@link #latency()} samples. Without it the analysis window
+ * is a plain Hann. Either way nothing is allocated after construction.
+ */
+public final class Stft {
+
+    public interface FrameListener {
+        /**
+         * Called for every frame with its packed spectrum. {@code startFrame} is the
+         * stream position of the first sample in the frame; the first frames start before
+         * 0 and are padded with silence.
+         */
+        void onFrame(float[] spectrum, long startFrame);
+    }
+
+    private final RealFft fft;
+    private final int size;
+    private final int hop;
+    private final int channels;
+    private final boolean resynthesize;
+    private final FrameListener listener;
+    private final float[] window;
+    private final float[] input;
+    private final float[] frame;
+    private final float[] overlap;
+    private final float olaScale;
+    private int fill;
+    private long position = 0;
+
+    public Stft(int fftSize, int hop, int channels, boolean resynthesize, FrameListener listener) {
+        if (hop <= 0 || hop > fftSize || fftSize % hop != 0) {
+            throw new IllegalArgumentException("hop must divide the FFT size: " + hop + "/" + fftSize);
+        }
+        if (resynthesize && hop > fftSize / 2) throw new IllegalArgumentException("resynthesis needs 50% overlap or more");
+        this.fft = new RealFft(fftSize);
+        this.size = fftSize;
+        this.hop = hop;
+        this.channels = channels;
+        this.resynthesize = resynthesize;
+        this.listener = listener;
+        this.window = new float[fftSize];
+        float[] hann = fft.hannWindow();
+        double sum = 0;
+        for (int i = 0; i < fftSize; i++) {
+            window[i] = resynthesize ? (float) Math.sqrt(hann[i]) : hann[i];
+            sum += (double) window[i] * window[i];
+        }
+        // finestre in analisi e sintesi: la loro somma sovrapposta vale sum / hop
+        this.olaScale = (float) (hop / sum);
+        this.input = new float[fftSize];
+        this.frame = new float[fftSize];
+        this.overlap = resynthesize ? new float[fftSize] : null;
+        reset();
+    }
+
+    public Stft(int fftSize, int hop, int channels, FrameListener listener) {
+        this(fftSize, hop, channels, false, listener);
+    }
+
+    public RealFft getFft() {
+        return fft;
+    }
+
+    public int getHop() {
+        return hop;
+    }
+
+    /** Delay of the resynthesized output relative to the input, in samples. */
+    public int latency() {
+        return size - hop;
+    }
+
+    public void reset() {
+        Arrays.fill(input, 0f);
+        if (overlap != null) Arrays.fill(overlap, 0f);
+        fill = size - hop;
+        position = 0;
+    }
+
+    /** Analysis only. */
+    public void process(short[] block, int length) {
+        process(block, length, null);
+    }
+
+    /**
+     * Feeds {@code length} interleaved samples. With resynthesis, every completed hop
+     * appends {@code hop} mono samples to {@code out}, which must hold
+     * {@code length / channels + hop}; returns how many were written.
+     */
+    public int process(short[] block, int length, float[] out) {
+        final float scale = 1f / (32768f * channels);
+        int frames = length / channels;
+        int written = 0;
+        for (int f = 0, k = 0; f < frames; f++) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) sum += block[k++];
+            input[fill++] = sum * scale;
+            position++;
+            if (fill == size) {
+                written += runFrame(out, written);
+                System.arraycopy(input, hop, input, 0, size - hop);
+                fill = size - hop;
+            }
+        }
+        return written;
+    }
+
+    private int runFrame(float[] out, int outOffset) {
+        for (int i = 0; i < size; i++) frame[i] = input[i] * window[i];
+        fft.forward(frame);
+        listener.onFrame(frame, position - size);
+        if (!resynthesize) return 0;
+
+        fft.inverse(frame);
+        for (int i = 0; i < size; i++) overlap[i] += frame[i] * window[i] * olaScale;
+        int n = 0;
+        if (out != null) {
+            System.arraycopy(overlap, 0, out, outOffset, hop);
+            n = hop;
+        }
+        System.arraycopy(overlap, hop, overlap, 0, size - hop);
+        Arrays.fill(overlap, size - hop, size, 0f);
+        return n;
+    }
+}
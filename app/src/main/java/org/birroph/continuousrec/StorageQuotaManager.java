@@ -0,0 +1,192 @@
+package org.birroph.continuousrec;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps the saved segments within a byte quota and a maximum age, deleting the oldest
+ * first; loud segments can be made to age more slowly, so they outlive quiet ones.
+ * <p>
+ * Everything is decided from the {@link SegmentCatalog}: sizes and ages come from its
+ * entries, usage from its running total, so the output directory is never listed. A
+ * low-priority thread evicts one segment at a time (files, sidecar, then the catalog
+ * entry) while the policy wants it, then parks until {@link #poke()} or a periodic
+ * wake-up for the age limit. {@code poke()} does not lock: call it from anywhere.
+ */
+public class StorageQuotaManager implements AutoCloseable {
+    static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+    /** -12 dBFS. */
+    public static final float DEFAULT_LOUD_PEAK = 0.25f;
+    public static final int DEFAULT_LOUD_FACTOR = 4;
+
+    /** What to keep. A limit of 0 means no limit. */
+    public static final class Policy {
+        public final long quotaBytes;
+        public final long maxAgeMs;
+        /** Peak, 0..1 of full scale, from which a segment counts as loud. */
+        public final float loudPeak;
+        /** Loud segments age this many times slower (1: like the others). */
+        public final int loudFactor;
+
+        public Policy(long quotaBytes, long maxAgeMs, float loudPeak, int loudFactor) {
+            if (loudFactor < 1) throw new IllegalArgumentException("loudFactor " + loudFactor);
+            this.quotaBytes = quotaBytes;
+            this.maxAgeMs = maxAgeMs;
+            this.loudPeak = loudPeak;
+            this.loudFactor = loudFactor;
+        }
+
+        /** Age of {@code e} as eviction sees it: since its end, slowed down if loud. */
+        public long effectiveAgeMs(SegmentCatalog.Entry e, long nowMs) {
+            long age = nowMs - e.endWallMs;
+            return e.peak >= loudPeak ? age / loudFactor : age;
+        }
+    }
+
+    private final SegmentCatalog catalog;
+    private final LongSupplier wallClock;
+    private volatile Policy policy;
+    private final AtomicBoolean poked = new AtomicBoolean();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+    private volatile IOException lastError;
+    private volatile boolean running = false;
+    private volatile Thread thread;
+
+    public StorageQuotaManager(SegmentCatalog catalog, Policy policy, LongSupplier wallClock) {
+        this.catalog = catalog;
+        this.policy = policy;
+        this.wallClock = wallClock;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this::run, "eviction");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (running) {
+            poked.set(false);
+            while (running && evictOne()) {
+                // un segmento alla volta, il resto del sistema ha la precedenza
+                Thread.yield();
+            }
+            if (running && !poked.get()) LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+    }
+
+    /** Wakes the eviction thread: a segment was added, or the policy changed. */
+    public void poke() {
+        poked.set(true);
+        Thread t = thread;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+        poke();
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Evicts the segment with the largest {@link Policy#effectiveAgeMs effective age}, if
+     * the quota is exceeded or that age is past the limit. Within the quiet segments and
+     * within the loud ones that is the oldest, so only those two are compared, however
+     * many loud segments come first. Returns false if nothing is due (or the catalog
+     * could not be written, see {@link #getLastError()}).
+     */
+    public boolean evictOne() {
+        Policy p = policy;
+        long now = wallClock.getAsLong();
+        SegmentCatalog.Entry quiet = catalog.oldest(false, p.loudPeak);
+        SegmentCatalog.Entry loud = catalog.oldest(true, p.loudPeak);
+        SegmentCatalog.Entry victim;
+        if (quiet == null || loud == null) victim = quiet != null ? quiet : loud;
+        else victim = p.effectiveAgeMs(loud, now) > p.effectiveAgeMs(quiet, now) ? loud : quiet;
+        if (victim == null) return false;
+        long victimAge = p.effectiveAgeMs(victim, now);
+        boolean overQuota = p.quotaBytes > 0 && catalog.getTotalBytes() > p.quotaBytes;
+        boolean expired = p.maxAgeMs > 0 && victimAge > p.maxAgeMs;
+        if (!overQuota && !expired) return false;
+        try {
+            evict(victim);
+            return true;
+        } catch (IOException e) {
+            lastError = e;
+            return false;
+        }
+    }
+
+    /**
+     * Files first, then the catalog: a crash in between leaves an entry to evict again,
+     * never a lost file. A file that cannot be deleted (say, left by a previous install)
+     * leaves the catalog all the same, or it would be the victim forever; the failure
+     * ends up in {@link #getLastError()}.
+     */
+    private void evict(SegmentCatalog.Entry e) throws IOException {
+        File file = e.getFile();
+        boolean deleted = file.delete() || !file.exists();
+        PeakPyramid.sidecarFor(file).delete();
+        boolean removed = catalog.remove(e);
+        if (!deleted) {
+            lastError = new IOException("cannot delete " + file);
+        } else if (removed) {
+            evictedCount.incrementAndGet();
+            evictedBytes.addAndGet(e.bytes);
+        }
+    }
+
+    /** Bytes used by the saved segments. */
+    public long getUsedBytes() {
+        return catalog.getTotalBytes();
+    }
+
+    /** Bytes left before the quota (negative when over it); Long.MAX_VALUE without a quota. */
+    public long getHeadroomBytes() {
+        Policy p = policy;
+        return p.quotaBytes > 0 ? p.quotaBytes - catalog.getTotalBytes() : Long.MAX_VALUE;
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    /** Stops the eviction thread and waits for it. */
+    @Override
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
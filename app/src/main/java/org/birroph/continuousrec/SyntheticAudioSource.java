@@ -0,0 +1,295 @@
+package org.birroph.continuousrec;
+
+import java.util.Arrays;
+
+/**
+ * Generated signal for off-device runs: a program of tones, noise and silence,
+ * optionally looped, delivered as fast as the engine asks for it.
+ * <pre>
+ *   new SyntheticAudioSource(16000, 1, 42)
+ *       .tone(10, 440, 0.8f)
+ *       .silence(290)
+ *       .loopFor(24 * 3600);
+ * </pre>
+ * Tones use a wavetable and noise a xorshift generator, so producing samples costs
+ * far less than processing them.
+ */
+public class SyntheticAudioSource implements AudioSource {
+    private static final int TONE = 0;
+    private static final int NOISE = 1;
+    private static final int SILENCE = 2;
+    private static final int COUNTER = 3;
+    private static final int SPEECH = 4;
+    private static final int RUMBLE = 5;
+
+    // formanti F1..F3 (Hz) di a, e, i, o, u
+    private static final float[][] VOWELS = {
+            {700, 1220, 2600}, {500, 1900, 2500}, {300, 2300, 3000}, {500, 900, 2400}, {320, 800, 2300}};
+    private static final float[] FORMANT_BW = {80, 100, 120};
+    private static final float[] FORMANT_WEIGHT = {1f, 0.5f, 0.25f};
+
+    private static final int TABLE_BITS = 12;
+    private static final float[] SINE = new float[1 << TABLE_BITS];
+
+    static {
+        for (int i = 0; i < SINE.length; i++) {
+            SINE[i] = (float) Math.sin(2 * Math.PI * i / SINE.length);
+        }
+    }
+
+    private final int sampleRate;
+    private final int channels;
+
+    private int parts = 0;
+    private int[] types = new int[8];
+    private long[] lengths = new long[8];
+    private float[] freqs = new float[8];
+    private float[] amps = new float[8];
+    private long totalFrames = -1; // -1 = il programma una volta sola
+
+    private int part = 0;
+    private long partPos = 0;
+    private long framesOut = 0;
+    private int phase = 0;
+    private long rng;
+
+    // stato del parlato sintetico e del rombo
+    private boolean voiced = false;
+    private long syllableLeft = 0;
+    private long syllableLength = 1;
+    private double glottalPhase = 0;
+    private final double[] resonator = new double[3 * 5]; // per formante: g, a1, a2, y1, y2
+    private double rumbleState = 0;
+
+    public SyntheticAudioSource(int sampleRate, int channels, long seed) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.rng = seed == 0 ? 0x9E3779B97F4A7C15L : seed;
+    }
+
+    public SyntheticAudioSource tone(double seconds, float freqHz, float amplitude) {
+        return add(TONE, seconds, freqHz, amplitude);
+    }
+
+    public SyntheticAudioSource noise(double seconds, float amplitude) {
+        return add(NOISE, seconds, 0, amplitude);
+    }
+
+    /**
+     * Speech-like signal: syllables of a pulse train at 110-140 Hz through three vowel
+     * formants, with pauses in between. Enough structure (pitch, formants, syllable
+     * rhythm) to exercise voice detection, not meant to be intelligible.
+     */
+    public SyntheticAudioSource speech(double seconds, float amplitude) {
+        return add(SPEECH, seconds, 0, amplitude);
+    }
+
+    /** Low-frequency noise below about {@code cutoffHz}, like traffic or HVAC rumble. */
+    public SyntheticAudioSource rumble(double seconds, float cutoffHz, float amplitude) {
+        return add(RUMBLE, seconds, cutoffHz, amplitude);
+    }
+
+    public SyntheticAudioSource silence(double seconds) {
+        return add(SILENCE, seconds, 0, 0);
+    }
+
+    /**
+     * Every sample is the index of its frame, truncated to 16 bits: lets tests check
+     * that nothing is lost or repeated downstream.
+     */
+    public SyntheticAudioSource counter(double seconds) {
+        return add(COUNTER, seconds, 0, 0);
+    }
+
+    /** Repeats the program until {@code seconds} of audio have been produced. */
+    public SyntheticAudioSource loopFor(double seconds) {
+        totalFrames = Math.round(seconds * sampleRate);
+        return this;
+    }
+
+    private SyntheticAudioSource add(int type, double seconds, float freq, float amp) {
+        if (parts == types.length) {
+            types = Arrays.copyOf(types, parts * 2);
+            lengths = Arrays.copyOf(lengths, parts * 2);
+            freqs = Arrays.copyOf(freqs, parts * 2);
+            amps = Arrays.copyOf(amps, parts * 2);
+        }
+        types[parts] = type;
+        lengths[parts] = Math.round(seconds * sampleRate);
+        freqs[parts] = freq;
+        amps[parts] = amp;
+        parts++;
+        return this;
+    }
+
+    /** Frames the source will produce in total. */
+    public long getTotalFrames() {
+        if (totalFrames >= 0) return totalFrames;
+        long sum = 0;
+        for (int i = 0; i < parts; i++) sum += lengths[i];
+        return sum;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public void start() {
+        part = 0;
+        partPos = 0;
+        framesOut = 0;
+        phase = 0;
+        voiced = false;
+        syllableLeft = 0;
+        glottalPhase = 0;
+        Arrays.fill(resonator, 0);
+        rumbleState = 0;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length) {
+        int frames = length / channels;
+        int done = 0;
+        while (done < frames) {
+            if (totalFrames >= 0 && framesOut >= totalFrames) break;
+            if (part >= parts) {
+                if (totalFrames < 0 || parts == 0) break;
+                part = 0;
+            }
+            long left = lengths[part] - partPos;
+            if (left <= 0) {
+                part++;
+                partPos = 0;
+                continue;
+            }
+            int n = (int) Math.min(frames - done, left);
+            if (totalFrames >= 0) n = (int) Math.min(n, totalFrames - framesOut);
+            fill(buffer, offset + done * channels, n);
+            done += n;
+            partPos += n;
+            framesOut += n;
+        }
+        if (done == 0 && frames > 0) return -1;
+        return done * channels;
+    }
+
+    private void fill(short[] out, int offset, int frames) {
+        int type = types[part];
+        float amp = amps[part] * 32767f;
+        int end = offset + frames * channels;
+        if (type == SILENCE) {
+            Arrays.fill(out, offset, end, (short) 0);
+        } else if (type == COUNTER) {
+            long f = framesOut;
+            for (int i = offset; i < end; i += channels, f++) {
+                for (int c = 0; c < channels; c++) out[i + c] = (short) f;
+            }
+        } else if (type == SPEECH) {
+            fillSpeech(out, offset, end, amp);
+        } else if (type == RUMBLE) {
+            double a = 1 - Math.exp(-2 * Math.PI * freqs[part] / sampleRate);
+            // compensa la perdita di potenza del passa-basso sul rumore bianco
+            double gain = amp * Math.sqrt((2 - a) / a);
+            double y = rumbleState;
+            for (int i = offset; i < end; i += channels) {
+                y += a * (nextUniform() - y);
+                short s = clip(y * gain);
+                for (int c = 0; c < channels; c++) out[i + c] = s;
+            }
+            rumbleState = y;
+        } else if (type == TONE) {
+            int inc = (int) ((long) (freqs[part] * 4294967296.0 / sampleRate));
+            int p = phase;
+            for (int i = offset; i < end; i += channels) {
+                short s = (short) (SINE[p >>> (32 - TABLE_BITS)] * amp);
+                for (int c = 0; c < channels; c++) out[i + c] = s;
+                p += inc;
+            }
+            phase = p;
+        } else {
+            long x = rng;
+            for (int i = offset; i < end; i += channels) {
+                x ^= x << 13;
+                x ^= x >>> 7;
+                x ^= x << 17;
+                // uniforme in [-1, 1)
+                float u = (int) (x >>> 40) / (float) (1 << 23) - 1f;
+                short s = (short) (u * amp);
+                for (int c = 0; c < channels; c++) out[i + c] = s;
+            }
+            rng = x;
+        }
+    }
+
+    private void fillSpeech(short[] out, int offset, int end, float amp) {
+        for (int i = offset; i < end; i += channels) {
+            if (syllableLeft <= 0) {
+                // alterna sillaba e pausa, durate casuali
+                voiced = !voiced;
+                double sec = voiced ? 0.12 + 0.18 * (nextUniform() + 1) / 2 : 0.05 + 0.15 * (nextUniform() + 1) / 2;
+                syllableLength = syllableLeft = Math.max(1, Math.round(sec * sampleRate));
+                if (voiced) setVowel(VOWELS[(int) ((nextUniform() + 1) / 2 * VOWELS.length) % VOWELS.length]);
+            }
+            long t = syllableLength - syllableLeft--;
+            double env = voiced ? Math.sin(Math.PI * t / syllableLength) : 0;
+
+            // impulsi glottali con un po' di intonazione, più un filo di aspirazione
+            long frame = framesOut + (i - offset) / channels;
+            double f0 = 125 + 15 * Math.sin(2 * Math.PI * 0.7 * frame / sampleRate);
+            glottalPhase += f0 / sampleRate;
+            double x = 0.02 * nextUniform();
+            if (glottalPhase >= 1) {
+                glottalPhase -= 1;
+                x += 1;
+            }
+            // formanti in parallelo, ciascuna normalizzata al suo picco
+            double y = 0;
+            for (int k = 0; k < 3; k++) {
+                int b = 5 * k;
+                double v = resonator[b] * x + resonator[b + 1] * resonator[b + 3] + resonator[b + 2] * resonator[b + 4];
+                resonator[b + 4] = resonator[b + 3];
+                resonator[b + 3] = v;
+                y += v * FORMANT_WEIGHT[k];
+            }
+            // un impulso per periodo: scala per avere picchi attorno ad amp
+            short s = clip(env * y * amp * sampleRate / (4 * f0));
+            for (int c = 0; c < channels; c++) out[i + c] = s;
+        }
+    }
+
+    private void setVowel(float[] formants) {
+        for (int k = 0; k < 3; k++) {
+            double r = Math.exp(-Math.PI * FORMANT_BW[k] / sampleRate);
+            double theta = 2 * Math.PI * Math.min(formants[k], 0.45f * sampleRate) / sampleRate;
+            resonator[5 * k] = (1 - r) * Math.sqrt(1 - 2 * r * Math.cos(2 * theta) + r * r);
+            resonator[5 * k + 1] = 2 * r * Math.cos(theta);
+            resonator[5 * k + 2] = -r * r;
+        }
+    }
+
+    private double nextUniform() {
+        long x = rng;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        rng = x;
+        return (int) (x >>> 40) / (double) (1 << 23) - 1;
+    }
+
+    private static short clip(double v) {
+        if (v > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (v < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) v;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,225 @@
+package org.birroph.continuousrec;
+
+/**
+ * Streaming voice activity detector, used as the gate instead of the RMS threshold.
+ * <p>
+ * Audio is analysed in 10 ms windows. A window counts as speech when it is
+ * <ul>
+ *   <li>loud enough: energy {@link #snrDb} above a tracked noise floor,</li>
+ *   <li>not flat: spectral flatness, estimated as the LPC prediction error over the
+ *       energy (about 1 for white noise such as fans, near 0 for voiced sound),</li>
+ *   <li>in the voice band: at least {@link #minVoiceBandRatio} of the energy above
+ *       {@link #VOICE_BAND_LOW_HZ} and a zero-crossing rate between {@link #minZcrHz}
+ *       and {@link #maxZcrHz}, which rules out rumble, hum and hiss.</li>
+ * </ul>
+ * The gate opens after {@link #attackWindows} speech windows in a row and stays open
+ * for {@link #hangoverMs} after the last one. Work per sample is constant and nothing
+ * is allocated after construction.
+ */
+public final class VoiceActivityDetector {
+    private static final int LPC_ORDER = 8;
+    private static final float MIN_DB = -70f;
+    /** How fast the noise floor may rise, so sustained speech does not become "noise". */
+    private static final float FLOOR_RISE_DB_PER_SEC = 3f;
+    public static final float VOICE_BAND_LOW_HZ = 200f;
+
+    public float snrDb = 9f;
+    public float maxFlatness = 0.3f;
+    public float minVoiceBandRatio = 0.6f;
+    public float minZcrHz = 150f;
+    public float maxZcrHz = 3500f;
+    public int attackWindows = 3;
+    public int hangoverMs = 400;
+
+    private final int sampleRate;
+    private final int channels;
+    private final int window;
+    private final float[] samples;
+    private final float[] hann;
+    private final float[] band; // finestra passata nel passa-alto
+    // biquad passa-alto Butterworth a VOICE_BAND_LOW_HZ
+    private final float hb0, hb1, hb2, ha1, ha2;
+    private float hx1, hx2, hy1, hy2;
+    private final double[] r = new double[LPC_ORDER + 1];
+    private final double[] a = new double[LPC_ORDER];
+    private final double[] tmp = new double[LPC_ORDER];
+    private final float floorRisePerWindow;
+
+    private int filled = 0;
+    private float noiseFloorDb = Float.NaN;
+    private int speechRun = 0;
+    private int hangoverLeft = 0;
+    private boolean open = false;
+
+    private float lastEnergyDb = MIN_DB;
+    private float lastFlatness = 1f;
+    private float lastZcrHz = 0f;
+    private float lastVoiceBandRatio = 0f;
+    private boolean lastSpeech = false;
+
+    public VoiceActivityDetector(int sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.window = Math.max(LPC_ORDER * 4, sampleRate / 100);
+        this.samples = new float[window];
+        this.hann = new float[window];
+        this.band = new float[window];
+        for (int i = 0; i < window; i++) {
+            hann[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (window - 1)));
+        }
+        this.floorRisePerWindow = FLOOR_RISE_DB_PER_SEC * window / sampleRate;
+
+        double w0 = 2 * Math.PI * VOICE_BAND_LOW_HZ / sampleRate;
+        double alpha = Math.sin(w0) / Math.sqrt(2);
+        double a0 = 1 + alpha;
+        hb0 = (float) ((1 + Math.cos(w0)) / 2 / a0);
+        hb1 = (float) (-(1 + Math.cos(w0)) / a0);
+        hb2 = hb0;
+        ha1 = (float) (-2 * Math.cos(w0) / a0);
+        ha2 = (float) ((1 - alpha) / a0);
+    }
+
+    /**
+     * Feeds one interleaved 16-bit block; returns true if the gate was open at any point
+     * during it.
+     */
+    public boolean process(short[] block, int length) {
+        boolean active = open;
+        int frames = length / channels;
+        final float scale = 1f / (32768f * channels);
+        for (int f = 0, k = 0; f < frames; f++) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) sum += block[k++];
+            float x = sum * scale;
+            float y = hb0 * x + hb1 * hx1 + hb2 * hx2 - ha1 * hy1 - ha2 * hy2;
+            hx2 = hx1;
+            hx1 = x;
+            hy2 = hy1;
+            hy1 = y;
+            band[filled] = y;
+            samples[filled++] = x;
+            if (filled == window) {
+                analyse();
+                filled = 0;
+                active |= open;
+            }
+        }
+        return active;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /** Back to the initial state, noise floor included. */
+    public void reset() {
+        filled = 0;
+        hx1 = hx2 = hy1 = hy2 = 0;
+        noiseFloorDb = Float.NaN;
+        speechRun = 0;
+        hangoverLeft = 0;
+        open = false;
+    }
+
+    private void analyse() {
+        // energia e zero crossing
+        double energy = 0;
+        double bandEnergy = 0;
+        int crossings = 0;
+        float prev = samples[0];
+        for (int i = 0; i < window; i++) {
+            float x = samples[i];
+            energy += x * x;
+            bandEnergy += band[i] * band[i];
+            if ((x >= 0) != (prev >= 0)) crossings++;
+            prev = x;
+        }
+        energy /= window;
+        float voiceBandRatio = energy > 0 ? (float) Math.min(1, bandEnergy / window / energy) : 0f;
+        float energyDb = (float) Math.max(MIN_DB, 10 * Math.log10(energy + 1e-12));
+        float zcrHz = crossings * (float) sampleRate / (2f * window);
+
+        // planarità spettrale come errore di predizione LPC / energia
+        for (int lag = 0; lag <= LPC_ORDER; lag++) {
+            double s = 0;
+            for (int i = lag; i < window; i++) s += (samples[i] * hann[i]) * (samples[i - lag] * hann[i - lag]);
+            r[lag] = s;
+        }
+        float flatness = 1f;
+        if (r[0] > 0) {
+            double err = r[0] * (1 + 1e-9); // piccolo rumore bianco per la stabilità
+            for (int i = 0; i < LPC_ORDER && err > 0; i++) {
+                double acc = r[i + 1];
+                for (int j = 0; j < i; j++) acc -= a[j] * r[i - j];
+                double k = acc / err;
+                System.arraycopy(a, 0, tmp, 0, i);
+                a[i] = k;
+                for (int j = 0; j < i; j++) a[j] = tmp[j] - k * tmp[i - 1 - j];
+                err *= 1 - k * k;
+            }
+            flatness = (float) Math.max(0, err / r[0]);
+        }
+
+        // pavimento di rumore: scende subito, sale lentamente
+        if (Float.isNaN(noiseFloorDb) || energyDb < noiseFloorDb) {
+            noiseFloorDb = energyDb;
+        } else {
+            noiseFloorDb += Math.min(energyDb - noiseFloorDb, floorRisePerWindow);
+        }
+
+        boolean speech = energyDb > MIN_DB + snrDb
+                && energyDb >= noiseFloorDb + snrDb
+                && flatness <= maxFlatness
+                && voiceBandRatio >= minVoiceBandRatio
+                && zcrHz >= minZcrHz && zcrHz <= maxZcrHz;
+
+        int hangoverWindows = hangoverMs * sampleRate / (1000 * window);
+        if (speech) {
+            speechRun++;
+            if (speechRun >= attackWindows) {
+                open = true;
+                hangoverLeft = hangoverWindows;
+            }
+        } else {
+            speechRun = 0;
+            if (open && --hangoverLeft <= 0) open = false;
+        }
+
+        lastEnergyDb = energyDb;
+        lastFlatness = flatness;
+        lastZcrHz = zcrHz;
+        lastVoiceBandRatio = voiceBandRatio;
+        lastSpeech = speech;
+    }
+
+    public float getNoiseFloorDb() {
+        return Float.isNaN(noiseFloorDb) ? MIN_DB : noiseFloorDb;
+    }
+
+    public float getLastEnergyDb() {
+        return lastEnergyDb;
+    }
+
+    public float getLastFlatness() {
+        return lastFlatness;
+    }
+
+    public float getLastZcrHz() {
+        return lastZcrHz;
+    }
+
+    /** Share of the last window's energy above {@link #VOICE_BAND_LOW_HZ}. */
+    public float getLastVoiceBandRatio() {
+        return lastVoiceBandRatio;
+    }
+
+    /** Decision of the last window alone, before attack and hangover. */
+    public boolean isLastWindowSpeech() {
+        return lastSpeech;
+    }
+
+    /** Samples per analysis window (per channel). */
+    public int getWindow() {
+        return window;
+    }
+}
@@ -0,0 +1,157 @@
+package org.birroph.continuousrec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Plays back a 16-bit WAV (or RF64) file, or a headerless PCM file with a given
+ * format, as fast as it is read.
+ */
+public class WavFileAudioSource implements AudioSource {
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final File file;
+    private final boolean raw;
+    private int sampleRate;
+    private int channels;
+
+    private FileChannel channel;
+    private long dataStart;
+    private long dataEnd;
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final ShortBuffer shorts = bytes.asShortBuffer();
+
+    /** WAV file, format taken from the header. */
+    public WavFileAudioSource(File wavFile) throws IOException {
+        this.file = wavFile;
+        this.raw = false;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            readHeader();
+        } finally {
+            close();
+        }
+    }
+
+    /** Raw little-endian 16-bit PCM. */
+    public WavFileAudioSource(File pcmFile, int sampleRate, int channels) {
+        this.file = pcmFile;
+        this.raw = true;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public void start() throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        if (raw) {
+            dataStart = 0;
+            dataEnd = channel.size();
+        }
+        channel.position(dataStart);
+        shorts.limit(0);
+    }
+
+    private void readHeader() throws IOException {
+        ByteBuffer hdr = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(hdr, 0);
+        boolean rf64 = hdr.getInt(0) == 0x34364652 /* RF64 */;
+        if ((hdr.getInt(0) != 0x46464952 /* RIFF */ && !rf64) || hdr.getInt(8) != 0x45564157 /* WAVE */) {
+            throw new IOException("not a WAV file: " + file);
+        }
+        long pos = 12;
+        boolean fmtSeen = false;
+        long ds64DataSize = -1;
+        ByteBuffer chunk = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        while (pos + 8 <= channel.size()) {
+            chunk.clear().limit(8);
+            readFully(chunk, pos);
+            int id = chunk.getInt(0);
+            long size = chunk.getInt(4) & 0xffffffffL;
+            if (id == 0x34367364 /* ds64 */ && rf64) {
+                chunk.clear().limit(16);
+                readFully(chunk, pos + 8);
+                ds64DataSize = chunk.getLong(8);
+            } else if (id == 0x20746d66 /* fmt */) {
+                chunk.clear().limit(16);
+                readFully(chunk, pos + 8);
+                int formatTag = chunk.getShort(0) & 0xffff;
+                channels = chunk.getShort(2);
+                sampleRate = chunk.getInt(4);
+                int bits = chunk.getShort(14);
+                if ((formatTag != 1 && formatTag != 0xfffe) || bits != 16) {
+                    throw new IOException("only 16-bit PCM WAV is supported");
+                }
+                fmtSeen = true;
+            } else if (id == 0x61746164 /* data */) {
+                if (!fmtSeen) throw new IOException("data before fmt chunk");
+                dataStart = pos + 8;
+                // RF64: la dimensione vera sta nel ds64
+                if (rf64 && size == 0xffffffffL && ds64DataSize >= 0) size = ds64DataSize;
+                dataEnd = Math.min(channel.size(), dataStart + size);
+                return;
+            }
+            pos += 8 + size + (size & 1);
+        }
+        throw new IOException("no data chunk in " + file);
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) throw new IOException("truncated WAV header");
+        }
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length) throws IOException {
+        if (!shorts.hasRemaining()) {
+            long left = dataEnd - channel.position();
+            if (left < 2) return -1;
+            bytes.clear();
+            if (left < bytes.capacity()) bytes.limit((int) left & ~1);
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes) < 0) break;
+            }
+            shorts.clear();
+            shorts.limit(bytes.position() / 2);
+            if (!shorts.hasRemaining()) return -1;
+        }
+        int n = Math.min(length, shorts.remaining());
+        shorts.get(buffer, offset, n);
+        return n;
+    }
+
+    /** Skips {@code samples} samples by moving the file position, without reading them. */
+    public void skip(long samples) throws IOException {
+        int buffered = (int) Math.min(samples, shorts.remaining());
+        shorts.position(shorts.position() + buffered);
+        samples -= buffered;
+        if (samples > 0) channel.position(Math.min(dataEnd, channel.position() + samples * 2));
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+}
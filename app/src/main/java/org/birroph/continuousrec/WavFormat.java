@@ -0,0 +1,127 @@
+package org.birroph.continuousrec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/** PCM WAV header and PCM-&gt;WAV conversion, plain Java. */
+public final class WavFormat {
+    public static final int HEADER_BYTES = 44;
+
+    /**
+     * Header written by streaming writers: RIFF, a 28-byte JUNK chunk, fmt, data.
+     * The JUNK chunk is the room a ds64 chunk needs, so a segment that grows past
+     * 4 GB is turned into RF64 by patching the header in place.
+     */
+    public static final int STREAM_HEADER_BYTES = 80;
+
+    /** Largest data chunk a plain RIFF header can describe. */
+    static final long MAX_RIFF_DATA = 0xffffffffL - (STREAM_HEADER_BYTES - 8);
+
+    private static final int DS64_BYTES = 28;
+
+    /** Bytes per transferTo call when copying PCM into the WAV. */
+    static final int DEFAULT_CHUNK_BYTES = 1 << 20;
+
+    private WavFormat() {
+    }
+
+    public static void convert(File pcmFile, File wavFile, int sampleRate, int channels, int bitsPerSample) throws IOException {
+        convert(pcmFile, wavFile, sampleRate, channels, bitsPerSample, DEFAULT_CHUNK_BYTES);
+    }
+
+    static void convert(File pcmFile, File wavFile, int sampleRate, int channels, int bitsPerSample, int chunkBytes) throws IOException {
+        try (FileChannel in = FileChannel.open(pcmFile.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(wavFile.toPath(),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long totalAudioLen = in.size();
+
+            ByteBuffer header = ByteBuffer.allocate(STREAM_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (totalAudioLen + 36 <= 0xffffffffL) {
+                putHeader(header, totalAudioLen, sampleRate, channels, bitsPerSample);
+            } else {
+                // oltre 4 GB i campi a 32 bit non bastano
+                putStreamHeader(header, totalAudioLen, sampleRate, channels, bitsPerSample);
+            }
+            header.flip();
+            while (header.hasRemaining()) out.write(header);
+
+            // copia del PCM senza passare dall'heap
+            long pos = 0;
+            while (pos < totalAudioLen) {
+                pos += in.transferTo(pos, Math.min(chunkBytes, totalAudioLen - pos), out);
+            }
+        }
+    }
+
+    /**
+     * Canonical 44-byte PCM WAV header, written at the buffer's position.
+     * Sizes are unsigned 32-bit; longer audio needs {@link #putStreamHeader}.
+     */
+    public static void putHeader(ByteBuffer buf, long totalAudioLen, int sampleRate, int channels, int bitsPerSample) {
+        if (totalAudioLen < 0 || totalAudioLen + 36 > 0xffffffffL) {
+            throw new IllegalArgumentException("too long for a RIFF header: " + totalAudioLen);
+        }
+        ByteOrder order = buf.order();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+        buf.putInt((int) (totalAudioLen + 36));
+        buf.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+        putFmt(buf, sampleRate, channels, bitsPerSample);
+        buf.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+        buf.putInt((int) totalAudioLen);
+        buf.order(order);
+    }
+
+    /**
+     * The {@link #STREAM_HEADER_BYTES}-byte header for {@code dataLen} bytes of audio:
+     * RIFF with a JUNK placeholder while the sizes fit in 32 bits, RF64 with a ds64
+     * chunk (EBU Tech 3306) beyond that. Both have the data at the same offset.
+     */
+    public static void putStreamHeader(ByteBuffer buf, long dataLen, int sampleRate, int channels, int bitsPerSample) {
+        ByteOrder order = buf.order();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        int blockAlign = channels * bitsPerSample / 8;
+        long riffLen = dataLen + STREAM_HEADER_BYTES - 8;
+        boolean rf64 = dataLen > MAX_RIFF_DATA;
+        if (rf64) {
+            buf.put((byte) 'R').put((byte) 'F').put((byte) '6').put((byte) '4');
+            buf.putInt(-1);
+        } else {
+            buf.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+            buf.putInt((int) riffLen);
+        }
+        buf.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+        if (rf64) {
+            buf.put((byte) 'd').put((byte) 's').put((byte) '6').put((byte) '4');
+            buf.putInt(DS64_BYTES);
+            buf.putLong(riffLen);
+            buf.putLong(dataLen);
+            buf.putLong(dataLen / Math.max(1, blockAlign)); // sample count
+            buf.putInt(0); // nessuna tabella di altri chunk
+        } else {
+            buf.put((byte) 'J').put((byte) 'U').put((byte) 'N').put((byte) 'K');
+            buf.putInt(DS64_BYTES);
+            for (int i = 0; i < DS64_BYTES; i++) buf.put((byte) 0);
+        }
+        putFmt(buf, sampleRate, channels, bitsPerSample);
+        buf.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+        buf.putInt(rf64 ? -1 : (int) dataLen);
+        buf.order(order);
+    }
+
+    private static void putFmt(ByteBuffer buf, int sampleRate, int channels, int bitsPerSample) {
+        int blockAlign = channels * bitsPerSample / 8;
+        buf.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+        buf.putInt(16);
+        buf.putShort((short) 1); // PCM format
+        buf.putShort((short) channels);
+        buf.putInt(sampleRate);
+        buf.putInt(sampleRate * blockAlign);
+        buf.putShort((short) blockAlign);
+        buf.putShort((short) bitsPerSample);
+    }
+}
@@ -0,0 +1,153 @@
+package org.birroph.continuousrec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a segment straight to a 16-bit WAV file, no temporary PCM and no copy.
+ * <p>
+ * A placeholder header goes out at open, samples are streamed after it, and on
+ * {@link #finish()} the sizes are patched in place; past 4 GB the header becomes RF64.
+ * Like {@link AacStreamWriter} it writes to a ".part" file renamed when complete, forced
+ * to storage before the rename and, on the way, as often as the {@link DurabilityPolicy} says.
+ */
+public class WavSegmentWriter implements SegmentWriter {
+    private final File outFile;
+    private final File partFile;
+    private final int sampleRate;
+    private final int channels;
+    private final PcmChannelWriter out;
+    private final DurabilityPolicy policy;
+    private final long syncSamples;
+    private long samplesWritten = 0;
+    private long lastSync = 0;
+
+    /** Forced only at finish, like {@link PcmSegmentWriter#PcmSegmentWriter(File)}: for offline writes. */
+    public WavSegmentWriter(File outFile, int sampleRate, int channels) throws IOException {
+        this(outFile, sampleRate, channels, DurabilityPolicy.segmentEnd(), null);
+    }
+
+    public WavSegmentWriter(File outFile, int sampleRate, int channels, DurabilityPolicy policy,
+                            DurabilityPolicy.Stats stats) throws IOException {
+        this.outFile = outFile;
+        this.policy = policy;
+        this.syncSamples = policy.syncSamples(sampleRate, channels);
+        this.partFile = new File(outFile.getPath() + ".part");
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+
+        FileChannel channel = FileChannel.open(partFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            writeHeader(channel, 0);
+            channel.position(WavFormat.STREAM_HEADER_BYTES);
+        } catch (IOException e) {
+            channel.close();
+            partFile.delete();
+            throw e;
+        }
+        this.out = new PcmChannelWriter(channel, policy.bufferBytes, stats);
+    }
+
+    @Override
+    public void write(short[] samples, int offset, int length) throws IOException {
+        out.write(samples, offset, length);
+        samplesWritten += length;
+        if (syncSamples > 0 && samplesWritten - lastSync >= syncSamples) {
+            out.force(policy.flushBeforeSync());
+            lastSync = samplesWritten;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public File finish() throws IOException {
+        try {
+            out.flush();
+            writeHeader(out.getChannel(), samplesWritten * 2);
+            out.force(false);
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+        out.close();
+        if (!partFile.renameTo(outFile)) {
+            throw new IOException("rename failed " + partFile);
+        }
+        return outFile;
+    }
+
+    @Override
+    public void abort() {
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+        partFile.delete();
+    }
+
+    @Override
+    public long getSamplesWritten() {
+        return samplesWritten;
+    }
+
+    @Override
+    public long getSamplesFlushed() {
+        return out.getBytesWritten() / 2;
+    }
+
+    @Override
+    public File getFile() {
+        return outFile;
+    }
+
+    /**
+     * Salvages the ".part" left by a writer that never finished (the process was killed):
+     * the header gets the size of the whole frames found on disk and the file is renamed
+     * to {@code outFile}. Returns the samples kept, or -1 if there is no ".part"; an empty
+     * one is deleted and counts as 0.
+     */
+    public static long recover(File outFile, int sampleRate, int channels) throws IOException {
+        File partFile = new File(outFile.getPath() + ".part");
+        if (!partFile.exists()) return -1;
+        long dataLen;
+        try (FileChannel channel = FileChannel.open(partFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long frameBytes = 2L * channels;
+            dataLen = Math.max(0, channel.size() - WavFormat.STREAM_HEADER_BYTES) / frameBytes * frameBytes;
+            if (dataLen > 0) {
+                // un frame a metà in coda: via
+                channel.truncate(WavFormat.STREAM_HEADER_BYTES + dataLen);
+                writeHeader(channel, dataLen, sampleRate, channels);
+            }
+        }
+        if (dataLen == 0) {
+            partFile.delete();
+            return 0;
+        }
+        if (!partFile.renameTo(outFile)) {
+            throw new IOException("rename failed " + partFile);
+        }
+        return dataLen / 2;
+    }
+
+    private void writeHeader(FileChannel channel, long dataLen) throws IOException {
+        writeHeader(channel, dataLen, sampleRate, channels);
+    }
+
+    private static void writeHeader(FileChannel channel, long dataLen, int sampleRate, int channels) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(WavFormat.STREAM_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        WavFormat.putStreamHeader(header, dataLen, sampleRate, channels, 16);
+        header.flip();
+        // scrittura posizionale: non sposta la posizione dei campioni
+        long pos = 0;
+        while (header.hasRemaining()) pos += channel.write(header, pos);
+    }
+}
@@ -0,0 +1,128 @@
+package org.birroph.continuousrec;
+
+/**
+ * Min/max level history for the waveform view, as a ring of fixed-width columns.
+ * <p>
+ * Each column covers {@link #getFramesPerColumn()} frames and keeps the quietest and
+ * loudest level that fell into it, so minutes of history fit in as many columns as the
+ * view has room for and a short peak still shows up. Values are display fractions
+ * (0..1, see {@link LevelScale#toFraction}). Nothing is allocated after construction:
+ * {@link #toLines} fills a caller-owned array for a single {@code drawLines}.
+ */
+public class WaveformHistory {
+    private final float[] lows;
+    private final float[] highs;
+    private int head = 0;   // prossima colonna da scrivere
+    private int count = 0;  // colonne complete
+
+    private long framesPerColumn;
+    private float partialLow = Float.MAX_VALUE;
+    private float partialHigh = 0;
+    private long partialFrames = 0;
+
+    public WaveformHistory(int columns, long framesPerColumn) {
+        if (columns < 1) throw new IllegalArgumentException("columns >= 1");
+        lows = new float[columns];
+        highs = new float[columns];
+        this.framesPerColumn = Math.max(1, framesPerColumn);
+    }
+
+    /** Frames per column so that {@code columns} span {@code seconds} at {@code sampleRate}. */
+    public static long framesPerColumn(int columns, int seconds, int sampleRate) {
+        return Math.max(1, (long) seconds * sampleRate / columns);
+    }
+
+    public int columns() {
+        return lows.length;
+    }
+
+    public long getFramesPerColumn() {
+        return framesPerColumn;
+    }
+
+    /** Changes the time span of a column; the history collected so far is dropped. */
+    public void setFramesPerColumn(long frames) {
+        framesPerColumn = Math.max(1, frames);
+        clear();
+    }
+
+    public void clear() {
+        head = 0;
+        count = 0;
+        partialLow = Float.MAX_VALUE;
+        partialHigh = 0;
+        partialFrames = 0;
+    }
+
+    /**
+     * Adds {@code frames} frames whose level ranged from {@code low} to {@code high}.
+     * A block longer than a column fills as many columns as it spans.
+     */
+    public void add(float low, float high, long frames) {
+        while (frames > 0) {
+            long take = Math.min(frames, framesPerColumn - partialFrames);
+            if (low < partialLow) partialLow = low;
+            if (high > partialHigh) partialHigh = high;
+            partialFrames += take;
+            frames -= take;
+            if (partialFrames == framesPerColumn) {
+                lows[head] = partialLow;
+                highs[head] = partialHigh;
+                head = head + 1 == lows.length ? 0 : head + 1;
+                if (count < lows.length) count++;
+                partialLow = Float.MAX_VALUE;
+                partialHigh = 0;
+                partialFrames = 0;
+            }
+        }
+    }
+
+    /** Columns to draw: the complete ones plus the one being filled, at most {@link #columns()}. */
+    public int size() {
+        return Math.min(lows.length, count + (partialFrames > 0 ? 1 : 0));
+    }
+
+    /** Lowest level of column {@code i}, 0 being the oldest of {@link #size()}. */
+    public float getLow(int i) {
+        return column(i, lows, partialLow);
+    }
+
+    public float getHigh(int i) {
+        return column(i, highs, partialHigh);
+    }
+
+    private float column(int i, float[] values, float partial) {
+        int n = size();
+        if (i < 0 || i >= n) throw new IndexOutOfBoundsException(i + " of " + n);
+        if (partialFrames > 0 && i == n - 1) return partial;
+        // se c'è la colonna parziale la più vecchia completa esce dalla vista
+        int skip = count + (partialFrames > 0 ? 1 : 0) - n;
+        int oldest = count < lows.length ? 0 : head;
+        int at = oldest + skip + i;
+        return values[at >= lows.length ? at - lows.length : at];
+    }
+
+    /**
+     * Writes one vertical segment per column into {@code pts} (x, y of the high end,
+     * x, y of the low end), newest column at the right edge, {@code columnWidth} apart.
+     * Returns the number of floats written; {@code pts} needs {@code 4 * columns()}.
+     */
+    public int toLines(float[] pts, float width, float height, float columnWidth) {
+        int n = size();
+        int p = 0;
+        float x = width - (n - 1) * columnWidth - columnWidth / 2;
+        for (int i = 0; i < n; i++, x += columnWidth) {
+            float high = getHigh(i);
+            float low = Math.min(getLow(i), high);
+            float top = height - high * height;
+            float bottom = height - low * height;
+            // almeno un pixel, anche per una colonna piatta
+            if (bottom - top < 1f) bottom = top + 1f;
+            pts[p++] = x;
+            pts[p++] = top;
+            pts[p++] = x;
+            pts[p++] = bottom;
+        }
+        return p;
+    }
+}
@@ -0,0 +1,177 @@
+package org.birroph.continuousrec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BroadcastRingTest {
+
+    private static void publish(BroadcastRing ring, int len, short first) {
+        short[] block = ring.claim();
+        for (int i = 0; i < len; i++) block[i] = (short) (first + i);
+        ring.publish(len);
+    }
+
+    @Test
+    public void everyCursorSeesEveryBlock() {
+        BroadcastRing ring = new BroadcastRing(8, 16, 8000, 1);
+        BroadcastRing.Cursor a = ring.openCursor();
+        BroadcastRing.Cursor b = ring.openCursor();
+        short[] dst = new short[16];
+        for (int i = 0; i < 5; i++) publish(ring, 10, (short) (i * 10));
+
+        for (BroadcastRing.Cursor c : new BroadcastRing.Cursor[]{a, b}) {
+            for (int i = 0; i < 5; i++) {
+                assertEquals(10, c.poll(dst, 0));
+                assertEquals(i * 10, dst[0]);
+            }
+            assertEquals(0, c.poll(dst, 0));
+            assertEquals(0, c.getOverrunCount());
+        }
+    }
+
+    @Test
+    public void newCursor_startsAtTheNextBlock() {
+        BroadcastRing ring = new BroadcastRing(8, 16, 8000, 1);
+        publish(ring, 4, (short) 0);
+        BroadcastRing.Cursor c = ring.openCursor();
+        short[] dst = new short[16];
+        assertEquals(0, c.poll(dst, 0));
+        publish(ring, 4, (short) 100);
+        assertEquals(4, c.poll(dst, 0));
+        assertEquals(100, dst[0]);
+    }
+
+    @Test
+    public void lappedCursor_skipsToOldestAndCountsTheLoss() {
+        BroadcastRing ring = new BroadcastRing(4, 8, 8000, 1);
+        BroadcastRing.Cursor slow = ring.openCursor();
+        BroadcastRing.Cursor fast = ring.openCursor();
+        short[] dst = new short[8];
+        for (int i = 0; i < 10; i++) {
+            publish(ring, 8, (short) (i * 8));
+            assertEquals(8, fast.poll(dst, 0));
+        }
+        // restano leggibili gli ultimi capacity - 1 blocchi: 7, 8, 9
+        assertEquals(8, slow.poll(dst, 0));
+        assertEquals(7 * 8, dst[0]);
+        assertEquals(1, slow.getOverrunCount());
+        assertEquals(7 * 8, slow.getDroppedSamples());
+        assertEquals(8, slow.poll(dst, 0));
+        assertEquals(8, slow.poll(dst, 0));
+        assertEquals(0, slow.poll(dst, 0));
+        assertEquals(0, fast.getOverrunCount());
+    }
+
+    @Test
+    public void end_isSeenAfterTheLastBlock() {
+        BroadcastRing ring = new BroadcastRing(4, 8, 8000, 1);
+        BroadcastRing.Cursor c = ring.openCursor();
+        publish(ring, 3, (short) 0);
+        IOException cause = new IOException("mic gone");
+        ring.end(cause);
+        short[] dst = new short[8];
+        assertEquals(3, c.poll(dst, 0));
+        assertEquals(-1, c.poll(dst, 0));
+        assertEquals(-1, c.take(dst, 0, 1_000_000));
+        assertSame(cause, c.getError());
+    }
+
+    @Test
+    public void cancelledBlock_isNeverDelivered() {
+        BroadcastRing ring = new BroadcastRing(4, 8, 8000, 1);
+        BroadcastRing.Cursor c = ring.openCursor();
+        ring.claim();
+        ring.cancel();
+        publish(ring, 2, (short) 5);
+        short[] dst = new short[8];
+        assertEquals(2, c.poll(dst, 0));
+        assertEquals(5, dst[0]);
+        assertEquals(0, c.poll(dst, 0));
+    }
+
+    @Test
+    public void lastCursorClosed_runsTheHook() {
+        BroadcastRing ring = new BroadcastRing(4, 8, 8000, 1);
+        AtomicInteger calls = new AtomicInteger();
+        ring.setOnLastCursorClosed(calls::incrementAndGet);
+        BroadcastRing.Cursor a = ring.openCursor();
+        BroadcastRing.Cursor b = ring.openCursor();
+        a.close();
+        assertEquals(0, calls.get());
+        b.close();
+        b.close();
+        assertEquals(1, calls.get());
+        assertEquals(0, ring.cursorCount());
+    }
+
+    @Test
+    public void take_wakesUpOnPublish() throws Exception {
+        BroadcastRing ring = new BroadcastRing(4, 8, 8000, 1);
+        BroadcastRing.Cursor c = ring.openCursor();
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            publish(ring, 8, (short) 1);
+        });
+        producer.start();
+        short[] dst = new short[8];
+        long t0 = System.nanoTime();
+        assertEquals(8, c.take(dst, 0, 5_000_000_000L));
+        assertTrue(System.nanoTime() - t0 < 2_000_000_000L);
+        producer.join();
+    }
+
+    /** Producer at full speed against a reader that keeps up and one that naps. */
+    @Test
+    public void concurrentReaders_blocksAreNeverTorn() throws Exception {
+        final int blocks = 50_000;
+        final int blockSize = 64;
+        BroadcastRing ring = new BroadcastRing(16, blockSize, 8000, 1);
+        BroadcastRing.Cursor[] cursors = {ring.openCursor(), ring.openCursor()};
+        long[] received = new long[2];
+        AssertionError[] failure = new AssertionError[1];
+        Thread[] readers = new Thread[2];
+        for (int r = 0; r < 2; r++) {
+            final int id = r;
+            readers[r] = new Thread(() -> {
+                short[] dst = new short[blockSize];
+                int n;
+                while ((n = cursors[id].take(dst, 0, 1_000_000_000L)) >= 0) {
+                    if (n == 0) continue;
+                    // un blocco è una rampa contigua: un blocco strappato non lo sarebbe
+                    for (int i = 1; i < n; i++) {
+                        if ((short) (dst[i - 1] + 1) != dst[i]) {
+                            failure[0] = new AssertionError("torn block at " + i);
+                            return;
+                        }
+                    }
+                    received[id] += n;
+                    if (id == 1 && received[id] % (blockSize * 50) == 0) Thread.yield();
+                }
+            });
+            readers[r].start();
+        }
+        short value = 0;
+        long total = 0;
+        for (int b = 0; b < blocks; b++) {
+            short[] block = ring.claim();
+            int len = 1 + (b % blockSize);
+            for (int i = 0; i < len; i++) block[i] = value++;
+            ring.publish(len);
+            total += len;
+        }
+        ring.end(null);
+        for (Thread t : readers) t.join(10_000);
+        if (failure[0] != null) throw failure[0];
+        for (int r = 0; r < 2; r++) {
+            // quello che non è arrivato è contato come perso, niente di più
+            assertEquals("reader " + r, total, received[r] + cursors[r].getDroppedSamples());
+        }
+    }
+}
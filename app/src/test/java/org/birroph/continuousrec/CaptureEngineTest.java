@@ -0,0 +1,209 @@
+package org.birroph.continuousrec;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CaptureEngineTest {
+
+    private static final long TIMEOUT = 2_000_000_000L;
+
+    /** Endless ramp, one short block per read, paced like a real device. */
+    private static final class CounterSource implements AudioSource {
+        final AtomicInteger closes = new AtomicInteger();
+        short value = 0;
+
+        @Override public int getSampleRate() { return 8000; }
+        @Override public int getChannels() { return 1; }
+        @Override public void start() { }
+
+        @Override
+        public int read(short[] buffer, int offset, int length) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                return -1;
+            }
+            int n = Math.min(length, 32);
+            for (int i = 0; i < n; i++) buffer[offset + i] = value++;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            closes.incrementAndGet();
+        }
+    }
+
+    private static void awaitIdle(CaptureEngine capture) throws InterruptedException {
+        for (int i = 0; i < 200 && capture.isCapturing(); i++) Thread.sleep(10);
+        assertFalse(capture.isCapturing());
+    }
+
+    @Test
+    public void subscribers_shareOneSource() throws Exception {
+        AtomicInteger opens = new AtomicInteger();
+        CounterSource source = new CounterSource();
+        CaptureEngine capture = new CaptureEngine(() -> {
+            opens.incrementAndGet();
+            return source;
+        }, 32, 64);
+        BroadcastRing.Cursor a = capture.subscribe();
+        BroadcastRing.Cursor b = capture.subscribe();
+        assertEquals(1, opens.get());
+
+        short[] da = new short[32];
+        short[] db = new short[32];
+        for (int i = 0; i < 20; i++) {
+            assertEquals(32, a.take(da, 0, TIMEOUT));
+            assertEquals(32, b.take(db, 0, TIMEOUT));
+            assertArrayEquals(da, db);
+        }
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void slowSubscriber_doesNotStallTheOthers() throws Exception {
+        CaptureEngine capture = new CaptureEngine(CounterSource::new, 32, 8);
+        BroadcastRing.Cursor fast = capture.subscribe();
+        BroadcastRing.Cursor slow = capture.subscribe();
+        short[] dst = new short[32];
+        short expected = 0;
+        for (int i = 0; i < 50; i++) {
+            assertEquals(32, fast.take(dst, 0, TIMEOUT));
+            assertEquals(expected, dst[0]);
+            expected += 32;
+        }
+        assertEquals(0, fast.getOverrunCount());
+
+        assertEquals(32, slow.poll(dst, 0));
+        assertEquals(1, slow.getOverrunCount());
+        // i campioni persi sono proprio quelli prima del blocco più vecchio rimasto
+        assertEquals(dst[0] & 0xffff, slow.getDroppedSamples());
+        fast.close();
+        slow.close();
+    }
+
+    @Test
+    public void lastClose_releasesTheSource_nextSubscribeReopensIt() throws Exception {
+        CounterSource first = new CounterSource();
+        CounterSource second = new CounterSource();
+        CounterSource[] sources = {first, second};
+        AtomicInteger opens = new AtomicInteger();
+        CaptureEngine capture = new CaptureEngine(() -> sources[opens.getAndIncrement()], 32, 16);
+
+        BroadcastRing.Cursor a = capture.subscribe();
+        BroadcastRing.Cursor b = capture.subscribe();
+        a.close();
+        assertTrue(capture.isCapturing());
+        b.close();
+        awaitIdle(capture);
+        assertEquals(1, first.closes.get());
+
+        BroadcastRing.Cursor c = capture.subscribe();
+        assertEquals(2, opens.get());
+        short[] dst = new short[32];
+        assertEquals(32, c.take(dst, 0, TIMEOUT));
+        assertEquals(0, dst[0]);
+        c.close();
+        awaitIdle(capture);
+        assertEquals(1, second.closes.get());
+    }
+
+    @Test
+    public void subscribe_whileTheLastCursorCloses_keepsTheCapture() throws Exception {
+        AtomicInteger opens = new AtomicInteger();
+        CaptureEngine capture = new CaptureEngine(() -> {
+            opens.incrementAndGet();
+            return new CounterSource();
+        }, 32, 16);
+        BroadcastRing.Cursor preview = capture.subscribe();
+        BroadcastRing.Cursor engine;
+        Thread closer = new Thread(preview::close);
+        synchronized (capture) {
+            // l'anteprima si chiude mentre il service si iscrive
+            closer.start();
+            closer.join(50);
+            engine = capture.subscribe();
+        }
+        closer.join();
+        assertEquals(1, opens.get());
+        short[] dst = new short[32];
+        for (int i = 0; i < 10; i++) assertEquals(32, engine.take(dst, 0, TIMEOUT));
+        assertTrue(capture.isCapturing());
+        engine.close();
+        awaitIdle(capture);
+    }
+
+    @Test
+    public void sourceEnd_endsEveryCursor() throws Exception {
+        CaptureEngine capture = new CaptureEngine(() -> new SyntheticAudioSource(8000, 1, 1).silence(1), 256, 64);
+        BroadcastRing.Cursor a = capture.subscribe();
+        BroadcastRing.Cursor b = capture.subscribe();
+        short[] dst = new short[256];
+        for (BroadcastRing.Cursor c : new BroadcastRing.Cursor[]{a, b}) {
+            long total = 0;
+            int n;
+            while ((n = c.take(dst, 0, TIMEOUT)) > 0) total += n;
+            assertEquals(-1, n);
+            assertEquals(8000, total);
+            assertNull(c.getError());
+        }
+        awaitIdle(capture);
+    }
+
+    @Test
+    public void engineAndPreview_onTheSameCapture() throws Exception {
+        // la cattura parte al primo subscribe: la sorgente aspetta che ci siano tutti e due
+        CountDownLatch go = new CountDownLatch(1);
+        SyntheticAudioSource tone = new SyntheticAudioSource(8000, 1, 1).tone(3, 440, 0.5f);
+        CaptureEngine capture = new CaptureEngine(() -> new AudioSource() {
+            @Override public int getSampleRate() { return tone.getSampleRate(); }
+            @Override public int getChannels() { return tone.getChannels(); }
+            @Override public void start() { tone.start(); }
+            @Override public void close() { tone.close(); }
+
+            @Override
+            public int read(short[] buffer, int offset, int length) {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return -1;
+                }
+                return tone.read(buffer, offset, length);
+            }
+        }, 256, 128);
+        BroadcastRing.Cursor preview = capture.subscribe();
+        RecordingEngine.Config c = new RecordingEngine.Config();
+        c.frameSec = 1;
+        c.preRollSec = 0;
+        EngineFixtures.CountingSink sink = new EngineFixtures.CountingSink();
+        Object done = new Object();
+        boolean[] stopped = new boolean[1];
+        RecordingEngine engine = new RecordingEngine(capture, c, sink, EngineFixtures.failOnError(() -> {
+            synchronized (done) {
+                stopped[0] = true;
+                done.notifyAll();
+            }
+        }));
+        // la sorgente sintetica non ha il passo del microfono: il ring contiene tutto
+        engine.start();
+        go.countDown();
+
+        short[] dst = new short[256];
+        long total = 0;
+        int n;
+        while ((n = preview.take(dst, 0, TIMEOUT)) > 0) total += n;
+        assertEquals(3 * 8000, total);
+        synchronized (done) {
+            while (!stopped[0]) done.wait(TIMEOUT / 1_000_000);
+        }
+        assertEquals(3 * 8000, engine.getProcessedFrames());
+        assertTrue(sink.opened.get() >= 3);
+        preview.close();
+    }
+}
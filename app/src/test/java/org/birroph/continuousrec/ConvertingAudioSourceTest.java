@@ -0,0 +1,170 @@
+package org.birroph.continuousrec;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class ConvertingAudioSourceTest {
+
+    /** Sine in float, to exercise the float capture path. */
+    static class FloatSine implements AudioSource {
+        final int rate;
+        final int channels;
+        final double freq;
+        final long total;
+        long pos;
+
+        FloatSine(int rate, int channels, double freq, double seconds) {
+            this.rate = rate;
+            this.channels = channels;
+            this.freq = freq;
+            this.total = Math.round(seconds * rate);
+        }
+
+        @Override public int getSampleRate() { return rate; }
+        @Override public int getChannels() { return channels; }
+        @Override public void start() { pos = 0; }
+        @Override public boolean isFloat() { return true; }
+        @Override public void close() { }
+
+        @Override
+        public int read(short[] buffer, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(float[] buffer, int offset, int length, short[] scratch) {
+            int frames = (int) Math.min(length / channels, total - pos);
+            if (frames <= 0) return -1;
+            for (int f = 0; f < frames; f++, pos++) {
+                float v = (float) (0.5 * Math.sin(2 * Math.PI * freq * pos / rate));
+                for (int c = 0; c < channels; c++) buffer[offset + f * channels + c] = v;
+            }
+            return frames * channels;
+        }
+    }
+
+    private static short[] drain(AudioSource source, int blockSamples) throws Exception {
+        short[] all = new short[1 << 20];
+        short[] block = new short[blockSamples];
+        int n = 0;
+        int read;
+        source.start();
+        while ((read = source.read(block, 0, block.length)) >= 0) {
+            System.arraycopy(block, 0, all, n, read);
+            n += read;
+        }
+        source.close();
+        return java.util.Arrays.copyOf(all, n);
+    }
+
+    /** Amplitude of {@code freq} in a mono signal, by correlation (skips filter warm-up). */
+    private static double amplitudeAt(short[] x, int rate, double freq) {
+        double re = 0, im = 0;
+        int from = 256;
+        for (int i = from; i < x.length - 256; i++) {
+            double a = 2 * Math.PI * freq * i / rate;
+            re += x[i] * Math.cos(a);
+            im += x[i] * Math.sin(a);
+        }
+        int n = x.length - 512;
+        return 2 * Math.sqrt(re * re + im * im) / n / 32768.0;
+    }
+
+    @Test
+    public void downsample48kStereoTo16kMono() throws Exception {
+        SyntheticAudioSource in = new SyntheticAudioSource(48000, 2, 1).tone(2, 1000, 0.5f);
+        AudioSource conv = new ConvertingAudioSource(in, 16000, 1);
+        assertEquals(16000, conv.getSampleRate());
+        assertEquals(1, conv.getChannels());
+        short[] out = drain(conv, 2048);
+        assertEquals(32000, out.length, PolyphaseResampler.TAPS);
+        assertEquals(0.5, amplitudeAt(out, 16000, 1000), 0.01);
+    }
+
+    @Test
+    public void downsample_rejectsWhatWouldAlias() throws Exception {
+        // 12 kHz a 48 kHz: sopra la Nyquist di 16 kHz, senza filtro ricadrebbe a 4 kHz
+        SyntheticAudioSource in = new SyntheticAudioSource(48000, 1, 1).tone(2, 12000, 0.8f);
+        short[] out = drain(new ConvertingAudioSource(in, 16000, 1), 2048);
+        double alias = amplitudeAt(out, 16000, 4000);
+        assertTrue("alias at " + 20 * Math.log10(alias / 0.8) + " dB", alias < 0.8 * 0.01);
+    }
+
+    @Test
+    public void upsample16kTo44k1_keepsToneAndLength() throws Exception {
+        SyntheticAudioSource in = new SyntheticAudioSource(16000, 1, 1).tone(2, 440, 0.5f);
+        short[] out = drain(new ConvertingAudioSource(in, 44100, 1), 1000);
+        assertEquals(88200, out.length, 3 * PolyphaseResampler.TAPS);
+        assertEquals(0.5, amplitudeAt(out, 44100, 440), 0.01);
+    }
+
+    @Test
+    public void floatMonoToStereo_sameRate() throws Exception {
+        AudioSource conv = new ConvertingAudioSource(new FloatSine(16000, 1, 500, 1), 16000, 2);
+        short[] out = drain(conv, 999);
+        assertEquals(32000, out.length);
+        for (int i = 0; i < out.length; i += 2) assertEquals(out[i], out[i + 1]);
+        assertEquals((short) Math.round(0.5 * Math.sin(2 * Math.PI * 500 * 3 / 16000.0) * 32768), out[6]);
+    }
+
+    @Test
+    public void shortSource_readsAsFloat() throws Exception {
+        SyntheticAudioSource shorts = new SyntheticAudioSource(8000, 1, 1).tone(1, 440, 0.5f);
+        SyntheticAudioSource floats = new SyntheticAudioSource(8000, 1, 1).tone(1, 440, 0.5f);
+        short[] expected = drain(shorts, 256);
+        float[] block = new float[256];
+        short[] scratch = new short[200];
+        int n = 0;
+        int read;
+        floats.start();
+        while ((read = floats.read(block, 3, 200, scratch)) >= 0) {
+            for (int i = 0; i < read; i++, n++) assertEquals(expected[n] / 32768f, block[3 + i], 0f);
+        }
+        floats.close();
+        assertEquals(expected.length, n);
+    }
+
+    @Test
+    public void resampler_outputDoesNotDependOnBlockSize() {
+        float[] in = new float[10000];
+        for (int i = 0; i < in.length; i++) in[i] = (float) Math.sin(i * 0.05) * 0.3f;
+        float[] a = run(in, 44100, 16000, 4096);
+        float[] b = run(in, 44100, 16000, 77);
+        assertArrayEquals(a, b, 0f);
+    }
+
+    private static float[] run(float[] in, int inRate, int outRate, int block) {
+        PolyphaseResampler r = new PolyphaseResampler(inRate, outRate, 1, block);
+        float[] out = new float[in.length * 2];
+        float[] tmp = new float[r.maxOutFrames(block)];
+        int n = 0;
+        for (int pos = 0; pos < in.length; pos += block) {
+            int len = Math.min(block, in.length - pos);
+            int got = r.process(in, pos, len, tmp, 0);
+            System.arraycopy(tmp, 0, out, n, got);
+            n += got;
+        }
+        return java.util.Arrays.copyOf(out, n);
+    }
+
+    @Test
+    public void hotPath_allocatesNothingOnceWarm() throws Exception {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        org.junit.Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+
+        SyntheticAudioSource in = new SyntheticAudioSource(48000, 2, 1).noise(1, 0.5f).loopFor(3600);
+        AudioSource conv = new ConvertingAudioSource(in, 16000, 1);
+        conv.start();
+        short[] block = new short[2048];
+        for (int i = 0; i < 2000; i++) conv.read(block, 0, block.length);
+
+        long tid = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < 5000; i++) conv.read(block, 0, block.length);
+        long allocated = mx.getThreadAllocatedBytes(tid) - before;
+        assertTrue("allocated " + allocated + " bytes on the hot path", allocated < 1024);
+    }
+}
@@ -0,0 +1,104 @@
+package org.birroph.continuousrec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class DurabilityPolicyTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final int RATE = 16000;
+
+    /** 60 s of mono audio in 20 ms blocks, like the engine writes it. */
+    private DurabilityPolicy.Stats record(DurabilityPolicy policy) throws IOException {
+        DurabilityPolicy.Stats stats = new DurabilityPolicy.Stats();
+        WavSegmentWriter w = new WavSegmentWriter(new File(tmp.getRoot(), policy.mode + ".wav"), RATE, 1, policy, stats);
+        short[] block = new short[RATE / 50];
+        for (int i = 0; i < 50 * 60; i++) w.write(block, 0, block.length);
+        w.finish();
+        return stats;
+    }
+
+    @Test
+    public void interval_forcesEveryNSecondsOfAudio() throws IOException {
+        DurabilityPolicy.Stats s = record(DurabilityPolicy.interval(5));
+        // 12 durante il segmento, 1 alla fine
+        assertEquals(13, s.getForces());
+        assertEquals(60L * RATE * 2, s.getBytes());
+        assertTrue(s.getMaxForceMicros() >= s.getAverageForceMicros());
+    }
+
+    @Test
+    public void segmentEnd_forcesOnce() throws IOException {
+        DurabilityPolicy.Stats s = record(DurabilityPolicy.segmentEnd());
+        assertEquals(1, s.getForces());
+        assertEquals(60L * RATE * 2, s.getBytes());
+    }
+
+    @Test
+    public void coalesced_makesFewerLargerWrites() throws IOException {
+        DurabilityPolicy.Stats coalesced = record(DurabilityPolicy.coalesced(30));
+        DurabilityPolicy.Stats interval = record(DurabilityPolicy.interval(5));
+        assertEquals(3, coalesced.getForces());
+        assertEquals(60L * RATE * 2, coalesced.getBytes());
+        assertTrue(coalesced.getAverageBytesPerWrite() > 8 * interval.getAverageBytesPerWrite());
+    }
+
+    @Test
+    public void coalesced_keepsItsLargeWritesUnderTheJournal() throws IOException {
+        DurabilityPolicy policy = DurabilityPolicy.coalesced(5);
+        DurabilityPolicy.Stats stats = new DurabilityPolicy.Stats();
+        File wav = new File(tmp.getRoot(), "journaled.wav");
+        try (SegmentJournal j = new SegmentJournal(tmp.newFile("segments.journal"))) {
+            // come lo avvolge il service
+            SegmentWriter w = new SegmentJournal.Writer(j, new WavSegmentWriter(wav, RATE, 1, policy, stats),
+                    new SegmentJournal.Segment(wav, SegmentJournal.KIND_WAV, "wav", 0, 0, RATE, 1), policy);
+            short[] block = new short[RATE / 50];
+            for (int i = 0; i < 50 * 600; i++) w.write(block, 0, block.length);
+            // il checkpoint dice solo quanto è arrivato al file, a buffer pieni
+            long checkpoint = j.pending().get(0).getCheckpointSamples();
+            assertTrue(checkpoint > 0);
+            assertEquals(0, checkpoint % (DurabilityPolicy.COALESCED_BUFFER_BYTES / 2));
+            w.finish();
+        }
+        assertEquals(600L * RATE * 2, stats.getBytes());
+        assertTrue(stats + "", stats.getAverageBytesPerWrite() > DurabilityPolicy.COALESCED_BUFFER_BYTES * 9 / 10);
+    }
+
+    @Test
+    public void interval_leavesAtMostNSecondsUnwritten() throws IOException {
+        File wav = new File(tmp.getRoot(), "killed.wav");
+        WavSegmentWriter w = new WavSegmentWriter(wav, RATE, 1, DurabilityPolicy.interval(2), null);
+        short[] block = new short[RATE / 50];
+        for (int i = 0; i < 50 * 7; i++) w.write(block, 0, block.length);
+        // kill a 7 s: sul file ci sono i 6 s dell'ultimo sync
+        assertEquals(6L * RATE, WavSegmentWriter.recover(wav, RATE, 1));
+    }
+
+    @Test
+    public void pcmWriter_followsThePolicyToo() throws IOException {
+        DurabilityPolicy.Stats stats = new DurabilityPolicy.Stats();
+        PcmSegmentWriter w = new PcmSegmentWriter(tmp.newFile("a.pcm"), RATE, 2, DurabilityPolicy.interval(1), stats);
+        short[] second = new short[RATE * 2];
+        for (int i = 0; i < 3; i++) w.write(second, 0, second.length);
+        w.finish();
+        assertEquals(3 + 1, stats.getForces());
+    }
+
+    @Test
+    public void fromPreferences() {
+        assertEquals(DurabilityPolicy.Mode.COALESCED, DurabilityPolicy.of("coalesced", 30).mode);
+        assertEquals(DurabilityPolicy.COALESCED_BUFFER_BYTES, DurabilityPolicy.of("coalesced", 30).bufferBytes);
+        assertEquals(DurabilityPolicy.Mode.SEGMENT_END, DurabilityPolicy.of("segment_end", 30).mode);
+        assertEquals(0, DurabilityPolicy.of("segment_end", 30).syncSamples(RATE, 2));
+        DurabilityPolicy p = DurabilityPolicy.of("whatever", 0);
+        assertEquals(DurabilityPolicy.Mode.INTERVAL, p.mode);
+        assertEquals(RATE * 2, p.syncSamples(RATE, 2));
+    }
+}
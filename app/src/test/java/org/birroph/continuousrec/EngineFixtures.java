@@ -0,0 +1,51 @@
+package org.birroph.continuousrec;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** No-op pieces for tests that drive a {@link RecordingEngine} and only look at its decisions. */
+final class EngineFixtures {
+    private EngineFixtures() {
+    }
+
+    /** A writer that drops every sample. */
+    static SegmentWriter nullWriter() {
+        return new SegmentWriter() {
+            @Override public void write(short[] samples, int offset, int length) { }
+            @Override public File finish() { return null; }
+            @Override public void abort() { }
+            @Override public long getSamplesWritten() { return 0; }
+            @Override public File getFile() { return null; }
+        };
+    }
+
+    /** Hands out {@link #nullWriter()}s, counting the segments opened and closed. */
+    static final class CountingSink implements RecordingEngine.SegmentSink {
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+
+        @Override
+        public SegmentWriter open(long startFrame) {
+            opened.incrementAndGet();
+            return nullWriter();
+        }
+
+        @Override
+        public void closed(SegmentWriter writer) {
+            closed.incrementAndGet();
+        }
+    }
+
+    /** A listener that fails the test on any engine error and runs {@code onStopped} at the end. */
+    static RecordingEngine.Listener failOnError(Runnable onStopped) {
+        return new RecordingEngine.Listener() {
+            @Override public void onLevel(float normalizedLevel) { }
+            @Override public void onError(String what, Exception e) { throw new AssertionError(what, e); }
+            @Override public void onStopped() { onStopped.run(); }
+        };
+    }
+
+    static RecordingEngine.Listener failOnError() {
+        return failOnError(() -> { });
+    }
+}
@@ -0,0 +1,299 @@
+package org.birroph.continuousrec;
+
+import org.junit.AfterClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class FlacEncoderTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void shutdownPool() {
+        POOL.shutdown();
+    }
+
+    @Test
+    public void roundTrip_mono() throws Exception {
+        SyntheticAudioSource source = new SyntheticAudioSource(16000, 1, 7)
+                .tone(3, 440, 0.6f)
+                .noise(2, 0.05f)
+                .silence(1)
+                .tone(1.3, 3000, 0.9f);
+        short[] pcm = render(source);
+        FlacEncoder.Result r = roundTrip(pcm, 16000, 1);
+        assertEquals(pcm.length, r.frames);
+        assertTrue("ratio " + r.getCompressionRatio(), r.getCompressionRatio() < 0.6);
+    }
+
+    @Test
+    public void roundTrip_stereoUsesDecorrelation() throws Exception {
+        SyntheticAudioSource source = new SyntheticAudioSource(44100, 2, 3)
+                .tone(4, 220, 0.7f)
+                .noise(1, 0.3f);
+        short[] pcm = render(source);
+        FlacEncoder.Result r = roundTrip(pcm, 44100, 2);
+        assertEquals(pcm.length / 2, r.frames);
+        // canali identici: il side è costante e costa quasi nulla
+        assertTrue("ratio " + r.getCompressionRatio(), r.getCompressionRatio() < 0.5);
+    }
+
+    @Test
+    public void roundTrip_independentStereoAndOddTail() throws Exception {
+        short[] pcm = new short[2 * (3 * FlacEncoder.BLOCK_SIZE + 123)];
+        long x = 12345;
+        for (int i = 0; i < pcm.length; i += 2) {
+            pcm[i] = (short) (8000 * Math.sin(i * 0.001));
+            x ^= x << 13;
+            x ^= x >>> 7;
+            x ^= x << 17;
+            pcm[i + 1] = (short) x; // rumore a piena scala: verbatim
+        }
+        roundTrip(pcm, 48000, 2);
+    }
+
+    @Test
+    public void roundTrip_extremesAndTinyInputs() throws Exception {
+        short[] extremes = new short[5000];
+        for (int i = 0; i < extremes.length; i++) extremes[i] = (i & 1) == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        roundTrip(extremes, 22050, 1);
+        roundTrip(new short[]{1, -1, 5}, 8000, 1);
+        roundTrip(new short[0], 8000, 1);
+        roundTrip(new short[FlacEncoder.BLOCK_SIZE], 12345, 1); // rate fuori tabella
+    }
+
+    @Test
+    public void reportsRealTimeFactor() throws Exception {
+        short[] pcm = render(new SyntheticAudioSource(44100, 1, 1).tone(30, 440, 0.5f).noise(30, 0.1f));
+        FlacEncoder.Result r = roundTrip(pcm, 44100, 1);
+        assertTrue(r.encodeNanos > 0);
+        // tono + rumore: circa 0,56 qui; un encoder che non predice nulla starebbe sopra 0,9
+        assertTrue("ratio " + r.getCompressionRatio(), r.getCompressionRatio() < 0.75);
+        // un minuto si codifica in ~1 s anche senza JIT caldo
+        assertTrue("RTF " + r.getRealTimeFactor(), r.getRealTimeFactor() > 0 && r.getRealTimeFactor() < 0.5);
+    }
+
+    private FlacEncoder.Result roundTrip(short[] pcm, int rate, int channels) throws Exception {
+        File pcmFile = tmp.newFile();
+        File flacFile = tmp.newFile();
+        ByteBuffer b = ByteBuffer.allocate(pcm.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        b.asShortBuffer().put(pcm);
+        Files.write(pcmFile.toPath(), b.array());
+
+        FlacEncoder.Result r = new FlacEncoder(rate, channels, POOL).encode(pcmFile, flacFile);
+        assertEquals(flacFile.length(), r.flacBytes);
+
+        Decoded d = decode(Files.readAllBytes(flacFile.toPath()));
+        assertEquals(rate, d.sampleRate);
+        assertEquals(channels, d.channels);
+        assertEquals(pcm.length / channels, d.totalFrames);
+        assertArrayEquals(pcm, d.samples);
+        assertArrayEquals(MessageDigest.getInstance("MD5").digest(b.array()), d.md5);
+        return r;
+    }
+
+    private static short[] render(SyntheticAudioSource source) {
+        short[] out = new short[(int) source.getTotalFrames() * source.getChannels()];
+        source.start();
+        int pos = 0;
+        int read;
+        while (pos < out.length && (read = source.read(out, pos, Math.min(4096, out.length - pos))) > 0) pos += read;
+        return out;
+    }
+
+    // ----------------------------------------------- decoder di riferimento
+
+    static class Decoded {
+        int sampleRate;
+        int channels;
+        long totalFrames;
+        byte[] md5;
+        short[] samples;
+    }
+
+    /** Minimal FLAC decoder for what the encoder emits; checks both CRCs of every frame. */
+    static Decoded decode(byte[] data) throws IOException {
+        Bits in = new Bits(data);
+        assertEquals(0x664C6143, in.read(32));
+        assertEquals(1, in.read(1));
+        assertEquals(0, in.read(7));
+        assertEquals(34, in.read(24));
+        Decoded d = new Decoded();
+        int minBlock = (int) in.read(16);
+        int maxBlock = (int) in.read(16);
+        in.read(24);
+        in.read(24);
+        d.sampleRate = (int) in.read(20);
+        d.channels = (int) in.read(3) + 1;
+        assertEquals(16, in.read(5) + 1);
+        d.totalFrames = in.read(36);
+        d.md5 = new byte[16];
+        for (int i = 0; i < 16; i++) d.md5[i] = (byte) in.read(8);
+        assertTrue(minBlock <= maxBlock);
+
+        d.samples = new short[(int) d.totalFrames * d.channels];
+        int frame = 0;
+        int pos = 0;
+        while (in.bytePos() < data.length) {
+            int start = in.bytePos();
+            assertEquals(0xFFF8, in.read(16));
+            int blockCode = (int) in.read(4);
+            int rateCode = (int) in.read(4);
+            int assignment = (int) in.read(4);
+            assertEquals(4, in.read(3));
+            assertEquals(0, in.read(1));
+            assertEquals(frame, readUtf8(in));
+            int n;
+            if (blockCode == 12) n = 4096;
+            else if (blockCode == 6) n = (int) in.read(8) + 1;
+            else if (blockCode == 7) n = (int) in.read(16) + 1;
+            else throw new IOException("block code " + blockCode);
+            if (rateCode == 12) assertEquals(d.sampleRate, in.read(8) * 1000);
+            else if (rateCode == 13) assertEquals(d.sampleRate, in.read(16));
+            int crc8 = FlacEncoder.Crc.crc8(data, start, in.bytePos() - start);
+            assertEquals(crc8, in.read(8));
+
+            int[][] ch = new int[d.channels][];
+            for (int c = 0; c < d.channels; c++) {
+                boolean side = (assignment == 8 && c == 1) || (assignment == 9 && c == 0) || (assignment == 10 && c == 1);
+                ch[c] = readSubframe(in, n, side ? 17 : 16);
+            }
+            if (assignment == 8) {
+                for (int i = 0; i < n; i++) ch[1][i] = ch[0][i] - ch[1][i];
+            } else if (assignment == 9) {
+                for (int i = 0; i < n; i++) ch[0][i] += ch[1][i];
+            } else if (assignment == 10) {
+                for (int i = 0; i < n; i++) {
+                    int mid = (ch[0][i] << 1) | (ch[1][i] & 1);
+                    int side = ch[1][i];
+                    ch[0][i] = (mid + side) >> 1;
+                    ch[1][i] = (mid - side) >> 1;
+                }
+            } else {
+                assertEquals(d.channels - 1, assignment);
+            }
+            in.align();
+            int crc16 = FlacEncoder.Crc.crc16(data, start, in.bytePos() - start);
+            assertEquals(crc16, in.read(16));
+
+            for (int i = 0; i < n; i++) {
+                for (int c = 0; c < d.channels; c++) d.samples[pos++] = (short) ch[c][i];
+            }
+            frame++;
+        }
+        assertEquals(d.samples.length, pos);
+        return d;
+    }
+
+    private static long readUtf8(Bits in) {
+        int first = (int) in.read(8);
+        if (first < 0x80) return first;
+        int extra = Integer.numberOfLeadingZeros(~(first << 24)) - 1;
+        long v = first & (0x3f >> extra);
+        for (int i = 0; i < extra; i++) v = (v << 6) | (in.read(8) & 0x3f);
+        return v;
+    }
+
+    private static int[] readSubframe(Bits in, int n, int bps) throws IOException {
+        assertEquals(0, in.read(1));
+        int type = (int) in.read(6);
+        assertEquals(0, in.read(1));
+        int[] x = new int[n];
+        if (type == 0) {
+            Arrays.fill(x, in.signed(bps));
+        } else if (type == 1) {
+            for (int i = 0; i < n; i++) x[i] = in.signed(bps);
+        } else if (type >= 8 && type <= 12) {
+            int order = type - 8;
+            for (int i = 0; i < order; i++) x[i] = in.signed(bps);
+            readResidual(in, n, order, x);
+            for (int i = order; i < n; i++) {
+                switch (order) {
+                    case 0: break;
+                    case 1: x[i] += x[i - 1]; break;
+                    case 2: x[i] += 2 * x[i - 1] - x[i - 2]; break;
+                    case 3: x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3]; break;
+                    default: x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4]; break;
+                }
+            }
+        } else if (type >= 32) {
+            int order = type - 31;
+            for (int i = 0; i < order; i++) x[i] = in.signed(bps);
+            int precision = (int) in.read(4) + 1;
+            int shift = in.signed(5);
+            int[] qlp = new int[order];
+            for (int i = 0; i < order; i++) qlp[i] = in.signed(precision);
+            readResidual(in, n, order, x);
+            for (int i = order; i < n; i++) {
+                long sum = 0;
+                for (int j = 0; j < order; j++) sum += (long) qlp[j] * x[i - j - 1];
+                x[i] += (int) (sum >> shift);
+            }
+        } else {
+            throw new IOException("subframe type " + type);
+        }
+        return x;
+    }
+
+    private static void readResidual(Bits in, int n, int order, int[] out) {
+        assertEquals(0, in.read(2));
+        int partitionOrder = (int) in.read(4);
+        int partSize = n >> partitionOrder;
+        int i = order;
+        for (int p = 0; p < 1 << partitionOrder; p++) {
+            int param = (int) in.read(4);
+            assertTrue(param < 15);
+            int end = (p + 1) * partSize;
+            for (; i < end; i++) {
+                long q = 0;
+                while (in.read(1) == 0) q++;
+                long u = (q << param) | in.read(param);
+                out[i] = (int) ((u >>> 1) ^ -(u & 1));
+            }
+        }
+    }
+
+    static class Bits {
+        private final byte[] data;
+        private long bit;
+
+        Bits(byte[] data) {
+            this.data = data;
+        }
+
+        long read(int n) {
+            long v = 0;
+            for (int i = 0; i < n; i++, bit++) {
+                v = (v << 1) | ((data[(int) (bit >>> 3)] >> (7 - (bit & 7))) & 1);
+            }
+            return v;
+        }
+
+        int signed(int n) {
+            long v = read(n);
+            return (int) (v << (64 - n) >> (64 - n));
+        }
+
+        void align() {
+            bit = (bit + 7) & ~7L;
+        }
+
+        int bytePos() {
+            return (int) (bit >>> 3);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.birroph.continuousrec;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LevelChannelTest {
+
+    private static final class Collected implements LevelChannel.Sink {
+        final List<float[]> levels = new ArrayList<>();
+        float maxPeak = 0;
+        long clipped = 0;
+        long frames = 0;
+
+        @Override
+        public void onLevels(float peak, float rms, int clippedSamples, int blockFrames) {
+            levels.add(new float[]{peak, rms});
+            maxPeak = Math.max(maxPeak, peak);
+            clipped += clippedSamples;
+            frames += blockFrames;
+        }
+    }
+
+    private static short[] constant(int length, int value) {
+        short[] block = new short[length];
+        for (int i = 0; i < length; i++) block[i] = (short) (i % 2 == 0 ? value : -value);
+        return block;
+    }
+
+    @Test
+    public void publish_measuresPeakRmsAndClipping() {
+        LevelChannel channel = new LevelChannel(8);
+        short[] block = constant(100, 16384);
+        block[7] = Short.MAX_VALUE;
+        block[9] = Short.MIN_VALUE;
+        channel.publish(block, block.length, 2);
+
+        Collected c = new Collected();
+        assertEquals(1, channel.drain(c));
+        assertEquals(1f, c.levels.get(0)[0], 1e-4f);
+        assertEquals(RecordingEngine.rmsLevel(block, block.length), c.levels.get(0)[1], 1e-5f);
+        assertEquals(2, c.clipped);
+        assertEquals(50, c.frames);
+        assertEquals(0, channel.drain(c));
+    }
+
+    @Test
+    public void drain_deliversEveryBlockInOrder() {
+        LevelChannel channel = new LevelChannel(16);
+        for (int b = 1; b <= 10; b++) channel.offer(b / 100f, b / 200f, 0, 10);
+        Collected c = new Collected();
+        assertEquals(10, channel.drain(c));
+        for (int b = 1; b <= 10; b++) assertEquals(b / 100f, c.levels.get(b - 1)[0], 0f);
+        assertEquals(0, channel.getCoalescedBlocks());
+    }
+
+    @Test
+    public void fullRing_coalescesWithoutLosingThePeak() {
+        LevelChannel channel = new LevelChannel(4);
+        for (int b = 0; b < 4; b++) channel.offer(0.1f, 0.1f, 0, 10);
+        // il reader non c'è: questi finiscono in un unico snapshot
+        channel.offer(0.2f, 0.3f, 0, 10);
+        channel.offer(0.9f, 0.4f, 3, 30);
+        channel.offer(0.3f, 0.0f, 1, 10);
+        assertEquals(3, channel.getCoalescedBlocks());
+
+        Collected c = new Collected();
+        assertEquals(4, channel.drain(c));
+        // al prossimo blocco lo snapshot in attesa entra nel ring
+        channel.offer(0.05f, 0f, 0, 10);
+        assertEquals(1, channel.drain(c));
+        float[] merged = c.levels.get(4);
+        assertEquals(0.9f, merged[0], 0f);
+        double energy = 0.3 * 0.3 * 10 + 0.4 * 0.4 * 30;
+        assertEquals(Math.sqrt(energy / 60), merged[1], 1e-6);
+        assertEquals(4, c.clipped);
+        assertEquals(40 + 60, c.frames);
+    }
+
+    @Test
+    public void hoursWithoutAReader_doNotOverflow() {
+        LevelChannel channel = new LevelChannel(2);
+        channel.offer(0.1f, 0.1f, 0, 10);
+        channel.offer(0.1f, 0.1f, 0, 10);
+        // 24 h a 48 kHz in blocchi da 20 ms, tutti nello snapshot in attesa
+        for (int b = 0; b < 24 * 3600 * 50; b++) channel.offer(0.5f, 0.25f, 1, 960);
+        Collected c = new Collected();
+        channel.drain(c);
+        channel.offer(0f, 0f, 0, 1);
+        channel.drain(c);
+        float[] merged = c.levels.get(2);
+        assertEquals(0.5f, merged[0], 0f);
+        assertEquals(0.25f, merged[1], 1e-4f);
+        assertEquals(Integer.MAX_VALUE, c.frames - 20);
+    }
+
+    @Test
+    public void discard_dropsTheBacklogAndTheCoalescedSnapshot() {
+        LevelChannel channel = new LevelChannel(4);
+        for (int b = 0; b < 10; b++) channel.offer(0.9f, 0.5f, 2, 10);
+        channel.discard();
+        assertEquals(0, channel.pending());
+        channel.offer(0.1f, 0.1f, 0, 10);
+        Collected c = new Collected();
+        assertEquals(1, channel.drain(c));
+        assertEquals(0.1f, c.maxPeak, 0f);
+        assertEquals(0, c.clipped);
+        assertEquals(10, c.frames);
+    }
+
+    @Test
+    public void concurrentWriter_readerSeesEveryPeakAndFrame() throws Exception {
+        final int blocks = 200_000;
+        LevelChannel channel = new LevelChannel(64);
+        Thread writer = new Thread(() -> {
+            for (int b = 0; b < blocks; b++) {
+                // un solo picco alto, in mezzo
+                channel.offer(b == blocks / 2 ? 1f : (b % 100) / 1000f, 0.01f, b % 7 == 0 ? 1 : 0, 16);
+            }
+        });
+        Collected c = new Collected();
+        writer.start();
+        while (writer.isAlive()) {
+            channel.drain(c);
+            Thread.yield();
+        }
+        writer.join();
+        channel.drain(c);
+        // dopo il join il writer è questo thread: un blocco in più porta fuori lo snapshot in attesa
+        channel.offer(0f, 0f, 0, 1);
+        channel.drain(c);
+        assertEquals(blocks * 16L + 1, c.frames);
+        assertEquals(1f, c.maxPeak, 0f);
+        assertEquals((blocks + 6) / 7, c.clipped);
+    }
+}
@@ -0,0 +1,130 @@
+package org.birroph.continuousrec;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NoiseFloorTrackerTest {
+
+    private static final int RATE = 16000;
+    private static final int BLOCK = 1024;
+
+    /** Runs the source through a tracker; returns the floor at each second, in dBFS. */
+    private static float[] floorPerSecond(AudioSource source, NoiseFloorTracker tracker) throws Exception {
+        List<Float> out = new ArrayList<>();
+        short[] block = new short[BLOCK];
+        long frames = 0;
+        source.start();
+        int read;
+        while ((read = source.read(block, 0, block.length)) > 0) {
+            tracker.update(LevelScale.toDb(RecordingEngine.rmsLevel(block, read)), read);
+            long before = frames;
+            frames += read;
+            if (frames / RATE != before / RATE) out.add(tracker.getNoiseFloorDb());
+        }
+        float[] a = new float[out.size()];
+        for (int i = 0; i < a.length; i++) a[i] = out.get(i);
+        return a;
+    }
+
+    /** RMS in dBFS of uniform noise of the given peak amplitude. */
+    private static float noiseDb(float amplitude) {
+        return LevelScale.toDb(amplitude / (float) Math.sqrt(3));
+    }
+
+    @Test
+    public void stationaryNoise_floorMatchesItsLevel() throws Exception {
+        SyntheticAudioSource source = new SyntheticAudioSource(RATE, 1, 1).noise(20, 0.05f);
+        float[] floor = floorPerSecond(source, new NoiseFloorTracker(RATE));
+        for (int s = 2; s < floor.length; s++) assertEquals("at " + s + " s", noiseDb(0.05f), floor[s], 2f);
+    }
+
+    @Test
+    public void speechDoesNotRaiseTheFloor() throws Exception {
+        SyntheticAudioSource speech = new SyntheticAudioSource(RATE, 1, 2).silence(3).speech(30, 0.5f);
+        SyntheticAudioSource room = new SyntheticAudioSource(RATE, 1, 3).noise(33, 0.01f);
+        NoiseFloorTracker tracker = new NoiseFloorTracker(RATE);
+        float[] floor = floorPerSecond(new VoiceActivityDetectorTest.Mix(speech, room), tracker);
+        for (int s = 1; s < floor.length; s++) assertEquals("at " + s + " s", noiseDb(0.01f), floor[s], 3f);
+        // la voce resta sopra la soglia
+        assertTrue(tracker.getThresholdDb() < LevelScale.toDb(0.12f) - 6);
+    }
+
+    @Test
+    public void followsTheRoomBothWays() throws Exception {
+        SyntheticAudioSource source = new SyntheticAudioSource(RATE, 1, 4)
+                .noise(10, 0.01f).noise(15, 0.1f).noise(10, 0.01f);
+        float[] floor = floorPerSecond(source, new NoiseFloorTracker(RATE));
+        float quiet = noiseDb(0.01f);
+        float loud = noiseDb(0.1f);
+        // più rumore: serve che il passato silenzioso esca dalla finestra (5 s + un sotto-intervallo),
+        // poi sale di al più 3 dB al secondo: 20 dB in meno di 7 s
+        assertEquals(quiet, floor[13], 2f);
+        assertTrue("at 16 s " + floor[16], floor[16] < loud - 10);
+        assertEquals(loud, floor[23], 2f);
+        assertEquals(loud, floor[24], 2f);
+        // meno rumore: subito, a parte lo smoothing
+        assertEquals(quiet, floor[26], 2f);
+    }
+
+    @Test
+    public void aSoundLongerThanTheWindow_staysAboveTheThreshold() throws Exception {
+        // un allarme di 10 s, il doppio della finestra, in una stanza silenziosa
+        SyntheticAudioSource alarm = new SyntheticAudioSource(RATE, 1, 6).silence(10).tone(10, 1000, 0.5f);
+        SyntheticAudioSource room = new SyntheticAudioSource(RATE, 1, 7).noise(20, 0.01f);
+        NoiseFloorTracker tracker = new NoiseFloorTracker(RATE);
+        short[] block = new short[BLOCK];
+        AudioSource mix = new VoiceActivityDetectorTest.Mix(alarm, room);
+        mix.start();
+        long frames = 0;
+        int read;
+        while ((read = mix.read(block, 0, block.length)) > 0) {
+            float level = LevelScale.toDb(RecordingEngine.rmsLevel(block, read));
+            float threshold = tracker.update(level, read);
+            frames += read;
+            if (frames > 10 * RATE + BLOCK) assertTrue("at " + frames / RATE + " s", level > threshold + 3);
+        }
+        assertEquals(20L * RATE, frames);
+    }
+
+    @Test
+    public void thresholdHasAMinimum() throws Exception {
+        NoiseFloorTracker tracker = new NoiseFloorTracker(RATE);
+        floorPerSecond(new SyntheticAudioSource(RATE, 1, 1).silence(3), tracker);
+        assertEquals(LevelScale.MIN_DB + tracker.biasDb, tracker.getNoiseFloorDb(), 0.01f);
+        assertEquals(tracker.minThresholdDb, tracker.getThresholdDb(), 0f);
+    }
+
+    private static int keptSegments(SyntheticAudioSource source, boolean auto) throws Exception {
+        RecordingEngine.Config c = new RecordingEngine.Config();
+        c.frameSec = 2;
+        c.silenceCutSec = 1;
+        c.preRollSec = 0;
+        c.thresholdDb = -30f;
+        c.autoThreshold = auto;
+        RecordingEngine engine = new RecordingEngine(source, c, new EngineFixtures.CountingSink(), EngineFixtures.failOnError());
+        engine.runBlocking();
+        return engine.getKeptSegments();
+    }
+
+    @Test
+    public void engine_autoThresholdStopsRecordingANoisierRoom() throws Exception {
+        // stanza silenziosa, un evento, poi un condizionatore acceso per un minuto, poi un altro evento
+        SyntheticAudioSource scene = new SyntheticAudioSource(RATE, 1, 5)
+                .noise(5, 0.002f).tone(2, 440, 0.5f).noise(5, 0.002f)
+                .noise(60, 0.1f).tone(2, 440, 0.9f).noise(5, 0.1f);
+        int fixed = keptSegments(scene, false);
+        scene = new SyntheticAudioSource(RATE, 1, 5)
+                .noise(5, 0.002f).tone(2, 440, 0.5f).noise(5, 0.002f)
+                .noise(60, 0.1f).tone(2, 440, 0.9f).noise(5, 0.1f);
+        int auto = keptSegments(scene, true);
+        // soglia fissa: il condizionatore (-25 dBFS) la tiene aperta per tutto il minuto
+        assertTrue("fixed " + fixed, fixed >= 30);
+        // soglia automatica: i due eventi (due segmenti ciascuno con la coda di silenzio)
+        // e i primi secondi di condizionatore, finché il rumore di fondo lo raggiunge a 3 dB/s
+        assertTrue("auto " + auto, auto >= 4 && auto <= 14);
+    }
+}
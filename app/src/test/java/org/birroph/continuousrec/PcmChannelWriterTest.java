@@ -0,0 +1,66 @@
+package org.birroph.continuousrec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class PcmChannelWriterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void write_isLittleEndianAcrossBufferBoundaries() throws Exception {
+        File f = tmp.newFile("out.pcm");
+        short[] samples = new short[1000];
+        for (int i = 0; i < samples.length; i++) samples[i] = (short) (i * 37 - 9000);
+
+        // buffer piccolo e blocchi dispari per forzare flush a metà blocco
+        try (PcmChannelWriter w = new PcmChannelWriter(FileChannel.open(f.toPath(), StandardOpenOption.WRITE), 64)) {
+            for (int off = 0; off < samples.length; off += 77) {
+                w.write(samples, off, Math.min(77, samples.length - off));
+            }
+        }
+
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(f.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(samples.length * 2, bytes.remaining());
+        for (short s : samples) assertEquals(s, bytes.getShort());
+    }
+
+    @Test
+    public void hotPath_allocatesNothingOnceWarm() throws Exception {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        org.junit.Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+
+        File f = tmp.newFile("hot.pcm");
+        short[] block = new short[2048];
+        for (int i = 0; i < block.length; i++) block[i] = (short) i;
+
+        PcmChannelWriter w = new PcmChannelWriter(FileChannel.open(f.toPath(), StandardOpenOption.WRITE));
+        try {
+            // warm-up: JIT e strutture interne del canale
+            for (int i = 0; i < 2000; i++) w.write(block, 0, block.length);
+
+            long tid = Thread.currentThread().getId();
+            long before = mx.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < 5000; i++) w.write(block, 0, block.length);
+            long allocated = mx.getThreadAllocatedBytes(tid) - before;
+
+            // vecchio percorso: 5000 * 4 KB = ~20 MB; qui ci aspettiamo zero (tolleranza per il profiler)
+            assertTrue("allocated " + allocated + " bytes on the hot path", allocated < 1024);
+        } finally {
+            w.close();
+        }
+        assertEquals(7000L * 4096, w.getBytesWritten());
+        assertEquals(7000L * 4096, f.length());
+    }
+}
@@ -0,0 +1,37 @@
+package org.birroph.continuousrec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class PcmSegmentWriterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void finish_writesLittleEndianPcm() throws Exception {
+        File f = tmp.newFile("seg.pcm");
+        PcmSegmentWriter writer = new PcmSegmentWriter(f);
+        short[] block = {0x0102, -2, 0, 0x7fff};
+        writer.write(block, 1, 3);
+        assertEquals(3, writer.getSamplesWritten());
+        assertSame(f, writer.finish());
+
+        byte[] bytes = Files.readAllBytes(f.toPath());
+        assertArrayEquals(new byte[]{(byte) 0xfe, (byte) 0xff, 0, 0, (byte) 0xff, 0x7f}, bytes);
+    }
+
+    @Test
+    public void abort_deletesOutput() throws Exception {
+        File f = tmp.newFile("seg.pcm");
+        PcmSegmentWriter writer = new PcmSegmentWriter(f);
+        writer.write(new short[64], 0, 64);
+        writer.abort();
+        assertFalse(f.exists());
+    }
+}
@@ -0,0 +1,144 @@
+package org.birroph.continuousrec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PeakPyramidTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static short[] noise(int length, long seed) {
+        Random r = new Random(seed);
+        short[] s = new short[length];
+        for (int i = 0; i < length; i++) s[i] = (short) (r.nextGaussian() * 3000);
+        return s;
+    }
+
+    /** Feeds {@code samples} in blocks of odd sizes, like the engine does at a rollover. */
+    private static PeakPyramid build(short[] samples, int channels, int... levels) {
+        PeakPyramid p = levels.length == 0 ? new PeakPyramid(8000, channels) : new PeakPyramid(8000, channels, levels);
+        int[] sizes = {1000, 7, 2048, 333};
+        for (int at = 0, k = 0; at < samples.length; k++) {
+            int n = Math.min(sizes[k % sizes.length], samples.length - at);
+            p.add(samples, at, n);
+            at += n;
+        }
+        p.finish();
+        return p;
+    }
+
+    private static void assertBin(PeakPyramid.Mapped m, short[] samples, int channels, int level, int bin) {
+        int from = bin * m.getFramesPerBin(level) * channels;
+        int to = Math.min(samples.length, from + m.getFramesPerBin(level) * channels);
+        int min = Short.MAX_VALUE;
+        int max = Short.MIN_VALUE;
+        double energy = 0;
+        for (int i = from; i < to; i++) {
+            min = Math.min(min, samples[i]);
+            max = Math.max(max, samples[i]);
+            energy += samples[i] * samples[i];
+        }
+        String at = "level " + level + " bin " + bin;
+        assertEquals(at, min, m.getMin(level, bin));
+        assertEquals(at, max, m.getMax(level, bin));
+        assertEquals(at, Math.sqrt(energy / (to - from)), m.getRms(level, bin), 1.0);
+    }
+
+    @Test
+    public void everyLevel_matchesTheSamples() throws IOException {
+        int channels = 2;
+        short[] samples = noise(channels * 70_000, 1);
+        samples[2 * 12_345 + 1] = Short.MAX_VALUE;
+        PeakPyramid p = build(samples, channels, 256, 4096, 65536);
+        File file = tmp.newFile("a.peaks");
+        p.writeTo(file);
+        assertEquals(p.fileSize(), file.length());
+
+        PeakPyramid.Mapped m = PeakPyramid.map(file);
+        assertEquals(8000, m.getSampleRate());
+        assertEquals(2, m.getChannels());
+        assertEquals(70_000, m.getFrames());
+        assertEquals(3, m.levelCount());
+        // l'ultimo bin di ogni livello è corto
+        assertEquals(274, m.getBins(0));
+        assertEquals(18, m.getBins(1));
+        assertEquals(2, m.getBins(2));
+        for (int l = 0; l < 3; l++) {
+            for (int b = 0; b < m.getBins(l); b++) assertBin(m, samples, channels, l, b);
+        }
+        assertEquals(Short.MAX_VALUE, m.getMax(2, 0));
+    }
+
+    @Test
+    public void levelFor_picksTheCoarsestLevelThatIsFineEnough() throws IOException {
+        File file = tmp.newFile("b.peaks");
+        build(noise(1000, 2), 1).writeTo(file);
+        PeakPyramid.Mapped m = PeakPyramid.map(file);
+        assertEquals(0, m.levelFor(10));
+        assertEquals(0, m.levelFor(4095));
+        assertEquals(1, m.levelFor(4096));
+        assertEquals(2, m.levelFor(1_000_000));
+    }
+
+    @Test
+    public void sidecar_isSmallNextToThePcm() {
+        // 30 s a 48 kHz mono: 2.88 MB di PCM, circa 36 kB di picchi
+        PeakPyramid p = build(noise(30 * 48000, 3), 1);
+        assertTrue(p.fileSize() + " bytes", p.fileSize() < 30 * 48000 * 2 / 50);
+    }
+
+    @Test
+    public void badLevels_areRejected() {
+        try {
+            new PeakPyramid(8000, 1, 256, 1000);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notAPeakFile_isRejected() throws IOException {
+        File file = tmp.newFile("c.peaks");
+        Files.write(file.toPath(), new byte[64]);
+        PeakPyramid.map(file);
+    }
+
+    @Test
+    public void sidecarFor_replacesTheExtension() {
+        assertEquals(new File("/x/ContinuousRec-1.peaks"), PeakPyramid.sidecarFor(new File("/x/ContinuousRec-1.m4a")));
+        assertEquals(new File("/x/noext.peaks"), PeakPyramid.sidecarFor(new File("/x/noext")));
+    }
+
+    @Test
+    public void sidecarWriter_writesNextToTheFinishedSegment() throws IOException {
+        File wav = new File(tmp.getRoot(), "seg.wav");
+        short[] samples = noise(20_000, 4);
+        PeakSidecarWriter w = new PeakSidecarWriter(new WavSegmentWriter(wav, 8000, 1), 0, 8000, 1);
+        w.write(samples, 0, 12_000);
+        w.write(samples, 12_000, 8_000);
+        assertEquals(wav, w.finish());
+        assertNull(w.getSidecarError());
+
+        PeakPyramid.Mapped m = PeakPyramid.map(new File(tmp.getRoot(), "seg.peaks"));
+        assertEquals(20_000, m.getFrames());
+        for (int b = 0; b < m.getBins(0); b++) assertBin(m, samples, 1, 0, b);
+    }
+
+    @Test
+    public void sidecarWriter_abortLeavesNothing() throws IOException {
+        File wav = new File(tmp.getRoot(), "gone.wav");
+        PeakSidecarWriter w = new PeakSidecarWriter(new WavSegmentWriter(wav, 8000, 1), 0, 8000, 1);
+        w.write(noise(5000, 5), 0, 5000);
+        w.abort();
+        String[] left = tmp.getRoot().list();
+        assertEquals(0, left.length);
+    }
+}
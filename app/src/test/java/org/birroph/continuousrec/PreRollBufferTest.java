@@ -0,0 +1,102 @@
+package org.birroph.continuousrec;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PreRollBufferTest {
+
+    /** Collects written samples in memory. */
+    static class MemoryWriter implements SegmentWriter {
+        final List<Short> samples = new ArrayList<>();
+
+        @Override
+        public void write(short[] s, int offset, int length) {
+            for (int i = 0; i < length; i++) samples.add(s[offset + i]);
+        }
+
+        @Override
+        public File finish() {
+            return null;
+        }
+
+        @Override
+        public void abort() {
+            samples.clear();
+        }
+
+        @Override
+        public long getSamplesWritten() {
+            return samples.size();
+        }
+
+        @Override
+        public File getFile() {
+            return null;
+        }
+    }
+
+    @Test
+    public void keepsOnlyTheLastSamples_inOrder() throws Exception {
+        PreRollBuffer preRoll = new PreRollBuffer(10);
+        short[] block = new short[4];
+        short v = 0;
+        for (int b = 0; b < 7; b++) {
+            for (int i = 0; i < block.length; i++) block[i] = v++;
+            preRoll.push(block, 0, block.length);
+        }
+        assertEquals(10, preRoll.size());
+
+        MemoryWriter w = new MemoryWriter();
+        preRoll.drainTo(w);
+        assertEquals(10, w.samples.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(18 + i, (int) w.samples.get(i));
+        }
+        assertEquals(0, preRoll.size());
+    }
+
+    @Test
+    public void blockLargerThanCapacity_keepsTail() throws Exception {
+        PreRollBuffer preRoll = new PreRollBuffer(3);
+        preRoll.push(new short[]{1, 2, 3, 4, 5}, 0, 5);
+        MemoryWriter w = new MemoryWriter();
+        preRoll.drainTo(w);
+        assertEquals(List.of((short) 3, (short) 4, (short) 5), w.samples);
+    }
+
+    @Test
+    public void partialFill_drainsWhatWasPushed() throws Exception {
+        PreRollBuffer preRoll = new PreRollBuffer(100);
+        preRoll.push(new short[]{7, 8}, 0, 2);
+        MemoryWriter w = new MemoryWriter();
+        preRoll.drainTo(w);
+        assertEquals(List.of((short) 7, (short) 8), w.samples);
+    }
+
+    @Test
+    public void zeroCapacity_storesNothing() throws Exception {
+        PreRollBuffer preRoll = new PreRollBuffer(0);
+        preRoll.push(new short[]{1, 2}, 0, 2);
+        MemoryWriter w = new MemoryWriter();
+        preRoll.drainTo(w);
+        assertTrue(w.samples.isEmpty());
+    }
+
+    @Test
+    public void capacity_isClampedToMemoryCap() {
+        assertEquals(5 * 44100, PreRollBuffer.capacityFor(5, 44100, 1));
+        int capped = PreRollBuffer.capacityFor(3600, 48000, 2);
+        assertTrue(capped * 2L <= PreRollBuffer.MAX_BYTES);
+        assertEquals(0, capped % 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityAboveCap_isRejected() {
+        new PreRollBuffer((int) (PreRollBuffer.MAX_BYTES / 2) + 1);
+    }
+}
@@ -0,0 +1,132 @@
+package org.birroph.continuousrec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RangeExtractorTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final int RATE = 8000;
+    private static final long T0 = 1_700_000_000_000L;
+
+    /** Sample {@code i} of a segment holds its frame number on the engine clock, so cuts are visible. */
+    private SegmentCatalog.Entry segment(String name, long startFrame, int frames, int channels, long wallOffsetMs)
+            throws IOException {
+        File file = new File(tmp.getRoot(), name + ".wav");
+        short[] s = new short[frames * channels];
+        for (int f = 0; f < frames; f++) {
+            for (int c = 0; c < channels; c++) s[f * channels + c] = (short) ((startFrame + f) % 30000 + 1);
+        }
+        WavSegmentWriter w = new WavSegmentWriter(file, RATE, channels);
+        w.write(s, 0, s.length);
+        w.finish();
+        long startMs = T0 + wallOffsetMs + startFrame * 1000 / RATE;
+        long endMs = T0 + wallOffsetMs + (startFrame + frames) * 1000 / RATE;
+        return new SegmentCatalog.Entry(startMs, endMs, startFrame, startFrame + frames, RATE, channels,
+                0.5f, 0.1f, "wav", file.length(), file.getPath());
+    }
+
+    private static short[] readAll(File wav) throws IOException {
+        WavFileAudioSource in = new WavFileAudioSource(wav);
+        in.start();
+        List<Short> out = new ArrayList<>();
+        short[] buf = new short[4096];
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) >= 0) {
+            for (int i = 0; i < n; i++) out.add(buf[i]);
+        }
+        in.close();
+        short[] s = new short[out.size()];
+        for (int i = 0; i < s.length; i++) s[i] = out.get(i);
+        return s;
+    }
+
+    private File extract(List<SegmentCatalog.Entry> entries, long from, long to) throws IOException {
+        RangeExtractor.Plan plan = RangeExtractor.plan(entries, from, to);
+        return RangeExtractor.extract(plan, new RangeExtractor.WavStitcher(new File(tmp.getRoot(), "out.wav")));
+    }
+
+    @Test
+    public void contiguousSegments_areJoinedAndTrimmedToTheSample() throws IOException {
+        // tre segmenti da 1 s, uno dopo l'altro sullo stesso clock
+        List<SegmentCatalog.Entry> e = Arrays.asList(
+                segment("a", 0, RATE, 1, 0), segment("b", RATE, RATE, 1, 0), segment("c", 2 * RATE, RATE, 1, 0));
+        File out = extract(e, T0 + 250, T0 + 2_500);
+        short[] s = readAll(out);
+        assertEquals(RATE * 9 / 4, s.length);
+        for (int i = 0; i < s.length; i++) assertEquals("sample " + i, RATE / 4 + i + 1, s[i]);
+        assertEquals(1, tmp.getRoot().list((d, n) -> n.startsWith("out")).length);
+    }
+
+    @Test
+    public void stereo_keepsWholeFrames() throws IOException {
+        List<SegmentCatalog.Entry> e = Arrays.asList(segment("a", 0, RATE, 2, 0), segment("b", RATE, RATE, 2, 0));
+        short[] s = readAll(extract(e, T0 + 500, T0 + 1_500));
+        assertEquals(2 * RATE, s.length);
+        assertEquals(RATE / 2 + 1, s[0]);
+        assertEquals(RATE / 2 + 1, s[1]);
+        assertEquals(RATE + RATE / 2, s[s.length - 1]);
+    }
+
+    @Test
+    public void aPause_staysAsSilence() throws IOException {
+        // "b" riparte dopo un riavvio: clock nuovo, 500 ms dopo la fine di "a"
+        SegmentCatalog.Entry a = segment("a", 0, RATE, 1, 0);
+        SegmentCatalog.Entry b = segment("b", 0, RATE, 1, 1_500);
+        RangeExtractor.Plan plan = RangeExtractor.plan(Arrays.asList(a, b), T0, T0 + 10_000);
+        assertEquals(T0, plan.startWallMs);
+        assertEquals(2, plan.pieces.size());
+        assertEquals(RATE * 3 / 2, plan.pieces.get(1).outputFrame);
+        assertEquals(RATE * 5 / 2, plan.frames);
+
+        short[] s = readAll(extract(Arrays.asList(a, b), T0, T0 + 10_000));
+        assertEquals(RATE * 5 / 2, s.length);
+        assertEquals(RATE, s[RATE - 1]);
+        for (int i = RATE; i < RATE * 3 / 2; i++) assertEquals(0, s[i]);
+        assertEquals(1, s[RATE * 3 / 2]);
+    }
+
+    @Test
+    public void rangeBeforeTheFirstSegment_startsAtTheFirstSample() throws IOException {
+        List<SegmentCatalog.Entry> e = Arrays.asList(segment("a", RATE, RATE, 1, 0));
+        RangeExtractor.Plan plan = RangeExtractor.plan(e, T0, T0 + 1_500);
+        assertEquals(T0 + 1_000, plan.startWallMs);
+        assertEquals(0, plan.pieces.get(0).outputFrame);
+        assertEquals(RATE / 2, plan.frames);
+    }
+
+    @Test(expected = IOException.class)
+    public void mixedFormats_areRejected() throws IOException {
+        SegmentCatalog.Entry a = segment("a", 0, RATE, 1, 0);
+        SegmentCatalog.Entry b = segment("b", RATE, RATE, 2, 0);
+        RangeExtractor.plan(Arrays.asList(a, b), T0, T0 + 2_000);
+    }
+
+    @Test(expected = IOException.class)
+    public void nothingRecorded_isAnError() throws IOException {
+        RangeExtractor.plan(Arrays.asList(segment("a", 0, RATE, 1, 0)), T0 + 5_000, T0 + 6_000);
+    }
+
+    @Test
+    public void aFailedExtraction_leavesNothing() throws IOException {
+        SegmentCatalog.Entry a = segment("a", 0, RATE, 1, 0);
+        RangeExtractor.Plan plan = RangeExtractor.plan(Arrays.asList(a), T0, T0 + 1_000);
+        assertTrue(a.getFile().delete());
+        try {
+            RangeExtractor.extract(plan, new RangeExtractor.WavStitcher(new File(tmp.getRoot(), "out.wav")));
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(0, tmp.getRoot().list().length);
+    }
+}
@@ -0,0 +1,150 @@
+package org.birroph.continuousrec;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RealFftTest {
+
+    private static float[] randomSignal(int n, long seed) {
+        Random r = new Random(seed);
+        float[] x = new float[n];
+        for (int i = 0; i < n; i++) x[i] = (float) (r.nextDouble() * 2 - 1);
+        return x;
+    }
+
+    @Test
+    public void forward_matchesNaiveDft() {
+        for (int n = 4; n <= 2048; n <<= 1) {
+            float[] x = randomSignal(n, n);
+            float[] a = x.clone();
+            new RealFft(n).forward(a);
+            double tol = 1e-4 * n;
+            for (int k = 0; k <= n / 2; k++) {
+                double re = 0, im = 0;
+                for (int t = 0; t < n; t++) {
+                    double ang = -2 * Math.PI * (long) k * t / n;
+                    re += x[t] * Math.cos(ang);
+                    im += x[t] * Math.sin(ang);
+                }
+                if (k == 0) {
+                    assertEquals("n=" + n + " DC", re, a[0], tol);
+                } else if (k == n / 2) {
+                    assertEquals("n=" + n + " Nyquist", re, a[1], tol);
+                } else {
+                    assertEquals("n=" + n + " re[" + k + "]", re, a[2 * k], tol);
+                    assertEquals("n=" + n + " im[" + k + "]", im, a[2 * k + 1], tol);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void inverse_roundTrips() {
+        for (int n = 4; n <= 4096; n <<= 1) {
+            float[] x = randomSignal(n, 31 * n);
+            float[] a = x.clone();
+            RealFft fft = new RealFft(n);
+            fft.forward(a);
+            fft.inverse(a);
+            assertArrayEquals("n=" + n, x, a, 1e-5f);
+        }
+    }
+
+    @Test
+    public void fullScaleSine_readsOneAtItsBin() {
+        int n = 1024;
+        RealFft fft = new RealFft(n);
+        float[] a = new float[n];
+        int bin = 100;
+        for (int i = 0; i < n; i++) a[i] = (float) Math.sin(2 * Math.PI * bin * i / n);
+        fft.applyHann(a);
+        fft.forward(a);
+        float[] power = new float[fft.bins()];
+        fft.powerSpectrum(a, power);
+        assertEquals(1.0, power[bin], 1e-3);
+        assertEquals(0.25, power[bin - 1], 1e-3); // lobo principale della Hann
+        assertTrue(power[bin + 10] < 1e-6);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPowerOfTwo() {
+        new RealFft(1000);
+    }
+
+    @Test
+    public void stft_resynthesisGivesBackTheInputDelayed() {
+        for (int hop : new int[]{256, 128}) {
+            Stft stft = new Stft(512, hop, 1, true, (spectrum, start) -> { });
+            SyntheticAudioSource src = new SyntheticAudioSource(16000, 1, 3).noise(1, 0.5f);
+            src.start();
+            short[] in = new short[16000];
+            src.read(in, 0, in.length);
+
+            float[] out = new float[in.length + hop];
+            int written = 0;
+            short[] block = new short[777];
+            float[] chunk = new float[block.length + hop];
+            for (int pos = 0; pos < in.length; pos += block.length) {
+                int len = Math.min(block.length, in.length - pos);
+                System.arraycopy(in, pos, block, 0, len);
+                int n = stft.process(block, len, chunk);
+                System.arraycopy(chunk, 0, out, written, n);
+                written += n;
+            }
+            assertEquals(in.length / hop * hop, written);
+            int delay = stft.latency();
+            for (int i = delay; i < written; i++) {
+                assertEquals("hop " + hop + " at " + i, in[i - delay] / 32768f, out[i], 1e-4f);
+            }
+        }
+    }
+
+    @Test
+    public void stft_framesComeEveryHopAtTheRightPosition() {
+        long[] starts = new long[64];
+        int[] count = {0};
+        int[] peakBin = {0};
+        Stft stft = new Stft(1024, 256, 2, (spectrum, start) -> {
+            starts[count[0]++] = start;
+            float best = 0;
+            for (int k = 1; k < 512; k++) {
+                float p = spectrum[2 * k] * spectrum[2 * k] + spectrum[2 * k + 1] * spectrum[2 * k + 1];
+                if (p > best) {
+                    best = p;
+                    peakBin[0] = k;
+                }
+            }
+        });
+        // 1 kHz a 16 kHz cade nel bin 64 di una FFT da 1024
+        SyntheticAudioSource src = new SyntheticAudioSource(16000, 2, 1).tone(1, 1000, 0.5f);
+        src.start();
+        short[] block = new short[2048];
+        int read;
+        while ((read = src.read(block, 0, block.length)) > 0) stft.process(block, read);
+        assertEquals(16000 / 256, count[0]);
+        assertEquals(256 - 1024, starts[0]);
+        assertEquals(starts[0] + 256, starts[1]);
+        assertEquals(64, peakBin[0]);
+    }
+
+    @Test
+    public void stft_allocatesNothing() {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        org.junit.Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+        Stft stft = new Stft(2048, 512, 2, true, (spectrum, start) -> { });
+        short[] block = new short[4096];
+        for (int i = 0; i < block.length; i++) block[i] = (short) (i * 37);
+        float[] out = new float[block.length / 2 + 512];
+        for (int i = 0; i < 200; i++) stft.process(block, block.length, out);
+
+        long tid = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < 2000; i++) stft.process(block, block.length, out);
+        long allocated = mx.getThreadAllocatedBytes(tid) - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+}
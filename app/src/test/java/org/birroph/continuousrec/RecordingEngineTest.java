@@ -0,0 +1,396 @@
+package org.birroph.continuousrec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecordingEngineTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /** Counts samples only, so long runs cost no memory. */
+    static class CountingWriter implements SegmentWriter {
+        long startFrame;
+        long samples;
+        boolean finished;
+        boolean aborted;
+
+        @Override
+        public void write(short[] s, int offset, int length) {
+            samples += length;
+        }
+
+        @Override
+        public File finish() {
+            finished = true;
+            return null;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public long getSamplesWritten() {
+            return samples;
+        }
+
+        @Override
+        public File getFile() {
+            return null;
+        }
+    }
+
+    static class CollectingSink implements RecordingEngine.SegmentSink {
+        final List<CountingWriter> opened = new ArrayList<>();
+        final List<CountingWriter> kept = new ArrayList<>();
+
+        @Override
+        public SegmentWriter open(long startFrame) {
+            CountingWriter w = new CountingWriter();
+            w.startFrame = startFrame;
+            opened.add(w);
+            return w;
+        }
+
+        @Override
+        public void closed(SegmentWriter writer) throws IOException {
+            writer.finish();
+            kept.add((CountingWriter) writer);
+        }
+    }
+
+    static class QuietListener implements RecordingEngine.Listener {
+        volatile boolean stopped;
+        final List<Exception> errors = new ArrayList<>();
+
+        @Override
+        public void onLevel(float normalizedLevel) {
+        }
+
+        @Override
+        public void onError(String what, Exception e) {
+            errors.add(e);
+        }
+
+        @Override
+        public void onStopped() {
+            stopped = true;
+        }
+    }
+
+    private static RecordingEngine.Config config() {
+        RecordingEngine.Config c = new RecordingEngine.Config();
+        c.frameSec = 30;
+        c.silenceCutSec = 20;
+        c.thresholdDb = -14f;
+        c.preRollSec = 5;
+        return c;
+    }
+
+    @Test
+    public void fullDayOfSyntheticAudio_segmentsInSeconds() throws Exception {
+        final int rate = 16000;
+        // un evento di 10 s ogni 5 minuti, per 24 ore
+        SyntheticAudioSource source = new SyntheticAudioSource(rate, 1, 1)
+                .tone(10, 440, 0.8f)
+                .silence(290)
+                .loopFor(24 * 3600);
+        CollectingSink sink = new CollectingSink();
+        QuietListener listener = new QuietListener();
+        RecordingEngine engine = new RecordingEngine(source, config(), sink, listener);
+
+        long t0 = System.nanoTime();
+        long frames = engine.runBlocking();
+        double seconds = (System.nanoTime() - t0) / 1e9;
+
+        assertEquals(24L * 3600 * rate, frames);
+        assertTrue(listener.stopped);
+        assertTrue(listener.errors.isEmpty());
+
+        // per evento: un segmento di esattamente 30 s (pre-roll + tono + silenzio)
+        // e la coda silenziosa fino al taglio, scartata (il primo evento non ha pre-roll
+        // e può chiudersi per silenzio prima dei 30 s)
+        int events = 24 * 3600 / 300;
+        assertEquals(events, sink.kept.size());
+        assertTrue(engine.getDiscardedSegments() >= events - 1);
+        for (CountingWriter w : sink.kept.subList(1, events)) {
+            assertEquals(30L * rate, w.samples);
+        }
+        // niente scritto durante il silenzio oltre pre-roll e tagli
+        long written = 0;
+        for (CountingWriter w : sink.opened) written += w.samples;
+        assertTrue(written < frames / 8);
+        // qui gira a decine di migliaia di volte il tempo reale: 100x lascia margine a CI lente
+        assertTrue(seconds + " s", seconds < 24 * 3600 / 100.0);
+    }
+
+    @Test
+    public void boundariesAreSampleExact_whateverTheBlockSize() throws Exception {
+        final int rate = 8000;
+        for (int blockSamples : new int[]{160, 1000, 2048, 4093}) {
+            SyntheticAudioSource source = new SyntheticAudioSource(rate, 1, 1)
+                    .silence(7)
+                    .tone(65, 300, 0.9f)
+                    .silence(60);
+            RecordingEngine.Config c = config();
+            c.blockSamples = blockSamples;
+            c.frameSec = 30;
+            c.silenceCutSec = 4;
+            c.preRollSec = 2;
+            CollectingSink sink = new CollectingSink();
+            RecordingEngine engine = new RecordingEngine(source, c, sink, new QuietListener());
+            engine.runBlocking();
+
+            // 30 + 30 + coda (5 s di tono + 4 s di silenzio, più l'arrotondamento del gate)
+            assertEquals(3, sink.kept.size());
+            CountingWriter first = sink.kept.get(0);
+            assertEquals(30L * rate, first.samples);
+            assertEquals(30L * rate, sink.kept.get(1).samples);
+            // segmenti contigui sul clock dei campioni
+            assertEquals(first.startFrame + 30L * rate, sink.kept.get(1).startFrame);
+            assertEquals(first.startFrame + 60L * rate, sink.kept.get(2).startFrame);
+
+            // il gate apre sul blocco che contiene l'inizio del tono; il pre-roll copre 2 s prima
+            long gateFrame = 7L * rate / blockSamples * blockSamples;
+            assertEquals(gateFrame - 2L * rate, first.startFrame);
+
+            // taglio a fine ultimo blocco sopra soglia + 4 s: esatto se i blocchi allineano la fine del tono
+            long toneEnd = 72L * rate;
+            CountingWriter tail = sink.kept.get(2);
+            long tailEnd = tail.startFrame + tail.samples;
+            if (toneEnd % blockSamples == 0) {
+                assertEquals(toneEnd + 4L * rate, tailEnd);
+            } else {
+                assertEquals(toneEnd + 4L * rate, tailEnd, blockSamples);
+            }
+        }
+    }
+
+    /** Checks every sample against the frame counter of {@link SyntheticAudioSource#counter}. */
+    static class VerifyingSink extends CollectingSink {
+        final int channels;
+        long mismatches;
+
+        VerifyingSink(int channels) {
+            this.channels = channels;
+        }
+
+        @Override
+        public SegmentWriter open(long startFrame) {
+            CountingWriter w = new CountingWriter() {
+                @Override
+                public void write(short[] s, int offset, int length) {
+                    for (int i = 0; i < length; i++) {
+                        long frame = startFrame + (samples + i) / channels;
+                        if (s[offset + i] != (short) frame) mismatches++;
+                    }
+                    samples += length;
+                }
+            };
+            w.startFrame = startFrame;
+            opened.add(w);
+            return w;
+        }
+    }
+
+    private static void assertEverySampleOnce(VerifyingSink sink, long totalFrames, long segmentFrames) {
+        assertEquals(0, sink.mismatches);
+        long next = 0;
+        for (int i = 0; i < sink.kept.size(); i++) {
+            CountingWriter w = sink.kept.get(i);
+            assertEquals("segment " + i, next, w.startFrame);
+            if (i < sink.kept.size() - 1) assertEquals(segmentFrames * sink.channels, w.samples);
+            next += w.samples / sink.channels;
+        }
+        assertEquals(totalFrames, next);
+    }
+
+    @Test
+    public void rollover_keepsEverySampleExactlyOnce() throws Exception {
+        final int rate = 8000;
+        for (int channels = 1; channels <= 2; channels++) {
+            for (int blockSamples : new int[]{160, 1000, 2048, 4093}) {
+                SyntheticAudioSource source = new SyntheticAudioSource(rate, channels, 1).counter(125.5);
+                RecordingEngine.Config c = config();
+                c.blockSamples = blockSamples;
+                c.frameSec = 1;
+                c.thresholdDb = LevelScale.MIN_DB; // gate sempre aperto
+                VerifyingSink sink = new VerifyingSink(channels);
+                QuietListener listener = new QuietListener();
+                RecordingEngine engine = new RecordingEngine(source, c, sink, listener);
+                long frames = engine.runBlocking();
+
+                assertTrue(listener.errors.isEmpty());
+                assertEquals(126, sink.kept.size());
+                assertEverySampleOnce(sink, frames, rate);
+                // nessun segmento aperto in anticipo resta appeso
+                for (CountingWriter w : sink.opened) assertTrue(w.finished || w.aborted);
+            }
+        }
+    }
+
+    @Test
+    public void rollover_keepsEverySampleExactlyOnce_onTheLiveThreads() throws Exception {
+        final int rate = 8000;
+        SyntheticAudioSource source = new SyntheticAudioSource(rate, 2, 1).counter(60.25);
+        RecordingEngine.Config c = config();
+        c.blockSamples = 1000;
+        c.ringBlocks = 1024; // più dell'intera sorgente: niente overrun
+        c.frameSec = 1;
+        c.thresholdDb = LevelScale.MIN_DB;
+        VerifyingSink sink = new VerifyingSink(2);
+        QuietListener listener = new QuietListener();
+        RecordingEngine engine = new RecordingEngine(source, c, sink, listener);
+        engine.start();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!listener.stopped && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        engine.stop(1000);
+
+        assertTrue(listener.stopped);
+        assertEquals(0, engine.getOverrunCount());
+        assertEquals(61, sink.kept.size());
+        assertEverySampleOnce(sink, source.getTotalFrames(), rate);
+    }
+
+    @Test
+    public void droppedFrames_moveTheClockOn() throws Exception {
+        final int rate = 8000;
+        RecordingEngine.Config c = config();
+        c.frameSec = 1;
+        c.thresholdDb = LevelScale.MIN_DB;
+        CollectingSink sink = new CollectingSink();
+        QuietListener listener = new QuietListener();
+        RecordingEngine engine = new RecordingEngine(new SyntheticAudioSource(rate, 1, 1).silence(1), c, sink, listener);
+        short[] block = new short[800];
+        Arrays.fill(block, (short) 1000);
+        // 0,5 s: il prossimo segmento è già aperto a 8000
+        for (int i = 0; i < 5; i++) engine.process(block, block.length);
+        assertEquals(2, sink.opened.size());
+        assertEquals(rate, sink.opened.get(1).startFrame);
+
+        engine.skip(rate); // overrun: un secondo perso nel ring
+        engine.process(block, block.length);
+        assertEquals(4000 + rate + 800, engine.getProcessedFrames());
+        assertTrue(sink.opened.get(1).aborted);
+        CountingWriter next = sink.opened.get(2);
+        assertEquals(4000 + rate, next.startFrame);
+        assertEquals(800, next.samples);
+        assertEquals(4000, sink.kept.get(0).samples);
+        assertTrue(listener.errors.isEmpty());
+    }
+
+    @Test
+    public void sampleClock_convertsFramesExactly() {
+        SampleClock clock = new SampleClock(44100, 1_000_000L);
+        assertEquals(30L * 44100, clock.framesForSeconds(30));
+        assertEquals(1_000_000L, clock.toMicros(44100));
+        assertEquals(22_675L, clock.toMicros(1000));
+        assertEquals(1_000_000L + 2_000L, clock.toWallMillis(88200));
+        // un anno a 48 kHz senza overflow
+        long year = 365L * 24 * 3600 * 48000;
+        assertEquals(365L * 24 * 3600 * 1_000_000L, SampleClock.toMicros(year, 48000));
+    }
+
+    @Test
+    public void silenceOnly_opensNoSegment() throws Exception {
+        SyntheticAudioSource source = new SyntheticAudioSource(8000, 1, 1).silence(600);
+        CollectingSink sink = new CollectingSink();
+        RecordingEngine engine = new RecordingEngine(source, config(), sink, new QuietListener());
+        engine.runBlocking();
+        assertTrue(sink.opened.isEmpty());
+    }
+
+    @Test
+    public void threadedRun_drainsSourceAndStops() throws Exception {
+        SyntheticAudioSource source = new SyntheticAudioSource(8000, 1, 7)
+                .silence(10)
+                .noise(5, 0.9f)
+                .silence(40);
+        CollectingSink sink = new CollectingSink();
+        QuietListener listener = new QuietListener();
+        RecordingEngine.Config c = config();
+        c.ringBlocks = 1024;
+        RecordingEngine engine = new RecordingEngine(source, c, sink, listener);
+        engine.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!listener.stopped && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        engine.stop(1000);
+
+        assertTrue(listener.stopped);
+        assertEquals(0, engine.getOverrunCount());
+        assertEquals(55L * 8000, engine.getProcessedFrames());
+        assertEquals(1, sink.kept.size());
+    }
+
+    @Test
+    public void wavFileSource_feedsTheEngine() throws Exception {
+        File wav = tmp.newFile("in.wav");
+        int rate = 8000;
+        short[] pcm = new short[rate * 12];
+        // 2 s di quadra forte a partire da 4 s
+        for (int i = 4 * rate; i < 6 * rate; i++) pcm[i] = (short) ((i / 20) % 2 == 0 ? 20000 : -20000);
+        writeWav(wav, pcm, rate, 1);
+
+        WavFileAudioSource source = new WavFileAudioSource(wav);
+        CollectingSink sink = new CollectingSink();
+        RecordingEngine.Config c = config();
+        c.silenceCutSec = 3;
+        c.preRollSec = 1;
+        RecordingEngine engine = new RecordingEngine(source, c, sink, new QuietListener());
+        assertEquals(pcm.length, engine.runBlocking());
+        assertEquals(rate, source.getSampleRate());
+        assertEquals(1, sink.kept.size());
+        // 1 s pre-roll + 2 s suono (arrotondato al blocco) + 3 s silenzio
+        assertEquals(6.0, sink.kept.get(0).samples / (double) rate, 2 * 2048.0 / rate);
+    }
+
+    @Test
+    public void rawPcmSource_readsAllSamples() throws Exception {
+        File raw = tmp.newFile("in.pcm");
+        ByteBuffer b = ByteBuffer.allocate(2 * 100_001).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 100_001; i++) b.putShort((short) i);
+        Files.write(raw.toPath(), b.array());
+
+        WavFileAudioSource source = new WavFileAudioSource(raw, 16000, 1);
+        source.start();
+        short[] buf = new short[3000];
+        int total = 0;
+        int n;
+        while ((n = source.read(buf, 0, buf.length)) >= 0) {
+            for (int i = 0; i < n; i++) assertEquals((short) (total + i), buf[i]);
+            total += n;
+        }
+        source.close();
+        assertEquals(100_001, total);
+    }
+
+    @Test(expected = IOException.class)
+    public void notAWav_isRejected() throws Exception {
+        File f = tmp.newFile("bad.wav");
+        Files.write(f.toPath(), new byte[64]);
+        new WavFileAudioSource(f);
+    }
+
+    static void writeWav(File f, short[] pcm, int rate, int channels) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(44 + pcm.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        b.put("RIFF".getBytes()).putInt(36 + pcm.length * 2).put("WAVE".getBytes());
+        b.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) channels)
+                .putInt(rate).putInt(rate * channels * 2).putShort((short) (channels * 2)).putShort((short) 16);
+        b.put("data".getBytes()).putInt(pcm.length * 2);
+        for (short s : pcm) b.putShort(s);
+        Files.write(f.toPath(), b.array());
+    }
+}
@@ -0,0 +1,212 @@
+package org.birroph.continuousrec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class SegmentCatalogTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final long T0 = 1_700_000_000_000L;
+
+    private static SegmentCatalog.Entry entry(long startMs, long lengthMs, String name) {
+        return new SegmentCatalog.Entry(startMs, startMs + lengthMs, startMs * 16, (startMs + lengthMs) * 16,
+                16000, 1, 0.5f, 0.1f, "aac", 1234, "/music/" + name);
+    }
+
+    private static String names(List<SegmentCatalog.Entry> entries) {
+        StringBuilder sb = new StringBuilder();
+        for (SegmentCatalog.Entry e : entries) sb.append(e.getFile().getName()).append(' ');
+        return sb.toString().trim();
+    }
+
+    @Test
+    public void entries_surviveAReopenInStartOrder() throws IOException {
+        File file = new File(tmp.getRoot(), "segments.catalog");
+        try (SegmentCatalog c = new SegmentCatalog(file)) {
+            c.add(entry(T0, 30_000, "a"));
+            // finito dopo, ma iniziato prima (finalizer paralleli)
+            c.add(entry(T0 + 60_000, 30_000, "c"));
+            c.add(entry(T0 + 30_000, 30_000, "b"));
+        }
+        try (SegmentCatalog c = new SegmentCatalog(file)) {
+            assertEquals(3, c.size());
+            assertEquals("a b c", names(c.between(0, Long.MAX_VALUE)));
+            SegmentCatalog.Entry b = c.get(1);
+            assertEquals(T0 + 30_000, b.startWallMs);
+            assertEquals(30_000, b.durationMs());
+            assertEquals(16000, b.sampleRate);
+            assertEquals(0.5f, b.peak, 0f);
+            assertEquals("aac", b.codec);
+            assertEquals(1234, b.bytes);
+            assertEquals(0, c.getDroppedRecords());
+        }
+    }
+
+    @Test
+    public void between_returnsEverySegmentOverlappingTheRange() throws IOException {
+        try (SegmentCatalog c = new SegmentCatalog(tmp.newFile("c"))) {
+            c.add(entry(T0, 30_000, "a"));
+            c.add(entry(T0 + 30_000, 30_000, "b"));
+            c.add(entry(T0 + 120_000, 300_000, "long"));   // un segmento lungo dopo una pausa
+            c.add(entry(T0 + 420_000, 30_000, "d"));
+
+            assertEquals("a", names(c.between(T0 + 10_000, T0 + 20_000)));
+            assertEquals("a b", names(c.between(T0 + 29_000, T0 + 31_000)));
+            assertEquals("", names(c.between(T0 + 60_000, T0 + 120_000)));
+            // iniziato molto prima di from: c'è lo stesso
+            assertEquals("long", names(c.between(T0 + 400_000, T0 + 401_000)));
+            assertEquals("long d", names(c.between(T0 + 400_000, T0 + 430_000)));
+            assertEquals("b", c.at(T0 + 30_000).getFile().getName());
+            assertNull(c.at(T0 + 90_000));
+            assertEquals("d", c.latest().getFile().getName());
+        }
+    }
+
+    @Test
+    public void tornRecord_isCutOffAndAppendsGoOn() throws IOException {
+        File file = new File(tmp.getRoot(), "segments.catalog");
+        try (SegmentCatalog c = new SegmentCatalog(file)) {
+            c.add(entry(T0, 30_000, "a"));
+            c.add(entry(T0 + 30_000, 30_000, "b"));
+        }
+        long whole = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(whole - 5); // crash a metà dell'ultimo record
+        }
+        try (SegmentCatalog c = new SegmentCatalog(file)) {
+            assertEquals(1, c.getDroppedRecords());
+            assertEquals("a", names(c.between(0, Long.MAX_VALUE)));
+            c.add(entry(T0 + 60_000, 30_000, "c"));
+        }
+        try (SegmentCatalog c = new SegmentCatalog(file)) {
+            assertEquals(0, c.getDroppedRecords());
+            assertEquals("a c", names(c.between(0, Long.MAX_VALUE)));
+        }
+    }
+
+    @Test
+    public void corruptRecord_failsItsCrc() throws IOException {
+        File file = new File(tmp.getRoot(), "segments.catalog");
+        try (SegmentCatalog c = new SegmentCatalog(file)) {
+            c.add(entry(T0, 30_000, "a"));
+            c.add(entry(T0 + 30_000, 30_000, "b"));
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(file.length() - 10);
+            raf.write(0x55);
+        }
+        try (SegmentCatalog c = new SegmentCatalog(file)) {
+            assertEquals("a", names(c.between(0, Long.MAX_VALUE)));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notACatalog_isRejected() throws IOException {
+        File file = tmp.newFile("x");
+        java.nio.file.Files.write(file.toPath(), "hello world".getBytes());
+        new SegmentCatalog(file);
+    }
+
+    @Test
+    public void hundredThousandSegments_lookupWithoutScanning() throws IOException {
+        File file = new File(tmp.getRoot(), "big.catalog");
+        int n = 100_000;
+        try (SegmentCatalog c = new SegmentCatalog(file)) {
+            for (int i = 0; i < n; i++) c.add(entry(T0 + i * 30_000L, 30_000, "s" + i));
+        }
+        SegmentCatalog c = new SegmentCatalog(file);
+        assertEquals(n, c.size());
+
+        long t0 = System.nanoTime();
+        int found = 0;
+        for (int q = 0; q < 10_000; q++) {
+            long from = T0 + (q * 7919L % n) * 30_000L + 5_000;
+            found += c.between(from, from + 3 * 60_000).size();
+        }
+        long query = System.nanoTime() - t0;
+        // 3 minuti su segmenti da 30 s: 7 segmenti, salvo in coda al catalogo
+        assertTrue(found > 10_000 * 6);
+        // ricerca binaria: pochi microsecondi a query, 1 ms lascia margine a CI lente
+        assertTrue(query / 10_000 / 1000 + " us per query", query / 10_000 < 1_000_000);
+        c.close();
+    }
+
+    @Test
+    public void removed_staysRemovedAndTheLogIsCompacted() throws IOException {
+        File file = new File(tmp.getRoot(), "segments.catalog");
+        int n = 3 * SegmentCatalog.MIN_DEAD_FOR_COMPACT;
+        try (SegmentCatalog c = new SegmentCatalog(file)) {
+            for (int i = 0; i < n; i++) c.add(entry(T0 + i * 30_000L, 30_000, "s" + i));
+            assertEquals(n * 1234L, c.getTotalBytes());
+            assertFalse(c.remove(entry(T0 + 1, 30_000, "nope")));
+            assertTrue(c.remove(c.get(1)));
+            assertEquals("s0 s2", names(c.between(T0, T0 + 90_000)));
+        }
+        long full;
+        try (SegmentCatalog c = new SegmentCatalog(file)) {
+            assertEquals(n - 1, c.size());
+            assertEquals((n - 1) * 1234L, c.getTotalBytes());
+            assertEquals("s0", c.oldest(true, 0.5f).getFile().getName());
+            assertNull(c.oldest(false, 0.5f));
+            full = file.length();
+            // sfratto dei più vecchi: quando le lapidi sono la maggioranza il log si riscrive
+            while (c.size() > n / 4) c.remove(c.get(0));
+            assertTrue(file.length() < full / 2);
+        }
+        try (SegmentCatalog c = new SegmentCatalog(file)) {
+            assertEquals(n / 4, c.size());
+            assertEquals("s" + (n - n / 4), c.get(0).getFile().getName());
+            assertEquals(n / 4 * 1234L, c.getTotalBytes());
+        }
+    }
+
+    @Test
+    public void uniqueFile_neverReusesAName() throws IOException {
+        File dir = tmp.getRoot();
+        long t = T0 + 123;
+        File a = SegmentCatalog.uniqueFile(dir, "ContinuousRec-", t, ".m4a");
+        assertEquals("ContinuousRec-" + SegmentCatalog.timestamp(t) + ".m4a", a.getName());
+        // riservato subito, prima che qualcuno ci scriva
+        File aPart = new File(a.getPath() + ".part");
+        assertTrue(aPart.exists());
+        File b = SegmentCatalog.uniqueFile(dir, "ContinuousRec-", t + 500, ".m4a");
+        assertEquals("ContinuousRec-" + SegmentCatalog.timestamp(t) + "_2.m4a", b.getName());
+        assertTrue(aPart.renameTo(a));
+        File c = SegmentCatalog.uniqueFile(dir, "ContinuousRec-", t, ".m4a");
+        assertEquals("ContinuousRec-" + SegmentCatalog.timestamp(t) + "_3.m4a", c.getName());
+        assertTrue(SegmentCatalog.timestamp(t).matches("\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2}"));
+    }
+
+    @Test
+    public void uniqueFile_sameSecondOnManyThreads() throws Exception {
+        // finalizer paralleli con segmenti iniziati nello stesso secondo
+        Set<String> names = ConcurrentHashMap.newKeySet();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            long t = T0 + i * 100;
+            threads[i] = new Thread(() -> {
+                for (int k = 0; k < 50; k++) {
+                    try {
+                        names.add(SegmentCatalog.uniqueFile(tmp.getRoot(), "ContinuousRec-", t, ".flac").getName());
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread th : threads) th.join();
+        assertEquals(8 * 50, names.size());
+    }
+}
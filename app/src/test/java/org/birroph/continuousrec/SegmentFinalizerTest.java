@@ -0,0 +1,126 @@
+package org.birroph.continuousrec;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SegmentFinalizerTest {
+
+    @Test
+    public void submit_blocksWhenQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        SegmentFinalizer finalizer = new SegmentFinalizer(1, 2, null);
+
+        // 1 in lavorazione + 2 in coda
+        for (int i = 0; i < 3; i++) {
+            finalizer.submit("seg" + i, release::await);
+        }
+        waitFor(() -> finalizer.getQueueDepth() == 2);
+
+        AtomicBoolean fourthQueued = new AtomicBoolean(false);
+        Thread writer = new Thread(() -> {
+            try {
+                finalizer.submit("seg3", () -> { });
+                fourthQueued.set(true);
+            } catch (InterruptedException ignored) {
+            }
+        });
+        writer.start();
+        writer.join(200);
+        assertFalse("submit must apply backpressure", fourthQueued.get());
+
+        release.countDown();
+        writer.join(2000);
+        assertTrue(fourthQueued.get());
+        assertTrue(finalizer.shutdown(2000));
+        assertEquals(4, finalizer.getCompletedCount());
+        assertEquals(0, finalizer.getQueueDepth());
+    }
+
+    @Test
+    public void workers_encodeInParallel() throws Exception {
+        CountDownLatch allStarted = new CountDownLatch(3);
+        SegmentFinalizer finalizer = new SegmentFinalizer(3, 4, null);
+        for (int i = 0; i < 3; i++) {
+            finalizer.submit("seg" + i, () -> {
+                allStarted.countDown();
+                assertTrue(allStarted.await(2, TimeUnit.SECONDS));
+            });
+        }
+        assertTrue(allStarted.await(2, TimeUnit.SECONDS));
+        assertTrue(finalizer.shutdown(2000));
+        assertEquals(3, finalizer.getCompletedCount());
+        assertEquals(0, finalizer.getFailedCount());
+    }
+
+    @Test
+    public void encodeTimeAndFailuresAreReported() throws Exception {
+        AtomicInteger failures = new AtomicInteger();
+        SegmentFinalizer finalizer = new SegmentFinalizer(1, 4, new SegmentFinalizer.Listener() {
+            @Override
+            public void onFinalized(String name, long encodeNanos) {
+                assertTrue(encodeNanos >= TimeUnit.MILLISECONDS.toNanos(50));
+            }
+
+            @Override
+            public void onFailed(String name, Exception e) {
+                assertEquals("broken", name);
+                failures.incrementAndGet();
+            }
+        });
+        finalizer.submit("slow", () -> Thread.sleep(60));
+        finalizer.submit("broken", () -> {
+            throw new java.io.IOException("codec");
+        });
+        assertTrue(finalizer.shutdown(2000));
+
+        assertEquals(1, finalizer.getCompletedCount());
+        assertEquals(1, failures.get());
+        assertTrue(finalizer.getLastEncodeMillis() >= 50);
+        assertTrue(finalizer.getAverageEncodeMillis() >= 50);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void submitAfterShutdown_isRejected() throws Exception {
+        SegmentFinalizer finalizer = new SegmentFinalizer(1, 1, null);
+        finalizer.shutdown(1000);
+        finalizer.submit("late", () -> { });
+    }
+
+    @Test
+    public void everyAcceptedJob_runsWhenShutdownRacesTheSubmit() throws Exception {
+        for (int round = 0; round < 10; round++) {
+            SegmentFinalizer finalizer = new SegmentFinalizer(2, 4, null);
+            AtomicInteger accepted = new AtomicInteger();
+            AtomicInteger ran = new AtomicInteger();
+            Thread writer = new Thread(() -> {
+                try {
+                    while (true) {
+                        finalizer.submit("seg", ran::incrementAndGet);
+                        accepted.incrementAndGet();
+                    }
+                } catch (IllegalStateException | InterruptedException ignored) {
+                }
+            });
+            writer.start();
+            Thread.sleep(2);
+            assertTrue(finalizer.shutdown(2000));
+            writer.join(2000);
+            assertEquals(accepted.get(), ran.get());
+            assertEquals(0, finalizer.getQueueDepth());
+        }
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier cond) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!cond.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) fail("timeout");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.birroph.continuousrec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentJournalTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final int RATE = 8000;
+    private static final long T0 = 1_700_000_000_000L;
+
+    private SegmentJournal.Segment segment(String name, int kind, long startFrame) {
+        return new SegmentJournal.Segment(new File(tmp.getRoot(), name), kind, "wav", startFrame,
+                T0 + startFrame * 1000 / RATE, RATE, 1);
+    }
+
+    private static short[] ramp(int length) {
+        short[] s = new short[length];
+        for (int i = 0; i < length; i++) s[i] = (short) (i % 20000 - 10000);
+        return s;
+    }
+
+    @Test
+    public void onlySegmentsNeverDone_arePending() throws IOException {
+        File file = new File(tmp.getRoot(), "segments.journal");
+        try (SegmentJournal j = new SegmentJournal(file)) {
+            j.open(segment("a.wav", SegmentJournal.KIND_WAV, 0));
+            j.open(segment("b.pcm", SegmentJournal.KIND_PCM, RATE * 30));
+            j.checkpoint(new File(tmp.getRoot(), "b.pcm").getPath(), 40_000);
+            j.done(new File(tmp.getRoot(), "a.wav").getPath());
+            j.open(segment("c.wav", SegmentJournal.KIND_WAV, RATE * 60));
+        }
+        try (SegmentJournal j = new SegmentJournal(file)) {
+            List<SegmentJournal.Segment> p = j.pending();
+            assertEquals(2, p.size());
+            SegmentJournal.Segment b = p.get(0);
+            assertEquals("b.pcm", b.getFile().getName());
+            assertEquals(SegmentJournal.KIND_PCM, b.kind);
+            assertEquals(RATE * 30, b.startFrame);
+            assertEquals(T0 + 30_000, b.startWallMs);
+            assertEquals(40_000, b.getCheckpointSamples());
+            assertEquals("c.wav", p.get(1).getFile().getName());
+            assertEquals(0, j.getDroppedRecords());
+        }
+    }
+
+    @Test
+    public void outputName_survivesAReopenAndACompaction() throws IOException {
+        File file = new File(tmp.getRoot(), "segments.journal");
+        File pcm = new File(tmp.getRoot(), "cr_tmp_1.pcm");
+        File flac = new File(tmp.getRoot(), "ContinuousRec-x.flac");
+        try (SegmentJournal j = new SegmentJournal(file)) {
+            j.open(segment(pcm.getName(), SegmentJournal.KIND_PCM, 0));
+            assertNull(j.pending().get(0).getOutput());
+            j.output(pcm.getPath(), flac);
+            j.output(new File(tmp.getRoot(), "never-opened.pcm").getPath(), flac);
+        }
+        try (SegmentJournal j = new SegmentJournal(file)) {
+            assertEquals(1, j.pending().size());
+            assertEquals(flac, j.pending().get(0).getOutput());
+            j.compact();
+        }
+        try (SegmentJournal j = new SegmentJournal(file)) {
+            assertEquals(flac, j.pending().get(0).getOutput());
+        }
+    }
+
+    @Test
+    public void killedWavSegment_isSalvagedUpToTheLastFlush() throws IOException {
+        File journalFile = new File(tmp.getRoot(), "segments.journal");
+        File wav = new File(tmp.getRoot(), "seg.wav");
+        short[] samples = ramp(40_000);
+        SegmentJournal j = new SegmentJournal(journalFile);
+        SegmentJournal.Segment s = new SegmentJournal.Segment(wav, SegmentJournal.KIND_WAV, "wav", 1234, T0, RATE, 1);
+        SegmentWriter w = new SegmentJournal.Writer(j, new WavSegmentWriter(wav, RATE, 1), s, 8000);
+        for (int at = 0; at < 30_000; at += 10_000) w.write(samples, at, 10_000);
+        w.write(samples, 30_000, 500); // ancora nel buffer: il kill se lo porta via
+        j.close();
+        // kill: niente finish, niente done
+
+        SegmentJournal recovered = new SegmentJournal(journalFile);
+        List<SegmentJournal.Segment> p = recovered.pending();
+        assertEquals(1, p.size());
+        assertEquals(30_000, p.get(0).getCheckpointSamples());
+
+        SegmentCatalog.Entry e = SegmentJournal.salvageWav(p.get(0));
+        assertNotNull(e);
+        assertTrue(wav.exists());
+        assertFalse(new File(wav.getPath() + ".part").exists());
+        assertEquals(1234, e.startFrame);
+        assertEquals(1234 + 30_000, e.endFrame);
+        assertEquals(T0, e.startWallMs);
+        assertEquals(T0 + 30_000 * 1000 / RATE, e.endWallMs);
+        assertEquals(wav.getPath(), e.path);
+
+        WavFileAudioSource in = new WavFileAudioSource(wav);
+        in.start();
+        short[] back = new short[40_000];
+        int n = 0;
+        int r;
+        while ((r = in.read(back, n, back.length - n)) > 0) n += r;
+        in.close();
+        assertEquals(30_000, n);
+        for (int i = 0; i < n; i++) assertEquals(samples[i], back[i]);
+        assertEquals(30_000, PeakPyramid.map(PeakPyramid.sidecarFor(wav)).getFrames());
+
+        recovered.done(p.get(0).path);
+        assertTrue(recovered.pending().isEmpty());
+        recovered.close();
+    }
+
+    @Test
+    public void finishedSegment_isNotSalvagedTwice() throws IOException {
+        File wav = new File(tmp.getRoot(), "done.wav");
+        SegmentJournal.Segment s = new SegmentJournal.Segment(wav, SegmentJournal.KIND_WAV, "wav", 0, T0, RATE, 1);
+        try (SegmentJournal j = new SegmentJournal(tmp.newFile("j"))) {
+            SegmentWriter w = new SegmentJournal.Writer(j, new WavSegmentWriter(wav, RATE, 1), s, 8000);
+            w.write(ramp(12_000), 0, 12_000);
+            w.finish();
+            // morto prima del done: il file è intero, manca solo il catalogo
+            assertNull(SegmentJournal.salvageWav(s));
+            SegmentCatalog.Entry e = SegmentJournal.finishedEntry(s);
+            assertEquals(12_000, e.endFrame - e.startFrame);
+        }
+    }
+
+    @Test
+    public void abortedSegment_isDone() throws IOException {
+        File wav = new File(tmp.getRoot(), "gone.wav");
+        try (SegmentJournal j = new SegmentJournal(tmp.newFile("j"))) {
+            SegmentJournal.Segment s = new SegmentJournal.Segment(wav, SegmentJournal.KIND_WAV, "wav", 0, T0, RATE, 1);
+            SegmentWriter w = new SegmentJournal.Writer(j, new WavSegmentWriter(wav, RATE, 1), s, 8000);
+            w.write(ramp(1000), 0, 1000);
+            assertEquals(1, j.pending().size());
+            w.abort();
+            assertTrue(j.pending().isEmpty());
+        }
+    }
+
+    @Test
+    public void journal_staysSmallHoweverLongTheArchive() throws IOException {
+        File file = new File(tmp.getRoot(), "segments.journal");
+        try (SegmentJournal j = new SegmentJournal(file)) {
+            j.open(segment("still-open.pcm", SegmentJournal.KIND_PCM, 0));
+            // un mese di segmenti da 30 s
+            for (int i = 1; i <= 30 * 24 * 120; i++) {
+                SegmentJournal.Segment s = segment("s" + i + ".wav", SegmentJournal.KIND_WAV, i * 30L * RATE);
+                j.open(s);
+                j.checkpoint(s.path, 40_000);
+                j.done(s.path);
+            }
+            assertTrue(file.length() + " bytes", file.length() <= SegmentJournal.COMPACT_BYTES + 1024);
+        }
+        try (SegmentJournal j = new SegmentJournal(file)) {
+            assertEquals(1, j.pending().size());
+            assertEquals("still-open.pcm", j.pending().get(0).getFile().getName());
+        }
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void tornRecord_isCutOff() throws IOException {
+        File file = new File(tmp.getRoot(), "segments.journal");
+        try (SegmentJournal j = new SegmentJournal(file)) {
+            j.open(segment("a.wav", SegmentJournal.KIND_WAV, 0));
+            j.open(segment("b.wav", SegmentJournal.KIND_WAV, RATE));
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 3);
+        }
+        try (SegmentJournal j = new SegmentJournal(file)) {
+            assertEquals(1, j.getDroppedRecords());
+            assertEquals(1, j.pending().size());
+            assertEquals("a.wav", j.pending().get(0).getFile().getName());
+        }
+    }
+
+    @Test
+    public void emptyPart_isDeleted() throws IOException {
+        File wav = new File(tmp.getRoot(), "empty.wav");
+        WavSegmentWriter w = new WavSegmentWriter(wav, RATE, 2);
+        assertEquals(0, WavSegmentWriter.recover(wav, RATE, 2));
+        assertEquals(0, tmp.getRoot().list().length);
+        assertEquals(-1, WavSegmentWriter.recover(wav, RATE, 2));
+        w.abort();
+    }
+}
@@ -0,0 +1,200 @@
+package org.birroph.continuousrec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class StorageQuotaManagerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final long T0 = 1_700_000_000_000L;
+    private static final long MIN = 60_000;
+    private static final long DAY = 24 * 60 * MIN;
+
+    private final AtomicLong now = new AtomicLong(T0);
+
+    /** A 1000-byte segment of one minute starting {@code minute} minutes after T0, with its sidecar. */
+    private SegmentCatalog.Entry segment(SegmentCatalog c, int minute, float peak) throws IOException {
+        File f = new File(tmp.getRoot(), "s" + minute + ".m4a");
+        java.nio.file.Files.write(f.toPath(), new byte[1000]);
+        assertTrue(PeakPyramid.sidecarFor(f).createNewFile());
+        long start = T0 + minute * MIN;
+        SegmentCatalog.Entry e = new SegmentCatalog.Entry(start, start + MIN, minute * 960_000L,
+                (minute + 1) * 960_000L, 16000, 1, peak, peak / 4, "aac", f.length(), f.getPath());
+        c.add(e);
+        return e;
+    }
+
+    private static String names(List<SegmentCatalog.Entry> entries) {
+        StringBuilder sb = new StringBuilder();
+        for (SegmentCatalog.Entry e : entries) sb.append(e.getFile().getName()).append(' ');
+        return sb.toString().trim();
+    }
+
+    private static int evictAll(StorageQuotaManager m) {
+        int n = 0;
+        while (m.evictOne()) n++;
+        return n;
+    }
+
+    @Test
+    public void overQuota_evictsTheOldestUntilItFits() throws IOException {
+        try (SegmentCatalog c = new SegmentCatalog(tmp.newFile("c"))) {
+            for (int i = 0; i < 10; i++) segment(c, i, 0.1f);
+            now.set(T0 + 20 * MIN);
+            StorageQuotaManager m = new StorageQuotaManager(c, new StorageQuotaManager.Policy(6500, 0, 1f, 1), now::get);
+            assertEquals(10_000, m.getUsedBytes());
+            assertEquals(-3500, m.getHeadroomBytes());
+
+            assertEquals(4, evictAll(m));
+            assertEquals("s4.m4a s5.m4a s6.m4a s7.m4a s8.m4a s9.m4a", names(c.between(0, Long.MAX_VALUE)));
+            assertEquals(6000, m.getUsedBytes());
+            assertEquals(500, m.getHeadroomBytes());
+            assertEquals(4, m.getEvictedCount());
+            assertEquals(4000, m.getEvictedBytes());
+            assertFalse(new File(tmp.getRoot(), "s0.m4a").exists());
+            assertFalse(new File(tmp.getRoot(), "s0.peaks").exists());
+            assertTrue(new File(tmp.getRoot(), "s4.peaks").exists());
+        }
+    }
+
+    @Test
+    public void maxAge_evictsOnlyWhatIsTooOld() throws IOException {
+        try (SegmentCatalog c = new SegmentCatalog(tmp.newFile("c"))) {
+            for (int i = 0; i < 5; i++) segment(c, i * 24 * 60, 0.1f); // uno al giorno
+            StorageQuotaManager m = new StorageQuotaManager(c, new StorageQuotaManager.Policy(0, 2 * DAY, 1f, 1), now::get);
+            now.set(T0 + 3 * DAY + 2 * MIN);
+            assertEquals(2, evictAll(m));
+            assertEquals(3, c.size());
+            assertEquals(Long.MAX_VALUE, m.getHeadroomBytes());
+            now.addAndGet(DAY);
+            assertEquals(1, evictAll(m));
+        }
+    }
+
+    @Test
+    public void loudSegments_outliveQuietOnes() throws IOException {
+        try (SegmentCatalog c = new SegmentCatalog(tmp.newFile("c"))) {
+            segment(c, 0, 0.9f);          // forte, il più vecchio
+            segment(c, 1, 0.1f);
+            segment(c, 2, 0.1f);
+            segment(c, 3, 0.9f);
+            segment(c, 4, 0.1f);
+            now.set(T0 + 10 * MIN);
+            StorageQuotaManager.Policy p = new StorageQuotaManager.Policy(3000, 0, 0.5f, 4);
+            StorageQuotaManager m = new StorageQuotaManager(c, p, now::get);
+            assertEquals(2, evictAll(m));
+            assertEquals("s0.m4a s3.m4a s4.m4a", names(c.between(0, Long.MAX_VALUE)));
+
+            // con l'età: s0 ha 9 min, cioè 2 "effettivi"; s4 ne ha 5 e va via prima
+            m.setPolicy(new StorageQuotaManager.Policy(2000, 0, 0.5f, 4));
+            assertEquals(1, evictAll(m));
+            assertEquals("s0.m4a s3.m4a", names(c.between(0, Long.MAX_VALUE)));
+
+            // senza preferenze per i forti: il più vecchio e basta
+            m.setPolicy(new StorageQuotaManager.Policy(1000, 0, 0.5f, 1));
+            assertEquals(1, evictAll(m));
+            assertEquals("s3.m4a", names(c.between(0, Long.MAX_VALUE)));
+        }
+    }
+
+    @Test
+    public void aLongRunOfLoudSegments_doesNotShieldOldQuietOnes() throws IOException {
+        try (SegmentCatalog c = new SegmentCatalog(tmp.newFile("c"))) {
+            // 300 minuti forti in testa, poi 10 tranquilli
+            for (int i = 0; i < 300; i++) segment(c, i, 0.9f);
+            for (int i = 300; i < 310; i++) segment(c, i, 0.1f);
+            now.set(T0 + 2000 * MIN);
+
+            // i forti hanno al più 500 min "effettivi", i tranquilli quasi 1700
+            StorageQuotaManager m = new StorageQuotaManager(c, new StorageQuotaManager.Policy(0, 1000 * MIN, 0.5f, 4), now::get);
+            assertEquals(10, evictAll(m));
+            assertEquals(300, c.size());
+            assertNull(c.oldest(false, 0.5f));
+
+            for (int i = 310; i < 320; i++) segment(c, i, 0.1f);
+            m.setPolicy(new StorageQuotaManager.Policy(305 * 1000, 0, 0.5f, 4));
+            assertEquals(5, evictAll(m));
+            assertEquals(300, c.between(0, T0 + 300 * MIN).size());
+            assertEquals("s315.m4a", c.oldest(false, 0.5f).getFile().getName());
+        }
+    }
+
+    @Test
+    public void evictions_surviveAReopenOfTheCatalog() throws IOException {
+        File file = new File(tmp.getRoot(), "segments.catalog");
+        try (SegmentCatalog c = new SegmentCatalog(file)) {
+            for (int i = 0; i < 6; i++) segment(c, i, 0.1f);
+            now.set(T0 + 10 * MIN);
+            evictAll(new StorageQuotaManager(c, new StorageQuotaManager.Policy(2000, 0, 1f, 1), now::get));
+        }
+        try (SegmentCatalog c = new SegmentCatalog(file)) {
+            assertEquals("s4.m4a s5.m4a", names(c.between(0, Long.MAX_VALUE)));
+            assertEquals(2000, c.getTotalBytes());
+        }
+    }
+
+    @Test
+    public void aFileAlreadyGone_isStillDropped() throws IOException {
+        try (SegmentCatalog c = new SegmentCatalog(tmp.newFile("c"))) {
+            SegmentCatalog.Entry e = segment(c, 0, 0.1f);
+            segment(c, 1, 0.1f);
+            assertTrue(e.getFile().delete());
+            now.set(T0 + 10 * MIN);
+            StorageQuotaManager m = new StorageQuotaManager(c, new StorageQuotaManager.Policy(1000, 0, 1f, 1), now::get);
+            assertEquals(1, evictAll(m));
+            assertEquals(1, c.size());
+            assertNull(m.getLastError());
+        }
+    }
+
+    @Test
+    public void anUndeletableFile_doesNotStopEviction() throws IOException {
+        try (SegmentCatalog c = new SegmentCatalog(tmp.newFile("c"))) {
+            SegmentCatalog.Entry stuck = segment(c, 0, 0.1f);
+            // una directory piena non si cancella, come un file di un'installazione precedente
+            assertTrue(stuck.getFile().delete());
+            assertTrue(stuck.getFile().mkdir());
+            assertTrue(new File(stuck.getFile(), "x").createNewFile());
+            for (int i = 1; i < 4; i++) segment(c, i, 0.1f);
+            now.set(T0 + 10 * MIN);
+            StorageQuotaManager m = new StorageQuotaManager(c, new StorageQuotaManager.Policy(2000, 0, 1f, 1), now::get);
+            assertEquals(2, evictAll(m));
+            assertEquals("s2.m4a s3.m4a", names(c.between(0, Long.MAX_VALUE)));
+            assertNotNull(m.getLastError());
+            assertTrue(stuck.getFile().exists());
+            assertEquals(1, m.getEvictedCount());
+        }
+    }
+
+    @Test
+    public void backgroundThread_catchesUpAfterAPoke() throws Exception {
+        try (SegmentCatalog c = new SegmentCatalog(tmp.newFile("c"))) {
+            now.set(T0 + DAY);
+            StorageQuotaManager m = new StorageQuotaManager(c, new StorageQuotaManager.Policy(5000, 0, 1f, 1), now::get);
+            m.start();
+            try {
+                for (int i = 0; i < 50; i++) {
+                    segment(c, i, 0.1f);
+                    m.poke();
+                }
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                // il contatore sale dopo che l'entry è uscita dal catalogo: si aspetta quello
+                while (m.getEvictedCount() < 45 && System.nanoTime() < deadline) Thread.sleep(1);
+                assertEquals(45, m.getEvictedCount());
+                assertEquals(5000, m.getUsedBytes());
+            } finally {
+                m.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package org.birroph.continuousrec;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VoiceActivityDetectorTest {
+
+    private static final int BLOCK_FRAMES = 1024;
+    /** Hangover and attack are wanted: blocks this close to a speech edge are not scored. */
+    private static final double COLLAR_SEC = 0.5;
+
+    /** Sum of two sources, e.g. a scene over a steady background. */
+    static class Mix implements AudioSource {
+        final AudioSource a;
+        final AudioSource b;
+        short[] tmp = new short[0];
+
+        Mix(AudioSource a, AudioSource b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override public int getSampleRate() { return a.getSampleRate(); }
+        @Override public int getChannels() { return a.getChannels(); }
+        @Override public void start() throws java.io.IOException { a.start(); b.start(); }
+        @Override public void close() { a.close(); b.close(); }
+
+        @Override
+        public int read(short[] buffer, int offset, int length) throws java.io.IOException {
+            int n = a.read(buffer, offset, length);
+            if (n <= 0) return n;
+            if (tmp.length < n) tmp = new short[n];
+            int m = b.read(tmp, 0, n);
+            for (int i = 0; i < m; i++) {
+                int s = buffer[offset + i] + tmp[i];
+                buffer[offset + i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, s));
+            }
+            return n;
+        }
+    }
+
+    /** A recording scene with known speech regions, in seconds. */
+    static class Scene {
+        final SyntheticAudioSource source;
+        final List<double[]> speech = new ArrayList<>();
+        double t = 0;
+
+        Scene(int rate, int channels) {
+            source = new SyntheticAudioSource(rate, channels, 7);
+        }
+
+        Scene speech(double seconds, float amp) {
+            source.speech(seconds, amp);
+            speech.add(new double[]{t, t + seconds});
+            t += seconds;
+            return this;
+        }
+
+        Scene fan(double seconds, float amp) {
+            source.noise(seconds, amp);
+            t += seconds;
+            return this;
+        }
+
+        Scene rumble(double seconds, float amp) {
+            source.rumble(seconds, 60, amp);
+            t += seconds;
+            return this;
+        }
+
+        Scene quiet(double seconds) {
+            source.silence(seconds);
+            t += seconds;
+            return this;
+        }
+
+        /** 1 speech, 0 not speech, -1 too close to an edge to score. */
+        int label(double from, double to) {
+            int label = 0;
+            for (double[] s : speech) {
+                if (to > s[0] - COLLAR_SEC && from < s[0] + COLLAR_SEC) return -1;
+                if (to > s[1] - COLLAR_SEC && from < s[1] + COLLAR_SEC) return -1;
+                if (from >= s[0] && to <= s[1]) label = 1;
+            }
+            return label;
+        }
+
+        AudioSource withBackground(float amp) {
+            int rate = source.getSampleRate();
+            SyntheticAudioSource bg = new SyntheticAudioSource(rate, source.getChannels(), 99).noise(t, amp);
+            return new Mix(source, bg);
+        }
+    }
+
+    interface Gate {
+        boolean process(short[] block, int length);
+    }
+
+    static final class Score {
+        int tp, fp, fn, tn;
+        long cpuNanos;
+        double audioSec;
+
+        double precision() {
+            return tp + fp == 0 ? 1 : (double) tp / (tp + fp);
+        }
+
+        double recall() {
+            return tp + fn == 0 ? 1 : (double) tp / (tp + fn);
+        }
+
+        /** CPU time spent in the gate per second of audio, in microseconds. */
+        double cpuMicrosPerSec() {
+            return cpuNanos / 1000.0 / audioSec;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("precision %.3f recall %.3f (tp %d fp %d fn %d tn %d), %.1f us CPU per s of audio",
+                    precision(), recall(), tp, fp, fn, tn, cpuMicrosPerSec());
+        }
+    }
+
+    private static Score replay(Scene scene, AudioSource source, Gate gate) throws Exception {
+        int rate = source.getSampleRate();
+        int channels = source.getChannels();
+        short[] block = new short[BLOCK_FRAMES * channels];
+        Score score = new Score();
+        long frame = 0;
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        source.start();
+        int read;
+        while ((read = source.read(block, 0, block.length)) >= 0) {
+            long t0 = mx.getCurrentThreadCpuTime();
+            boolean open = gate.process(block, read);
+            score.cpuNanos += mx.getCurrentThreadCpuTime() - t0;
+            int frames = read / channels;
+            int label = scene.label((double) frame / rate, (double) (frame + frames) / rate);
+            frame += frames;
+            if (label < 0) continue;
+            if (label == 1) {
+                if (open) score.tp++; else score.fn++;
+            } else {
+                if (open) score.fp++; else score.tn++;
+            }
+        }
+        source.close();
+        score.audioSec = (double) frame / rate;
+        return score;
+    }
+
+    private static Scene office(int rate, int channels) {
+        return new Scene(rate, channels)
+                .quiet(3).speech(5, 0.5f)
+                .fan(4, 0.3f).speech(5, 0.25f)
+                .rumble(4, 0.5f).quiet(2).speech(5, 0.5f)
+                .fan(3, 0.15f).quiet(2);
+    }
+
+    private static Score vad(int rate, int channels) throws Exception {
+        Scene scene = office(rate, channels);
+        VoiceActivityDetector vad = new VoiceActivityDetector(rate, channels);
+        return replay(scene, scene.withBackground(0.005f), vad::process);
+    }
+
+    private static Score level(int rate, int channels, float threshold) throws Exception {
+        Scene scene = office(rate, channels);
+        return replay(scene, scene.withBackground(0.005f),
+                (b, n) -> RecordingEngine.rmsLevel(b, n) >= threshold);
+    }
+
+    @Test
+    public void speechIsKept_fanAndRumbleAreNot() throws Exception {
+        for (int rate : new int[]{16000, 44100}) {
+            Score v = vad(rate, 1);
+            Score l = level(rate, 1, 0.02f);
+            assertTrue("vad " + v, v.precision() >= 0.95);
+            assertTrue("vad " + v, v.recall() >= 0.95);
+            // la soglia che tiene la voce apre anche su ventola e rombo
+            assertTrue("level " + l, l.precision() < 0.7);
+            assertTrue(v.cpuMicrosPerSec() < 20_000);
+        }
+    }
+
+    @Test
+    public void stereoInput_isDownmixed() throws Exception {
+        Score v = vad(48000, 2);
+        assertTrue("vad " + v, v.precision() >= 0.95 && v.recall() >= 0.95);
+    }
+
+    @Test
+    public void gateOpensOnlyAfterAttack_andHoldsForHangover() {
+        int rate = 16000;
+        VoiceActivityDetector vad = new VoiceActivityDetector(rate, 1);
+        int window = vad.getWindow();
+        short[] w = new short[window];
+        // silenzio per fissare il pavimento di rumore
+        for (int i = 0; i < 50; i++) assertFalse(vad.process(w, window));
+
+        // tono a 300 Hz: fortemente predicibile, dentro la banda della voce
+        long n = 0;
+        int opened = -1;
+        for (int i = 0; i < 10; i++) {
+            for (int k = 0; k < window; k++, n++) w[k] = (short) (8000 * Math.sin(2 * Math.PI * 300 * n / rate));
+            if (vad.process(w, window) && opened < 0) opened = i;
+        }
+        assertEquals(vad.attackWindows - 1, opened);
+
+        java.util.Arrays.fill(w, (short) 0);
+        int held = 0;
+        while (vad.process(w, window)) held++;
+        assertEquals(vad.hangoverMs * rate / (1000 * window), held);
+        assertFalse(vad.isOpen());
+    }
+
+    @Test
+    public void engine_voiceGateDropsFanOnlySegments() throws Exception {
+        int rate = 16000;
+        SyntheticAudioSource source = new SyntheticAudioSource(rate, 1, 3)
+                .noise(4, 0.3f).silence(1).speech(3, 0.5f).silence(1).rumble(4, 60, 0.5f);
+        RecordingEngine.Config config = new RecordingEngine.Config();
+        config.frameSec = 2;
+        config.silenceCutSec = 1;
+        config.preRollSec = 0;
+        config.thresholdDb = -34f;
+        config.voiceGate = true;
+        EngineFixtures.CountingSink sink = new EngineFixtures.CountingSink();
+        RecordingEngine engine = new RecordingEngine(source, config, sink, EngineFixtures.failOnError());
+        engine.runBlocking();
+        // 3 s di voce: due segmenti da 2 s, il rombo e la ventola non aprono nulla
+        assertEquals(2, engine.getKeptSegments());
+        assertEquals(2, sink.closed.get());
+    }
+
+    @Test
+    public void process_allocatesNothing() throws Exception {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        org.junit.Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+        VoiceActivityDetector vad = new VoiceActivityDetector(48000, 2);
+        SyntheticAudioSource source = new SyntheticAudioSource(48000, 2, 5).speech(2, 0.5f).noise(1, 0.2f).loopFor(3600);
+        source.start();
+        short[] block = new short[4096];
+        for (int i = 0; i < 500; i++) vad.process(block, source.read(block, 0, block.length));
+
+        long tid = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < 2000; i++) vad.process(block, source.read(block, 0, block.length));
+        long allocated = mx.getThreadAllocatedBytes(tid) - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+}
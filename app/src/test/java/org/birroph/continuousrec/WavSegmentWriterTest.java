@@ -0,0 +1,122 @@
+package org.birroph.continuousrec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class WavSegmentWriterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void finish_patchesSizesInPlace() throws Exception {
+        File wav = new File(tmp.getRoot(), "seg.wav");
+        WavSegmentWriter writer = new WavSegmentWriter(wav, 16000, 2);
+        short[] block = new short[1000];
+        for (int i = 0; i < block.length; i++) block[i] = (short) i;
+        for (int k = 0; k < 70; k++) writer.write(block, 0, block.length); // oltre il buffer da 64 KB
+        assertFalse(wav.exists());
+        assertSame(wav, writer.finish());
+        assertFalse(new File(tmp.getRoot(), "seg.wav.part").exists());
+
+        long dataLen = 70_000L * 2;
+        assertEquals(WavFormat.STREAM_HEADER_BYTES + dataLen, wav.length());
+        ByteBuffer h = ByteBuffer.wrap(Files.readAllBytes(wav.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("RIFF", ascii(h, 0));
+        assertEquals(WavFormat.STREAM_HEADER_BYTES - 8 + dataLen, h.getInt(4));
+        assertEquals("JUNK", ascii(h, 12));
+        assertEquals("fmt ", ascii(h, 48));
+        assertEquals(2, h.getShort(58));
+        assertEquals(16000, h.getInt(60));
+        assertEquals("data", ascii(h, 72));
+        assertEquals(dataLen, h.getInt(76));
+
+        // rilettura: stessi campioni, nello stesso ordine
+        WavFileAudioSource source = new WavFileAudioSource(wav);
+        assertEquals(16000, source.getSampleRate());
+        assertEquals(2, source.getChannels());
+        source.start();
+        short[] buf = new short[777];
+        long total = 0;
+        int read;
+        while ((read = source.read(buf, 0, buf.length)) >= 0) {
+            for (int i = 0; i < read; i++) assertEquals((short) ((total + i) % 1000), buf[i]);
+            total += read;
+        }
+        source.close();
+        assertEquals(70_000, total);
+    }
+
+    @Test
+    public void abort_deletesOutput() throws Exception {
+        File wav = new File(tmp.getRoot(), "seg.wav");
+        WavSegmentWriter writer = new WavSegmentWriter(wav, 16000, 1);
+        writer.write(new short[64], 0, 64);
+        writer.abort();
+        assertFalse(wav.exists());
+        assertFalse(new File(tmp.getRoot(), "seg.wav.part").exists());
+    }
+
+    @Test
+    public void streamHeader_becomesRf64PastFourGigabytes() {
+        long dataLen = 5L << 30;
+        ByteBuffer h = ByteBuffer.allocate(WavFormat.STREAM_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        WavFormat.putStreamHeader(h, dataLen, 48000, 2, 16);
+        assertEquals(WavFormat.STREAM_HEADER_BYTES, h.position());
+        assertEquals("RF64", ascii(h, 0));
+        assertEquals(-1, h.getInt(4));
+        assertEquals("ds64", ascii(h, 12));
+        assertEquals(28, h.getInt(16));
+        assertEquals(dataLen + WavFormat.STREAM_HEADER_BYTES - 8, h.getLong(20));
+        assertEquals(dataLen, h.getLong(28));
+        assertEquals(dataLen / 4, h.getLong(36));
+        assertEquals("data", ascii(h, 72));
+        assertEquals(-1, h.getInt(76));
+
+        // al limite esatto resta RIFF
+        h.clear();
+        WavFormat.putStreamHeader(h, WavFormat.MAX_RIFF_DATA, 48000, 2, 16);
+        assertEquals("RIFF", ascii(h, 0));
+        assertEquals(0xffffffffL, h.getInt(4) & 0xffffffffL);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void canonicalHeader_refusesSizesItCannotHold() {
+        WavFormat.putHeader(ByteBuffer.allocate(WavFormat.HEADER_BYTES), 5L << 30, 48000, 2, 16);
+    }
+
+    @Test
+    public void source_readsRf64DataSizeFromDs64() throws Exception {
+        File wav = tmp.newFile("big.wav");
+        long dataLen = 5L << 30;
+        ByteBuffer h = ByteBuffer.allocate(WavFormat.STREAM_HEADER_BYTES + 4).order(ByteOrder.LITTLE_ENDIAN);
+        WavFormat.putStreamHeader(h, dataLen, 48000, 2, 16);
+        h.putShort((short) 123).putShort((short) -123);
+        try (RandomAccessFile raf = new RandomAccessFile(wav, "rw")) {
+            raf.write(h.array());
+            raf.setLength(WavFormat.STREAM_HEADER_BYTES + dataLen); // file sparso
+        }
+
+        WavFileAudioSource source = new WavFileAudioSource(wav);
+        assertEquals(48000, source.getSampleRate());
+        assertEquals(2, source.getChannels());
+        source.start();
+        short[] buf = new short[2];
+        assertEquals(2, source.read(buf, 0, 2));
+        assertEquals(123, buf[0]);
+        assertEquals(-123, buf[1]);
+        source.close();
+    }
+
+    private static String ascii(ByteBuffer b, int at) {
+        return new String(new byte[]{b.get(at), b.get(at + 1), b.get(at + 2), b.get(at + 3)});
+    }
+}
@@ -0,0 +1,91 @@
+package org.birroph.continuousrec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WaveformHistoryTest {
+
+    @Test
+    public void column_keepsTheQuietestAndLoudestBlock() {
+        WaveformHistory h = new WaveformHistory(4, 100);
+        h.add(0.2f, 0.3f, 40);
+        h.add(0.1f, 0.9f, 10); // un picco breve
+        h.add(0.4f, 0.5f, 50);
+        assertEquals(1, h.size());
+        assertEquals(0.1f, h.getLow(0), 0f);
+        assertEquals(0.9f, h.getHigh(0), 0f);
+    }
+
+    @Test
+    public void partialColumn_isShownAsTheNewest() {
+        WaveformHistory h = new WaveformHistory(4, 100);
+        h.add(0.1f, 0.1f, 100);
+        h.add(0.5f, 0.6f, 30);
+        assertEquals(2, h.size());
+        assertEquals(0.1f, h.getHigh(0), 0f);
+        assertEquals(0.6f, h.getHigh(1), 0f);
+    }
+
+    @Test
+    public void ring_dropsTheOldestColumns() {
+        WaveformHistory h = new WaveformHistory(4, 10);
+        for (int c = 0; c < 10; c++) h.add(c / 10f, c / 10f, 10);
+        assertEquals(4, h.size());
+        for (int i = 0; i < 4; i++) assertEquals((6 + i) / 10f, h.getHigh(i), 0f);
+
+        // con una colonna parziale la più vecchia completa esce
+        h.add(0.95f, 0.95f, 5);
+        assertEquals(4, h.size());
+        assertEquals(0.7f, h.getHigh(0), 0f);
+        assertEquals(0.9f, h.getHigh(2), 0f);
+        assertEquals(0.95f, h.getHigh(3), 0f);
+    }
+
+    @Test
+    public void longBlock_fillsEveryColumnItSpans() {
+        WaveformHistory h = new WaveformHistory(8, 10);
+        h.add(0.2f, 0.4f, 5);
+        h.add(0.3f, 0.8f, 30);
+        assertEquals(4, h.size());
+        assertEquals(0.2f, h.getLow(0), 0f);
+        for (int i = 0; i < 4; i++) assertEquals(0.8f, h.getHigh(i), 0f);
+    }
+
+    @Test
+    public void framesPerColumn_spansTheRequestedTime() {
+        int columns = 360;
+        long fpc = WaveformHistory.framesPerColumn(columns, 30 * 60, 48000);
+        WaveformHistory h = new WaveformHistory(columns, fpc);
+        // 30 minuti a blocchi di 2048: riempie la vista senza allocare nulla
+        long frames = 30L * 60 * 48000;
+        for (long f = 0; f < frames; f += 2048) h.add(0.1f, 0.2f, 2048);
+        assertEquals(columns, h.size());
+    }
+
+    @Test
+    public void toLines_oneVerticalSegmentPerColumn_newestAtTheRight() {
+        WaveformHistory h = new WaveformHistory(10, 1);
+        h.add(0.25f, 0.75f, 1);
+        h.add(0.5f, 0.5f, 1);
+        float[] pts = new float[40];
+        int n = h.toLines(pts, 100, 200, 4);
+        assertEquals(8, n);
+        assertEquals(pts[0], pts[2], 0f);
+        assertEquals(98f - 4f, pts[0], 0f);
+        assertEquals(50f, pts[1], 0f);   // alto: 0.75
+        assertEquals(150f, pts[3], 0f);  // basso: 0.25
+        assertEquals(98f, pts[4], 0f);
+        // colonna piatta: almeno un pixel
+        assertEquals(1f, pts[7] - pts[5], 0f);
+    }
+
+    @Test
+    public void setFramesPerColumn_startsOver() {
+        WaveformHistory h = new WaveformHistory(4, 10);
+        h.add(0.5f, 0.5f, 25);
+        h.setFramesPerColumn(100);
+        assertEquals(0, h.size());
+        assertEquals(100, h.getFramesPerColumn());
+    }
+}
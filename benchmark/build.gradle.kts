@@ -0,0 +1,60 @@
+// JMH benchmarks for the capture/DSP/I-O hot paths.
+// Run with: ./gradlew :benchmark:jmh   (results in benchmark/build/results/jmh/results.json)
+plugins {
+    id("java")
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+// The hot paths are plain Java classes of the app module: compile them from there,
+// without the Android plugin. Only classes with no android.* imports can be listed here.
+sourceSets {
+    named("main") {
+        java {
+            setSrcDirs(listOf("../app/src/main/java"))
+            include(
+                "org/birroph/continuousrec/AudioSource.java",
+                "org/birroph/continuousrec/BroadcastRing.java",
+                "org/birroph/continuousrec/CaptureEngine.java",
+                "org/birroph/continuousrec/ConvertingAudioSource.java",
+                "org/birroph/continuousrec/DurabilityPolicy.java",
+                "org/birroph/continuousrec/LevelChannel.java",
+                "org/birroph/continuousrec/LevelScale.java",
+                "org/birroph/continuousrec/NoiseFloorTracker.java",
+                "org/birroph/continuousrec/PcmChannelWriter.java",
+                "org/birroph/continuousrec/PeakPyramid.java",
+                "org/birroph/continuousrec/PeakSidecarWriter.java",
+                "org/birroph/continuousrec/PcmSegmentWriter.java",
+                "org/birroph/continuousrec/PolyphaseResampler.java",
+                "org/birroph/continuousrec/PreRollBuffer.java",
+                "org/birroph/continuousrec/RealFft.java",
+                "org/birroph/continuousrec/RecordingEngine.java",
+                "org/birroph/continuousrec/SampleClock.java",
+                "org/birroph/continuousrec/SegmentWriter.java",
+                "org/birroph/continuousrec/Stft.java",
+                "org/birroph/continuousrec/SyntheticAudioSource.java",
+                "org/birroph/continuousrec/VoiceActivityDetector.java",
+                "org/birroph/continuousrec/WavFormat.java",
+                "org/birroph/continuousrec/WaveformHistory.java",
+            )
+        }
+    }
+}
+
+jmh {
+    jmhVersion.set("1.37")
+    // numeri ripetibili: più fork, warmup fisso, stesse unità
+    fork.set(2)
+    warmupIterations.set(5)
+    warmup.set("1s")
+    iterations.set(10)
+    timeOnIteration.set("1s")
+    timeUnit.set("us")
+    benchmarkMode.set(listOf("avgt"))
+    resultFormat.set("JSON")
+    jvmArgs.set(listOf("-Xms512m", "-Xmx512m"))
+}
@@ -0,0 +1,65 @@
+package org.birroph.continuousrec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One minute of 44.1 kHz mono written as a temp PCM segment under each
+ * {@link DurabilityPolicy}, in 20 ms blocks like the engine. The write and force
+ * counts are printed at teardown.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DurabilityBenchmark {
+    private static final int RATE = 44100;
+
+    @Param({"coalesced", "interval", "segment_end"})
+    public String mode;
+
+    @Param({"5"})
+    public int syncSec;
+
+    private File dir;
+    private DurabilityPolicy policy;
+    private DurabilityPolicy.Stats stats;
+    private final short[] block = new short[RATE / 50];
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("bench_durability").toFile();
+        policy = DurabilityPolicy.of(mode, syncSec);
+        stats = new DurabilityPolicy.Stats();
+        for (int i = 0; i < block.length; i++) block[i] = (short) (i * 31);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println(policy + ": " + stats);
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public long oneMinute() throws IOException {
+        PcmSegmentWriter w = new PcmSegmentWriter(File.createTempFile("cr_tmp_", ".pcm", dir), RATE, 1, policy, stats);
+        for (int i = 0; i < 50 * 60; i++) w.write(block, 0, block.length);
+        File f = w.finish();
+        long n = f.length();
+        f.delete();
+        return n;
+    }
+}
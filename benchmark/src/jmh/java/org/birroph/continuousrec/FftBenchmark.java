@@ -0,0 +1,87 @@
+package org.birroph.continuousrec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Real FFT at the sizes the analysis code uses: one forward transform, a forward plus
+ * inverse round trip, and a 2048-sample stereo engine block through the STFT at 75%
+ * overlap (analysis only and with resynthesis).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FftBenchmark {
+    @Param({"512", "1024", "2048"})
+    public int size;
+
+    private RealFft fft;
+    private float[] signal;
+    private float[] work;
+    private float[] power;
+
+    private Stft analysis;
+    private Stft resynthesis;
+    private short[] block;
+    private float[] out;
+    private float sink;
+
+    @Setup
+    public void setup() {
+        fft = new RealFft(size);
+        signal = new float[size];
+        for (int i = 0; i < size; i++) signal[i] = (float) Math.sin(i * 0.03) * 0.5f;
+        work = new float[size];
+        power = new float[fft.bins()];
+
+        Stft.FrameListener listener = (spectrum, start) -> sink += spectrum[2];
+        analysis = new Stft(size, size / 4, 2, listener);
+        resynthesis = new Stft(size, size / 4, 2, true, listener);
+        block = new short[2048];
+        for (int i = 0; i < block.length; i++) block[i] = (short) (Math.sin(i * 0.01) * 8000);
+        out = new float[block.length / 2 + size];
+    }
+
+    @Benchmark
+    public float[] forward() {
+        System.arraycopy(signal, 0, work, 0, size);
+        fft.forward(work);
+        return work;
+    }
+
+    @Benchmark
+    public float[] forwardPower() {
+        System.arraycopy(signal, 0, work, 0, size);
+        fft.applyHann(work);
+        fft.forward(work);
+        fft.powerSpectrum(work, power);
+        return power;
+    }
+
+    @Benchmark
+    public float[] roundTrip() {
+        System.arraycopy(signal, 0, work, 0, size);
+        fft.forward(work);
+        fft.inverse(work);
+        return work;
+    }
+
+    @Benchmark
+    public float stftBlock() {
+        analysis.process(block, block.length);
+        return sink;
+    }
+
+    @Benchmark
+    public int stftResynthesisBlock() {
+        return resynthesis.process(block, block.length, out);
+    }
+}
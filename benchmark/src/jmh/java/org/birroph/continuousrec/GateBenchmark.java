@@ -0,0 +1,59 @@
+package org.birroph.continuousrec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the recording gate on one 1024-frame block: the RMS level against the
+ * voice activity detector.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GateBenchmark {
+    @Param({"16000", "48000"})
+    public int sampleRate;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    private static final int BLOCKS = 64;
+    private static final int BLOCK_FRAMES = 1024;
+
+    private short[][] blocks;
+    private VoiceActivityDetector vad;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        SyntheticAudioSource source = new SyntheticAudioSource(sampleRate, channels, 5)
+                .speech(2, 0.5f)
+                .noise(1, 0.2f)
+                .loopFor(10);
+        source.start();
+        blocks = new short[BLOCKS][BLOCK_FRAMES * channels];
+        for (short[] b : blocks) source.read(b, 0, b.length);
+        vad = new VoiceActivityDetector(sampleRate, channels);
+    }
+
+    @Benchmark
+    public float rmsLevel() {
+        short[] b = blocks[next++ & (BLOCKS - 1)];
+        return RecordingEngine.rmsLevel(b, b.length);
+    }
+
+    @Benchmark
+    public boolean voiceActivity() {
+        short[] b = blocks[next++ & (BLOCKS - 1)];
+        return vad.process(b, b.length);
+    }
+}
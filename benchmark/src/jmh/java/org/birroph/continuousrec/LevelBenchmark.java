@@ -0,0 +1,58 @@
+package org.birroph.continuousrec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/** Level of one capture block, as computed for every block in the recording loop. */
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LevelBenchmark {
+    @Param({"1024", "2048", "4096"})
+    public int blockSamples;
+
+    private short[] block;
+    private LevelChannel channel;
+    private PeakPyramid peaks;
+    private final LevelChannel.Sink sink = (peak, rms, clipped, frames) -> { };
+
+    @Setup
+    public void setup() {
+        block = new short[blockSamples];
+        new SyntheticAudioSource(44100, 1, 3).noise(1, 0.5f).read(block, 0, block.length);
+        channel = new LevelChannel(LevelChannel.DEFAULT_CAPACITY);
+    }
+
+    @Setup(Level.Iteration)
+    public void newSegment() {
+        peaks = new PeakPyramid(44100, 1);
+    }
+
+    @Benchmark
+    public float rmsLevel() {
+        return RecordingEngine.rmsLevel(block, block.length);
+    }
+
+    /** Peak, RMS and clip count published to the UI, and drained as a display frame would. */
+    @Benchmark
+    public int publishAndDrain() {
+        channel.publish(block, block.length, 1);
+        return channel.drain(sink);
+    }
+
+    /** Sidecar peaks built alongside the segment writer. */
+    @Benchmark
+    public int peakPyramid() {
+        peaks.add(block, 0, block.length);
+        return peaks.getBins(0);
+    }
+}
@@ -0,0 +1,89 @@
+package org.birroph.continuousrec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 16-bit samples to little-endian bytes: the original per-block byte[] loop
+ * against the reused-buffer replacements.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PcmSerializationBenchmark {
+    private static final int BLOCK = 2048;
+
+    private final short[] block = new short[BLOCK];
+    private ByteBuffer heap;
+    private ShortBuffer heapShorts;
+    private ByteBuffer direct;
+    private ShortBuffer directShorts;
+    private PcmChannelWriter writer;
+
+    @Setup
+    public void setup() throws IOException {
+        new SyntheticAudioSource(44100, 1, 3).noise(1, 0.5f).read(block, 0, BLOCK);
+        heap = ByteBuffer.allocate(BLOCK * 2).order(ByteOrder.LITTLE_ENDIAN);
+        heapShorts = heap.asShortBuffer();
+        direct = ByteBuffer.allocateDirect(BLOCK * 2).order(ByteOrder.LITTLE_ENDIAN);
+        directShorts = direct.asShortBuffer();
+        // solo costo di serializzazione + syscall, senza disco
+        writer = new PcmChannelWriter(FileChannel.open(new File("/dev/null").toPath(), StandardOpenOption.WRITE));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        writer.close();
+    }
+
+    /** The original RecordingService.shortToLittleEndianBytes(). */
+    static byte[] shortToLittleEndianBytes(short[] samples, int length) {
+        byte[] out = new byte[length * 2];
+        for (int i = 0; i < length; i++) {
+            short s = samples[i];
+            out[i * 2] = (byte) (s & 0xff);
+            out[i * 2 + 1] = (byte) ((s >> 8) & 0xff);
+        }
+        return out;
+    }
+
+    @Benchmark
+    public byte[] legacyByteLoop() {
+        return shortToLittleEndianBytes(block, BLOCK);
+    }
+
+    @Benchmark
+    public void heapShortBufferView(Blackhole bh) {
+        heapShorts.clear();
+        heapShorts.put(block, 0, BLOCK);
+        bh.consume(heap);
+    }
+
+    @Benchmark
+    public void directShortBufferView(Blackhole bh) {
+        directShorts.clear();
+        directShorts.put(block, 0, BLOCK);
+        bh.consume(direct);
+    }
+
+    @Benchmark
+    public void pcmChannelWriter() throws IOException {
+        writer.write(block, 0, BLOCK);
+    }
+}
@@ -0,0 +1,68 @@
+package org.birroph.continuousrec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion stage between capture and writer: one 1024-frame capture block through
+ * the polyphase resampler alone, and through the whole chain (16-bit to float, downmix,
+ * resample, back to 16-bit).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResamplerBenchmark {
+    @Param({"48000:16000", "44100:16000", "16000:44100"})
+    public String rates;
+
+    @Param({"1", "2"})
+    public int captureChannels;
+
+    private static final int BLOCK = ConvertingAudioSource.DEFAULT_BLOCK_FRAMES;
+
+    private PolyphaseResampler resampler;
+    private float[] in;
+    private float[] out;
+
+    private ConvertingAudioSource chain;
+    private short[] block;
+
+    @Setup
+    public void setup() throws IOException {
+        int inRate = Integer.parseInt(rates.substring(0, rates.indexOf(':')));
+        int outRate = Integer.parseInt(rates.substring(rates.indexOf(':') + 1));
+
+        resampler = new PolyphaseResampler(inRate, outRate, captureChannels, BLOCK);
+        in = new float[BLOCK * captureChannels];
+        for (int i = 0; i < in.length; i++) in[i] = (float) Math.sin(i * 0.01) * 0.5f;
+        out = new float[resampler.maxOutFrames(BLOCK) * captureChannels];
+
+        // sorgente infinita: la catena non si esaurisce durante le iterazioni
+        SyntheticAudioSource source = new SyntheticAudioSource(inRate, captureChannels, 5)
+                .noise(1, 0.5f)
+                .loopFor(1e9);
+        chain = new ConvertingAudioSource(source, outRate, 1, BLOCK);
+        chain.start();
+        block = new short[resampler.maxOutFrames(BLOCK)];
+    }
+
+    @Benchmark
+    public int resampleBlock() {
+        return resampler.process(in, 0, BLOCK, out, 0);
+    }
+
+    /** One read of the chain; pulls a new capture block whenever the previous is used up. */
+    @Benchmark
+    public int convertChain() throws IOException {
+        return chain.read(block, 0, block.length);
+    }
+}
@@ -0,0 +1,118 @@
+package org.birroph.continuousrec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a segment boundary costs: opening, writing one block and closing a temp PCM
+ * segment, and the engine over 10 minutes of loud audio with short or long frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SegmentRolloverBenchmark {
+    private File dir;
+    private final short[] block = new short[2048];
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("bench_rollover").toFile();
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public File pcmSegmentOpenWriteClose() throws IOException {
+        PcmSegmentWriter w = new PcmSegmentWriter(File.createTempFile("cr_tmp_", ".pcm", dir));
+        w.write(block, 0, block.length);
+        File f = w.finish();
+        f.delete();
+        return f;
+    }
+
+    @State(Scope.Thread)
+    public static class Frames {
+        @Param({"1", "30"})
+        public int frameSec;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int engineTenMinutes(Frames frames) throws IOException {
+        RecordingEngine.Config config = new RecordingEngine.Config();
+        config.frameSec = frames.frameSec;
+        config.thresholdDb = -20f;
+        SyntheticAudioSource source = new SyntheticAudioSource(44100, 1, 9).noise(600, 0.8f);
+        RecordingEngine engine = new RecordingEngine(source, config, new NullSink(), new NullListener());
+        engine.runBlocking();
+        return engine.getKeptSegments();
+    }
+
+    private static final class NullSink implements RecordingEngine.SegmentSink {
+        @Override
+        public SegmentWriter open(long startFrame) {
+            return new SegmentWriter() {
+                private long samples;
+
+                @Override
+                public void write(short[] s, int offset, int length) {
+                    samples += length;
+                }
+
+                @Override
+                public File finish() {
+                    return null;
+                }
+
+                @Override
+                public void abort() {
+                }
+
+                @Override
+                public long getSamplesWritten() {
+                    return samples;
+                }
+
+                @Override
+                public File getFile() {
+                    return null;
+                }
+            };
+        }
+
+        @Override
+        public void closed(SegmentWriter writer) {
+        }
+    }
+
+    private static final class NullListener implements RecordingEngine.Listener {
+        @Override
+        public void onLevel(float normalizedLevel) {
+        }
+
+        @Override
+        public void onError(String what, Exception e) {
+        }
+
+        @Override
+        public void onStopped() {
+        }
+    }
+}
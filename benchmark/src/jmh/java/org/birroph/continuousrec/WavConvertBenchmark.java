@@ -0,0 +1,73 @@
+package org.birroph.continuousrec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** PCM->WAV of a 30 s / 44.1 kHz segment at different copy sizes. */
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WavConvertBenchmark {
+    @Param({"4096", "65536", "1048576"})
+    public int bufferBytes;
+
+    private File pcm;
+    private File wav;
+
+    @Setup
+    public void setup() throws IOException {
+        pcm = File.createTempFile("bench_", ".pcm");
+        wav = File.createTempFile("bench_", ".wav");
+        SyntheticAudioSource src = new SyntheticAudioSource(44100, 1, 5).noise(30, 0.3f);
+        short[] block = new short[4096];
+        try (PcmChannelWriter w = new PcmChannelWriter(java.nio.channels.FileChannel.open(pcm.toPath(),
+                java.nio.file.StandardOpenOption.WRITE))) {
+            int n;
+            while ((n = src.read(block, 0, block.length)) > 0) w.write(block, 0, n);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pcm.delete();
+        wav.delete();
+    }
+
+    @Benchmark
+    public long transferTo() throws IOException {
+        WavFormat.convert(pcm, wav, 44100, 1, 16, bufferBytes);
+        return wav.length();
+    }
+
+    /** The original stream copy, with its fixed buffer replaced by the parameter. */
+    @Benchmark
+    public long legacyStreamCopy() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(WavFormat.HEADER_BYTES);
+        WavFormat.putHeader(header, pcm.length(), 44100, 1, 16);
+        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(wav));
+             FileInputStream in = new FileInputStream(pcm)) {
+            out.write(header.array(), 0, WavFormat.HEADER_BYTES);
+            byte[] buffer = new byte[bufferBytes];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return wav.length();
+    }
+}
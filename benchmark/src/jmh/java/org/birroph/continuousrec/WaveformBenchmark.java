@@ -0,0 +1,43 @@
+package org.birroph.continuousrec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/** Per display frame work of the waveform view: one block in, every column out as line points. */
+@BenchmarkMode(Mode.AverageTime)
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WaveformBenchmark {
+    @Param({"360", "1440"})
+    public int columns;
+
+    @Param({"2", "30"})
+    public int historyMin;
+
+    private WaveformHistory history;
+    private float[] points;
+    private float level = 0;
+
+    @Setup
+    public void setup() {
+        history = new WaveformHistory(columns, WaveformHistory.framesPerColumn(columns, historyMin * 60, 48000));
+        points = new float[4 * columns];
+        long frames = historyMin * 60L * 48000;
+        for (long f = 0; f < frames; f += 2048) history.add(0.2f, 0.4f, 2048);
+    }
+
+    @Benchmark
+    public int addAndDraw() {
+        level = level > 0.9f ? 0.1f : level + 0.01f;
+        history.add(level / 2, level, 2048);
+        return history.toLines(points, 1080, 400, 3);
+    }
+}
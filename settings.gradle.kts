@@ -16,3 +16,4 @@ dependencyResolutionManagement {
 
 rootProject.name = "ContinuousRec"
 include(":app")
+include(":benchmark")